@@ -0,0 +1,71 @@
+package fs.benchmark;
+
+import fs.domain.FileItem;
+import fs.mvc.dto.FileItemDTO;
+import fs.service.StorageService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StorageService#load(Long)} of a file shared with {@code shares} users, by one of them, and the listing of
+ * files shared with that user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+@Fork(1)
+public class AccessCheckBenchmark {
+    private static final String SHARED_WITH = "user2";
+    private static final long FIRST_ID = 1_000_000_000L;
+
+    @Param({"10", "1000", "10000"})
+    private int shares;
+
+    private BenchmarkContext context;
+    private StorageService storageService;
+    private Long fileId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext("memory");
+        context.login();
+        storageService = context.getBean(StorageService.class);
+        fileId = storageService.store("shared.bin", new GeneratedContent(1024, -1)).getId();
+
+        List<Object[]> users = new ArrayList<>(shares);
+        List<Object[]> fileShares = new ArrayList<>(shares);
+        for (long id = FIRST_ID; id < FIRST_ID + shares - 1; id++) {
+            users.add(new Object[]{id, "user-" + id});
+            fileShares.add(new Object[]{id, fileId, id});
+        }
+        JdbcTemplate jdbc = context.getBean(JdbcTemplate.class);
+        jdbc.batchUpdate("INSERT INTO USERS (id, username, password) VALUES (?, ?, '{noop}password')", users);
+        jdbc.batchUpdate("INSERT INTO FILE_SHARE (id, file_id, user_id) VALUES (?, ?, ?)", fileShares);
+        storageService.share(fileId, SHARED_WITH);
+
+        context.login(SHARED_WITH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public FileItem load() {
+        return storageService.load(fileId);
+    }
+
+    @Benchmark
+    public List<FileItemDTO> sharedPage() {
+        return storageService.loadSharedPage(null, 100);
+    }
+}
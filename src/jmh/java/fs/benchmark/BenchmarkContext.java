@@ -0,0 +1,62 @@
+package fs.benchmark;
+
+import fs.FileStorageApplication;
+import fs.dao.UserRepository;
+import fs.security.UserDetails;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Whole application on an in-memory H2 database and a temporary store root, with no HTTP port, so benchmarks
+ * measure the service and controller code paths rather than the network.
+ */
+class BenchmarkContext implements AutoCloseable {
+    static final String USERNAME = "user1";
+
+    private final Path root;
+    private final ConfigurableApplicationContext context;
+
+    BenchmarkContext(String blobStore) throws IOException {
+        root = Files.createTempDirectory("file-storage-benchmark");
+        // command line arguments take precedence over application.yml
+        context = new SpringApplicationBuilder(FileStorageApplication.class).run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1",
+                "--logging.level.root=WARN",
+                "--file_store.path.root=" + root,
+                "--file_store.blob-store=" + blobStore);
+    }
+
+    <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    void login() {
+        login(USERNAME);
+    }
+
+    /**
+     * Authenticates every thread as the user, since JMH runs setup and benchmark methods on its own worker threads.
+     */
+    void login(String username) {
+        UserDetails principal = new UserDetails(getBean(UserRepository.class).findByUsername(username));
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(principal, null, Collections.emptyList()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        FileSystemUtils.deleteRecursively(root);
+    }
+}
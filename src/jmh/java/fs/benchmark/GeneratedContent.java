@@ -0,0 +1,46 @@
+package fs.benchmark;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Stream of {@code size} pseudo-random bytes without allocating them. The first 8 bytes carry a seed, so every
+ * stream with a different seed hashes differently and isn't deduplicated by the blob store.
+ */
+class GeneratedContent extends InputStream {
+    private static final byte[] BLOCK = new byte[64 * 1024];
+
+    static {
+        new Random(42).nextBytes(BLOCK);
+    }
+
+    private final long size;
+    private final long seed;
+    private long position;
+
+    GeneratedContent(long size, long seed) {
+        this.size = size;
+        this.seed = seed;
+    }
+
+    private byte byteAt(long index) {
+        return index < Long.BYTES ? (byte) (seed >>> (index * 8)) : BLOCK[(int) (index % BLOCK.length)];
+    }
+
+    @Override
+    public int read() {
+        return position < size ? byteAt(position++) & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (position >= size) {
+            return -1;
+        }
+        int count = (int) Math.min(len, size - position);
+        for (int i = 0; i < count; i++) {
+            b[off + i] = byteAt(position++);
+        }
+        return count;
+    }
+}
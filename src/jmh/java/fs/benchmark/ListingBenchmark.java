@@ -0,0 +1,90 @@
+package fs.benchmark;
+
+import fs.dao.UserRepository;
+import fs.domain.FileItem;
+import fs.mvc.dto.FileItemDTO;
+import fs.service.StorageService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StorageService#loadAll()} and keyset pages of {@link StorageService#loadPage(Long, int)} for a user owning
+ * {@code files} files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ListingBenchmark {
+    private static final int BATCH_SIZE = 10_000;
+    private static final long FIRST_ID = 1_000_000_000L;
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    private int files;
+
+    private BenchmarkContext context;
+    private StorageService storageService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext("memory");
+        context.login();
+        storageService = context.getBean(StorageService.class);
+
+        Long userId = context.getBean(UserRepository.class).findByUsername(BenchmarkContext.USERNAME).getId();
+        JdbcTemplate jdbc = context.getBean(JdbcTemplate.class);
+        List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+        for (long id = FIRST_ID; id < FIRST_ID + files; id++) {
+            batch.add(new Object[]{id, "file-" + id + ".txt", "memory:" + id, userId});
+            if (batch.size() == BATCH_SIZE) {
+                insert(jdbc, batch);
+            }
+        }
+        insert(jdbc, batch);
+    }
+
+    private static void insert(JdbcTemplate jdbc, List<Object[]> batch) {
+        jdbc.batchUpdate("INSERT INTO FILE_ITEM (id, name, fs_path, user_id, version) VALUES (?, ?, ?, ?, 0)", batch);
+        batch.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public List<FileItem> loadAll() {
+        return storageService.loadAll();
+    }
+
+    @Benchmark
+    public List<FileItemDTO> firstPage() {
+        return storageService.loadPage(null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<FileItemDTO> lastPage() {
+        return storageService.loadPage(FIRST_ID + files - PAGE_SIZE - 1, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public void allPages(Blackhole blackhole) {
+        Long afterId = null;
+        List<FileItemDTO> page;
+        do {
+            page = storageService.loadPage(afterId, PAGE_SIZE);
+            blackhole.consume(page);
+            afterId = page.isEmpty() ? afterId : page.get(page.size() - 1).getId();
+        } while (page.size() == PAGE_SIZE);
+    }
+}
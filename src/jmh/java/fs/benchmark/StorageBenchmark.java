@@ -0,0 +1,103 @@
+package fs.benchmark;
+
+import fs.domain.FileItem;
+import fs.mvc.FileStorageController;
+import fs.service.StorageService;
+import fs.storage.BlobStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.DelegatingServletOutputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload ({@link StorageService#store(String, java.io.InputStream)}) and download
+ * ({@link FileStorageController#downloadFile}) of a single file, per file size and storage engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StorageBenchmark {
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    private long size;
+
+    @Param({"file", "mmap", "memory"})
+    private String blobStore;
+
+    private BenchmarkContext context;
+    private StorageService storageService;
+    private FileStorageController controller;
+    private FileItem downloadFile;
+    private FileItem storedFile;
+    private long seed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext(blobStore);
+        context.login();
+        storageService = context.getBean(StorageService.class);
+        controller = context.getBean(FileStorageController.class);
+        downloadFile = storageService.store("download.bin", new GeneratedContent(size, -1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    /**
+     * Stored blobs are removed right away, so large sizes don't fill the disk or the heap.
+     */
+    @TearDown(Level.Invocation)
+    public void removeStored() throws IOException {
+        if (storedFile != null) {
+            context.getBean(BlobStore.class).delete(storedFile.getHash());
+            storedFile = null;
+        }
+    }
+
+    @Benchmark
+    public FileItem store() {
+        storedFile = storageService.store("upload.bin", new GeneratedContent(size, seed++));
+        return storedFile;
+    }
+
+    /**
+     * The async part of the download runs on the benchmark thread, so the executor hand-off isn't measured.
+     */
+    @Benchmark
+    public void download(Blackhole blackhole) throws Exception {
+        MockHttpServletResponse response = new DiscardingResponse();
+        WebAsyncTask<Void> write = controller.downloadFile(downloadFile.getId(), new MockHttpServletRequest(), response);
+        if (write != null) {
+            write.getCallable().call();
+        }
+        blackhole.consume(response.getStatus());
+    }
+
+    private static class DiscardingResponse extends MockHttpServletResponse {
+        private final ServletOutputStream out = new DelegatingServletOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package fs.benchmark;
+
+import fs.service.impl.UserDetailsServiceImpl;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserDetailsServiceImpl#loadUserByUsername(String)}, run on every authentication.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserDetailsBenchmark {
+    private BenchmarkContext context;
+    private UserDetailsServiceImpl userDetailsService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext("memory");
+        userDetailsService = context.getBean(UserDetailsServiceImpl.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public UserDetails loadUserByUsername() {
+        return userDetailsService.loadUserByUsername(BenchmarkContext.USERNAME);
+    }
+}
@@ -0,0 +1,224 @@
+package fs;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import fs.storage.BlobStore;
+import fs.storage.CachingBlobStore;
+import fs.storage.ClusterClient;
+import fs.storage.ClusteredBlobStore;
+import fs.storage.Durability;
+import fs.storage.FileBlobStore;
+import fs.storage.MappedFileBlobStore;
+import fs.storage.MemoryBlobStore;
+import fs.storage.PackedBlobStore;
+import fs.storage.S3BlobStore;
+import fs.storage.TieredBlobStore;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the storage engine with {@code file_store.blob-store}: {@code file} (default), {@code mmap}, {@code memory}
+ * or {@code s3}. Writes of the file based engines are synced to the disk as set by {@code file_store.durability.mode}:
+ * {@code none} (default), {@code fsync} or {@code group}, and their blobs are kept under
+ * {@code file_store.layout.shard-levels} levels of shard folders. With {@code file_store.cache.enabled} hot blobs of
+ * up to {@code file_store.cache.max-blob-size} are read from a cache of {@code file_store.cache.max-size} off-heap.
+ * With {@code file_store.tiering.enabled} the file based engines keep the blobs nobody reads under
+ * {@code file_store.tiering.cold-root}, in a file store of their own. With {@code file_store.packing.enabled} the file
+ * based engines pack blobs of up to {@code file_store.packing.max-blob-size} into segments of
+ * {@code file_store.packing.segment-size} under {@code segments} of their root, compacted once
+ * {@code file_store.packing.compaction-ratio} of a segment is garbage. With {@code file_store.cluster.enabled} the
+ * file based engine of the node is the local store of a {@link ClusteredBlobStore}.
+ */
+@Configuration
+public class BlobStoreConfig {
+    private static final String BLOB_STORE = "file_store.blob-store";
+
+    @Value("${file_store.path.root}")
+    private String storePath;
+
+    @Value("${file_store.durability.mode:none}")
+    private Durability durability;
+
+    @Value("${file_store.durability.group-commit-window:2ms}")
+    private Duration groupCommitWindow;
+
+    @Value("${file_store.layout.shard-levels:2}")
+    private int shardLevels;
+
+    @Value("${file_store.cache.enabled:false}")
+    private boolean cache;
+
+    @Value("${file_store.cache.max-size:256MB}")
+    private DataSize cacheSize;
+
+    @Value("${file_store.cache.max-blob-size:1MB}")
+    private DataSize maxCachedBlobSize;
+
+    @Value("${file_store.tiering.enabled:false}")
+    private boolean tiering;
+
+    @Value("${file_store.tiering.cold-root:}")
+    private String coldPath;
+
+    @Value("${file_store.packing.enabled:false}")
+    private boolean packing;
+
+    @Value("${file_store.packing.max-blob-size:64KB}")
+    private DataSize maxPackedBlobSize;
+
+    @Value("${file_store.packing.segment-size:256MB}")
+    private DataSize segmentSize;
+
+    @Value("${file_store.packing.compaction-ratio:0.3}")
+    private double compactionRatio;
+
+    @Value("${file_store.cluster.enabled:false}")
+    private boolean clustering;
+
+    private BlobStore cached(BlobStore store) {
+        return cache ? new CachingBlobStore(store, cacheSize.toBytes(), maxCachedBlobSize.toBytes()) : store;
+    }
+
+    private BlobStore tiered(BlobStore hot) {
+        if (!tiering) {
+            return hot;
+        }
+        if (coldPath.isEmpty()) {
+            throw new IllegalArgumentException("Please provide file_store.tiering.cold-root for the cold tier!");
+        }
+        Path coldRoot = Paths.get(coldPath);
+        return new TieredBlobStore(hot, packed(new FileBlobStore(coldRoot, durability, groupCommitWindow,
+                shardLevels), coldRoot));
+    }
+
+    private BlobStore packed(BlobStore store, Path root) {
+        if (!packing) {
+            return store;
+        }
+        try {
+            return new PackedBlobStore(store, root.resolve("segments"), durability,
+                    Math.toIntExact(maxPackedBlobSize.toBytes()), segmentSize.toBytes(), compactionRatio);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't load the segments of " + root, e);
+        }
+    }
+
+    private void checkFileFeatures(String engine) {
+        if (tiering) {
+            throw new IllegalStateException("Tiered storage isn't supported by the " + engine + " blob store");
+        }
+        if (packing) {
+            throw new IllegalStateException("Packing isn't supported by the " + engine + " blob store");
+        }
+        if (clustering) {
+            throw new IllegalStateException("Cluster mode isn't supported by the " + engine + " blob store");
+        }
+    }
+
+    /**
+     * The other nodes are listed as {@code <node id>=<base URL>}, this one included.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "file_store.cluster.enabled", havingValue = "true")
+    public ClusteredBlobStore clusteredBlobStore(@Value("${file_store.blob-store:file}") String engine,
+                                                 @Value("${file_store.cluster.node-id}") String nodeId,
+                                                 @Value("${file_store.cluster.nodes}") List<String> nodes,
+                                                 @Value("${file_store.cluster.replication-factor:2}") int replicas,
+                                                 @Value("${file_store.cluster.write-quorum:0}") int writeQuorum,
+                                                 @Value("${file_store.cluster.virtual-nodes:128}") int virtualNodes,
+                                                 @Value("${file_store.cluster.secret}") String secret,
+                                                 @Value("${file_store.cluster.timeout:5s}") Duration timeout) {
+        if (!"file".equals(engine) && !"mmap".equals(engine)) {
+            throw new IllegalStateException("Cluster mode isn't supported by the " + engine + " blob store");
+        }
+        if (tiering) {
+            throw new IllegalStateException("Tiered storage isn't supported in cluster mode");
+        }
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("Please provide file_store.cluster.secret shared by the nodes!");
+        }
+        Map<String, URI> urls = new LinkedHashMap<>();
+        for (String node : nodes) {
+            int separator = node.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Cluster node should be <id>=<base URL>, but was: " + node);
+            }
+            urls.put(node.substring(0, separator).trim(), URI.create(node.substring(separator + 1).trim()));
+        }
+        Path root = Paths.get(storePath);
+        BlobStore local = packed("mmap".equals(engine)
+                ? new MappedFileBlobStore(root, durability, groupCommitWindow, shardLevels)
+                : new FileBlobStore(root, durability, groupCommitWindow, shardLevels), root);
+        return new ClusteredBlobStore(local, nodeId, urls, replicas, writeQuorum > 0 ? writeQuorum : replicas / 2 + 1,
+                virtualNodes, new ClusterClient(secret, timeout));
+    }
+
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = BLOB_STORE, havingValue = "file", matchIfMissing = true)
+    public BlobStore fileBlobStore(ObjectProvider<ClusteredBlobStore> cluster) {
+        if (clustering) {
+            return cached(cluster.getObject());
+        }
+        Path root = Paths.get(storePath);
+        return cached(tiered(packed(new FileBlobStore(root, durability, groupCommitWindow, shardLevels), root)));
+    }
+
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = BLOB_STORE, havingValue = "mmap")
+    public BlobStore mappedFileBlobStore(ObjectProvider<ClusteredBlobStore> cluster) {
+        if (clustering) {
+            return cached(cluster.getObject());
+        }
+        Path root = Paths.get(storePath);
+        return cached(tiered(packed(new MappedFileBlobStore(root, durability, groupCommitWindow, shardLevels),
+                root)));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = BLOB_STORE, havingValue = "memory")
+    public BlobStore memoryBlobStore() {
+        checkFileFeatures("memory");
+        return new MemoryBlobStore();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = BLOB_STORE, havingValue = "s3")
+    public BlobStore s3BlobStore(@Value("${file_store.s3.endpoint:}") String endpoint,
+                                 @Value("${file_store.s3.region:us-east-1}") String region,
+                                 @Value("${file_store.s3.bucket}") String bucket,
+                                 @Value("${file_store.s3.access-key}") String accessKey,
+                                 @Value("${file_store.s3.secret-key}") String secretKey) {
+        checkFileFeatures("s3");
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKey, secretKey)));
+        if (endpoint.isEmpty()) {
+            builder.withRegion(region);
+        } else {
+            // S3-compatible stand-ins (MinIO, ...) are addressed by endpoint and path-style bucket URLs
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
+                    .withPathStyleAccessEnabled(true);
+        }
+        AmazonS3 s3 = builder.build();
+        return cached(new S3BlobStore(s3, bucket, Paths.get(storePath, "tmp")));
+    }
+}
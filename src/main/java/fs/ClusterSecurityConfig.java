@@ -0,0 +1,28 @@
+package fs;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.security.config.annotation.web.WebSecurityConfigurer;
+import org.springframework.security.config.annotation.web.builders.WebSecurity;
+
+/**
+ * Leaves the internal API of the cluster ({@link fs.mvc.ClusterController}) to its own token check: the nodes neither
+ * log in nor send CSRF tokens. It isn't a {@code WebSecurityConfigurerAdapter}, so the default security of the
+ * application stays as it is.
+ */
+@Configuration
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@ConditionalOnProperty(name = "file_store.cluster.enabled", havingValue = "true")
+public class ClusterSecurityConfig implements WebSecurityConfigurer<WebSecurity> {
+    @Override
+    public void init(WebSecurity web) {
+        web.ignoring().antMatchers("/internal/**");
+    }
+
+    @Override
+    public void configure(WebSecurity web) {
+        // nothing but the ignored paths
+    }
+}
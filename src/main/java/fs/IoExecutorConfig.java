@@ -0,0 +1,32 @@
+package fs;
+
+import fs.mvc.IoExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Separate bounded executors for downloads and uploads, limited by {@code file_store.io.download.*} and
+ * {@code file_store.io.upload.*}, and for the files of batch uploads that are stored concurrently, limited by
+ * {@code file_store.io.store.max-concurrency}.
+ */
+@Configuration
+public class IoExecutorConfig {
+
+    @Bean
+    public IoExecutor downloadExecutor(@Value("${file_store.io.download.max-concurrency:200}") int maxConcurrency,
+                                       @Value("${file_store.io.download.queue-capacity:200}") int queueCapacity) {
+        return new IoExecutor("download", maxConcurrency, queueCapacity);
+    }
+
+    @Bean
+    public IoExecutor uploadExecutor(@Value("${file_store.io.upload.max-concurrency:50}") int maxConcurrency,
+                                     @Value("${file_store.io.upload.queue-capacity:50}") int queueCapacity) {
+        return new IoExecutor("upload", maxConcurrency, queueCapacity);
+    }
+
+    @Bean
+    public IoExecutor storeExecutor(@Value("${file_store.io.store.max-concurrency:8}") int maxConcurrency) {
+        return new IoExecutor("store", maxConcurrency, 0);
+    }
+}
@@ -0,0 +1,76 @@
+package fs;
+
+import fs.dao.RepositoryTimer;
+import fs.service.StorageMetrics;
+import fs.service.impl.FileItemCache;
+import fs.storage.BlobStore;
+import fs.storage.CachingBlobStore;
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.interceptor.ExposeInvocationInterceptor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.repository.Repository;
+
+/**
+ * Metrics of the file store, exposed by Actuator ({@code /actuator/metrics}, {@code /actuator/prometheus}):
+ * {@code @Timed} methods, the calls of the repositories, the hit ratios of the file and blob caches and the
+ * per-user traffic, capped to {@code file_store.metrics.max-users} users.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry registry) {
+        return new TimedAspect(registry);
+    }
+
+    @Bean
+    public MeterFilter userTagLimit(@Value("${file_store.metrics.max-users:100}") int maxUsers) {
+        return MeterFilter.maximumAllowableTags(StorageMetrics.USER_TRANSFER_BYTES, "user", maxUsers,
+                MeterFilter.deny());
+    }
+
+    @Bean
+    public MeterBinder cacheMetrics(FileItemCache fileItemCache, BlobStore blobStore) {
+        return registry -> {
+            CaffeineCacheMetrics.monitor(registry, fileItemCache.getCache(), "files");
+            if (blobStore instanceof CachingBlobStore) {
+                CaffeineCacheMetrics.monitor(registry, ((CachingBlobStore) blobStore).getCache(), "blobs");
+            }
+        };
+    }
+
+    /**
+     * Adds a {@link RepositoryTimer} to the proxies of the repositories, right after the advice exposing the
+     * invocation, so that it covers their transactions and the query methods that never reach the target.
+     */
+    @Bean
+    public static BeanPostProcessor repositoryTimers(ObjectProvider<MeterRegistry> registry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof Repository) || !(bean instanceof Advised)) {
+                    return bean;
+                }
+                Advised proxy = (Advised) bean;
+                for (Class<?> type : proxy.getProxiedInterfaces()) {
+                    if (Repository.class.isAssignableFrom(type)
+                            && type.getPackage() == RepositoryTimer.class.getPackage()) {
+                        proxy.addAdvice(proxy.indexOf(ExposeInvocationInterceptor.ADVISOR) + 1,
+                                new RepositoryTimer(type.getSimpleName(), registry));
+                        break;
+                    }
+                }
+                return bean;
+            }
+        };
+    }
+}
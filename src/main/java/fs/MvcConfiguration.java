@@ -1,11 +1,18 @@
 package fs;
 
+import fs.mvc.RateLimiter;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
 public class MvcConfiguration implements WebMvcConfigurer {
+    private final RateLimiter rateLimiter;
+
+    public MvcConfiguration(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
 
     public void addViewControllers(ViewControllerRegistry registry) {
         registry.addViewController("/profile").setViewName("profile");
@@ -13,4 +20,13 @@ public class MvcConfiguration implements WebMvcConfigurer {
         registry.addViewController("/").setViewName("profile");
         registry.addViewController("/error").setViewName("error");
     }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(rateLimiter.requests()).addPathPatterns("/api/**");
+        registry.addInterceptor(rateLimiter.uploads()).addPathPatterns("/api/v1/fileStorage/uploadFile",
+                "/api/v1/fileStorage/uploadFiles", "/api/v1/fileStorage/uploads/**");
+        registry.addInterceptor(rateLimiter.downloads()).addPathPatterns("/api/v1/fileStorage/downloadFile/**",
+                "/api/v1/fileStorage/downloadFiles");
+    }
 }
@@ -0,0 +1,97 @@
+package fs.dao;
+
+import fs.domain.Blob;
+import fs.storage.StorageTier;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+public interface BlobRepository extends CrudRepository<Blob, String> {
+    /**
+     * @return count of updated rows: 0 if there is no blob with this hash yet
+     */
+    @Modifying
+    @Query("update Blob b set b.refCount = b.refCount + 1 where b.hash = :hash")
+    int incrementRefCount(@Param("hash") String hash);
+
+    @Modifying
+    @Query("update Blob b set b.refCount = b.refCount - 1 where b.hash = :hash and b.refCount > 0")
+    int decrementRefCount(@Param("hash") String hash);
+
+    /**
+     * Keyset page of the blobs no file references any more, ordered by hash.
+     */
+    @Query("select b from Blob b where b.refCount = 0 and b.hash > :afterHash order by b.hash")
+    List<Blob> findUnreferenced(@Param("afterHash") String afterHash, Pageable pageable);
+
+    /**
+     * Keyset page of the hashes of the referenced blobs of a tier that weren't read since {@code before}, ordered by
+     * hash.
+     */
+    @Query("select b.hash from Blob b where b.tier = :tier and b.lastAccess < :before and b.refCount > 0"
+            + " and b.hash > :afterHash order by b.hash")
+    List<String> findIdleHashes(@Param("tier") StorageTier tier, @Param("before") Instant before,
+                                @Param("afterHash") String afterHash, Pageable pageable);
+
+    /**
+     * Keyset page of the referenced blobs, ordered by hash.
+     */
+    @Query("select b from Blob b where b.refCount > 0 and b.hash > :afterHash order by b.hash")
+    List<Blob> findReferenced(@Param("afterHash") String afterHash, Pageable pageable);
+
+    /**
+     * Records the checksum of a blob stored before the checksums were kept, unless its stored data changed meanwhile.
+     *
+     * @param storeKey blob store key the checksum was computed from
+     * @return count of updated rows
+     */
+    @Modifying
+    @Transactional
+    @Query("update Blob b set b.checksum = :checksum where b.hash = :hash and b.checksum is null"
+            + " and ((b.hash = :key and b.encoding is null) or b.encodedKey = :key)")
+    int updateMissingChecksum(@Param("hash") String hash, @Param("key") String storeKey,
+                              @Param("checksum") long checksum);
+
+    /**
+     * @return count of updated rows
+     */
+    @Modifying
+    @Transactional
+    @Query("update Blob b set b.lastAccess = :at where b.hash in :hashes")
+    int updateLastAccess(@Param("hashes") Collection<String> hashes, @Param("at") Instant at);
+
+    /**
+     * Removes the row unless it was referenced again meanwhile.
+     *
+     * @return count of removed rows
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from Blob b where b.hash = :hash and b.refCount = 0")
+    int deleteUnreferenced(@Param("hash") String hash);
+
+    /**
+     * @return those of the blob store keys that rows refer to
+     */
+    @Query("select case when b.encoding is null then b.hash else b.encodedKey end from Blob b"
+            + " where (b.hash in :keys and b.encoding is null) or b.encodedKey in :keys")
+    List<String> findStoreKeysIn(@Param("keys") Collection<String> keys);
+
+    /**
+     * Runs in its own transaction, as it's called when a transaction is over as well.
+     *
+     * @return whether a blob is stored under the blob store key, as is or encoded
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+    @Query("select case when count(b) > 0 then true else false end from Blob b"
+            + " where (b.hash = :key and b.encoding is null) or b.encodedKey = :key")
+    boolean isStoredUnder(@Param("key") String key);
+}
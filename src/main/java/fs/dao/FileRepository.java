@@ -2,10 +2,76 @@ package fs.dao;
 
 import fs.domain.FileItem;
 import fs.domain.User;
+import fs.mvc.dto.FileItemDTO;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 public interface FileRepository extends CrudRepository<FileItem, Long> {
     List<FileItem> findAllByOwner(User user);
+
+    /**
+     * Ownership check and load in one indexed lookup, the owner itself isn't loaded.
+     */
+    @Query("select f from FileItem f left join fetch f.blob where f.id = :id and f.owner.id = :ownerId")
+    Optional<FileItem> findByIdAndOwnerId(@Param("id") Long id, @Param("ownerId") Long ownerId);
+
+    @Override
+    @EntityGraph(attributePaths = "blob")
+    Optional<FileItem> findById(Long id);
+
+    @Override
+    <S extends FileItem> List<S> saveAll(Iterable<S> fileItems);
+
+    @Query("select case when count(f) > 0 then true else false end from FileItem f"
+            + " where f.id = :id and f.owner.id = :ownerId")
+    boolean existsByIdAndOwnerId(@Param("id") Long id, @Param("ownerId") Long ownerId);
+
+    /**
+     * Keyset page: files of the owner with id greater than {@code afterId}, ordered by id. Only id and name are
+     * selected, so neither the entities nor their owners are loaded.
+     */
+    @Query("select new fs.mvc.dto.FileItemDTO(f.id, f.name) from FileItem f"
+            + " where f.owner.id = :ownerId and f.id > :afterId order by f.id")
+    List<FileItemDTO> findPageByOwnerId(@Param("ownerId") Long ownerId, @Param("afterId") Long afterId,
+                                        Pageable pageable);
+
+    /**
+     * Total size of the files of every owner, as pairs of owner id and size in bytes. Files stored before the blob
+     * store aren't counted until they are moved.
+     */
+    @Query("select f.owner.id, sum(b.size) from FileItem f join f.blob b group by f.owner.id")
+    List<Object[]> sumSizeByOwner();
+
+    /**
+     * @return those of the local paths that files refer to
+     */
+    @Query("select f.fsPath from FileItem f where f.fsPath in :paths")
+    List<String> findFsPathsIn(@Param("paths") Collection<String> paths);
+
+    /**
+     * Keyset page of the files stored before the blob store, ordered by id.
+     */
+    @Query("select f.id from FileItem f where f.hash is null and f.id > :afterId order by f.id")
+    List<Long> findLegacyIds(@Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * Points the files of a blob to its new location.
+     *
+     * @param key blob store key, the hash or the encoded key of the blob
+     * @return count of updated rows
+     */
+    @Modifying
+    @Transactional
+    @Query("update FileItem f set f.fsPath = :location where f.hash in (select b.hash from Blob b"
+            + " where (b.hash = :key and b.encoding is null) or b.encodedKey = :key) and f.fsPath <> :location")
+    int updateFsPath(@Param("key") String key, @Param("location") String location);
 }
@@ -0,0 +1,36 @@
+package fs.dao;
+
+import fs.domain.FileShare;
+import fs.mvc.dto.FileItemDTO;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import javax.transaction.Transactional;
+import java.util.List;
+
+public interface FileShareRepository extends CrudRepository<FileShare, Long> {
+    boolean existsByFileIdAndUserId(Long fileId, Long userId);
+
+    @Transactional
+    long deleteByFileIdAndUserId(Long fileId, Long userId);
+
+    @Transactional
+    long deleteByFileId(Long fileId);
+
+    @Query("select s.userId from FileShare s where s.fileId = :fileId")
+    List<Long> findUserIdsByFileId(@Param("fileId") Long fileId);
+
+    @Query("select u.username from FileShare s, User u where s.userId = u.id and s.fileId = :fileId"
+            + " order by u.username")
+    List<String> findUsernamesByFileId(@Param("fileId") Long fileId);
+
+    /**
+     * Keyset page of the files shared with the user, ordered by file id.
+     */
+    @Query("select new fs.mvc.dto.FileItemDTO(f.id, f.name) from FileShare s, FileItem f"
+            + " where s.fileId = f.id and s.userId = :userId and s.fileId > :afterId order by s.fileId")
+    List<FileItemDTO> findPageByUserId(@Param("userId") Long userId, @Param("afterId") Long afterId,
+                                       Pageable pageable);
+}
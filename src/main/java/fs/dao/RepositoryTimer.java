@@ -0,0 +1,44 @@
+package fs.dao;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.beans.factory.ObjectProvider;
+
+/**
+ * Times the calls of a repository as {@code fs.db.query}, tagged by {@code repository}, {@code method} and the
+ * {@code exception} thrown, if any. The registry is looked up on the first call, so that repositories don't pull it
+ * in while the context starts.
+ */
+public class RepositoryTimer implements MethodInterceptor {
+    public static final String METRIC = "fs.db.query";
+
+    private final String repository;
+    private final ObjectProvider<MeterRegistry> registry;
+
+    public RepositoryTimer(String repository, ObjectProvider<MeterRegistry> registry) {
+        this.repository = repository;
+        this.registry = registry;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        MeterRegistry meterRegistry = registry.getObject();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String exception = "none";
+        try {
+            return invocation.proceed();
+        } catch (Throwable e) {
+            exception = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            sample.stop(Timer.builder(METRIC)
+                    .description("Calls of the repositories")
+                    .tag("repository", repository)
+                    .tag("method", invocation.getMethod().getName())
+                    .tag("exception", exception)
+                    .register(meterRegistry));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package fs.dao;
+
+import fs.domain.UploadChunk;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+public interface UploadChunkRepository extends CrudRepository<UploadChunk, Long> {
+    long countByUploadId(String uploadId);
+
+    boolean existsByUploadIdAndChunkIndex(String uploadId, int chunkIndex);
+
+    List<UploadChunk> findAllByUploadIdOrderByChunkIndex(String uploadId);
+
+    void deleteAllByUploadId(String uploadId);
+}
@@ -0,0 +1,12 @@
+package fs.dao;
+
+import fs.domain.UploadSession;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+public interface UploadSessionRepository extends CrudRepository<UploadSession, String> {
+    @Query("select u.fsPath from UploadSession u")
+    List<String> findAllFsPaths();
+}
@@ -0,0 +1,77 @@
+package fs.domain;
+
+import fs.storage.StorageTier;
+import lombok.Data;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * Reference count of content stored in the {@link fs.storage.BlobStore}, shared by every {@link FileItem} with the
+ * same SHA-256 hash.
+ */
+@Data
+@Entity
+@Table(name = "BLOBS")
+public class Blob {
+    @Id
+    private String hash;
+
+    @Column
+    private long size;
+
+    @Column
+    private long refCount;
+
+    /**
+     * Content encoding of the stored data ({@link fs.storage.BlobCodec}), {@code null} if it's stored as is.
+     */
+    @Column
+    private String encoding;
+
+    /**
+     * Blob store key of the encoded data.
+     */
+    @Column
+    private String encodedKey;
+
+    /**
+     * CRC32C of the stored data, {@code null} for blobs stored before the checksums were kept.
+     */
+    @Column
+    private Long checksum;
+
+    @Column
+    @Enumerated(EnumType.STRING)
+    private StorageTier tier = StorageTier.HOT;
+
+    /**
+     * Last read of any file of the blob, as flushed by the {@link fs.service.impl.StoreTiering}.
+     */
+    @Column
+    private Instant lastAccess = Instant.now();
+
+    public Blob() {
+        super();
+    }
+
+    public Blob(String hash, long size) {
+        super();
+        this.hash = hash;
+        this.size = size;
+        this.refCount = 1;
+    }
+
+    public Blob(String hash, long size, String encoding, String encodedKey) {
+        this(hash, size);
+        this.encoding = encoding;
+        this.encodedKey = encodedKey;
+    }
+
+    /**
+     * @return blob store key of the stored data
+     */
+    public String getStoreKey() {
+        return encoding == null ? hash : encodedKey;
+    }
+}
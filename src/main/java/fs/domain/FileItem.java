@@ -1,5 +1,6 @@
 package fs.domain;
 
+import fs.storage.StorageTier;
 import lombok.Data;
 
 import javax.persistence.*;
@@ -7,7 +8,9 @@ import javax.validation.constraints.NotNull;
 
 @Data
 @Entity
-@Table
+@Table(indexes = {
+        @Index(name = "file_item_owner_idx", columnList = "user_id, id"),
+        @Index(name = "file_item_hash_idx", columnList = "hash")})
 public class FileItem {
     @Id
     @GeneratedValue
@@ -20,7 +23,20 @@ public class FileItem {
     @Column
     private String fsPath;
 
-    @ManyToOne
+    /**
+     * SHA-256 of the content, key of the shared {@link Blob}.
+     */
+    @Column
+    private String hash;
+
+    /**
+     * Stored content, only fetched by the queries that serve downloads.
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "hash", insertable = false, updatable = false)
+    private Blob blob;
+
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id", nullable = false)
     private User owner;
 
@@ -36,9 +52,25 @@ public class FileItem {
         this.id = id;
     }
 
+    /**
+     * Files sharing content share its tier, so it's kept by the blob.
+     *
+     * @return tier of the stored content, {@code null} for files stored before the blob store
+     */
+    public StorageTier getTier() {
+        return blob == null ? null : blob.getTier();
+    }
+
+    /**
+     * @return CRC32C of the stored content, {@code null} if it isn't known
+     */
+    public Long getChecksum() {
+        return blob == null ? null : blob.getChecksum();
+    }
+
     @Override
     public String toString() {
-        return String.format("FileItem [id=%d, name=%s, fsPath=%s, owner=%s, version=%d]",
-                id, name, fsPath, owner, version);
+        return String.format("FileItem [id=%d, name=%s, fsPath=%s, hash=%s, owner=%s, version=%d]",
+                id, name, fsPath, hash, owner == null ? null : owner.getId(), version);
     }
 }
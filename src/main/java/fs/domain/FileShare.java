@@ -0,0 +1,34 @@
+package fs.domain;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/**
+ * Read access to a {@link FileItem} granted by its owner to another {@link User}.
+ */
+@Data
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "file_share_uk", columnNames = {"file_id", "user_id"}),
+        indexes = @Index(name = "file_share_user_idx", columnList = "user_id, file_id"))
+public class FileShare {
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Column(name = "file_id", nullable = false)
+    private Long fileId;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    public FileShare() {
+        super();
+    }
+
+    public FileShare(Long fileId, Long userId) {
+        super();
+        this.fileId = fileId;
+        this.userId = userId;
+    }
+}
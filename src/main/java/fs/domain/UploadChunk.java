@@ -0,0 +1,34 @@
+package fs.domain;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/**
+ * Marker of one received chunk of an {@link UploadSession}. One row per chunk keeps parallel chunk uploads free
+ * of row contention.
+ */
+@Data
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "upload_chunk_index_uk", columnNames = {"upload_id", "chunk_index"}))
+public class UploadChunk {
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Column(name = "upload_id", nullable = false)
+    private String uploadId;
+
+    @Column(name = "chunk_index", nullable = false)
+    private int chunkIndex;
+
+    public UploadChunk() {
+        super();
+    }
+
+    public UploadChunk(String uploadId, int chunkIndex) {
+        super();
+        this.uploadId = uploadId;
+        this.chunkIndex = chunkIndex;
+    }
+}
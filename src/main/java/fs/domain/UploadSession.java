@@ -0,0 +1,45 @@
+package fs.domain;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Resumable upload in progress. Chunks are written by offset into the pre-sized file at {@link #fsPath}; the
+ * {@link FileItem} is created only when every chunk has been received.
+ */
+@Data
+@Entity
+@Table(indexes = @Index(name = "upload_session_owner_idx", columnList = "user_id"))
+public class UploadSession {
+    @Id
+    private String id;
+
+    @Column
+    @NotNull
+    private String name;
+
+    @Column
+    private long size;
+
+    @Column
+    private int chunkSize;
+
+    @Column
+    private String fsPath;
+
+    @ManyToOne
+    @JoinColumn(name = "user_id", nullable = false)
+    private User owner;
+
+    public int getChunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UploadSession [id=%s, name=%s, size=%d, chunkSize=%d, fsPath=%s, owner=%s]",
+                id, name, size, chunkSize, fsPath, owner == null ? null : owner.getId());
+    }
+}
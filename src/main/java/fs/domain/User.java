@@ -1,5 +1,6 @@
 package fs.domain;
 
+import fs.security.UserCacheInvalidator;
 import lombok.Data;
 
 import javax.persistence.*;
@@ -7,7 +8,8 @@ import java.util.List;
 
 @Data
 @Entity
-@Table(name = "USERS")
+@Table(name = "USERS", indexes = @Index(name = "users_username_idx", columnList = "username", unique = true))
+@EntityListeners(UserCacheInvalidator.class)
 public class User {
     @Id
     @GeneratedValue
@@ -19,6 +21,12 @@ public class User {
     @Column
     private String password;
 
+    /**
+     * Max total size of the files of the user in bytes, {@code file_store.quota.storage} if {@code null}.
+     */
+    @Column
+    private Long storageQuota;
+
     @OneToMany(mappedBy = "owner")
     private List<FileItem> files;
 }
@@ -0,0 +1,147 @@
+package fs.mvc;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives a request body into a new local file with servlet non-blocking I/O. The next buffer is read from the
+ * client only after the previous one is written by an {@link AsynchronousFileChannel}, so a slow disk slows the
+ * client down instead of filling the memory, and no thread waits for either of them.
+ */
+final class AsyncFileReceiver implements ReadListener, CompletionHandler<Integer, ByteBuffer> {
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private final ServletInputStream in;
+    private final AsynchronousFileChannel file;
+    private final Path target;
+    private final byte[] bytes = new byte[AsyncFileSender.BUFFER_SIZE];
+    private final CompletableFuture<Path> received = new CompletableFuture<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile boolean allRead;
+    private long position;
+
+    private AsyncFileReceiver(ServletInputStream in, AsynchronousFileChannel file, Path target) {
+        this.in = in;
+        this.file = file;
+        this.target = target;
+        ACTIVE.incrementAndGet();
+    }
+
+    /**
+     * @return transfers started and not finished yet
+     */
+    static int active() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * The request must be in async mode already.
+     *
+     * @param target file to create
+     * @return completed with the target once the whole body is written; the target may be left behind on failure
+     */
+    static CompletableFuture<Path> receive(ServletInputStream in, Path target) throws IOException {
+        AsynchronousFileChannel file = AsynchronousFileChannel.open(target,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        AsyncFileReceiver receiver = new AsyncFileReceiver(in, file, target);
+        try {
+            in.setReadListener(receiver);
+        } catch (RuntimeException e) {
+            if (receiver.finished.compareAndSet(false, true)) {
+                ACTIVE.decrementAndGet();
+            }
+            file.close();
+            throw e;
+        }
+        return receiver.received;
+    }
+
+    /**
+     * Called by the container once the stream became ready and by the completed write otherwise, never both at once:
+     * the container calls back only after {@link ServletInputStream#isReady()} returned {@code false}. No lock is held
+     * around container calls, as the container holds its own when it calls back.
+     */
+    @Override
+    public void onDataAvailable() throws IOException {
+        if (in.isReady()) {
+            int read = in.read(bytes);
+            if (read >= 0) {
+                writing.set(true);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                file.write(buffer, position, buffer, this);
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        allRead = true;
+        if (!writing.get()) {
+            finish(null);
+        }
+    }
+
+    @Override
+    public void completed(Integer written, ByteBuffer buffer) {
+        if (received.isDone()) {
+            return;
+        }
+        position += written;
+        try {
+            if (buffer.hasRemaining()) {
+                file.write(buffer, position, buffer, this);
+                return;
+            }
+            writing.set(false);
+            if (allRead) {
+                finish(null);
+            } else {
+                onDataAvailable();
+            }
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public void failed(Throwable err, ByteBuffer buffer) {
+        onError(err);
+    }
+
+    @Override
+    public void onError(Throwable err) {
+        finish(err);
+    }
+
+    /**
+     * Runs once: the last write and {@link #onAllDataRead()} may both get here.
+     */
+    private void finish(Throwable err) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        ACTIVE.decrementAndGet();
+        try {
+            file.close();
+        } catch (IOException e) {
+            if (err == null) {
+                err = e;
+            }
+        }
+        if (err == null) {
+            received.complete(target);
+        } else {
+            received.completeExceptionally(err);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package fs.mvc;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a part of a local file with servlet non-blocking I/O. The file is read by an {@link AsynchronousFileChannel}
+ * one buffer at a time and the next read starts only when the client took the previous buffer, so a transfer holds
+ * neither a thread nor more than a buffer while it waits for the client or the disk.
+ */
+@Log4j2
+final class AsyncFileSender implements WriteListener, CompletionHandler<Integer, Void> {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private final AsyncContext async;
+    private final ServletOutputStream out;
+    private final AsynchronousFileChannel file;
+    private final ByteBuffer buffer;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private long position;
+    private long remaining;
+
+    private AsyncFileSender(AsyncContext async, ServletOutputStream out, AsynchronousFileChannel file,
+                            long start, long count) {
+        this.async = async;
+        this.out = out;
+        this.file = file;
+        this.buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, count)));
+        this.buffer.limit(0);
+        this.position = start;
+        this.remaining = count;
+        ACTIVE.incrementAndGet();
+    }
+
+    /**
+     * @return transfers started and not finished yet
+     */
+    static int active() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * Starts async processing of the request and returns right away; the response is completed when the part is
+     * sent or the transfer fails.
+     */
+    static void send(HttpServletRequest request, HttpServletResponse response, Path path, long start, long count)
+            throws IOException {
+        AsynchronousFileChannel file = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        AsyncFileSender sender = null;
+        try {
+            AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            ServletOutputStream out = response.getOutputStream();
+            sender = new AsyncFileSender(async, out, file, start, count);
+            out.setWriteListener(sender);
+        } catch (RuntimeException | IOException e) {
+            if (sender != null && sender.done.compareAndSet(false, true)) {
+                ACTIVE.decrementAndGet();
+            }
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            if (buffer.hasRemaining()) {
+                out.write(buffer.array(), buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+            } else if (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                // the completion resumes writing, the container calls back only after isReady() returned false
+                file.read(buffer, position, null, this);
+                return;
+            } else {
+                finish();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void completed(Integer read, Void attachment) {
+        if (done.get()) {
+            return;
+        }
+        if (read < 0) {
+            failed(new EOFException("File is shorter than expected"), attachment);
+            return;
+        }
+        buffer.flip();
+        position += read;
+        remaining -= read;
+        try {
+            onWritePossible();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public void failed(Throwable err, Void attachment) {
+        onError(err);
+    }
+
+    @Override
+    public void onError(Throwable err) {
+        log.debug("Transfer failed with {} bytes left", remaining, err);
+        finish();
+    }
+
+    /**
+     * Runs once: a read may still be in flight when the container reports an error.
+     */
+    private void finish() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        ACTIVE.decrementAndGet();
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Can't close file", e);
+        }
+        async.complete();
+    }
+}
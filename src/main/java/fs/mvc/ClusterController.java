@@ -0,0 +1,144 @@
+package fs.mvc;
+
+import fs.dao.BlobRepository;
+import fs.storage.BlobIO;
+import fs.storage.BlobStat;
+import fs.storage.ClusterClient;
+import fs.storage.ClusteredBlobStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.springframework.http.HttpStatus.*;
+
+/**
+ * Internal API the nodes of a cluster read, push and remove the copies of blobs with ({@link ClusterClient}). It
+ * works on the local store of the node only and is open to the holders of the shared secret of the cluster, not to
+ * users: Spring Security ignores it. Errors are answered with the bare status, as the error page the container would
+ * forward {@code sendError} to is behind the login.
+ */
+@RestController
+@RequestMapping("/internal/v1")
+@ConditionalOnProperty(name = "file_store.cluster.enabled", havingValue = "true")
+public class ClusterController {
+    private static final String KEY = "/blobs/{key:[0-9a-f]{64}}";
+
+    private final ClusteredBlobStore blobStore;
+    private final BlobRepository blobRepository;
+    private final byte[] secret;
+
+    @Autowired
+    public ClusterController(ClusteredBlobStore blobStore, BlobRepository blobRepository,
+                             @Value("${file_store.cluster.secret}") String secret) {
+        this.blobStore = blobStore;
+        this.blobRepository = blobRepository;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void authorize(HttpServletRequest request) {
+        String token = request.getHeader(ClusterClient.TOKEN_HEADER);
+        if (token == null || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8))) {
+            throw new AccessDeniedException("Wrong cluster token");
+        }
+    }
+
+    private BlobStat stat(String key, HttpServletResponse response) throws IOException {
+        BlobStat stat = blobStore.getLocal().stat(key);
+        if (stat == null) {
+            throw new IllegalArgumentException("No blob " + key);
+        }
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, stat.getLastModified());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        return stat;
+    }
+
+    @GetMapping("/ping")
+    public String ping(HttpServletRequest request) {
+        authorize(request);
+        return blobStore.getNodeId();
+    }
+
+    @RequestMapping(value = KEY, method = RequestMethod.HEAD)
+    public void head(@PathVariable String key, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        authorize(request);
+        response.setContentLengthLong(stat(key, response).getSize());
+    }
+
+    /**
+     * Only the open ranges {@code bytes=<start>-} the other nodes ask for are served.
+     */
+    @GetMapping(KEY)
+    public void get(@PathVariable String key, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        authorize(request);
+        long size = stat(key, response).getSize();
+        long start = 0;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            start = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+            if (start >= size) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                response.setStatus(REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                return;
+            }
+            response.setStatus(PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (size - 1) + "/" + size);
+        }
+        response.setContentType("application/octet-stream");
+        response.setContentLengthLong(size - start);
+        try (SeekableByteChannel content = blobStore.getLocal().open(key)) {
+            content.position(start);
+            BlobIO.copy(content, size - start, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    @PutMapping(KEY)
+    public void put(@PathVariable String key, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        authorize(request);
+        blobStore.receive(key, request.getInputStream(), blobRepository::isStoredUnder);
+        response.setStatus(NO_CONTENT.value());
+    }
+
+    /**
+     * The copy is removed only if the shared DB doesn't refer to it any more, unless {@code force} is set.
+     */
+    @DeleteMapping(KEY)
+    public void delete(@PathVariable String key, @RequestParam(value = "force", defaultValue = "false") boolean force,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        authorize(request);
+        boolean deleted = force ? blobStore.getLocal().delete(key)
+                : blobStore.getLocal().deleteUnreferenced(key, blobRepository::isStoredUnder);
+        if (!deleted) {
+            throw new IllegalArgumentException("No blob " + key + " to remove");
+        }
+        response.setStatus(NO_CONTENT.value());
+    }
+
+    @ExceptionHandler(AccessDeniedException.class)
+    public void handleAccessDenied(HttpServletResponse response) {
+        response.setStatus(FORBIDDEN.value());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public void handleNotFound(HttpServletResponse response) {
+        response.setStatus(NOT_FOUND.value());
+    }
+
+    @ExceptionHandler(IllegalStateException.class)
+    public void handleBadRequest(HttpServletResponse response) {
+        response.setStatus(BAD_REQUEST.value());
+    }
+}
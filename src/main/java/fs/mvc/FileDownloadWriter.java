@@ -0,0 +1,500 @@
+package fs.mvc;
+
+import fs.service.StorageMetrics;
+import fs.storage.BlobCodec;
+import fs.storage.BlobIO;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import fs.storage.CompressionPolicy;
+import fs.storage.CorruptedBlobException;
+import fs.storage.DecodingChannel;
+import fs.storage.VerifyingChannel;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+
+/**
+ * Writes stored blobs to the response, honouring {@code Range}/{@code If-Range} (single range as 206, several
+ * ranges as {@code multipart/byteranges}). Local blob files are handed to the container sendfile when it supports it
+ * and go through {@link FileChannel#transferTo} otherwise, instead of a generic stream copy. Encoded blobs are sent
+ * as is to clients accepting their encoding and decoded on the fly for the others. Without sendfile, local files can
+ * be written with servlet non-blocking I/O instead ({@code file_store.io.non-blocking}).
+ * <p>
+ * Files never change under their id, so every representation gets a strong {@code ETag} made of the content hash
+ * and the content encoding it's sent in, and a long-lived {@code Cache-Control}
+ * ({@code file_store.download.cache-control}).
+ * <p>
+ * Blobs with a known CRC32C are verified as they are sent whole ({@code file_store.integrity.verify-downloads}),
+ * which takes them off sendfile and {@code transferTo}; ranges aren't verified. A blob that turns out corrupted is cut
+ * off before its last bytes. The {@code Digest} header carries the SHA-256 of the representation and the CRC32C of
+ * the stored data when it's sent as is, so that clients can check what they got.
+ * <p>
+ * Several files are streamed as a zip archive built on the fly, see {@link #writeZip}.
+ */
+@Log4j2
+@Component
+public class FileDownloadWriter {
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final int MAX_RANGES = 16;
+    private static final String CRLF = "\r\n";
+    private static final int ZIP_BUFFER_SIZE = 64 * 1024;
+    private static final String DIGEST = "Digest";
+    private static final String DOWNLOAD = "download";
+
+    private final BlobStore blobStore;
+    private final StorageMetrics metrics;
+    private final RateLimiter rateLimiter;
+    private final boolean nonBlocking;
+    private final String cacheControl;
+    private final boolean verify;
+
+    /**
+     * @param nonBlocking  write local files with servlet non-blocking I/O when the container sendfile isn't available
+     * @param cacheControl {@code Cache-Control} of the downloads
+     * @param verify       check the CRC32C of the blobs sent whole
+     */
+    @Autowired
+    public FileDownloadWriter(BlobStore blobStore, StorageMetrics metrics, RateLimiter rateLimiter,
+                              @Value("${file_store.io.non-blocking:false}") boolean nonBlocking,
+                              @Value("${file_store.download.cache-control:private, max-age=31536000, immutable}")
+                                      String cacheControl,
+                              @Value("${file_store.integrity.verify-downloads:true}") boolean verify) {
+        this.blobStore = blobStore;
+        this.metrics = metrics;
+        this.rateLimiter = rateLimiter;
+        this.nonBlocking = nonBlocking;
+        this.cacheControl = cacheControl;
+        this.verify = verify;
+    }
+
+    /**
+     * Answers {@code If-None-Match} and {@code If-Modified-Since} from the metadata of the blob, without opening it.
+     *
+     * @param blob     stored blob
+     * @param hash     hash of the file content
+     * @param encoding content encoding of the blob, {@code null} if it isn't encoded
+     * @return {@code true} if the response is complete with 304 Not Modified
+     */
+    public boolean checkNotModified(BlobStat blob, String hash, String encoding,
+                                    HttpServletRequest request, HttpServletResponse response) {
+        boolean sentEncoded = encoding != null && isAccepted(request.getHeader(HttpHeaders.ACCEPT_ENCODING), encoding);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        if (!new ServletWebRequest(request, response)
+                .checkNotModified(etag(hash, sentEncoded ? encoding : null), blob.getLastModified())) {
+            return false;
+        }
+        if (encoding != null) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return true;
+    }
+
+    /**
+     * @param encoding content encoding the representation is sent in, {@code null} if it's sent decoded
+     */
+    static String etag(String hash, String encoding) {
+        return "\"" + hash + (encoding == null ? "" : "-" + encoding) + "\"";
+    }
+
+    /**
+     * {@code Digest} header (RFC 3230) of a representation.
+     *
+     * @param hash     SHA-256 of the representation
+     * @param checksum CRC32C of the representation, {@code null} if it isn't known
+     */
+    static String digest(String hash, Long checksum) {
+        Base64.Encoder base64 = Base64.getEncoder();
+        String digest = "sha-256=" + base64.encodeToString(BlobIO.fromHex(hash));
+        if (checksum == null) {
+            return digest;
+        }
+        byte[] crc = ByteBuffer.allocate(Integer.BYTES).putInt(checksum.intValue()).array();
+        return digest + ",crc32c=" + base64.encodeToString(crc);
+    }
+
+    /**
+     * @param blob        stored blob, with the checksum of its data if it's known
+     * @param fileName    name for the {@code Content-Disposition} header
+     * @param contentType content type of the whole file
+     */
+    public void write(BlobStat blob, String fileName, String contentType,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        write(blob, null, blob.getSize(), etag(blob.getKey(), null), digest(blob.getKey(), blob.getChecksum()),
+                fileName, contentType, request, response);
+    }
+
+    /**
+     * Writes an encoded blob: as is with {@code Content-Encoding} when the client accepts the encoding, decoded on
+     * the fly otherwise.
+     *
+     * @param blob        stored encoded blob, with the checksum of its data if it's known
+     * @param encoding    content encoding of the blob, e.g. {@link fs.storage.BlobCodec#GZIP}
+     * @param hash        hash of the decoded content
+     * @param decodedSize size of the decoded content
+     */
+    public void write(BlobStat blob, String encoding, String hash, long decodedSize, String fileName,
+                      String contentType, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (isAccepted(request.getHeader(HttpHeaders.ACCEPT_ENCODING), encoding)) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+            write(blob, null, blob.getSize(), etag(hash, encoding), digest(blob.getKey(), blob.getChecksum()),
+                    fileName, contentType, request, response);
+        } else {
+            write(blob, encoding, decodedSize, etag(hash, null), digest(hash, null),
+                    fileName, contentType, request, response);
+        }
+    }
+
+    /**
+     * Whether the blob is sent without holding the calling thread: handed to the container sendfile or written with
+     * servlet non-blocking I/O. Only local files qualify, encoded ones only for clients accepting their encoding and
+     * ranges only when there is a single one. Whole blobs that are verified don't.
+     *
+     * @param encoding content encoding of the blob, {@code null} if it isn't encoded
+     */
+    public boolean isNonBlocking(BlobStat blob, String encoding, HttpServletRequest request) {
+        String range = request.getHeader(HttpHeaders.RANGE);
+        return canSendWithoutThread(request)
+                && (encoding == null || isAccepted(request.getHeader(HttpHeaders.ACCEPT_ENCODING), encoding))
+                && (range == null ? !isVerified(blob) : range.indexOf(',') < 0)
+                && blobStore.getLocalPath(blob.getKey()) != null;
+    }
+
+    private boolean isVerified(BlobStat blob) {
+        return verify && blob.getChecksum() != null;
+    }
+
+    /**
+     * @param decodeFrom encoding to decode the blob from, {@code null} to send it as is
+     * @param length     length of the sent representation
+     * @param etag       entity tag of the sent representation
+     * @param digest     {@code Digest} of the sent representation
+     */
+    private void write(BlobStat blob, String decodeFrom, long length, String etag, String digest, String fileName,
+                       String contentType, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long lastModified = blob.getLastModified();
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(DIGEST, digest);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+
+        List<HttpRange> ranges;
+        try {
+            ranges = isRangeApplicable(request, etag, lastModified)
+                    ? HttpRange.parseRanges(request.getHeader(HttpHeaders.RANGE))
+                    : null;
+        } catch (IllegalArgumentException e) {
+            ranges = null;
+        }
+
+        if (ranges == null || ranges.isEmpty()) {
+            response.setContentType(contentType);
+            writeRange(blob, decodeFrom, length, 0, length, request, response);
+            return;
+        }
+        if (ranges.size() <= MAX_RANGES) {
+            ranges = satisfiable(ranges, length);
+        }
+        if (ranges.size() > MAX_RANGES || ranges.isEmpty()) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        response.setStatus(SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            HttpRange range = ranges.get(0);
+            long start = range.getRangeStart(length), end = range.getRangeEnd(length);
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+            writeRange(blob, decodeFrom, length, start, end - start + 1, request, response);
+        } else {
+            long count = 0;
+            for (HttpRange range : ranges) {
+                count += range.getRangeEnd(length) - range.getRangeStart(length) + 1;
+            }
+            metrics.sent(request.getRemoteUser(), count);
+            rateLimiter.sent(request.getRemoteUser(), count);
+            writeRanges(blob, decodeFrom, ranges, length, contentType, response);
+        }
+    }
+
+    /**
+     * A file of a zip archive.
+     */
+    @lombok.Value
+    public static class ZipPart {
+        private String name;
+        private BlobStat blob;
+        /**
+         * Content encoding of the blob, {@code null} if it isn't encoded.
+         */
+        private String encoding;
+    }
+
+    /**
+     * Streams the files as a zip archive, without building it first. Encoded blobs are decoded on the fly. Content
+     * that doesn't compress (see {@link CompressionPolicy}) is deflated at level 0, which only frames it: storing it
+     * uncompressed would need its CRC before the data, i.e. reading it twice. Repeated names get a counter. Blobs
+     * with a known checksum are verified, a corrupted one cuts the archive off.
+     *
+     * @param fileName name of the archive for the {@code Content-Disposition} header
+     */
+    public void writeZip(List<ZipPart> parts, String fileName, HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+        long[] count = new long[1];
+        OutputStream out = new FilterOutputStream(response.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+                count[0] += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                this.out.write(b);
+                count[0]++;
+            }
+        };
+        Set<String> names = new HashSet<>();
+        byte[] buffer = new byte[ZIP_BUFFER_SIZE];
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, ZIP_BUFFER_SIZE))) {
+            for (ZipPart part : parts) {
+                boolean compressible = part.getEncoding() != null || CompressionPolicy.isCompressible(part.getName());
+                zip.setLevel(compressible ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                ZipEntry entry = new ZipEntry(uniqueName(part.getName(), names));
+                entry.setTime(part.getBlob().getLastModified());
+                zip.putNextEntry(entry);
+                try (InputStream content = open(part)) {
+                    int read;
+                    while ((read = content.read(buffer)) >= 0) {
+                        zip.write(buffer, 0, read);
+                    }
+                }
+                zip.closeEntry();
+            }
+        } catch (CorruptedBlobException e) {
+            throw corrupted(e);
+        } finally {
+            metrics.sent(request.getRemoteUser(), count[0]);
+            rateLimiter.sent(request.getRemoteUser(), count[0]);
+        }
+    }
+
+    private InputStream open(ZipPart part) throws IOException {
+        InputStream content = Channels.newInputStream(open(part.getBlob(), true));
+        return part.getEncoding() == null ? content : BlobCodec.decode(part.getEncoding(), content);
+    }
+
+    private CorruptedBlobException corrupted(CorruptedBlobException e) {
+        metrics.corrupted(DOWNLOAD);
+        log.error("Stop the download: {}", e.getMessage());
+        return e;
+    }
+
+    /**
+     * Path separators are replaced, so that every entry is extracted right into the target folder.
+     */
+    private static String uniqueName(String name, Set<String> names) {
+        String safeName = name == null || name.isEmpty() ? "file" : name.replace('/', '_').replace('\\', '_');
+        String unique = safeName;
+        int dot = safeName.lastIndexOf('.');
+        String base = dot > 0 ? safeName.substring(0, dot) : safeName;
+        String extension = dot > 0 ? safeName.substring(dot) : "";
+        for (int i = 1; !names.add(unique); i++) {
+            unique = base + " (" + i + ")" + extension;
+        }
+        return unique;
+    }
+
+    /**
+     * Range is ignored when {@code If-Range} holds a validator that no longer matches the file: an entity tag that
+     * isn't strongly equal to the one of the representation or another {@code Last-Modified} date.
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified) {
+        if (request.getHeader(HttpHeaders.RANGE) == null) {
+            return false;
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param acceptEncoding {@code Accept-Encoding} header, may be {@code null}
+     */
+    static boolean isAccepted(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (!name.equalsIgnoreCase(encoding) && !"*".equals(name)) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the ranges that overlap the representation, the rest is ignored (RFC 7233, section 4.4)
+     */
+    private static List<HttpRange> satisfiable(List<HttpRange> ranges, long length) {
+        List<HttpRange> satisfiable = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            if (length > 0 && range.getRangeStart(length) < length
+                    && range.getRangeStart(length) <= range.getRangeEnd(length)) {
+                satisfiable.add(range);
+            }
+        }
+        return satisfiable;
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    /**
+     * @param whole whether the blob is read from the beginning to the end, so that it can be verified
+     */
+    private SeekableByteChannel open(BlobStat blob, boolean whole) throws IOException {
+        SeekableByteChannel channel = blobStore.open(blob.getKey());
+        return whole && isVerified(blob) ? new VerifyingChannel(channel, blob.getKey(), blob.getChecksum()) : channel;
+    }
+
+    private SeekableByteChannel open(BlobStat blob, String decodeFrom, long length, boolean whole) throws IOException {
+        SeekableByteChannel channel = open(blob, whole);
+        return decodeFrom == null ? channel : new DecodingChannel(channel, decodeFrom, length);
+    }
+
+    /**
+     * Neither sendfile nor non-blocking I/O apply once the request is async already, i.e. written on an executor.
+     */
+    private boolean canSendWithoutThread(HttpServletRequest request) {
+        return !request.isAsyncStarted() && (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))
+                || nonBlocking && request.isAsyncSupported());
+    }
+
+    private void writeRange(BlobStat blob, String decodeFrom, long length, long start, long count,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentLengthLong(count);
+        metrics.sent(request.getRemoteUser(), count);
+        rateLimiter.sent(request.getRemoteUser(), count);
+        Path localPath = decodeFrom == null ? blobStore.getLocalPath(blob.getKey()) : null;
+        if (localPath != null && canSendWithoutThread(request)) {
+            if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+                request.setAttribute(SENDFILE_FILENAME, localPath.toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START, start);
+                request.setAttribute(SENDFILE_END, start + count);
+            } else {
+                AsyncFileSender.send(request, response, localPath, start, count);
+            }
+            return;
+        }
+        try (SeekableByteChannel source = open(blob, decodeFrom, length, start == 0 && count == length)) {
+            transfer(source, start, count, Channels.newChannel(response.getOutputStream()));
+        } catch (CorruptedBlobException e) {
+            throw corrupted(e);
+        }
+    }
+
+    private void writeRanges(BlobStat blob, String decodeFrom, List<HttpRange> ranges, long length, String contentType,
+                             HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        try (SeekableByteChannel source = open(blob, decodeFrom, length, false)) {
+            for (HttpRange range : ranges) {
+                long start = range.getRangeStart(length), end = range.getRangeEnd(length);
+                out.write(("--" + boundary + CRLF
+                        + HttpHeaders.CONTENT_TYPE + ": " + contentType + CRLF
+                        + HttpHeaders.CONTENT_RANGE + ": " + contentRange(start, end, length) + CRLF
+                        + CRLF).getBytes(StandardCharsets.US_ASCII));
+                transfer(source, start, end - start + 1, target);
+                out.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write(("--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void transfer(SeekableByteChannel source, long position, long count, WritableByteChannel target)
+            throws IOException {
+        if (!(source instanceof FileChannel)) {
+            source.position(position);
+            BlobIO.copy(source, count, target);
+            return;
+        }
+        while (count > 0) {
+            long transferred = ((FileChannel) source).transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new EOFException("File is shorter than expected");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
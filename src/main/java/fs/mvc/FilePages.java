@@ -0,0 +1,34 @@
+package fs.mvc;
+
+import fs.mvc.dto.FileItemDTO;
+import fs.mvc.dto.FilePageDTO;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * Keyset pagination of file listings: one extra file is requested to find out whether there is a next page.
+ */
+final class FilePages {
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private FilePages() {
+    }
+
+    /**
+     * @param loader loads up to {@code limit} files after the given id
+     */
+    static FilePageDTO load(BiFunction<Long, Integer, List<FileItemDTO>> loader, Long afterId, int limit) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<FileItemDTO> files = loader.apply(afterId, limit + 1);
+        if (files == null) {
+            return new FilePageDTO(Collections.emptyList(), null);
+        }
+        if (files.size() <= limit) {
+            return new FilePageDTO(files, null);
+        }
+        files = files.subList(0, limit);
+        return new FilePageDTO(files, files.get(limit - 1).getId());
+    }
+}
@@ -1,53 +1,130 @@
 package fs.mvc;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fs.domain.Blob;
 import fs.domain.FileItem;
 import fs.mvc.dto.FileItemDTO;
+import fs.mvc.dto.FilePageDTO;
+import fs.service.QuotaExceededException;
 import fs.service.StorageService;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.FORBIDDEN;
+import static org.springframework.http.HttpStatus.INSUFFICIENT_STORAGE;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 
+@Log4j2
 @RestController
 @RequestMapping("/api/v1/fileStorage")
 public class FileStorageController {
     private static final String PROFILE_URL = "/profile";
+    private static final int STREAM_PAGE_SIZE = 1000;
+    private static final String ZIP_FILE_NAME = "files.zip";
 
     private final StorageService storageService;
+    private final BlobStore blobStore;
+    private final FileDownloadWriter downloadWriter;
+    private final ObjectMapper objectMapper;
+    private final IoExecutor downloadExecutor;
+    private final IoExecutor uploadExecutor;
+    private final boolean nonBlocking;
+    private final int maxBatch;
 
+    /**
+     * @param nonBlocking receive raw-body uploads with servlet non-blocking I/O
+     * @param maxBatch    max number of files of a zip download
+     */
     @Autowired
-    public FileStorageController(StorageService storageService) {
+    public FileStorageController(StorageService storageService, BlobStore blobStore,
+                                 FileDownloadWriter downloadWriter, ObjectMapper objectMapper,
+                                 @Qualifier("downloadExecutor") IoExecutor downloadExecutor,
+                                 @Qualifier("uploadExecutor") IoExecutor uploadExecutor,
+                                 @Value("${file_store.io.non-blocking:false}") boolean nonBlocking,
+                                 @Value("${file_store.download.max-batch:1000}") int maxBatch) {
         this.storageService = storageService;
+        this.blobStore = blobStore;
+        this.downloadWriter = downloadWriter;
+        this.objectMapper = objectMapper;
+        this.downloadExecutor = downloadExecutor;
+        this.uploadExecutor = uploadExecutor;
+        this.nonBlocking = nonBlocking;
+        this.maxBatch = maxBatch;
     }
 
-    @GetMapping("/all")
-    public List<FileItemDTO> getAll() {
-        List<FileItem> files = storageService.loadAll();
-        if (files == null || files.isEmpty()) {
-            return Collections.emptyList();
+    /**
+     * All files of the user as a JSON array, written page by page so that memory use doesn't grow with the number
+     * of files.
+     */
+    @GetMapping(value = "/all", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public void getAll(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartArray();
+            Long afterId = null;
+            List<FileItemDTO> page;
+            do {
+                page = storageService.loadPage(afterId, STREAM_PAGE_SIZE);
+                if (page == null || page.isEmpty()) {
+                    break;
+                }
+                for (FileItemDTO file : page) {
+                    json.writeObject(file);
+                }
+                json.flush();
+                afterId = page.get(page.size() - 1).getId();
+            } while (page.size() == STREAM_PAGE_SIZE);
+            json.writeEndArray();
         }
+    }
 
-        return files.stream()
-                .map(file -> new FileItemDTO(file.getId(), file.getName()))
-                .collect(Collectors.toList());
+    /**
+     * Keyset pagination: pass {@link FilePageDTO#getNext()} as {@code after} to get the next page.
+     */
+    @GetMapping("/files")
+    public FilePageDTO getPage(@RequestParam(value = "after", required = false) Long afterId,
+                               @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        return FilePages.load(storageService::loadPage, afterId, limit);
+    }
+
+    @DeleteMapping("/files/{fileId}")
+    public void deleteFile(@PathVariable Long fileId, HttpServletResponse response) throws IOException {
+        try {
+            storageService.delete(fileId);
+        } catch (AccessDeniedException err) {
+            response.sendError(FORBIDDEN.value());
+        } catch (IllegalArgumentException e) {
+            response.sendError(NOT_FOUND.value());
+        }
     }
 
     @PostMapping("/uploadFile")
@@ -57,9 +134,70 @@ public class FileStorageController {
         response.sendRedirect(PROFILE_URL);
     }
 
-    @GetMapping("/downloadFile/{fileId}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable Long fileId, HttpServletRequest request, HttpServletResponse response)
+    /**
+     * Several files in one request. They are stored concurrently, all or none.
+     */
+    @PostMapping("/uploadFiles")
+    public List<FileItemDTO> uploadFiles(@RequestParam("uploadFiles") List<MultipartFile> files) {
+        return storageService.storeAll(files).stream()
+                .map(fileItem -> new FileItemDTO(fileItem.getId(), fileItem.getName()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Raw-body upload: request bytes are piped straight into the file store, bypassing multipart parsing
+     * and its temp-file spooling. The body is read on the upload executor, or received without a thread into a staged
+     * file that the upload executor then stores.
+     */
+    @PutMapping("/uploadFile")
+    public WebAsyncTask<FileItemDTO> uploadFileStream(@RequestParam("fileName") String fileName,
+                                                      HttpServletRequest request, HttpServletResponse response)
             throws IOException {
+        if (nonBlocking && request.isAsyncSupported()) {
+            receive(fileName, request, response);
+            return null;
+        }
+        return uploadExecutor.submit(() -> {
+            FileItem fileItem = storageService.store(fileName, request.getInputStream());
+            return new FileItemDTO(fileItem.getId(), fileItem.getName());
+        });
+    }
+
+    private void receive(String fileName, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Path staged = storageService.newStagedFile();
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        // the store runs as the current user, but is scheduled from a thread without the security context
+        Executor executor = new DelegatingSecurityContextExecutor(uploadExecutor, SecurityContextHolder.getContext());
+        AsyncFileReceiver.receive(request.getInputStream(), staged)
+                .thenApplyAsync(file -> storageService.store(fileName, file), executor)
+                .whenComplete((fileItem, err) -> {
+                    try {
+                        if (err == null) {
+                            response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+                            objectMapper.writeValue(response.getOutputStream(),
+                                    new FileItemDTO(fileItem.getId(), fileItem.getName()));
+                        } else {
+                            log.warn("Can't store uploaded file \"{}\"", fileName, err);
+                            Files.deleteIfExists(staged);
+                            response.sendError(INTERNAL_SERVER_ERROR.value());
+                        }
+                    } catch (IOException e) {
+                        log.debug("Can't send upload result", e);
+                    } finally {
+                        async.complete();
+                    }
+                });
+    }
+
+    /**
+     * Access is checked right away, the content is written on the download executor unless it can be sent without
+     * a thread.
+     */
+    @GetMapping("/downloadFile/{fileId}")
+    public WebAsyncTask<Void> downloadFile(@PathVariable Long fileId, HttpServletRequest request,
+                                           HttpServletResponse response) throws IOException {
         FileItem fileItem;
         try {
             fileItem = storageService.load(fileId);
@@ -71,20 +209,101 @@ public class FileStorageController {
             return null;
         }
 
-        String contentType = request.getServletContext().getMimeType(fileItem.getName());
-        if (contentType == null) {
-            contentType = MimeTypeUtils.APPLICATION_OCTET_STREAM_VALUE;
-        }
+        String fileName = fileItem.getName();
+        String contentType = contentType(request, fileName);
 
-        Path filePath = Paths.get(fileItem.getFsPath());
-        Resource resource = new UrlResource(filePath.toUri());
-        if (!resource.exists()) {
+        Blob blob = fileItem.getBlob();
+        BlobStat stored = stat(fileItem);
+        if (stored == null) {
             response.sendError(NOT_FOUND.value());
             return null;
         }
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileItem.getName() + "\"")
-                .body(new UrlResource(filePath.toUri()));
+        if (downloadWriter.checkNotModified(stored, fileItem.getHash(), blob != null ? blob.getEncoding() : null,
+                request, response)) {
+            return null;
+        }
+        if (downloadWriter.isNonBlocking(stored, blob != null ? blob.getEncoding() : null, request)) {
+            // sent by the container sendfile or non-blocking I/O once the handler returns
+            write(stored, blob, fileName, contentType, request, response);
+            return null;
+        }
+        return downloadExecutor.submit(() -> {
+            write(stored, blob, fileName, contentType, request, response);
+            return null;
+        });
+    }
+
+    /**
+     * Several files as one zip archive, streamed while it's built. Access to every file is checked before anything
+     * is written. The ids may be sent as a form to get past the limits of the URL length.
+     */
+    @RequestMapping(value = "/downloadFiles", method = {RequestMethod.GET, RequestMethod.POST})
+    public WebAsyncTask<Void> downloadFiles(@RequestParam("ids") List<Long> fileIds, HttpServletRequest request,
+                                            HttpServletResponse response) throws IOException {
+        if (fileIds.isEmpty() || fileIds.size() > maxBatch) {
+            response.sendError(BAD_REQUEST.value(), "Between 1 and " + maxBatch + " files can be downloaded at once");
+            return null;
+        }
+        List<FileDownloadWriter.ZipPart> parts = new ArrayList<>(fileIds.size());
+        for (Long fileId : fileIds) {
+            FileItem fileItem;
+            try {
+                fileItem = storageService.load(fileId);
+            } catch (AccessDeniedException err) {
+                response.sendError(FORBIDDEN.value());
+                return null;
+            } catch (IllegalArgumentException e) {
+                response.sendError(NOT_FOUND.value());
+                return null;
+            }
+            Blob blob = fileItem.getBlob();
+            BlobStat stored = stat(fileItem);
+            if (stored == null) {
+                response.sendError(NOT_FOUND.value());
+                return null;
+            }
+            parts.add(new FileDownloadWriter.ZipPart(fileItem.getName(), stored,
+                    blob != null ? blob.getEncoding() : null));
+        }
+        return downloadExecutor.submit(() -> {
+            downloadWriter.writeZip(parts, ZIP_FILE_NAME, request, response);
+            return null;
+        });
+    }
+
+    /**
+     * @return stored content of the file with its checksum, {@code null} if it's missing
+     */
+    private BlobStat stat(FileItem fileItem) throws IOException {
+        Blob blob = fileItem.getBlob();
+        String key = blob != null ? blob.getStoreKey() : fileItem.getHash();
+        BlobStat stored = key == null ? null : blobStore.stat(key);
+        return stored == null ? null : stored.withChecksum(fileItem.getChecksum());
+    }
+
+    private void write(BlobStat stored, Blob blob, String fileName, String contentType,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (blob != null && blob.getEncoding() != null) {
+            downloadWriter.write(stored, blob.getEncoding(), blob.getHash(), blob.getSize(), fileName, contentType,
+                    request, response);
+        } else {
+            downloadWriter.write(stored, fileName, contentType, request, response);
+        }
+    }
+
+    private static String contentType(HttpServletRequest request, String fileName) {
+        String contentType = request.getServletContext().getMimeType(fileName);
+        return contentType != null ? contentType : MimeTypeUtils.APPLICATION_OCTET_STREAM_VALUE;
+    }
+
+    @ExceptionHandler(QuotaExceededException.class)
+    public void handleQuotaExceeded(QuotaExceededException err, HttpServletResponse response) throws IOException {
+        response.sendError(INSUFFICIENT_STORAGE.value(), err.getMessage());
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    public void handleRejected(HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.sendError(SERVICE_UNAVAILABLE.value());
     }
 }
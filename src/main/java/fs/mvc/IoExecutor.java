@@ -0,0 +1,90 @@
+package fs.mvc;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs blocking handlers of one endpoint group asynchronously on its own thread pool, so that slow clients hold
+ * threads of that pool and not the container's. At most {@code maxConcurrency} handlers run at once and
+ * {@code queueCapacity} more wait for a thread; requests beyond that are rejected with {@link TaskRejectedException}
+ * before the async processing starts. Running and queued handlers are measured as {@code fs.io.executor.active} and
+ * {@code fs.io.executor.queued}, tagged by {@code executor}.
+ */
+public class IoExecutor implements Executor, DisposableBean, MeterBinder {
+    /**
+     * Async requests don't time out: the handler owns the response until it returns, socket timeouts of the
+     * container still apply to every read and write.
+     */
+    private static final long NO_TIMEOUT = 0;
+
+    private final String name;
+    private final Semaphore permits;
+    private final ThreadPoolTaskExecutor executor;
+
+    public IoExecutor(String name, int maxConcurrency, int queueCapacity) {
+        if (maxConcurrency < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Wrong limits of " + name + ": " + maxConcurrency + "/" + queueCapacity);
+        }
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrency + queueCapacity);
+        // the queue is unbounded: the permits bound the number of submitted handlers
+        this.executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(name + "-");
+        executor.setCorePoolSize(maxConcurrency);
+        executor.setMaxPoolSize(maxConcurrency);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.initialize();
+    }
+
+    public <T> WebAsyncTask<T> submit(Callable<T> handler) {
+        if (!permits.tryAcquire()) {
+            throw new TaskRejectedException("Too many concurrent " + name + " requests");
+        }
+        return new WebAsyncTask<>(NO_TIMEOUT, executor, () -> {
+            try {
+                return handler.call();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Queues a task without the admission check, for the short follow-up work of requests that waited for the
+     * client without a thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("fs.io.executor.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .description("Handlers running on the executor")
+                .tag("executor", name)
+                .register(registry);
+        Gauge.builder("fs.io.executor.queued", executor, pool -> pool.getThreadPoolExecutor().getQueue().size())
+                .description("Handlers waiting for a thread of the executor")
+                .tag("executor", name)
+                .register(registry);
+    }
+
+    int available() {
+        return permits.availablePermits();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+    }
+}
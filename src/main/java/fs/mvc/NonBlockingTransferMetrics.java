@@ -0,0 +1,27 @@
+package fs.mvc;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Transfers in progress with servlet non-blocking I/O, as {@code fs.io.non-blocking.active} tagged by
+ * {@code direction}. They hold no executor thread, so {@link IoExecutor} doesn't see them; neither does anything see
+ * the transfers handed to the container sendfile.
+ */
+@Component
+public class NonBlockingTransferMetrics implements MeterBinder {
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("fs.io.non-blocking.active", AsyncFileReceiver::active)
+                .description("Transfers in progress with servlet non-blocking I/O")
+                .tag("direction", "in")
+                .register(registry);
+        Gauge.builder("fs.io.non-blocking.active", AsyncFileSender::active)
+                .description("Transfers in progress with servlet non-blocking I/O")
+                .tag("direction", "out")
+                .register(registry);
+    }
+}
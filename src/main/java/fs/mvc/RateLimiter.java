@@ -0,0 +1,207 @@
+package fs.mvc;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-user limits of the request rate ({@code file_store.limits.requests-per-second}) and of the upload and
+ * download bandwidth ({@code file_store.limits.upload-bandwidth}, {@code file_store.limits.download-bandwidth}, per
+ * second), each a {@link TokenBucket} holding up to {@code file_store.limits.burst} worth of tokens. A limit that
+ * isn't positive is off. Requests over a limit get {@code 429} with {@code Retry-After}.
+ * <p>
+ * Bandwidth is spent as it's used and may go into debt: uploads take their {@code Content-Length} when they start,
+ * downloads the bytes they send. Further transfers of the user in that direction are then rejected until the debt is
+ * paid off, so a single large transfer is never cut, but the average rate holds.
+ * <p>
+ * The buckets of a user are dropped once they are all full again, as new ones would be the same.
+ */
+@Component
+public class RateLimiter {
+    private static final long NO_LIMIT = 0;
+
+    private final double requestRate;
+    private final double uploadRate;
+    private final double downloadRate;
+    private final long burstNanos;
+    private final LongSupplier clock;
+    private final Cache<String, Buckets> buckets;
+
+    private class Buckets {
+        private final TokenBucket requests = requestRate > NO_LIMIT ? bucket(requestRate) : null;
+        private final TokenBucket uploads = uploadRate > NO_LIMIT ? bucket(uploadRate) : null;
+        private final TokenBucket downloads = downloadRate > NO_LIMIT ? bucket(downloadRate) : null;
+
+        /**
+         * @return nanoseconds until every bucket is full, at least the burst so that they aren't recreated per
+         * request
+         */
+        private long untilFull() {
+            long untilFull = burstNanos;
+            for (TokenBucket bucket : new TokenBucket[]{requests, uploads, downloads}) {
+                if (bucket != null) {
+                    untilFull = Math.max(untilFull, bucket.untilFull());
+                }
+            }
+            return untilFull;
+        }
+    }
+
+    /**
+     * Keeps the buckets until they are full, as of their last access or spending.
+     */
+    private static class UntilFull implements Expiry<String, Buckets> {
+        @Override
+        public long expireAfterCreate(String username, Buckets user, long currentTime) {
+            return user.untilFull();
+        }
+
+        @Override
+        public long expireAfterUpdate(String username, Buckets user, long currentTime, long currentDuration) {
+            return user.untilFull();
+        }
+
+        @Override
+        public long expireAfterRead(String username, Buckets user, long currentTime, long currentDuration) {
+            return user.untilFull();
+        }
+    }
+
+    @Autowired
+    public RateLimiter(@Value("${file_store.limits.requests-per-second:0}") double requestRate,
+                       @Value("${file_store.limits.upload-bandwidth:0}") DataSize uploadRate,
+                       @Value("${file_store.limits.download-bandwidth:0}") DataSize downloadRate,
+                       @Value("${file_store.limits.burst:10s}") Duration burst) {
+        this(requestRate, uploadRate.toBytes(), downloadRate.toBytes(), burst, System::nanoTime);
+    }
+
+    RateLimiter(double requestRate, double uploadRate, double downloadRate, Duration burst, LongSupplier clock) {
+        this.requestRate = requestRate;
+        this.uploadRate = uploadRate;
+        this.downloadRate = downloadRate;
+        this.burstNanos = burst.toNanos();
+        this.clock = clock;
+        this.buckets = Caffeine.newBuilder()
+                .expireAfter(new UntilFull())
+                .ticker(clock::getAsLong)
+                .executor(Runnable::run)
+                .build();
+    }
+
+    /**
+     * Takes a request token for every API request.
+     */
+    public HandlerInterceptor requests() {
+        return new Interceptor() {
+            @Override
+            long admit(Buckets user, HttpServletRequest request) {
+                return user.requests == null ? 0 : user.requests.tryTake(1);
+            }
+        };
+    }
+
+    /**
+     * Admits uploads while the upload bandwidth isn't in debt and spends their {@code Content-Length}.
+     */
+    public HandlerInterceptor uploads() {
+        return new Interceptor() {
+            @Override
+            long admit(Buckets user, HttpServletRequest request) {
+                if (user.uploads == null) {
+                    return 0;
+                }
+                long debt = user.uploads.debt();
+                if (debt == 0 && request.getContentLengthLong() > 0) {
+                    user.uploads.take(request.getContentLengthLong());
+                    spent(request.getRemoteUser(), user);
+                }
+                return debt;
+            }
+        };
+    }
+
+    /**
+     * Admits downloads while the download bandwidth isn't in debt, the sent bytes are spent by {@link #sent}.
+     */
+    public HandlerInterceptor downloads() {
+        return new Interceptor() {
+            @Override
+            long admit(Buckets user, HttpServletRequest request) {
+                return user.downloads == null ? 0 : user.downloads.debt();
+            }
+        };
+    }
+
+    /**
+     * @param username {@code null} for anonymous requests, which aren't limited
+     */
+    public void sent(String username, long bytes) {
+        if (username != null && downloadRate > NO_LIMIT) {
+            Buckets user = buckets(username);
+            user.downloads.take(bytes);
+            spent(username, user);
+        }
+    }
+
+    /**
+     * @return number of users whose buckets aren't full
+     */
+    long users() {
+        buckets.cleanUp();
+        return buckets.estimatedSize();
+    }
+
+    private Buckets buckets(String username) {
+        return buckets.get(username, name -> new Buckets());
+    }
+
+    /**
+     * Extends the life of the buckets of a user to the debt just taken.
+     */
+    private void spent(String username, Buckets user) {
+        buckets.asMap().replace(username, user, user);
+    }
+
+    private TokenBucket bucket(double rate) {
+        return new TokenBucket(rate, burstNanos, clock);
+    }
+
+    private abstract class Interceptor implements HandlerInterceptor {
+
+        /**
+         * @return {@code 0} to admit the request, the nanoseconds to wait before retrying otherwise
+         */
+        abstract long admit(Buckets user, HttpServletRequest request);
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+                throws IOException {
+            // async requests are admitted once, not again when dispatched with their result
+            if (request.getDispatcherType() == DispatcherType.ASYNC || request.getRemoteUser() == null) {
+                return true;
+            }
+            long wait = admit(buckets(request.getRemoteUser()), request);
+            if (wait == 0) {
+                return true;
+            }
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(TimeUnit.NANOSECONDS.toSeconds(wait - 1) + 1));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value());
+            return false;
+        }
+    }
+}
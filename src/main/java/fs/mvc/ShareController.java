@@ -0,0 +1,66 @@
+package fs.mvc;
+
+import fs.mvc.dto.FilePageDTO;
+import fs.service.StorageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+import static org.springframework.http.HttpStatus.*;
+
+/**
+ * Sharing of the user files with other users (read-only access), and the listing of files shared with the user.
+ */
+@RestController
+@RequestMapping("/api/v1/fileStorage")
+public class ShareController {
+    private final StorageService storageService;
+
+    @Autowired
+    public ShareController(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    @GetMapping("/files/{fileId}/shares")
+    public List<String> getShares(@PathVariable Long fileId) {
+        return storageService.loadShares(fileId);
+    }
+
+    @PutMapping("/files/{fileId}/shares/{username:.+}")
+    public void share(@PathVariable Long fileId, @PathVariable String username) {
+        storageService.share(fileId, username);
+    }
+
+    @DeleteMapping("/files/{fileId}/shares/{username:.+}")
+    public void revokeShare(@PathVariable Long fileId, @PathVariable String username) {
+        storageService.revokeShare(fileId, username);
+    }
+
+    /**
+     * Keyset pagination, same as {@link FileStorageController#getPage(Long, int)}.
+     */
+    @GetMapping("/shared")
+    public FilePageDTO getShared(@RequestParam(value = "after", required = false) Long afterId,
+                                 @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        return FilePages.load(storageService::loadSharedPage, afterId, limit);
+    }
+
+    @ExceptionHandler(AccessDeniedException.class)
+    public void handleAccessDenied(HttpServletResponse response) throws IOException {
+        response.sendError(FORBIDDEN.value());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public void handleNotFound(HttpServletResponse response) throws IOException {
+        response.sendError(NOT_FOUND.value());
+    }
+
+    @ExceptionHandler(IllegalStateException.class)
+    public void handleBadRequest(IllegalStateException err, HttpServletResponse response) throws IOException {
+        response.sendError(BAD_REQUEST.value(), err.getMessage());
+    }
+}
@@ -0,0 +1,78 @@
+package fs.mvc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket, kept as the single time at which it will be full again (generic cell rate algorithm). It
+ * refills at {@code rate} tokens per second up to {@code burst} seconds worth of them. Taking tokens moves that time
+ * forward by a CAS, so contended takers retry instead of queueing on a lock.
+ */
+class TokenBucket {
+    private final double nanosPerToken;
+    private final long burstNanos;
+    private final LongSupplier clock;
+    /**
+     * Time at which the bucket is full, in the past while it is.
+     */
+    private final AtomicLong fullAt;
+
+    TokenBucket(double rate, long burstNanos, LongSupplier clock) {
+        if (rate <= 0 || burstNanos < 0) {
+            throw new IllegalArgumentException("Wrong limits of the token bucket: " + rate + "/" + burstNanos);
+        }
+        this.nanosPerToken = 1_000_000_000d / rate;
+        this.burstNanos = burstNanos;
+        this.clock = clock;
+        this.fullAt = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Takes the tokens if the bucket holds them.
+     *
+     * @return {@code 0} if they are taken, the nanoseconds to wait for them otherwise
+     */
+    long tryTake(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = clock.getAsLong(), current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes the tokens whether the bucket holds them or not, for what is already spent. The bucket may go into debt,
+     * which {@link #debt()} reports until it's paid off.
+     */
+    void take(long tokens) {
+        long cost = cost(tokens);
+        long now = clock.getAsLong();
+        fullAt.accumulateAndGet(now, (current, time) -> Math.max(current, time) + cost);
+    }
+
+    /**
+     * @return nanoseconds until the bucket holds a token again, {@code 0} if it does
+     */
+    long debt() {
+        return Math.max(0, fullAt.get() - clock.getAsLong() - burstNanos);
+    }
+
+    /**
+     * @return nanoseconds until the bucket is full, {@code 0} if it is
+     */
+    long untilFull() {
+        return Math.max(0, fullAt.get() - clock.getAsLong());
+    }
+
+    private long cost(long tokens) {
+        double cost = tokens * nanosPerToken;
+        return cost >= Long.MAX_VALUE / 2 ? Long.MAX_VALUE / 2 : (long) cost;
+    }
+}
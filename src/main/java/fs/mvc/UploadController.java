@@ -0,0 +1,100 @@
+package fs.mvc;
+
+import fs.domain.FileItem;
+import fs.domain.UploadSession;
+import fs.mvc.dto.FileItemDTO;
+import fs.mvc.dto.UploadSessionDTO;
+import fs.service.QuotaExceededException;
+import fs.service.StorageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.springframework.http.HttpStatus.*;
+
+/**
+ * Resumable chunked uploads: create a session, PUT chunks by offset (in parallel and in any order), then commit.
+ * Chunks are raw request bodies, so the multipart size limits don't apply.
+ */
+@RestController
+@RequestMapping("/api/v1/fileStorage/uploads")
+public class UploadController {
+    private final StorageService storageService;
+    private final IoExecutor uploadExecutor;
+
+    @Autowired
+    public UploadController(StorageService storageService, @Qualifier("uploadExecutor") IoExecutor uploadExecutor) {
+        this.storageService = storageService;
+        this.uploadExecutor = uploadExecutor;
+    }
+
+    @PostMapping
+    public UploadSessionDTO create(@RequestParam("fileName") String fileName, @RequestParam("size") long size) {
+        return toDTO(storageService.createUpload(fileName, size), Collections.emptyList());
+    }
+
+    @GetMapping("/{uploadId}")
+    public UploadSessionDTO get(@PathVariable String uploadId) {
+        UploadSession upload = storageService.loadUpload(uploadId);
+        return toDTO(upload, storageService.loadReceivedChunks(upload));
+    }
+
+    /**
+     * The chunk is read on the upload executor.
+     */
+    @PutMapping("/{uploadId}")
+    public WebAsyncTask<Void> putChunk(@PathVariable String uploadId, @RequestParam("offset") long offset,
+                                       HttpServletRequest request) {
+        return uploadExecutor.submit(() -> {
+            storageService.storeChunk(uploadId, offset, request.getInputStream());
+            return null;
+        });
+    }
+
+    @PostMapping("/{uploadId}/commit")
+    public FileItemDTO commit(@PathVariable String uploadId) {
+        FileItem fileItem = storageService.commitUpload(uploadId);
+        return new FileItemDTO(fileItem.getId(), fileItem.getName());
+    }
+
+    @ExceptionHandler(AccessDeniedException.class)
+    public void handleAccessDenied(HttpServletResponse response) throws IOException {
+        response.sendError(FORBIDDEN.value());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public void handleNotFound(HttpServletResponse response) throws IOException {
+        response.sendError(NOT_FOUND.value());
+    }
+
+    @ExceptionHandler(IllegalStateException.class)
+    public void handleBadRequest(IllegalStateException err, HttpServletResponse response) throws IOException {
+        response.sendError(BAD_REQUEST.value(), err.getMessage());
+    }
+
+    @ExceptionHandler(QuotaExceededException.class)
+    public void handleQuotaExceeded(QuotaExceededException err, HttpServletResponse response) throws IOException {
+        response.sendError(INSUFFICIENT_STORAGE.value(), err.getMessage());
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    public void handleRejected(HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.sendError(SERVICE_UNAVAILABLE.value());
+    }
+
+    private static UploadSessionDTO toDTO(UploadSession upload, List<Integer> receivedChunks) {
+        return new UploadSessionDTO(upload.getId(), upload.getName(), upload.getSize(), upload.getChunkSize(),
+                receivedChunks);
+    }
+}
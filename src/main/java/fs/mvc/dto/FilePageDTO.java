@@ -0,0 +1,14 @@
+package fs.mvc.dto;
+
+import lombok.Value;
+
+import java.util.List;
+
+@Value
+public class FilePageDTO {
+    private List<FileItemDTO> items;
+    /**
+     * Value of the {@code after} parameter for the next page, {@code null} on the last page.
+     */
+    private Long next;
+}
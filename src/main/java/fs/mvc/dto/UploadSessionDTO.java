@@ -0,0 +1,14 @@
+package fs.mvc.dto;
+
+import lombok.Value;
+
+import java.util.List;
+
+@Value
+public class UploadSessionDTO {
+    private String id;
+    private String name;
+    private long size;
+    private int chunkSize;
+    private List<Integer> receivedChunks;
+}
@@ -0,0 +1,49 @@
+package fs.security;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import fs.dao.FileShareRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ids of the users every file is shared with, so that an access check is a hash lookup instead of a query. Entries
+ * are loaded on a miss, bounded by the total number of cached user ids and must be evicted whenever shares of the
+ * file change.
+ */
+@Component
+public class FileAccessCache {
+    private final LoadingCache<Long, Set<Long>> cache;
+
+    @Autowired
+    public FileAccessCache(FileShareRepository shareRepository,
+                           @Value("${file_store.acl-cache.ttl:10m}") Duration ttl,
+                           @Value("${file_store.acl-cache.max-size:1000000}") long maxSize) {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .maximumWeight(maxSize)
+                .<Long, Set<Long>>weigher((fileId, userIds) -> userIds.size() + 1)
+                .executor(Runnable::run)
+                .build(fileId -> toSet(shareRepository.findUserIdsByFileId(fileId)));
+    }
+
+    private static Set<Long> toSet(List<Long> userIds) {
+        return userIds.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(userIds));
+    }
+
+    public boolean isSharedWith(Long fileId, Long userId) {
+        return cache.get(fileId).contains(userId);
+    }
+
+    public void evict(Long fileId) {
+        cache.invalidate(fileId);
+    }
+}
@@ -0,0 +1,27 @@
+package fs.security;
+
+import fs.domain.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * JPA listener of {@link User}: changed or removed users are evicted from the {@link UserDetailsCache}.
+ */
+@Component
+public class UserCacheInvalidator {
+    private final UserDetailsCache userCache;
+
+    @Autowired
+    public UserCacheInvalidator(UserDetailsCache userCache) {
+        this.userCache = userCache;
+    }
+
+    @PostUpdate
+    @PostRemove
+    public void evict(User user) {
+        userCache.removeUserFromCache(user.getId());
+    }
+}
@@ -28,6 +28,10 @@ public class UserDetails implements org.springframework.security.core.userdetail
         return user.getId();
     }
 
+    public User getUser() {
+        return user;
+    }
+
     @Override
     public String getPassword() {
         return user.getPassword();
@@ -0,0 +1,64 @@
+package fs.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of loaded users by username. Entries expire {@code ttl} after loading and are evicted right away
+ * when the user is changed (see {@link UserCacheInvalidator}).
+ */
+@Component
+public class UserDetailsCache implements UserCache {
+    private final Cache<String, org.springframework.security.core.userdetails.UserDetails> cache;
+
+    @Autowired
+    public UserDetailsCache(@Value("${file_store.user-cache.ttl:5m}") Duration ttl,
+                            @Value("${file_store.user-cache.max-size:10000}") long maxSize) {
+        this(ttl, maxSize, Ticker.systemTicker());
+    }
+
+    UserDetailsCache(Duration ttl, long maxSize, Ticker ticker) {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .maximumSize(maxSize)
+                .ticker(ticker)
+                .executor(Runnable::run)
+                .build();
+    }
+
+    @Override
+    public org.springframework.security.core.userdetails.UserDetails getUserFromCache(String username) {
+        return cache.getIfPresent(username);
+    }
+
+    @Override
+    public void putUserInCache(org.springframework.security.core.userdetails.UserDetails user) {
+        cache.put(user.getUsername(), user);
+    }
+
+    @Override
+    public void removeUserFromCache(String username) {
+        cache.invalidate(username);
+    }
+
+    /**
+     * Evicts the user by id, so that a renamed user doesn't stay cached under the old name.
+     */
+    public void removeUserFromCache(Long userId) {
+        cache.asMap().values().removeIf(user -> user instanceof UserDetails
+                && userId.equals(((UserDetails) user).getUserId()));
+    }
+
+    long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+}
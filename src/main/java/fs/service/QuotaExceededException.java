@@ -0,0 +1,12 @@
+package fs.service;
+
+/**
+ * Thrown when storing a file would take the owner over their storage quota.
+ */
+public class QuotaExceededException extends RuntimeException {
+    private static final long serialVersionUID = 3218560185264379512L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,95 @@
+package fs.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Traffic of the file store, next to the latency timers of the storage operations ({@code fs.storage}) and of the
+ * repositories ({@code fs.db.query}):
+ * <ul>
+ * <li>{@code fs.transfer.bytes} - bytes of file content received and sent, tagged by {@code direction};</li>
+ * <li>{@code fs.upload.size} - size distribution of the stored files;</li>
+ * <li>{@code fs.integrity.failures} - blobs whose stored data didn't match its checksum, tagged by the
+ * {@code source} that read them: {@code download} or {@code scrub};</li>
+ * <li>{@code fs.user.transfer.bytes} - the same bytes per {@code user}, if {@code file_store.metrics.per-user} is
+ * on; the number of users tagged is capped by {@code file_store.metrics.max-users}.</li>
+ * </ul>
+ */
+@Component
+public class StorageMetrics {
+    public static final String TRANSFER_BYTES = "fs.transfer.bytes";
+    public static final String USER_TRANSFER_BYTES = "fs.user.transfer.bytes";
+    public static final String UPLOAD_SIZE = "fs.upload.size";
+    public static final String INTEGRITY_FAILURES = "fs.integrity.failures";
+    private static final String IN = "in";
+    private static final String OUT = "out";
+
+    private final MeterRegistry registry;
+    private final boolean perUser;
+    private final Counter receivedBytes;
+    private final Counter sentBytes;
+    private final DistributionSummary uploadSize;
+
+    public StorageMetrics(MeterRegistry registry, @Value("${file_store.metrics.per-user:false}") boolean perUser) {
+        this.registry = registry;
+        this.perUser = perUser;
+        this.receivedBytes = Counter.builder(TRANSFER_BYTES)
+                .description("File content received and sent")
+                .baseUnit("bytes")
+                .tag("direction", IN)
+                .register(registry);
+        this.sentBytes = Counter.builder(TRANSFER_BYTES)
+                .description("File content received and sent")
+                .baseUnit("bytes")
+                .tag("direction", OUT)
+                .register(registry);
+        this.uploadSize = DistributionSummary.builder(UPLOAD_SIZE)
+                .description("Size of the stored files")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1024L)
+                .maximumExpectedValue(16L * 1024 * 1024 * 1024)
+                .register(registry);
+    }
+
+    /**
+     * A file was stored.
+     *
+     * @param username owner of the file, {@code null} if unknown
+     * @param size     size of the file content, before any encoding
+     */
+    public void received(String username, long size) {
+        receivedBytes.increment(size);
+        uploadSize.record(size);
+        countForUser(username, IN, size);
+    }
+
+    /**
+     * A part of a file is being sent; transfers that fail midway are counted whole.
+     *
+     * @param username receiver of the file, {@code null} if unknown
+     * @param bytes    bytes of the sent representation
+     */
+    public void sent(String username, long bytes) {
+        sentBytes.increment(bytes);
+        countForUser(username, OUT, bytes);
+    }
+
+    /**
+     * Stored data of a blob didn't match its checksum.
+     *
+     * @param source what read the blob: {@code download} or {@code scrub}
+     */
+    public void corrupted(String source) {
+        registry.counter(INTEGRITY_FAILURES, "source", source).increment();
+    }
+
+    private void countForUser(String username, String direction, long bytes) {
+        if (perUser && username != null) {
+            registry.counter(USER_TRANSFER_BYTES, "user", username, "direction", direction).increment(bytes);
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package fs.service;
 
 import fs.domain.FileItem;
+import fs.domain.UploadSession;
+import fs.mvc.dto.FileItemDTO;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.List;
 
+/**
+ * Files are counted against the storage quota of their owner when they are stored; a file that doesn't fit is
+ * rejected with {@link QuotaExceededException}.
+ */
 @Service
 public interface StorageService {
     void init();
@@ -18,17 +26,166 @@ public interface StorageService {
      */
     FileItem store(MultipartFile file);
 
+    /**
+     * Streams content directly into the file store without intermediate temp files.
+     *
+     * @param fileName original file name
+     * @param content  raw file content, read until EOF (not closed by this method)
+     * @return stored file
+     * @throws IllegalArgumentException - if we can't create folder for storing file RuntimeException
+     *                                  - if we can't store file to the FS
+     */
+    FileItem store(String fileName, InputStream content);
+
+    /**
+     * @return path of a new file in the temp folder of the file store, to receive content for
+     * {@link #store(String, Path)}; the file isn't created
+     */
+    Path newStagedFile();
+
+    /**
+     * Stores a fully received local file, moving it into the file store when possible.
+     *
+     * @param stagedFile file from {@link #newStagedFile()}, moved or removed by this method
+     * @return stored file
+     */
+    FileItem store(String fileName, Path stagedFile);
+
     List<FileItem> loadAll();
 
+    /**
+     * Keyset (seek) page of the current user files, ordered by id.
+     *
+     * @param afterId id of the last file of the previous page, {@code null} for the first page
+     * @param limit   max number of files
+     * @return id and name of the files
+     */
+    List<FileItemDTO> loadPage(Long afterId, int limit);
+
+    /**
+     * Stores several files at once: their content is written concurrently and the files are saved in one batch.
+     * Either all of them are stored or none.
+     *
+     * @param multiparts uploaded files
+     * @return stored files, in the order of {@code multiparts}
+     */
+    List<FileItem> storeAll(List<MultipartFile> multiparts);
+
     /**
      * @param fileId
      * @return
      * @throws IllegalArgumentException - if file didn't exists into the DB AccessDeniedException - if
-     *                                  current logged user doesn't have access to this file
+     *                                  current logged user isn't the owner and the file isn't shared with him
      */
     FileItem load(Long fileId);
 
+    /**
+     * Removes a file of the current logged user with its shares. The content is removed from the file store by the
+     * {@link fs.service.impl.StoreCollector} once no file refers to it.
+     *
+     * @throws IllegalArgumentException - if file didn't exists AccessDeniedException - if current logged user isn't
+     *                                  the owner
+     */
+    void delete(Long fileId);
+
+    /**
+     * Moves a file stored before the blob store into it, whoever the owner is. Files are moved on access as well, so
+     * this is only needed to migrate the store in the background.
+     *
+     * @return {@code false} if the file was moved already or its content is missing
+     */
+    boolean adoptLegacyFile(Long fileId);
+
+    /**
+     * Moves the content of a hot blob into the cold tier, gzipped if that saves enough space. Only needed by the
+     * background tiering.
+     *
+     * @return {@code false} if there is no such blob or it isn't hot
+     */
+    boolean demoteBlob(String hash);
+
+    /**
+     * Moves the content of a cold blob back into the hot tier, as stored. Only needed by the background tiering.
+     *
+     * @return {@code false} if there is no such blob or it isn't cold
+     */
+    boolean promoteBlob(String hash);
+
+    /**
+     * Gives the user read access to a file of the current logged user. Sharing twice is a no-op.
+     *
+     * @throws IllegalArgumentException - if file or user didn't exists AccessDeniedException - if current logged
+     *                                  user isn't the owner IllegalStateException - if user is the owner
+     */
+    void share(Long fileId, String username);
+
+    /**
+     * @throws IllegalArgumentException - if file or user didn't exists AccessDeniedException - if current logged
+     *                                  user isn't the owner
+     */
+    void revokeShare(Long fileId, String username);
+
+    /**
+     * @return names of the users the file is shared with
+     * @throws IllegalArgumentException - if file didn't exists AccessDeniedException - if current logged user isn't
+     *                                  the owner
+     */
+    List<String> loadShares(Long fileId);
+
+    /**
+     * Keyset page of the files shared with the current user, ordered by id.
+     *
+     * @param afterId id of the last file of the previous page, {@code null} for the first page
+     * @param limit   max number of files
+     */
+    List<FileItemDTO> loadSharedPage(Long afterId, int limit);
+
+    /**
+     * Starts a resumable upload: the target file is pre-sized and chunks may then be stored in any order.
+     *
+     * @param fileName original file name
+     * @param size     total file size in bytes
+     * @return created upload session
+     * @throws IllegalStateException - if size is negative QuotaExceededException - if the file doesn't fit in the
+     *                               storage quota
+     */
+    UploadSession createUpload(String fileName, long size);
+
+    /**
+     * @param uploadId
+     * @return
+     * @throws IllegalArgumentException - if upload session didn't exists into the DB AccessDeniedException - if
+     *                                  current logged user isn't the owner of this upload
+     */
+    UploadSession loadUpload(String uploadId);
+
+    /**
+     * @param upload session returned by {@link #loadUpload(String)}
+     * @return indexes of already stored chunks, in ascending order
+     */
+    List<Integer> loadReceivedChunks(UploadSession upload);
+
+    /**
+     * Writes one chunk at its position. Chunks may be stored concurrently and re-sent after a failure.
+     *
+     * @param uploadId upload session id
+     * @param offset   chunk offset, must be aligned to the session chunk size
+     * @param content  chunk content, exactly one chunk long (the last chunk may be shorter)
+     * @throws IllegalArgumentException - if upload session didn't exists AccessDeniedException - if current logged
+     *                                  user isn't the owner IllegalStateException - if offset or length are wrong
+     */
+    void storeChunk(String uploadId, long offset, InputStream content);
+
+    /**
+     * Creates the {@link FileItem} of a fully received upload and closes the session.
+     *
+     * @param uploadId upload session id
+     * @return stored file
+     * @throws IllegalArgumentException - if upload session didn't exists AccessDeniedException - if current logged
+     *                                  user isn't the owner IllegalStateException - if some chunks are missing
+     */
+    FileItem commitUpload(String uploadId);
+
     // We don't need this methods at the moment related to the TASK!.
     // Resource loadAsResource(String filename);
-    // void deleteAll();
 }
@@ -0,0 +1,159 @@
+package fs.service.impl;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background worker that walks a table or a store one batch per {@code interval}, every batch resuming from the
+ * cursor of the previous one, so that nothing is read at once and no transaction spans a batch. A failed batch is
+ * retried from the same cursor next time.
+ */
+@Log4j2
+public abstract class BatchWorker implements DisposableBean {
+    private final String name;
+    private final int threads;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration interval;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Last item of the current pass that was processed, {@code null} at the start of the pass.
+     */
+    private volatile String cursor;
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param name    prefix of the thread names
+     * @param threads threads of the scheduler, more than one if {@link #scheduled} adds tasks of its own
+     */
+    protected BatchWorker(String name, int threads, boolean enabled, int batchSize, Duration interval) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size of " + name + " should be positive, but was: "
+                    + batchSize);
+        }
+        this.name = name;
+        this.threads = threads;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.interval = interval;
+    }
+
+    /**
+     * Starts once the application is up, after the startup recovery of the store.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (!enabled || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory(name + "-"));
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (runBatch() && isDone()) {
+                stop();
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduled(scheduler);
+    }
+
+    private synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Processes one batch of the current pass.
+     *
+     * @return {@code true} if the batch completed a pass, as told by {@link #endPass()}
+     */
+    synchronized boolean runBatch() {
+        if (isDone()) {
+            return true;
+        }
+        String next;
+        try {
+            next = process(cursor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            log.warn("{} can't process the batch after \"{}\"", name, cursor, e);
+            return false;
+        }
+        cursor = next;
+        return next == null && endPass();
+    }
+
+    /**
+     * Called once the batches are scheduled, to log the settings or schedule tasks of its own.
+     */
+    protected abstract void scheduled(ScheduledExecutorService scheduler);
+
+    /**
+     * @param after cursor of the previous batch, {@code null} at the start of the pass
+     * @return cursor for the next batch, {@code null} when the pass is done
+     */
+    protected abstract String process(String after) throws Exception;
+
+    /**
+     * Called when a pass is done, before the next one starts from a {@code null} cursor.
+     *
+     * @return whether the batch counts as completing a pass
+     */
+    protected boolean endPass() {
+        return true;
+    }
+
+    /**
+     * @return {@code true} to stop once there is nothing left to do
+     */
+    protected boolean isDone() {
+        return false;
+    }
+
+    /**
+     * Counts an item that failed and is left for the next pass.
+     */
+    protected void countError() {
+        errors.incrementAndGet();
+    }
+
+    protected int getBatchSize() {
+        return batchSize;
+    }
+
+    protected Duration getInterval() {
+        return interval;
+    }
+
+    @ManagedAttribute(description = "Last item processed by the current pass")
+    public String getCursor() {
+        return cursor;
+    }
+
+    @ManagedAttribute(description = "Items and batches that failed and were retried")
+    public long getErrors() {
+        return errors.get();
+    }
+}
@@ -0,0 +1,67 @@
+package fs.service.impl;
+
+import fs.domain.Blob;
+import fs.storage.StorageTier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Blobs read since the {@link StoreTiering} last looked, kept in memory so that downloads don't write to the DB. The
+ * tiering flushes them as the last access of the blobs and promotes those read from the cold tier. Nothing is
+ * tracked unless {@code file_store.tiering.enabled}.
+ */
+@Component
+public class BlobAccessTracker {
+    private final boolean enabled;
+    private final Set<String> read = ConcurrentHashMap.newKeySet();
+    private final Set<String> coldRead = ConcurrentHashMap.newKeySet();
+
+    public BlobAccessTracker(@Value("${file_store.tiering.enabled:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param blob may be a cached copy, whose tier is at most as old as its file cache entry
+     */
+    void read(Blob blob) {
+        if (!enabled || blob == null) {
+            return;
+        }
+        read.add(blob.getHash());
+        if (blob.getTier() == StorageTier.COLD) {
+            coldRead.add(blob.getHash());
+        }
+    }
+
+    /**
+     * @return hashes of the blobs read since the previous call
+     */
+    List<String> drainRead() {
+        return drain(read);
+    }
+
+    /**
+     * @return hashes of the cold blobs read since the previous call
+     */
+    List<String> drainColdRead() {
+        return drain(coldRead);
+    }
+
+    /**
+     * Hashes added while the set is drained are either drained as well or left for the next call.
+     */
+    private static List<String> drain(Set<String> hashes) {
+        List<String> drained = new ArrayList<>();
+        for (Iterator<String> iterator = hashes.iterator(); iterator.hasNext(); ) {
+            drained.add(iterator.next());
+            iterator.remove();
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,124 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.storage.BlobStat;
+import fs.storage.ClusteredBlobStore;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the blobs of this node where the ring wants them. Every {@code heartbeat-interval} the other nodes are
+ * pinged; every {@code repair.interval} the next batch of local blobs is walked:
+ * <ol>
+ * <li>blobs the DB refers to are pushed to their owners that are up and don't keep them;</li>
+ * <li>blobs this node doesn't own are dropped once every owner keeps them and they are older than
+ * {@code repair.grace-period}.</li>
+ * </ol>
+ * Blobs the DB doesn't refer to are left to the {@link StoreCollector}. A blob that can't be repaired is counted as
+ * an error and skipped, the next pass tries it again.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "file_store.cluster.enabled", havingValue = "true")
+@ManagedResource(objectName = "fs:type=ClusterRepair", description = "Replication of the blobs of the cluster node")
+public class ClusterRepair extends BatchWorker {
+    private final ClusteredBlobStore blobStore;
+    private final BlobRepository blobRepository;
+    private final Duration heartbeatInterval;
+    private final Duration gracePeriod;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong pushed = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+
+    public ClusterRepair(ClusteredBlobStore blobStore, BlobRepository blobRepository,
+                         @Value("${file_store.cluster.heartbeat-interval:2s}") Duration heartbeatInterval,
+                         @Value("${file_store.cluster.repair.batch-size:100}") int batchSize,
+                         @Value("${file_store.cluster.repair.interval:10s}") Duration interval,
+                         @Value("${file_store.cluster.repair.grace-period:10m}") Duration gracePeriod) {
+        super("cluster-repair", 2, true, batchSize, interval);
+        this.blobStore = blobStore;
+        this.blobRepository = blobRepository;
+        this.heartbeatInterval = heartbeatInterval;
+        this.gracePeriod = gracePeriod;
+    }
+
+    @Override
+    protected void scheduled(ScheduledExecutorService scheduler) {
+        scheduler.scheduleWithFixedDelay(blobStore::heartbeat, 0, heartbeatInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+        log.info("Node {} pings the cluster every {} and repairs its blobs by {} every {}", blobStore.getNodeId(),
+                heartbeatInterval, getBatchSize(), getInterval());
+    }
+
+    @Override
+    protected String process(String after) throws IOException {
+        List<String> keys = blobStore.getLocal().list(after, getBatchSize());
+        Set<String> referenced = keys.isEmpty() ? new HashSet<>() : new HashSet<>(blobRepository.findStoreKeysIn(keys));
+        long horizon = System.currentTimeMillis() - gracePeriod.toMillis();
+        for (String key : keys) {
+            scanned.incrementAndGet();
+            if (!referenced.contains(key)) {
+                continue;
+            }
+            try {
+                pushed.addAndGet(blobStore.replicate(key));
+                BlobStat stored = blobStore.getLocal().stat(key);
+                if (stored != null && stored.getLastModified() <= horizon && blobStore.handOff(key)) {
+                    log.info("Hand blob {} off to {}", key, blobStore.owners(key));
+                    handedOff.incrementAndGet();
+                }
+            } catch (IOException | RuntimeException e) {
+                countError();
+                log.warn("Can't repair blob {}", key, e);
+            }
+        }
+        return keys.size() < getBatchSize() ? null : keys.get(keys.size() - 1);
+    }
+
+    @Override
+    protected boolean endPass() {
+        passes.incrementAndGet();
+        return true;
+    }
+
+    @ManagedAttribute(description = "Other nodes: up with the average ping, or down")
+    public Map<String, String> getNodes() {
+        return blobStore.getNodeStates();
+    }
+
+    @ManagedAttribute(description = "Completed passes over the local blobs")
+    public long getPasses() {
+        return passes.get();
+    }
+
+    @ManagedAttribute(description = "Local blobs checked")
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    @ManagedAttribute(description = "Copies pushed to owners that missed them")
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    @ManagedAttribute(description = "Local copies dropped as every owner keeps them")
+    public long getHandedOff() {
+        return handedOff.get();
+    }
+}
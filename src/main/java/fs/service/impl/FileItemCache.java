@@ -0,0 +1,90 @@
+package fs.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fs.domain.FileItem;
+import fs.domain.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Detached copies of the files by id, with their blobs and the ids of their owners, so that repeated downloads of a
+ * file don't query it. Files stored before the blob store aren't cached, as their first access moves them. Entries
+ * expire {@code ttl} after loading and must be evicted whenever the file is changed or deleted.
+ */
+@Component
+public class FileItemCache {
+    private final Cache<Long, FileItem> cache;
+
+    @Autowired
+    public FileItemCache(@Value("${file_store.file-cache.ttl:10m}") Duration ttl,
+                         @Value("${file_store.file-cache.max-size:100000}") long maxSize) {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .maximumSize(maxSize)
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * For the metrics of the cache.
+     */
+    public Cache<Long, ?> getCache() {
+        return cache;
+    }
+
+    /**
+     * The loader runs inside the transaction of the caller and no eviction of the file can slip in between the load
+     * and the caching of its result.
+     *
+     * @return a copy of the cached file, or the loaded one on a miss; {@code null} if there is no such file
+     */
+    FileItem get(Long fileId, Function<Long, Optional<FileItem>> loader) {
+        FileItem[] loaded = new FileItem[1];
+        FileItem cached = cache.get(fileId, id -> {
+            loaded[0] = loader.apply(id).orElse(null);
+            return loaded[0] == null || loaded[0].getHash() == null ? null : copyOf(loaded[0]);
+        });
+        if (loaded[0] != null) {
+            return loaded[0];
+        }
+        return cached == null ? null : copyOf(cached);
+    }
+
+    void evict(Long fileId) {
+        cache.invalidate(fileId);
+    }
+
+    /**
+     * Evicts every file of the blob, e.g. once the blob moved. It walks the whole cache, so it's meant for the
+     * background jobs only.
+     */
+    void evictBlob(String hash) {
+        cache.asMap().values().removeIf(fileItem -> hash.equals(fileItem.getHash()));
+    }
+
+    /**
+     * The owner is reduced to its id, as it's the only part of it that is needed to check the access.
+     */
+    private static FileItem copyOf(FileItem fileItem) {
+        FileItem copy = new FileItem(fileItem.getId());
+        copy.setName(fileItem.getName());
+        copy.setFsPath(fileItem.getFsPath());
+        copy.setHash(fileItem.getHash());
+        copy.setBlob(fileItem.getBlob());
+        copy.setVersion(fileItem.getVersion());
+        if (fileItem.getOwner() != null) {
+            User owner = new User();
+            owner.setId(fileItem.getOwner().getId());
+            copy.setOwner(owner);
+        }
+        return copy;
+    }
+}
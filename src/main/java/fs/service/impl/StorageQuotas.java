@@ -0,0 +1,149 @@
+package fs.service.impl;
+
+import fs.dao.FileRepository;
+import fs.domain.User;
+import fs.service.QuotaExceededException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Storage used by every user, counted in memory so that enforcing the quotas adds no query to the stores. The quota
+ * of a user is {@link User#getStorageQuota()} or {@code file_store.quota.storage}, none if it isn't positive.
+ * <p>
+ * Stores reserve the size of the file before it's saved and give it back if their transaction rolls back, deletes
+ * give it back once committed. Reserving never takes a lock: concurrent stores of a user near the quota may all be
+ * rejected where one of them would have fit. Every {@code file_store.quota.reconcile-interval} the counters are
+ * corrected from the DB, which also accounts for the files moved from the old layout meanwhile.
+ */
+@Log4j2
+@Component
+public class StorageQuotas implements DisposableBean {
+    private final FileRepository fileRepository;
+    private final long defaultQuota;
+    private final Duration reconcileInterval;
+    private final ConcurrentMap<Long, LongAdder> usage = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    public StorageQuotas(FileRepository fileRepository,
+                         @Value("${file_store.quota.storage:0}") DataSize defaultQuota,
+                         @Value("${file_store.quota.reconcile-interval:5m}") Duration reconcileInterval) {
+        this.fileRepository = fileRepository;
+        this.defaultQuota = defaultQuota.toBytes();
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    /**
+     * Loads the usage once the application is up, then keeps reconciling it.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        reconcile();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("quota-reconcile-"));
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (RuntimeException e) {
+                log.warn("Can't reconcile storage usage", e);
+            }
+        }, reconcileInterval.toMillis(), reconcileInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @return bytes stored by the user
+     */
+    public long usage(Long userId) {
+        LongAdder used = usage.get(userId);
+        return used == null ? 0 : used.sum();
+    }
+
+    /**
+     * Checks that a file of the given size still fits, without reserving anything, to reject it before its content
+     * is written.
+     *
+     * @throws QuotaExceededException - if it doesn't fit
+     */
+    void check(User owner, long size) {
+        long quota = quotaOf(owner);
+        if (quota > 0 && usage(owner.getId()) + size > quota) {
+            throw exceeded(owner, quota);
+        }
+    }
+
+    /**
+     * Counts a file of the given size as stored.
+     *
+     * @throws QuotaExceededException - if it doesn't fit, nothing is counted then
+     */
+    void reserve(User owner, long size) {
+        LongAdder used = counter(owner.getId());
+        used.add(size);
+        long quota = quotaOf(owner);
+        if (quota > 0 && used.sum() > quota) {
+            used.add(-size);
+            throw exceeded(owner, quota);
+        }
+    }
+
+    void release(Long userId, long size) {
+        counter(userId).add(-size);
+    }
+
+    /**
+     * Moves every counter by the difference between its value before the query and the usage in the DB, so that
+     * what is reserved and released while the query runs isn't lost. Stores and deletes committed during the query
+     * may be counted twice or not at all until the next run.
+     */
+    void reconcile() {
+        ConcurrentMap<Long, Long> before = new ConcurrentHashMap<>();
+        usage.forEach((userId, used) -> before.put(userId, used.sum()));
+        List<Object[]> stored = fileRepository.sumSizeByOwner();
+        for (Object[] row : stored) {
+            Long userId = (Long) row[0];
+            long size = ((Number) row[1]).longValue();
+            counter(userId).add(size - before.getOrDefault(userId, 0L));
+            before.remove(userId);
+        }
+        // users without files any more
+        before.forEach((userId, used) -> counter(userId).add(-used));
+        log.debug("Reconciled storage usage of {} users", stored.size());
+    }
+
+    private LongAdder counter(Long userId) {
+        return usage.computeIfAbsent(userId, id -> new LongAdder());
+    }
+
+    private long quotaOf(User owner) {
+        return owner.getStorageQuota() != null ? owner.getStorageQuota() : defaultQuota;
+    }
+
+    private static QuotaExceededException exceeded(User owner, long quota) {
+        return new QuotaExceededException("Storage quota of " + DataSize.ofBytes(quota).toMegabytes()
+                + "MB of user " + owner.getUsername() + " is exceeded");
+    }
+}
@@ -1,39 +1,115 @@
 package fs.service.impl;
 
+import fs.dao.BlobRepository;
 import fs.dao.FileRepository;
+import fs.dao.FileShareRepository;
+import fs.dao.UploadChunkRepository;
+import fs.dao.UploadSessionRepository;
 import fs.dao.UserRepository;
+import fs.domain.Blob;
 import fs.domain.FileItem;
+import fs.domain.FileShare;
+import fs.domain.UploadChunk;
+import fs.domain.UploadSession;
 import fs.domain.User;
+import fs.mvc.dto.FileItemDTO;
+import fs.security.FileAccessCache;
 import fs.security.UserDetails;
+import fs.service.StorageMetrics;
 import fs.service.StorageService;
+import fs.storage.BlobCodec;
+import fs.storage.BlobIO;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import fs.storage.CompressionPolicy;
+import fs.storage.StorageTier;
+import io.micrometer.core.annotation.Timed;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.PostConstruct;
 import javax.transaction.Transactional;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
+/**
+ * The storage operations are timed as {@code fs.storage}, tagged by {@code operation}.
+ */
 @Log4j2
 @Service
 public class StorageServiceImpl implements StorageService {
-    private static final String FILENAME_PATTERN = "%s" + File.separator + "%s";
+    private static final String TEMP_FOLDER = "tmp";
+    private static final String METRIC = "fs.storage";
     private final FileRepository fileRepository;
+    private final FileShareRepository fileShareRepository;
     private final UserRepository userRepository;
+    private final UploadSessionRepository uploadSessionRepository;
+    private final UploadChunkRepository uploadChunkRepository;
+    private final BlobRepository blobRepository;
+    private final BlobStore blobStore;
+    private final FileAccessCache fileAccessCache;
+    private final FileItemCache fileItemCache;
+    private final StorageMetrics metrics;
+    private final Executor storeExecutor;
+    private final StorageQuotas quotas;
+    private final BlobAccessTracker accessTracker;
 
     @Value("${file_store.path.root}")
     private String storePath;
 
-    public StorageServiceImpl(FileRepository fileRepository, UserRepository userRepository) {
+    @Value("${file_store.upload.chunk-size:8388608}")
+    private int chunkSize;
+
+    @Value("${file_store.compression.enabled:false}")
+    private boolean compression;
+
+    public StorageServiceImpl(FileRepository fileRepository, FileShareRepository fileShareRepository,
+                              UserRepository userRepository, UploadSessionRepository uploadSessionRepository,
+                              UploadChunkRepository uploadChunkRepository, BlobRepository blobRepository,
+                              BlobStore blobStore, FileAccessCache fileAccessCache, FileItemCache fileItemCache,
+                              StorageMetrics metrics, @Qualifier("storeExecutor") Executor storeExecutor,
+                              StorageQuotas quotas, BlobAccessTracker accessTracker) {
         this.fileRepository = fileRepository;
+        this.fileShareRepository = fileShareRepository;
         this.userRepository = userRepository;
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.uploadChunkRepository = uploadChunkRepository;
+        this.blobRepository = blobRepository;
+        this.blobStore = blobStore;
+        this.fileAccessCache = fileAccessCache;
+        this.fileItemCache = fileItemCache;
+        this.metrics = metrics;
+        this.storeExecutor = storeExecutor;
+        this.quotas = quotas;
+        this.accessTracker = accessTracker;
     }
 
     @Override
@@ -50,72 +126,740 @@ public class StorageServiceImpl implements StorageService {
             throw new IllegalArgumentException("Provided path: " + storePath + " doesn't exists!");
         if (!storePathRoot.isDirectory())
             throw new IllegalArgumentException("Provided path: " + storePath + " isn't a directory!");
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Upload chunk size should be positive, but was: " + chunkSize);
+        recover();
+    }
+
+    /**
+     * Reconciles the blob store with the DB after a crash, then removes the partial files of interrupted writes:
+     * every temp file but the ones of resumable uploads.
+     */
+    private void recover() {
+        try {
+            blobStore.recover(blobRepository::isStoredUnder);
+            File[] tempFiles = new File(storePath, TEMP_FOLDER).listFiles();
+            if (tempFiles == null) {
+                return;
+            }
+            Set<String> uploads = uploadSessionRepository.findAllFsPaths().stream()
+                    .map(path -> new File(path).getAbsolutePath())
+                    .collect(Collectors.toSet());
+            for (File file : tempFiles) {
+                if (file.isFile() && !uploads.contains(file.getAbsolutePath())) {
+                    Files.delete(file.toPath());
+                    log.info("Remove partial file \"{}\"", file.getAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't recover the file store", e);
+        }
     }
 
     private UserDetails getCurrentUser() {
         return (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     }
 
-    private String getFullPathForStore() {
-        return String.format(FILENAME_PATTERN, storePath, getCurrentUser().getUserId());
+    private User getOwner() {
+        return getCurrentUser().getUser();
+    }
+
+    private File createTempFile() {
+        File folder = new File(storePath, TEMP_FOLDER);
+        if (!folder.mkdirs() && !folder.isDirectory()) {
+            throw new IllegalArgumentException("Can't create folder for storing user files. Path: " + folder);
+        }
+        return new File(folder, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Settles the write of the blob in the blob store once the current transaction is over, so that the blob of a
+     * rolled back transaction doesn't stay behind unreferenced.
+     */
+    private BlobStat settleOnCompletion(BlobStat stored) throws IOException {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            blobStore.settle(stored.getKey(), true, blobRepository::isStoredUnder);
+            return stored;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                try {
+                    blobStore.settle(stored.getKey(), status == STATUS_COMMITTED, blobRepository::isStoredUnder);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Can't settle blob {}", stored.getKey(), e);
+                }
+            }
+        });
+        return stored;
     }
 
-    private User getOwner(Long currentUserId) {
-        User currentUser = userRepository.findById(currentUserId);
-        if (currentUser == null) {
-            throw new IllegalArgumentException("Can't load current user details from DB. Please check!");
+    /**
+     * Takes a reference to a stored blob, registering it on first use.
+     */
+    private void addReference(Blob blob) {
+        if (blobRepository.incrementRefCount(blob.getHash()) == 0) {
+            blobRepository.save(blob);
         }
-        return currentUser;
+    }
+
+    private FileItem saveFileItem(String name, BlobStat blob, User owner) {
+        return saveFileItem(name, new Blob(blob.getKey(), blob.getSize()), blob, owner);
+    }
+
+    private FileItem saveFileItem(String name, Blob blob, BlobStat stored, User owner) {
+        return fileRepository.save(newFileItem(name, blob, stored, owner));
+    }
+
+    /**
+     * @param stored data of the blob in the blob store, encoded or not
+     * @return a file referencing the blob, not saved yet
+     */
+    private FileItem newFileItem(String name, Blob blob, BlobStat stored, User owner) {
+        quotas.reserve(owner, blob.getSize());
+        Long ownerId = owner.getId();
+        afterRollback(() -> quotas.release(ownerId, blob.getSize()));
+        if (blob.getChecksum() == null) {
+            blob.setChecksum(stored.getChecksum());
+        }
+        addReference(blob);
+        FileItem fileItem = new FileItem();
+        fileItem.setName(name);
+        fileItem.setFsPath(stored.getLocation());
+        fileItem.setHash(blob.getHash());
+        fileItem.setOwner(owner);
+        String username = owner.getUsername();
+        afterCommit(() -> metrics.received(username, blob.getSize()));
+        return fileItem;
     }
 
     @Override
+    @Timed(value = METRIC, extraTags = {"operation", "store"}, histogram = true)
     @Transactional
     public FileItem store(MultipartFile multipart) {
+        quotas.check(getOwner(), multipart.getSize());
+        try (InputStream content = multipart.getInputStream()) {
+            return store(multipart.getOriginalFilename(), content);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't store file", e);
+        }
+    }
+
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "store"}, histogram = true)
+    @Transactional
+    public FileItem store(String fileName, InputStream content) {
         try {
-            String fileName = UUID.randomUUID().toString(),
-                    fullFilePath = getFullPathForStore(),
-                    fullFileName = fullFilePath + File.separator + fileName;
+            User currentUser = getOwner();
+            if (compression && CompressionPolicy.isCompressible(fileName)) {
+                return storeCompressed(fileName, content, currentUser);
+            }
+            return saveFileItem(fileName, settleOnCompletion(blobStore.put(content)), currentUser);
+        } catch (IllegalStateException | IOException e) {
+            throw new RuntimeException("Can't store file", e);
+        }
+    }
 
-            User currentUser = getOwner(getCurrentUser().getUserId());
-            File folder = new File(fullFilePath);
-            if (!folder.exists() && !folder.mkdirs()) {
-                throw new IllegalArgumentException("Can't create folder for storing user files. Path: " + fullFilePath);
+    @Override
+    public Path newStagedFile() {
+        return createTempFile().toPath();
+    }
+
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "store"}, histogram = true)
+    @Transactional
+    public FileItem store(String fileName, Path stagedFile) {
+        try {
+            User currentUser = getOwner();
+            if (compression && CompressionPolicy.isCompressible(fileName)) {
+                try (InputStream content = Files.newInputStream(stagedFile)) {
+                    return storeCompressed(fileName, content, currentUser);
+                } finally {
+                    Files.deleteIfExists(stagedFile);
+                }
             }
+            return saveFileItem(fileName, settleOnCompletion(blobStore.put(stagedFile)), currentUser);
+        } catch (IllegalStateException | IOException e) {
+            throw new RuntimeException("Can't store file", e);
+        }
+    }
+
+    private FileItem storeCompressed(String fileName, InputStream content, User owner) throws IOException {
+        Path staged = createTempFile().toPath();
+        try {
+            StoredBlob stored = storeEncoded(BlobCodec.gzip(content, staged), staged);
+            return saveFileItem(fileName, stored.getBlob(), stored.getStat(), owner);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
 
-            FileItem fileItem = new FileItem();
-            File file = new File(fullFileName);
-            File dir = file.getParentFile();
-            if (dir.mkdirs()) {
-                log.info("Create directory \"{}\"", dir.getAbsolutePath());
+    /**
+     * Stores the gzipped content if that saves enough space ({@link CompressionPolicy#MAX_RATIO}) and as is
+     * otherwise. Content that is already stored keeps its stored representation.
+     *
+     * @param staged gzipped content, left in place when it isn't stored
+     */
+    private StoredBlob storeEncoded(BlobCodec.Encoded encoded, Path staged) throws IOException {
+        Optional<Blob> existing = blobRepository.findById(encoded.getHash());
+        if (existing.isPresent()) {
+            BlobStat stored = blobStore.stat(existing.get().getStoreKey());
+            if (stored == null) {
+                throw new IllegalStateException("Blob " + encoded.getHash() + " is missing in the blob store");
             }
+            return new StoredBlob(existing.get(), stored);
+        }
+        if (CompressionPolicy.isWorthKeeping(encoded.getSize(), encoded.getEncodedSize())) {
+            BlobStat stored = settleOnCompletion(blobStore.put(staged));
+            return new StoredBlob(new Blob(encoded.getHash(), encoded.getSize(), BlobCodec.GZIP, stored.getKey()),
+                    stored);
+        }
+        try (InputStream decoded = BlobCodec.decode(BlobCodec.GZIP, Files.newInputStream(staged))) {
+            BlobStat stored = settleOnCompletion(blobStore.put(decoded));
+            return new StoredBlob(new Blob(stored.getKey(), stored.getSize()), stored);
+        }
+    }
 
-            multipart.transferTo(file);
-            fileItem.setName(multipart.getOriginalFilename());
-            fileItem.setFsPath(fullFileName);
-            fileItem.setOwner(currentUser);
-            return fileRepository.save(fileItem);
+    @lombok.Value
+    private static class StoredBlob {
+        private Blob blob;
+        private BlobStat stat;
+    }
+
+    /**
+     * Content of a batch file written by {@link #stage(MultipartFile)}: either stored as is or gzipped into a staged
+     * file that still has to be stored.
+     */
+    @lombok.Value
+    private static class StagedUpload {
+        private String fileName;
+        private BlobStat stored;
+        private BlobCodec.Encoded encoded;
+        private Path staged;
+    }
+
+    /**
+     * Writes the content of the files concurrently on the store executor ({@code file_store.io.store.*}), then
+     * registers their blobs and saves the files in one batch on the calling thread, within its transaction. If any
+     * file fails, the blobs written for the others are settled as rolled back together with the transaction.
+     */
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "storeAll"}, histogram = true)
+    @Transactional
+    public List<FileItem> storeAll(List<MultipartFile> multiparts) {
+        User currentUser = getOwner();
+        quotas.check(currentUser, multiparts.stream().mapToLong(MultipartFile::getSize).sum());
+        List<CompletableFuture<StagedUpload>> writes = multiparts.stream()
+                .map(multipart -> CompletableFuture.supplyAsync(() -> stage(multipart), storeExecutor))
+                .collect(Collectors.toList());
+        List<StagedUpload> uploads = new ArrayList<>(writes.size());
+        Throwable failure = null;
+        for (CompletableFuture<StagedUpload> write : writes) {
+            try {
+                uploads.add(write.join());
+            } catch (CompletionException e) {
+                failure = failure == null ? e.getCause() : failure;
+            }
+        }
+        try {
+            for (StagedUpload upload : uploads) {
+                if (upload.getStored() != null) {
+                    settleOnCompletion(upload.getStored());
+                }
+            }
+            if (failure != null) {
+                throw new RuntimeException("Can't store file", failure);
+            }
+            List<FileItem> fileItems = new ArrayList<>(uploads.size());
+            for (StagedUpload upload : uploads) {
+                StoredBlob stored = upload.getStored() != null
+                        ? new StoredBlob(new Blob(upload.getStored().getKey(), upload.getStored().getSize()),
+                        upload.getStored())
+                        : storeEncoded(upload.getEncoded(), upload.getStaged());
+                fileItems.add(newFileItem(upload.getFileName(), stored.getBlob(), stored.getStat(), currentUser));
+            }
+            return fileRepository.saveAll(fileItems);
         } catch (IllegalStateException | IOException e) {
             throw new RuntimeException("Can't store file", e);
+        } finally {
+            for (StagedUpload upload : uploads) {
+                deleteStaged(upload.getStaged());
+            }
+        }
+    }
+
+    /**
+     * Runs on the store executor, so it must not touch the DB.
+     */
+    private StagedUpload stage(MultipartFile multipart) {
+        String fileName = multipart.getOriginalFilename();
+        try (InputStream content = multipart.getInputStream()) {
+            if (!compression || !CompressionPolicy.isCompressible(fileName)) {
+                return new StagedUpload(fileName, blobStore.put(content), null, null);
+            }
+            Path staged = createTempFile().toPath();
+            try {
+                return new StagedUpload(fileName, null, BlobCodec.gzip(content, staged), staged);
+            } catch (IOException | RuntimeException e) {
+                deleteStaged(staged);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteStaged(Path staged) {
+        if (staged == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(staged);
+        } catch (IOException e) {
+            log.warn("Can't remove staged file \"{}\"", staged, e);
         }
     }
 
     @Override
+    @Timed(value = METRIC, extraTags = {"operation", "loadAll"}, histogram = true)
     @Transactional
     public List<FileItem> loadAll() {
-        return fileRepository.findAllByOwner(getOwner(getCurrentUser().getUserId()));
+        return fileRepository.findAllByOwner(getOwner());
     }
 
     @Override
-    public FileItem load(Long fileId) {
-        User currentUser = getOwner(getCurrentUser().getUserId());
+    @Timed(value = METRIC, extraTags = {"operation", "loadPage"}, histogram = true)
+    public List<FileItemDTO> loadPage(Long afterId, int limit) {
+        return fileRepository.findPageByOwnerId(getCurrentUser().getUserId(),
+                afterId == null ? Long.MIN_VALUE : afterId, PageRequest.of(0, limit));
+    }
 
-        Optional<FileItem> fileItem = fileRepository.findById(fileId);
-        if (!fileItem.isPresent()) {
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "load"}, histogram = true)
+    @Transactional
+    public FileItem load(Long fileId) {
+        Long userId = getCurrentUser().getUserId();
+        FileItem fileItem = fileItemCache.get(fileId, fileRepository::findById);
+        if (fileItem == null) {
             throw new IllegalArgumentException("Can't found requested file. Please check!");
         }
-        if (!fileItem.get().getOwner().equals(currentUser)) {
+        if (!fileItem.getOwner().getId().equals(userId) && !fileAccessCache.isSharedWith(fileId, userId)) {
             throw new AccessDeniedException("You haven't access to this file. Please try another one");
         }
-        return fileItem.get();
+        if (fileItem.getHash() == null) {
+            adoptLegacyFile(fileItem);
+        } else {
+            accessTracker.read(fileItem.getBlob());
+        }
+        return fileItem;
+    }
+
+    /**
+     * @throws IllegalArgumentException - if file didn't exists AccessDeniedException - if current logged user isn't
+     *                                  the owner
+     */
+    private void checkOwner(Long fileId) {
+        if (!fileRepository.existsByIdAndOwnerId(fileId, getCurrentUser().getUserId())) {
+            throw accessError(fileId);
+        }
+    }
+
+    private RuntimeException accessError(Long fileId) {
+        if (!fileRepository.existsById(fileId)) {
+            return new IllegalArgumentException("Can't found requested file. Please check!");
+        }
+        return new AccessDeniedException("You haven't access to this file. Please try another one");
+    }
+
+    private User findUser(String username) {
+        User user = userRepository.findByUsername(username);
+        if (user == null) {
+            throw new IllegalArgumentException("Can't found user with name: " + username);
+        }
+        return user;
+    }
+
+    /**
+     * The blob keeps its row with one reference less, the collector removes it once the count drops to zero.
+     */
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "delete"}, histogram = true)
+    @Transactional
+    public void delete(Long fileId) {
+        FileItem fileItem = fileRepository.findByIdAndOwnerId(fileId, getCurrentUser().getUserId())
+                .orElseThrow(() -> accessError(fileId));
+        fileShareRepository.deleteByFileId(fileId);
+        fileRepository.delete(fileItem);
+        if (fileItem.getHash() != null) {
+            blobRepository.decrementRefCount(fileItem.getHash());
+        }
+        Long ownerId = getCurrentUser().getUserId();
+        long size = fileItem.getBlob() != null ? fileItem.getBlob().getSize() : 0;
+        afterCommit(() -> {
+            fileAccessCache.evict(fileId);
+            fileItemCache.evict(fileId);
+            quotas.release(ownerId, size);
+        });
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private static void afterRollback(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    action.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Not transactional: the access cache is evicted only after the share is committed, so that it can't be
+     * reloaded with the old shares.
+     */
+    @Override
+    public void share(Long fileId, String username) {
+        checkOwner(fileId);
+        User user = findUser(username);
+        if (user.getId().equals(getCurrentUser().getUserId())) {
+            throw new IllegalStateException("File can't be shared with its owner");
+        }
+        if (!fileShareRepository.existsByFileIdAndUserId(fileId, user.getId())) {
+            try {
+                fileShareRepository.save(new FileShare(fileId, user.getId()));
+            } catch (DataIntegrityViolationException e) {
+                log.debug("File {} is already shared with {}", fileId, username);
+            }
+        }
+        fileAccessCache.evict(fileId);
+    }
+
+    @Override
+    public void revokeShare(Long fileId, String username) {
+        checkOwner(fileId);
+        fileShareRepository.deleteByFileIdAndUserId(fileId, findUser(username).getId());
+        fileAccessCache.evict(fileId);
+    }
+
+    @Override
+    public List<String> loadShares(Long fileId) {
+        checkOwner(fileId);
+        return fileShareRepository.findUsernamesByFileId(fileId);
+    }
+
+    @Override
+    public List<FileItemDTO> loadSharedPage(Long afterId, int limit) {
+        return fileShareRepository.findPageByUserId(getCurrentUser().getUserId(),
+                afterId == null ? Long.MIN_VALUE : afterId, PageRequest.of(0, limit));
+    }
+
+    @Override
+    @Transactional
+    public boolean adoptLegacyFile(Long fileId) {
+        Optional<FileItem> fileItem = fileRepository.findById(fileId);
+        return fileItem.isPresent() && fileItem.get().getHash() == null && adoptLegacyFile(fileItem.get());
+    }
+
+    /**
+     * Files stored before the blob store existed only have a local {@code fsPath}; they are moved into the blob
+     * store on first access or by the {@link StoreMigrator}. The blob store takes a link to the file, and the file
+     * itself is removed once the row is committed: if two transactions adopt the file at once, the row version
+     * rolls one of them back and the file is still there for the other one.
+     *
+     * @return {@code false} if there is no such file
+     */
+    private boolean adoptLegacyFile(FileItem fileItem) {
+        if (fileItem.getFsPath() == null || !Files.isRegularFile(Paths.get(fileItem.getFsPath()))) {
+            return false;
+        }
+        Path legacyFile = Paths.get(fileItem.getFsPath());
+        try {
+            BlobStat stored = settleOnCompletion(putLinked(legacyFile));
+            Blob blob = new Blob(stored.getKey(), stored.getSize());
+            blob.setChecksum(stored.getChecksum());
+            addReference(blob);
+            fileItem.setFsPath(stored.getLocation());
+            fileItem.setHash(stored.getKey());
+            fileRepository.save(fileItem);
+            afterCommit(() -> {
+                try {
+                    Files.deleteIfExists(legacyFile);
+                } catch (IOException e) {
+                    log.warn("Can't remove legacy file \"{}\"", legacyFile, e);
+                }
+            });
+            log.info("Move legacy file {} into the blob store", fileItem.getId());
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Can't move legacy file into the blob store", e);
+        }
+    }
+
+    /**
+     * The cold copy is written within the transaction and the hot one is removed once the row is committed, so the
+     * blob stays readable all along. Content stored as is gets gzipped on the way, which changes its key: the files
+     * of the blob are evicted from the file cache before and after the hot copy is removed, so that no cached copy
+     * keeps pointing to it.
+     */
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "demote"}, histogram = true)
+    @Transactional
+    public boolean demoteBlob(String hash) {
+        Optional<Blob> found = blobRepository.findById(hash);
+        if (!found.isPresent() || found.get().getTier() != StorageTier.HOT) {
+            return false;
+        }
+        Blob blob = found.get();
+        String hotKey = blob.getStoreKey();
+        try {
+            BlobStat stored = blob.getEncoding() != null ? copyTo(hotKey, StorageTier.COLD) : putColdEncoded(blob);
+            blob.setChecksum(stored.getChecksum());
+            blob.setTier(StorageTier.COLD);
+            blobRepository.save(blob);
+            fileRepository.updateFsPath(stored.getKey(), stored.getLocation());
+        } catch (IOException e) {
+            throw new RuntimeException("Can't demote blob " + hash, e);
+        }
+        afterCommit(() -> {
+            fileItemCache.evictBlob(hash);
+            deleteFromTier(hotKey, StorageTier.HOT);
+            fileItemCache.evictBlob(hash);
+        });
+        return true;
+    }
+
+    /**
+     * Gzips the content of a blob stored as is into the cold tier if that saves enough space, and copies it as is
+     * otherwise. The content is checked against its hash on the way.
+     */
+    private BlobStat putColdEncoded(Blob blob) throws IOException {
+        Path staged = createTempFile().toPath();
+        try {
+            BlobCodec.Encoded encoded;
+            try (InputStream content = Channels.newInputStream(blobStore.open(blob.getHash()))) {
+                encoded = BlobCodec.gzip(content, staged);
+            }
+            if (!encoded.getHash().equals(blob.getHash())) {
+                throw new IllegalStateException("Blob " + blob.getHash() + " is corrupted, its content hashes to "
+                        + encoded.getHash());
+            }
+            if (!CompressionPolicy.isWorthKeeping(encoded.getSize(), encoded.getEncodedSize())) {
+                return copyTo(blob.getHash(), StorageTier.COLD);
+            }
+            BlobStat stored = settleOnCompletion(blobStore.put(staged, StorageTier.COLD));
+            blob.setEncoding(BlobCodec.GZIP);
+            blob.setEncodedKey(stored.getKey());
+            return stored;
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    /**
+     * The blob keeps its stored representation and so its key; the cold copy is removed once the row is committed.
+     */
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "promote"}, histogram = true)
+    @Transactional
+    public boolean promoteBlob(String hash) {
+        Optional<Blob> found = blobRepository.findById(hash);
+        if (!found.isPresent() || found.get().getTier() != StorageTier.COLD) {
+            return false;
+        }
+        Blob blob = found.get();
+        String key = blob.getStoreKey();
+        try {
+            BlobStat stored = copyTo(key, StorageTier.HOT);
+            blob.setChecksum(stored.getChecksum());
+            blob.setTier(StorageTier.HOT);
+            blob.setLastAccess(Instant.now());
+            blobRepository.save(blob);
+            fileRepository.updateFsPath(key, stored.getLocation());
+        } catch (IOException e) {
+            throw new RuntimeException("Can't promote blob " + hash, e);
+        }
+        afterCommit(() -> {
+            fileItemCache.evictBlob(hash);
+            deleteFromTier(key, StorageTier.COLD);
+        });
+        return true;
+    }
+
+    private BlobStat copyTo(String key, StorageTier tier) throws IOException {
+        try (InputStream content = Channels.newInputStream(blobStore.open(key))) {
+            return settleOnCompletion(blobStore.put(content, tier));
+        }
+    }
+
+    private void deleteFromTier(String key, StorageTier tier) {
+        try {
+            blobStore.delete(key, tier);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't remove blob {} from the {} tier", key, tier, e);
+        }
+    }
+
+    /**
+     * Stores the file through a hard link in the temp folder, or a copy where links aren't supported, so that the
+     * file itself stays in place.
+     */
+    private BlobStat putLinked(Path file) throws IOException {
+        Path staged = createTempFile().toPath();
+        try {
+            try {
+                Files.createLink(staged, file);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(file, staged);
+            }
+            return blobStore.put(staged);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    /**
+     * Stores a copy of the file taken in the temp folder: a link would leave the stored blob writable through the file.
+     */
+    private BlobStat putCopy(Path file) throws IOException {
+        Path staged = createTempFile().toPath();
+        try {
+            Files.copy(file, staged);
+            return blobStore.put(staged);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    @Override
+    @Transactional
+    public UploadSession createUpload(String fileName, long size) {
+        if (size < 0) {
+            throw new IllegalStateException("File size can't be negative: " + size);
+        }
+        User currentUser = getOwner();
+        quotas.check(currentUser, size);
+        try {
+            File file = createTempFile();
+            try (RandomAccessFile target = new RandomAccessFile(file, "rw")) {
+                target.setLength(size);
+            }
+
+            UploadSession upload = new UploadSession();
+            upload.setId(UUID.randomUUID().toString());
+            upload.setName(fileName);
+            upload.setSize(size);
+            upload.setChunkSize(chunkSize);
+            upload.setFsPath(file.getPath());
+            upload.setOwner(currentUser);
+            return uploadSessionRepository.save(upload);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't create upload", e);
+        }
+    }
+
+    @Override
+    public UploadSession loadUpload(String uploadId) {
+        Optional<UploadSession> upload = uploadSessionRepository.findById(uploadId);
+        if (!upload.isPresent()) {
+            throw new IllegalArgumentException("Can't found requested upload. Please check!");
+        }
+        if (!upload.get().getOwner().getId().equals(getCurrentUser().getUserId())) {
+            throw new AccessDeniedException("You haven't access to this upload. Please try another one");
+        }
+        return upload.get();
+    }
+
+    @Override
+    public List<Integer> loadReceivedChunks(UploadSession upload) {
+        return uploadChunkRepository.findAllByUploadIdOrderByChunkIndex(upload.getId()).stream()
+                .map(UploadChunk::getChunkIndex)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Not transactional: a chunk sent again while the first send is still stored is written twice and found stored
+     * once, which a transaction would roll back on the unique key.
+     */
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "storeChunk"}, histogram = true)
+    public void storeChunk(String uploadId, long offset, InputStream content) {
+        UploadSession upload = loadUpload(uploadId);
+        if (offset < 0 || offset % upload.getChunkSize() != 0 || offset >= upload.getSize()) {
+            throw new IllegalStateException("Chunk offset " + offset + " isn't aligned to the chunk size "
+                    + upload.getChunkSize() + " or is out of file size " + upload.getSize());
+        }
+        int chunkIndex = (int) (offset / upload.getChunkSize());
+        long chunkLength = Math.min(upload.getChunkSize(), upload.getSize() - offset);
+
+        try (FileChannel target = FileChannel.open(new File(upload.getFsPath()).toPath(), StandardOpenOption.WRITE)) {
+            long written = BlobIO.copy(content, target, offset, chunkLength, null);
+            if (written != chunkLength) {
+                throw new IllegalStateException("Chunk " + chunkIndex + " is incomplete: expected " + chunkLength
+                        + " bytes, but received " + written);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't store chunk", e);
+        }
+        if (!uploadChunkRepository.existsByUploadIdAndChunkIndex(uploadId, chunkIndex)) {
+            try {
+                uploadChunkRepository.save(new UploadChunk(uploadId, chunkIndex));
+            } catch (DataIntegrityViolationException e) {
+                log.debug("Chunk {} of upload {} is already stored", chunkIndex, uploadId);
+            }
+        }
+    }
+
+    @Override
+    @Timed(value = METRIC, extraTags = {"operation", "commitUpload"}, histogram = true)
+    @Transactional
+    public FileItem commitUpload(String uploadId) {
+        UploadSession upload = loadUpload(uploadId);
+        long received = uploadChunkRepository.countByUploadId(uploadId);
+        if (received != upload.getChunkCount()) {
+            throw new IllegalStateException("Upload isn't complete: received " + received + " of "
+                    + upload.getChunkCount() + " chunks");
+        }
+        quotas.check(upload.getOwner(), upload.getSize());
+        // the received chunks stay in place until the upload is gone, so that a failed commit can be retried; they
+        // are copied, a chunk that is sent late must not reach the stored blob
+        FileItem fileItem;
+        Path staged = Paths.get(upload.getFsPath());
+        try {
+            if (compression && CompressionPolicy.isCompressible(upload.getName())) {
+                try (InputStream content = Files.newInputStream(staged)) {
+                    fileItem = storeCompressed(upload.getName(), content, upload.getOwner());
+                }
+            } else {
+                fileItem = saveFileItem(upload.getName(), settleOnCompletion(putCopy(staged)), upload.getOwner());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't store file", e);
+        }
+        uploadChunkRepository.deleteAllByUploadId(uploadId);
+        uploadSessionRepository.delete(upload);
+        afterCommit(() -> {
+            try {
+                Files.deleteIfExists(staged);
+            } catch (IOException e) {
+                log.warn("Can't remove upload file \"{}\"", staged, e);
+            }
+        });
+        return fileItem;
     }
 }
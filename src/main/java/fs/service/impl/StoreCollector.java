@@ -0,0 +1,284 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.dao.FileRepository;
+import fs.domain.Blob;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Garbage collector of the file store. A cycle walks, one batch per {@code interval}:
+ * <ol>
+ * <li>the blob rows no file references any more, removing the rows and their blobs;</li>
+ * <li>the blob store, removing blobs without a row (left by writes that failed before the journal existed, or by
+ * stores without one);</li>
+ * <li>the segments of packed blobs, compacting one segment with too much garbage per batch;</li>
+ * <li>the per-user folders of files stored before the blob store, removing files no row refers to.</li>
+ * </ol>
+ * Every batch runs its own short queries, so neither a folder tree nor a table is read at once. Files younger than
+ * the grace period are left alone, as their rows may not be committed yet.
+ */
+@Log4j2
+@Component
+@ManagedResource(objectName = "fs:type=StoreCollector", description = "Garbage collector of the file store")
+public class StoreCollector extends BatchWorker {
+    private static final Pattern LEGACY_FOLDER = Pattern.compile("\\d+");
+
+    enum Pass {
+        BLOBS, STORE, SEGMENTS, LEGACY
+    }
+
+    private final BlobRepository blobRepository;
+    private final FileRepository fileRepository;
+    private final BlobStore blobStore;
+    private final String storePath;
+    private final Duration gracePeriod;
+
+    private volatile Pass pass = Pass.BLOBS;
+    private volatile long lastCycleEnd;
+    private final AtomicLong cycles = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong deletedBlobs = new AtomicLong();
+    private final AtomicLong deletedOrphans = new AtomicLong();
+    private final AtomicLong compactedSegments = new AtomicLong();
+    private final AtomicLong freedBytes = new AtomicLong();
+
+    public StoreCollector(BlobRepository blobRepository, FileRepository fileRepository, BlobStore blobStore,
+                          @Value("${file_store.path.root}") String storePath,
+                          @Value("${file_store.gc.enabled:false}") boolean enabled,
+                          @Value("${file_store.gc.batch-size:500}") int batchSize,
+                          @Value("${file_store.gc.interval:1s}") Duration interval,
+                          @Value("${file_store.gc.grace-period:1h}") Duration gracePeriod) {
+        super("store-gc", 1, enabled, batchSize, interval);
+        this.blobRepository = blobRepository;
+        this.fileRepository = fileRepository;
+        this.blobStore = blobStore;
+        this.storePath = storePath;
+        this.gracePeriod = gracePeriod;
+    }
+
+    @Override
+    protected void scheduled(ScheduledExecutorService scheduler) {
+        log.info("Collect the file store garbage by {} items every {}", getBatchSize(), getInterval());
+    }
+
+    @Override
+    protected String process(String after) throws IOException {
+        switch (pass) {
+            case BLOBS:
+                return collectBlobs(after);
+            case STORE:
+                return collectStore(after);
+            case SEGMENTS:
+                return compactSegments(after);
+            default:
+                return collectLegacy(after);
+        }
+    }
+
+    /**
+     * @return {@code true} once the last pass completed a cycle
+     */
+    @Override
+    protected boolean endPass() {
+        if (pass != Pass.LEGACY) {
+            pass = Pass.values()[pass.ordinal() + 1];
+            return false;
+        }
+        pass = Pass.BLOBS;
+        cycles.incrementAndGet();
+        lastCycleEnd = System.currentTimeMillis();
+        log.debug("File store collection cycle is done: {} blobs and {} orphans removed so far",
+                deletedBlobs.get(), deletedOrphans.get());
+        return true;
+    }
+
+    /**
+     * @return cursor for the next batch, {@code null} when the pass is done
+     */
+    private String collectBlobs(String afterHash) throws IOException {
+        List<Blob> blobs = blobRepository.findUnreferenced(afterHash == null ? "" : afterHash,
+                PageRequest.of(0, getBatchSize()));
+        for (Blob blob : blobs) {
+            scanned.incrementAndGet();
+            // the row goes first: a new write of the content then registers it again, and the store keeps the blob
+            // of a write in progress
+            if (blobRepository.deleteUnreferenced(blob.getHash()) > 0) {
+                BlobStat stored = blobStore.stat(blob.getStoreKey());
+                if (stored != null && blobStore.deleteUnreferenced(stored.getKey(), blobRepository::isStoredUnder)) {
+                    deletedBlobs.incrementAndGet();
+                    freedBytes.addAndGet(stored.getSize());
+                }
+            }
+        }
+        return blobs.size() < getBatchSize() ? null : blobs.get(blobs.size() - 1).getHash();
+    }
+
+    private String collectStore(String afterKey) throws IOException {
+        List<String> keys = blobStore.list(afterKey, getBatchSize());
+        if (keys.isEmpty()) {
+            return null;
+        }
+        Set<String> referenced = new HashSet<>(blobRepository.findStoreKeysIn(keys));
+        long horizon = System.currentTimeMillis() - gracePeriod.toMillis();
+        for (String key : keys) {
+            scanned.incrementAndGet();
+            if (!referenced.contains(key)) {
+                BlobStat stored = blobStore.stat(key);
+                if (stored != null && stored.getLastModified() <= horizon
+                        && blobStore.deleteUnreferenced(key, blobRepository::isStoredUnder)) {
+                    log.info("Remove orphan blob {}", key);
+                    deletedOrphans.incrementAndGet();
+                    freedBytes.addAndGet(stored.getSize());
+                }
+            }
+        }
+        return keys.size() < getBatchSize() ? null : keys.get(keys.size() - 1);
+    }
+
+    /**
+     * @return number of segments compacted by the pass, {@code null} when there is nothing left worth compacting
+     */
+    private String compactSegments(String compacted) throws IOException {
+        long reclaimed = blobStore.compact();
+        if (reclaimed == 0) {
+            return null;
+        }
+        freedBytes.addAndGet(reclaimed);
+        compactedSegments.incrementAndGet();
+        return String.valueOf(compacted == null ? 1 : Long.parseLong(compacted) + 1);
+    }
+
+    /**
+     * Legacy files are {@code <root>/<user id>/<name>}, referred to by the {@code fsPath} of their rows until they
+     * are moved into the blob store. The cursor is {@code <user id>/<name>}.
+     */
+    private String collectLegacy(String after) throws IOException {
+        Path root = Paths.get(storePath);
+        String afterFolder = after == null ? "" : after.substring(0, after.indexOf('/'));
+        String afterName = after == null ? "" : after.substring(after.indexOf('/') + 1);
+        List<String> batch = new ArrayList<>(getBatchSize());
+        for (String folder : names(root, afterFolder, true)) {
+            for (String name : names(root.resolve(folder), folder.equals(afterFolder) ? afterName : "", false)) {
+                batch.add(folder + "/" + name);
+                if (batch.size() == getBatchSize()) {
+                    collectLegacy(batch);
+                    return batch.get(batch.size() - 1);
+                }
+            }
+        }
+        collectLegacy(batch);
+        return null;
+    }
+
+    private void collectLegacy(List<String> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> paths = new ArrayList<>(batch.size());
+        for (String item : batch) {
+            // the same string the rows were saved with
+            paths.add(storePath + File.separator + item.replace("/", File.separator));
+        }
+        Set<String> referenced = new HashSet<>(fileRepository.findFsPathsIn(paths));
+        long horizon = System.currentTimeMillis() - gracePeriod.toMillis();
+        for (String path : paths) {
+            scanned.incrementAndGet();
+            Path file = Paths.get(path);
+            if (!referenced.contains(path) && Files.isRegularFile(file)
+                    && Files.getLastModifiedTime(file).toMillis() <= horizon) {
+                long size = Files.size(file);
+                if (Files.deleteIfExists(file)) {
+                    log.info("Remove orphan file \"{}\"", path);
+                    deletedOrphans.incrementAndGet();
+                    freedBytes.addAndGet(size);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param folders user folders or files of a user folder
+     * @return sorted entry names after {@code after}, or from it for folders, as the cursor folder isn't done yet
+     */
+    private static List<String> names(Path folder, String after, boolean folders) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return names;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                int order = name.compareTo(after);
+                if (folders ? order >= 0 && LEGACY_FOLDER.matcher(name).matches() && Files.isDirectory(entry)
+                        : order > 0 && Files.isRegularFile(entry)) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @ManagedAttribute(description = "Pass of the current cycle: BLOBS, STORE, SEGMENTS or LEGACY")
+    public String getPass() {
+        return pass.name();
+    }
+
+    @ManagedAttribute(description = "Completed cycles")
+    public long getCycles() {
+        return cycles.get();
+    }
+
+    @ManagedAttribute(description = "End time of the last completed cycle, epoch millis")
+    public long getLastCycleEnd() {
+        return lastCycleEnd;
+    }
+
+    @ManagedAttribute(description = "Rows, blobs and files checked")
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    @ManagedAttribute(description = "Blobs removed after their last file was deleted")
+    public long getDeletedBlobs() {
+        return deletedBlobs.get();
+    }
+
+    @ManagedAttribute(description = "Blobs and legacy files removed as no row referred to them")
+    public long getDeletedOrphans() {
+        return deletedOrphans.get();
+    }
+
+    @ManagedAttribute(description = "Segments of packed blobs compacted")
+    public long getCompactedSegments() {
+        return compactedSegments.get();
+    }
+
+    @ManagedAttribute(description = "Bytes freed in the store")
+    public long getFreedBytes() {
+        return freedBytes.get();
+    }
+}
@@ -0,0 +1,150 @@
+package fs.service.impl;
+
+import fs.dao.FileRepository;
+import fs.service.StorageService;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Online migration of the file store, one batch per {@code interval} while the application serves requests:
+ * <ol>
+ * <li>files stored in the flat per-user folders before the blob store are moved into its sharded layout;</li>
+ * <li>blobs kept in a previous layout after {@code file_store.layout.shard-levels} changed are moved into the
+ * current one, and the {@code fsPath} of their files is rewritten.</li>
+ * </ol>
+ * Every file is adopted in its own transaction, so an interrupted migration goes on where it stopped after a
+ * restart. It stops once a cycle finds nothing to move.
+ */
+@Log4j2
+@Component
+@ManagedResource(objectName = "fs:type=StoreMigrator", description = "Online migration of the file store")
+public class StoreMigrator extends BatchWorker {
+    enum Pass {
+        LEGACY, LAYOUT
+    }
+
+    private final StorageService storageService;
+    private final FileRepository fileRepository;
+    private final BlobStore blobStore;
+
+    private volatile Pass pass = Pass.LEGACY;
+    private volatile boolean done;
+    /**
+     * Files and blobs moved by the current cycle.
+     */
+    private long cycleMoved;
+    private final AtomicLong movedFiles = new AtomicLong();
+    private final AtomicLong movedBlobs = new AtomicLong();
+    private final AtomicLong rewrittenPaths = new AtomicLong();
+
+    public StoreMigrator(StorageService storageService, FileRepository fileRepository, BlobStore blobStore,
+                         @Value("${file_store.migration.enabled:false}") boolean enabled,
+                         @Value("${file_store.migration.batch-size:500}") int batchSize,
+                         @Value("${file_store.migration.interval:1s}") Duration interval) {
+        super("store-migration", 1, enabled, batchSize, interval);
+        this.storageService = storageService;
+        this.fileRepository = fileRepository;
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    protected void scheduled(ScheduledExecutorService scheduler) {
+        log.info("Migrate the file store by {} items every {}", getBatchSize(), getInterval());
+    }
+
+    @Override
+    protected String process(String after) throws IOException {
+        return pass == Pass.LEGACY ? migrateLegacy(after) : relayout(after);
+    }
+
+    /**
+     * @return {@code true} once a cycle found nothing to move
+     */
+    @Override
+    protected boolean endPass() {
+        if (pass == Pass.LEGACY) {
+            pass = Pass.LAYOUT;
+            return false;
+        }
+        pass = Pass.LEGACY;
+        done = cycleMoved == 0;
+        cycleMoved = 0;
+        if (done) {
+            log.info("File store migration is done: {} files and {} blobs moved", movedFiles.get(), movedBlobs.get());
+        }
+        return done;
+    }
+
+    /**
+     * A file that can't be moved is counted as an error and skipped, the next cycle tries it again.
+     *
+     * @return cursor for the next batch, {@code null} when the pass is done
+     */
+    private String migrateLegacy(String afterId) {
+        List<Long> ids = fileRepository.findLegacyIds(afterId == null ? Long.MIN_VALUE : Long.valueOf(afterId),
+                PageRequest.of(0, getBatchSize()));
+        for (Long id : ids) {
+            try {
+                if (storageService.adoptLegacyFile(id)) {
+                    movedFiles.incrementAndGet();
+                    cycleMoved++;
+                }
+            } catch (RuntimeException e) {
+                countError();
+                log.warn("Can't move legacy file {} into the blob store", id, e);
+            }
+        }
+        return ids.size() < getBatchSize() ? null : String.valueOf(ids.get(ids.size() - 1));
+    }
+
+    private String relayout(String afterKey) throws IOException {
+        List<String> keys = blobStore.relayout(afterKey, getBatchSize());
+        for (String key : keys) {
+            BlobStat moved = blobStore.stat(key);
+            if (moved != null) {
+                movedBlobs.incrementAndGet();
+                rewrittenPaths.addAndGet(fileRepository.updateFsPath(key, moved.getLocation()));
+            }
+        }
+        cycleMoved += keys.size();
+        return keys.size() < getBatchSize() ? null : keys.get(keys.size() - 1);
+    }
+
+    @ManagedAttribute(description = "Pass of the current cycle: LEGACY or LAYOUT")
+    public String getPass() {
+        return pass.name();
+    }
+
+    @Override
+    @ManagedAttribute(description = "Whether the migration is done")
+    public boolean isDone() {
+        return done;
+    }
+
+    @ManagedAttribute(description = "Legacy files moved into the blob store")
+    public long getMovedFiles() {
+        return movedFiles.get();
+    }
+
+    @ManagedAttribute(description = "Blobs moved into the current layout")
+    public long getMovedBlobs() {
+        return movedBlobs.get();
+    }
+
+    @ManagedAttribute(description = "File rows pointed to the new location of their blob")
+    public long getRewrittenPaths() {
+        return rewrittenPaths.get();
+    }
+}
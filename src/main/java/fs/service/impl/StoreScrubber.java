@@ -0,0 +1,216 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.domain.Blob;
+import fs.service.StorageMetrics;
+import fs.storage.BlobDigest;
+import fs.storage.BlobStore;
+import fs.storage.Crc32c;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the referenced blobs back in the background and checks their stored data, one batch per {@code interval} and
+ * at up to {@code rate} bytes per second, so that it leaves the disk to the downloads:
+ * <ul>
+ * <li>{@code crc32c} compares the CRC32C of the data with the one recorded when it was written;</li>
+ * <li>{@code sha-256} hashes the data as well, which has to match the key it's stored under.</li>
+ * </ul>
+ * Blobs stored before the checksums were kept are hashed either way, and their checksum is recorded once the hash
+ * matches. A corrupted or missing blob is logged, counted as {@code fs.integrity.failures} and left as it is: no other
+ * copy is known to be good. A blob that can't be read is counted as an error and skipped, the next pass tries it
+ * again.
+ */
+@Log4j2
+@Component
+@ManagedResource(objectName = "fs:type=StoreScrubber", description = "Checks the stored data of the blobs")
+public class StoreScrubber extends BatchWorker {
+    static final String CRC32C = "crc32c";
+    static final String SHA256 = "sha-256";
+    private static final String SCRUB = "scrub";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BlobStore blobStore;
+    private final BlobRepository blobRepository;
+    private final StorageMetrics metrics;
+    private final boolean hashing;
+    private final long rate;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private volatile String lastCorrupted;
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong scannedBytes = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+
+    /**
+     * @param algorithm {@code crc32c} or {@code sha-256}
+     * @param rate      bytes read per second
+     */
+    public StoreScrubber(BlobStore blobStore, BlobRepository blobRepository, StorageMetrics metrics,
+                         @Value("${file_store.integrity.scrub.enabled:false}") boolean enabled,
+                         @Value("${file_store.integrity.scrub.algorithm:crc32c}") String algorithm,
+                         @Value("${file_store.integrity.scrub.rate:16MB}") DataSize rate,
+                         @Value("${file_store.integrity.scrub.batch-size:100}") int batchSize,
+                         @Value("${file_store.integrity.scrub.interval:10s}") Duration interval) {
+        super("store-scrubber", 1, enabled, batchSize, interval);
+        if (!CRC32C.equals(algorithm) && !SHA256.equals(algorithm)) {
+            throw new IllegalArgumentException("Unknown scrub algorithm: " + algorithm);
+        }
+        if (rate.toBytes() < 1) {
+            throw new IllegalArgumentException("Scrub rate should be positive, but was: " + rate);
+        }
+        this.blobStore = blobStore;
+        this.blobRepository = blobRepository;
+        this.metrics = metrics;
+        this.hashing = SHA256.equals(algorithm);
+        this.rate = rate.toBytes();
+    }
+
+    @Override
+    protected void scheduled(ScheduledExecutorService scheduler) {
+        log.info("Check the blobs by {} every {} at {} bytes per second, {}", getBatchSize(), getInterval(), rate,
+                hashing ? SHA256 : CRC32C);
+    }
+
+    @Override
+    protected String process(String after) throws InterruptedException {
+        List<Blob> blobs = blobRepository.findReferenced(after == null ? "" : after,
+                PageRequest.of(0, getBatchSize()));
+        long started = System.nanoTime(), read = 0;
+        for (Blob blob : blobs) {
+            try {
+                read += check(blob, started, read);
+                scanned.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                countError();
+                log.warn("Can't check blob {}", blob.getHash(), e);
+            }
+        }
+        return blobs.size() < getBatchSize() ? null : blobs.get(blobs.size() - 1).getHash();
+    }
+
+    @Override
+    protected boolean endPass() {
+        passes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param started time the batch started at
+     * @param read    bytes the batch read before the blob
+     * @return bytes read
+     */
+    private long check(Blob blob, long started, long read) throws IOException, InterruptedException {
+        String key = blob.getStoreKey();
+        BlobDigest digest = hashing || blob.getChecksum() == null ? new BlobDigest() : null;
+        Crc32c crc = digest == null ? new Crc32c() : null;
+        long size = 0;
+        try (SeekableByteChannel content = blobStore.openStored(key)) {
+            buffer.clear();
+            while (content.read(buffer) >= 0) {
+                buffer.flip();
+                size += buffer.remaining();
+                if (digest != null) {
+                    digest.update(buffer);
+                } else {
+                    crc.update(buffer);
+                }
+                buffer.clear();
+                pace(started, read + size);
+            }
+        } catch (NoSuchFileException e) {
+            if (isUnchanged(blob)) {
+                report(blob, "Blob " + key + " is missing");
+            }
+            return size;
+        }
+        scannedBytes.addAndGet(size);
+        long checksum = digest != null ? digest.getChecksum() : crc.getValue();
+        if (digest != null && !digest.getKey().equals(key)) {
+            report(blob, "Blob " + key + " is corrupted: its content hashes to " + digest.getKey());
+        } else if (blob.getChecksum() != null && blob.getChecksum() != checksum) {
+            report(blob, String.format("Blob %s is corrupted: its CRC32C is %08x instead of %08x", key, checksum,
+                    blob.getChecksum()));
+        } else if (blob.getChecksum() == null
+                && blobRepository.updateMissingChecksum(blob.getHash(), key, checksum) > 0) {
+            recorded.incrementAndGet();
+        }
+        return size;
+    }
+
+    /**
+     * Sleeps as long as the batch is ahead of the rate.
+     */
+    private void pace(long started, long read) throws InterruptedException {
+        long ahead = (long) (read * 1e9 / rate) - (System.nanoTime() - started);
+        if (ahead > 0) {
+            TimeUnit.NANOSECONDS.sleep(ahead);
+        }
+    }
+
+    /**
+     * A blob moved to another tier since the batch was found is looked for where it was.
+     */
+    private boolean isUnchanged(Blob blob) {
+        Optional<Blob> current = blobRepository.findById(blob.getHash());
+        return current.isPresent() && current.get().getRefCount() > 0
+                && current.get().getStoreKey().equals(blob.getStoreKey())
+                && Objects.equals(current.get().getChecksum(), blob.getChecksum());
+    }
+
+    private void report(Blob blob, String message) {
+        log.error(message);
+        metrics.corrupted(SCRUB);
+        corrupted.incrementAndGet();
+        lastCorrupted = blob.getHash();
+    }
+
+    @ManagedAttribute(description = "Completed passes over the referenced blobs")
+    public long getPasses() {
+        return passes.get();
+    }
+
+    @ManagedAttribute(description = "Blobs checked")
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    @ManagedAttribute(description = "Bytes of stored data read")
+    public long getScannedBytes() {
+        return scannedBytes.get();
+    }
+
+    @ManagedAttribute(description = "Checksums recorded for blobs stored without one")
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    @ManagedAttribute(description = "Blobs found corrupted or missing")
+    public long getCorrupted() {
+        return corrupted.get();
+    }
+
+    @ManagedAttribute(description = "Hash of the last blob found corrupted or missing")
+    public String getLastCorrupted() {
+        return lastCorrupted;
+    }
+}
@@ -0,0 +1,121 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.service.StorageService;
+import fs.storage.StorageTier;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves blobs between the tiers of a {@link fs.storage.TieredBlobStore}, one batch per {@code interval}:
+ * <ol>
+ * <li>the reads tracked by the {@link BlobAccessTracker} are flushed as the last access of their blobs;</li>
+ * <li>the cold blobs that were read are promoted back into the hot tier;</li>
+ * <li>the next batch of hot blobs not read for {@code demote-after} is demoted into the cold tier.</li>
+ * </ol>
+ * Every blob is moved in its own transaction. A blob that can't be moved is counted as an error and skipped, the
+ * next pass tries it again.
+ */
+@Log4j2
+@Component
+@ManagedResource(objectName = "fs:type=StoreTiering", description = "Moves blobs between the storage tiers")
+public class StoreTiering extends BatchWorker {
+    private final StorageService storageService;
+    private final BlobRepository blobRepository;
+    private final BlobAccessTracker accessTracker;
+    private final Duration demoteAfter;
+
+    private final AtomicLong flushedReads = new AtomicLong();
+    private final AtomicLong demoted = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+
+    public StoreTiering(StorageService storageService, BlobRepository blobRepository,
+                        BlobAccessTracker accessTracker,
+                        @Value("${file_store.tiering.enabled:false}") boolean enabled,
+                        @Value("${file_store.tiering.demote-after:7d}") Duration demoteAfter,
+                        @Value("${file_store.tiering.batch-size:100}") int batchSize,
+                        @Value("${file_store.tiering.interval:10s}") Duration interval) {
+        super("store-tiering", 1, enabled, batchSize, interval);
+        this.storageService = storageService;
+        this.blobRepository = blobRepository;
+        this.accessTracker = accessTracker;
+        this.demoteAfter = demoteAfter;
+    }
+
+    @Override
+    protected void scheduled(ScheduledExecutorService scheduler) {
+        log.info("Demote the blobs not read for {} by {} every {}", demoteAfter, getBatchSize(), getInterval());
+    }
+
+    /**
+     * The reads are flushed and the cold blobs that were read are promoted first, so that a blob read since the
+     * previous batch isn't demoted.
+     */
+    @Override
+    protected String process(String after) {
+        Instant now = Instant.now();
+        try {
+            flushReads(now);
+        } catch (RuntimeException e) {
+            countError();
+            log.warn("Can't flush the reads of the blobs", e);
+        }
+        for (String hash : accessTracker.drainColdRead()) {
+            try {
+                if (storageService.promoteBlob(hash)) {
+                    promoted.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                countError();
+                log.warn("Can't promote blob {}", hash, e);
+            }
+        }
+        List<String> hashes = blobRepository.findIdleHashes(StorageTier.HOT, now.minus(demoteAfter),
+                after == null ? "" : after, PageRequest.of(0, getBatchSize()));
+        for (String hash : hashes) {
+            try {
+                if (storageService.demoteBlob(hash)) {
+                    demoted.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                countError();
+                log.warn("Can't demote blob {}", hash, e);
+            }
+        }
+        return hashes.size() < getBatchSize() ? null : hashes.get(hashes.size() - 1);
+    }
+
+    private void flushReads(Instant now) {
+        List<String> hashes = accessTracker.drainRead();
+        for (int from = 0; from < hashes.size(); from += getBatchSize()) {
+            List<String> batch = hashes.subList(from, Math.min(from + getBatchSize(), hashes.size()));
+            blobRepository.updateLastAccess(batch, now);
+            flushedReads.addAndGet(batch.size());
+        }
+    }
+
+    @ManagedAttribute(description = "Reads of blobs flushed as their last access")
+    public long getFlushedReads() {
+        return flushedReads.get();
+    }
+
+    @ManagedAttribute(description = "Blobs moved into the cold tier")
+    public long getDemoted() {
+        return demoted.get();
+    }
+
+    @ManagedAttribute(description = "Blobs moved back into the hot tier")
+    public long getPromoted() {
+        return promoted.get();
+    }
+}
@@ -2,6 +2,7 @@ package fs.service.impl;
 
 import fs.dao.UserRepository;
 import fs.domain.User;
+import org.springframework.security.core.userdetails.UserCache;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -10,17 +11,25 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserDetailsServiceImpl implements UserDetailsService {
     private final UserRepository userRepository;
+    private final UserCache userCache;
 
-    public UserDetailsServiceImpl(UserRepository userRepository) {
+    public UserDetailsServiceImpl(UserRepository userRepository, UserCache userCache) {
         this.userRepository = userRepository;
+        this.userCache = userCache;
     }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+        UserDetails userDetails = userCache.getUserFromCache(username);
+        if (userDetails != null) {
+            return userDetails;
+        }
         User user = userRepository.findByUsername(username);
         if (user == null) {
             throw new UsernameNotFoundException("Can't fount user with name: " + username);
         }
-        return new fs.security.UserDetails(user);
+        userDetails = new fs.security.UserDetails(user);
+        userCache.putUserInCache(userDetails);
+        return userDetails;
     }
 }
@@ -0,0 +1,79 @@
+package fs.storage;
+
+import lombok.Value;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content encodings of stored blobs. An encoded blob is keyed by the hash of its encoded bytes like any other blob;
+ * hash and size of the decoded content are up to the caller to keep.
+ */
+public final class BlobCodec {
+    /**
+     * Same name as the HTTP content coding, so encoded blobs can be served as is.
+     */
+    public static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BlobCodec() {
+    }
+
+    /**
+     * Gzips the stream into the file in one pass, hashing the decoded content on the way.
+     *
+     * @param content read until EOF, not closed by this method
+     */
+    public static Encoded gzip(InputStream content, Path target) throws IOException {
+        MessageDigest digest = BlobIO.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(target), BUFFER_SIZE)) {
+            int read;
+            while ((read = content.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        }
+        return new Encoded(BlobIO.toHex(digest.digest()), size, Files.size(target));
+    }
+
+    /**
+     * @param encoded closed together with the returned stream
+     */
+    public static InputStream decode(String encoding, InputStream encoded) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPInputStream(encoded, BUFFER_SIZE);
+        }
+        throw new IllegalArgumentException("Unsupported blob encoding: " + encoding);
+    }
+
+    /**
+     * Same as {@link #decode(String, InputStream)}, but closing the returned stream leaves {@code encoded} open.
+     */
+    static InputStream decodeShielded(String encoding, InputStream encoded) throws IOException {
+        return decode(encoding, new FilterInputStream(encoded) {
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Value
+    public static class Encoded {
+        /**
+         * SHA-256 of the decoded content.
+         */
+        private String hash;
+        private long size;
+        private long encodedSize;
+    }
+}
@@ -0,0 +1,44 @@
+package fs.storage;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Key and checksum of blob content, computed in the same pass over it: the SHA-256 the blob is stored under and the
+ * CRC32C that is cheap enough to verify the blob with whenever it's read.
+ */
+public final class BlobDigest {
+    private final MessageDigest hash = BlobIO.newDigest();
+    private final Crc32c checksum = new Crc32c();
+    private String key;
+
+    /**
+     * Takes the remaining bytes of the buffer, leaving its position at its limit.
+     */
+    public void update(ByteBuffer buffer) {
+        checksum.update(buffer.duplicate());
+        hash.update(buffer);
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        checksum.update(bytes, offset, length);
+        hash.update(bytes, offset, length);
+    }
+
+    /**
+     * @return SHA-256 of the content in hex; the digest takes no more content once it's asked for
+     */
+    public String getKey() {
+        if (key == null) {
+            key = BlobIO.toHex(hash.digest());
+        }
+        return key;
+    }
+
+    /**
+     * @return CRC32C of the content so far
+     */
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,181 @@
+package fs.storage;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stream and hashing helpers shared by the {@link BlobStore} implementations and the upload paths.
+ */
+@Log4j2
+public final class BlobIO {
+    public static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private BlobIO() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " isn't supported", e);
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException - if the key isn't a lowercase hex string
+     */
+    public static byte[] fromHex(String key) {
+        if (key.length() % 2 != 0) {
+            throw new IllegalArgumentException("Blob key should have an even length: " + key);
+        }
+        byte[] bytes = new byte[key.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(key.charAt(i * 2), 16), low = Character.digit(key.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Blob key isn't a hex string: " + key);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Sharded relative location of a blob: {@code ab/cd/abcd...}.
+     */
+    public static String shard(String key, String separator) {
+        return shard(key, 2, separator);
+    }
+
+    /**
+     * Sharded relative location of a blob with a folder per two hex digits of the key prefix, {@code levels} deep.
+     */
+    public static String shard(String key, int levels, String separator) {
+        StringBuilder path = new StringBuilder(key.length() + levels * 3);
+        for (int level = 0; level < levels; level++) {
+            path.append(key, level * 2, level * 2 + 2).append(separator);
+        }
+        return path.append(key).toString();
+    }
+
+    /**
+     * Pipes the stream into the channel through a bounded per-thread direct buffer, so the heap never holds the
+     * whole content. Writes at most {@code limit} bytes starting at {@code position}, leaving the rest of the file
+     * untouched.
+     *
+     * @param digest receives written bytes, may be {@code null}
+     * @return count of written bytes
+     * @throws IllegalStateException - if the stream has more than {@code limit} bytes
+     */
+    public static long copy(InputStream content, FileChannel target, long position, long limit,
+                            BlobDigest digest) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        ReadableByteChannel source = Channels.newChannel(content);
+        long written = 0;
+        while (source.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            if (written + buffer.remaining() > limit) {
+                throw new IllegalStateException("Content is longer than expected " + limit + " bytes");
+            }
+            if (digest != null) {
+                digest.update(buffer);
+                buffer.flip();
+            }
+            written += target.write(buffer, position + written);
+            buffer.compact();
+        }
+        return written;
+    }
+
+    /**
+     * Copies {@code count} bytes of the channel from its current position.
+     */
+    public static void copy(SeekableByteChannel source, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        while (count > 0) {
+            buffer.clear();
+            if (buffer.remaining() > count) {
+                buffer.limit((int) count);
+            }
+            int read = source.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Blob is shorter than expected");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * Hashes an already written file, for content whose chunks arrived out of order.
+     */
+    public static String hash(Path file) throws IOException {
+        return digest(file).getKey();
+    }
+
+    /**
+     * Hashes and checksums an already written file in one pass.
+     */
+    public static BlobDigest digest(Path file) throws IOException {
+        BlobDigest digest = new BlobDigest();
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Flushes a written file to the disk.
+     */
+    public static void sync(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Flushes the entries of a folder, so that files created, moved or removed there survive a crash. Some
+     * platforms can't open folders; their file systems keep the entries in order by themselves.
+     */
+    public static void syncFolder(Path folder) throws IOException {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            log.debug("Can't open folder \"{}\" to sync it", folder);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-ahead journal of a {@link FileBlobStore}. Before a blob is moved into place its key and the file it comes
+ * from are recorded ({@code P <key> <source>}), and once the transaction that references the blob is over the write
+ * is settled ({@code S <key>}). After a crash the records tell which blobs may be left unreferenced and where lost
+ * moves can be redone from.
+ */
+class BlobJournal {
+    private static final String PUBLISH = "P";
+    private static final String SETTLE = "S";
+    /**
+     * The journal is compacted to the unsettled records once it grows above this.
+     */
+    private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+    private final Path file;
+    private final Durability durability;
+    private final long groupCommitNanos;
+    /**
+     * Sources of unsettled writes by key, one per write.
+     */
+    private final Map<String, List<Path>> pending = new HashMap<>();
+    /**
+     * Keys whose blobs are checked for removal or moved to another layout; their new writes wait until it's done.
+     */
+    private final Set<String> discarding = new HashSet<>();
+    /**
+     * Folders of sources to sync with the next group commit.
+     */
+    private final Set<Path> sourceFolders = new HashSet<>();
+    /**
+     * Blob folders with moves that have to be synced before their records are dropped.
+     */
+    private final Set<Path> blobFolders = new HashSet<>();
+    private FileChannel channel;
+    private long appended;
+    private long synced;
+    private boolean syncing;
+
+    BlobJournal(Path file, Durability durability, Duration groupCommitWindow) {
+        this.file = file;
+        this.durability = durability;
+        this.groupCommitNanos = groupCommitWindow.toNanos();
+    }
+
+    /**
+     * Records a write before the blob is moved into place, or the source is dropped as a duplicate. The record is
+     * on the disk when this returns, unless the durability is {@link Durability#NONE}. Every write has to be
+     * {@link #settle(String, boolean) settled} afterwards, whether it succeeded or not.
+     */
+    void publishing(String key, Path source) throws IOException {
+        Path absolute = source.toAbsolutePath();
+        long sequence;
+        synchronized (this) {
+            while (discarding.contains(key)) {
+                await();
+            }
+            append(PUBLISH + " " + key + " " + absolute);
+            pending.computeIfAbsent(key, k -> new ArrayList<>()).add(absolute);
+            sequence = appended;
+            if (durability == Durability.FSYNC) {
+                channel.force(false);
+                synced = sequence;
+                return;
+            }
+            if (durability == Durability.GROUP) {
+                sourceFolders.add(absolute.getParent());
+            }
+        }
+        if (durability == Durability.GROUP) {
+            groupCommit(sequence);
+        }
+    }
+
+    /**
+     * @param folders folders that got new entries when the blob was moved into place
+     */
+    void published(Collection<Path> folders) throws IOException {
+        if (durability == Durability.FSYNC) {
+            for (Path folder : folders) {
+                BlobIO.syncFolder(folder);
+            }
+        } else if (durability == Durability.GROUP) {
+            synchronized (this) {
+                blobFolders.addAll(folders);
+            }
+        }
+    }
+
+    /**
+     * @param discard whether the blob is to be removed unless referenced, if no other write of the key is pending
+     * @return {@code true} if the caller has to check the blob for removal and call {@link #discarded(String)}
+     * afterwards; new writes of the key wait until then
+     */
+    synchronized boolean settle(String key, boolean discard) throws IOException {
+        List<Path> sources = pending.get(key);
+        if (sources != null) {
+            sources.remove(0);
+            if (sources.isEmpty()) {
+                pending.remove(key);
+            }
+            append(SETTLE + " " + key);
+            if (channel.size() > CHECKPOINT_SIZE) {
+                checkpoint();
+            }
+        }
+        return discard && tryDiscard(key);
+    }
+
+    /**
+     * @return {@code true} if no write of the key is pending; the caller has to check the blob for removal and call
+     * {@link #discarded(String)} afterwards, new writes of the key wait until then
+     */
+    synchronized boolean tryDiscard(String key) {
+        return !pending.containsKey(key) && discarding.add(key);
+    }
+
+    synchronized void discarded(String key) {
+        discarding.remove(key);
+        notifyAll();
+    }
+
+    /**
+     * Reads the records left by the previous run; to be called before any write.
+     *
+     * @return every write found in the journal by key
+     */
+    synchronized Map<String, Publication> replay() throws IOException {
+        Map<String, Publication> publications = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return publications;
+        }
+        String records = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        // a record without the line end was torn by the crash, its write went no further
+        for (String record : records.substring(0, records.lastIndexOf('\n') + 1).split("\n")) {
+            String[] fields = record.split(" ", 3);
+            if (fields.length == 3 && PUBLISH.equals(fields[0])) {
+                Publication publication = publications.computeIfAbsent(fields[1], k -> new Publication());
+                publication.sources.add(Paths.get(fields[2]));
+                publication.unsettled++;
+            } else if (fields.length == 2 && SETTLE.equals(fields[0]) && publications.containsKey(fields[1])) {
+                publications.get(fields[1]).unsettled--;
+            }
+        }
+        return publications;
+    }
+
+    /**
+     * Drops the records of the previous run once the recovery is done.
+     *
+     * @param folders folders changed by the recovery
+     */
+    synchronized void reset(Collection<Path> folders) throws IOException {
+        if (durability != Durability.NONE) {
+            for (Path folder : folders) {
+                BlobIO.syncFolder(folder);
+            }
+        }
+        if (Files.deleteIfExists(file) && durability != Durability.NONE) {
+            BlobIO.syncFolder(file.getParent());
+        }
+    }
+
+    private void append(String record) throws IOException {
+        if (channel == null) {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        appended++;
+    }
+
+    /**
+     * Waits until the record is synced. The first writer to come syncs the records of everybody who came within
+     * the group commit window in a single fsync, and the others wait for it.
+     */
+    private void groupCommit(long sequence) throws IOException {
+        synchronized (this) {
+            while (syncing && synced < sequence) {
+                await();
+            }
+            if (synced >= sequence) {
+                return;
+            }
+            syncing = true;
+        }
+        long last = sequence;
+        List<Path> folders = new ArrayList<>();
+        boolean done = false;
+        try {
+            if (groupCommitNanos > 0) {
+                LockSupport.parkNanos(groupCommitNanos);
+            }
+            FileChannel target;
+            synchronized (this) {
+                last = appended;
+                folders.addAll(sourceFolders);
+                sourceFolders.clear();
+                target = channel;
+            }
+            for (Path folder : folders) {
+                BlobIO.syncFolder(folder);
+            }
+            target.force(false);
+            done = true;
+        } finally {
+            synchronized (this) {
+                if (done) {
+                    synced = Math.max(synced, last);
+                } else {
+                    sourceFolders.addAll(folders);
+                }
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the journal");
+        }
+    }
+
+    /**
+     * Makes the moves of settled writes durable and replaces the journal with the records of the pending ones.
+     */
+    private void checkpoint() throws IOException {
+        while (syncing) {
+            await();
+        }
+        if (durability != Durability.NONE) {
+            for (Path folder : blobFolders) {
+                BlobIO.syncFolder(folder);
+            }
+            for (Path folder : sourceFolders) {
+                BlobIO.syncFolder(folder);
+            }
+        }
+        blobFolders.clear();
+        sourceFolders.clear();
+
+        Path compacted = file.resolveSibling(file.getFileName() + ".new");
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            StringBuilder records = new StringBuilder();
+            pending.forEach((key, sources) -> sources.forEach(source ->
+                    records.append(PUBLISH).append(' ').append(key).append(' ').append(source).append('\n')));
+            ByteBuffer bytes = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                target.write(bytes);
+            }
+            if (durability != Durability.NONE) {
+                target.force(false);
+            }
+        }
+        channel.close();
+        channel = null;
+        Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (durability != Durability.NONE) {
+            BlobIO.syncFolder(file.getParent());
+        }
+        synced = appended;
+    }
+
+    /**
+     * Writes of one key found in the journal.
+     */
+    static class Publication {
+        final List<Path> sources = new ArrayList<>();
+        int unsettled;
+
+        boolean isUnsettled() {
+            return unsettled > 0;
+        }
+    }
+}
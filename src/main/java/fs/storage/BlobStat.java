@@ -0,0 +1,37 @@
+package fs.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+
+/**
+ * Metadata of a stored blob.
+ */
+@Value
+@AllArgsConstructor
+public class BlobStat {
+    /**
+     * SHA-256 of the content in hex.
+     */
+    private String key;
+    private long size;
+    private long lastModified;
+    /**
+     * Human readable storage location, e.g. a local path or an object URL.
+     */
+    private String location;
+    /**
+     * CRC32C of the content, {@code null} if unknown: the stores only compute it while they write the blob. It's
+     * the same blob whether the checksum is known or not.
+     */
+    @EqualsAndHashCode.Exclude
+    private Long checksum;
+
+    public BlobStat(String key, long size, long lastModified, String location) {
+        this(key, size, lastModified, location, null);
+    }
+
+    public BlobStat withChecksum(Long checksum) {
+        return new BlobStat(key, size, lastModified, location, checksum);
+    }
+}
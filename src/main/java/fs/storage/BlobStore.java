@@ -0,0 +1,153 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Content-addressed storage engine. Blobs are keyed by the SHA-256 of their content, so storing the same content
+ * twice keeps a single copy. Reference counting is up to the caller.
+ */
+public interface BlobStore {
+    /**
+     * Stores the stream, hashing it on the way.
+     *
+     * @param content read until EOF, not closed by this method
+     * @return stored blob
+     */
+    BlobStat put(InputStream content) throws IOException;
+
+    /**
+     * Takes over a fully written local file, e.g. an assembled chunked upload. The file is moved or removed.
+     *
+     * @return stored blob
+     */
+    BlobStat put(Path stagedFile) throws IOException;
+
+    /**
+     * Stores the stream in the given tier of a {@link TieredBlobStore}, e.g. while the blob moves between tiers.
+     *
+     * @param content read until EOF, not closed by this method
+     * @return stored blob
+     * @throws UnsupportedOperationException - if the store has no tiers
+     */
+    default BlobStat put(InputStream content, StorageTier tier) throws IOException {
+        throw new UnsupportedOperationException("Blob store has no tiers");
+    }
+
+    /**
+     * Same as {@link #put(InputStream, StorageTier)} for a fully written local file, which is moved or removed.
+     *
+     * @throws UnsupportedOperationException - if the store has no tiers
+     */
+    default BlobStat put(Path stagedFile, StorageTier tier) throws IOException {
+        throw new UnsupportedOperationException("Blob store has no tiers");
+    }
+
+    /**
+     * @return blob metadata or {@code null} if there is no such blob
+     */
+    BlobStat stat(String key) throws IOException;
+
+    /**
+     * @return read-only channel positioned at the beginning of the blob
+     * @throws java.nio.file.NoSuchFileException - if there is no such blob
+     */
+    SeekableByteChannel open(String key) throws IOException;
+
+    /**
+     * Opens the blob past any cache, to check the data that is actually stored.
+     *
+     * @throws java.nio.file.NoSuchFileException - if there is no such blob
+     */
+    default SeekableByteChannel openStored(String key) throws IOException {
+        return open(key);
+    }
+
+    /**
+     * @return {@code false} if there was no such blob
+     */
+    boolean delete(String key) throws IOException;
+
+    /**
+     * Removes the copy of the blob kept by the given tier of a {@link TieredBlobStore}, once it moved to the other.
+     *
+     * @return {@code false} if the tier had no such blob
+     * @throws UnsupportedOperationException - if the store has no tiers
+     */
+    default boolean delete(String key, StorageTier tier) throws IOException {
+        throw new UnsupportedOperationException("Blob store has no tiers");
+    }
+
+    /**
+     * Removes a blob that is no longer referenced. Unlike {@link #delete(String)} it keeps blobs that are being
+     * written, and no new write of the key can start between the reference check and the removal.
+     *
+     * @param isReferenced whether a committed row references the blob
+     * @return {@code false} if the blob was kept or there was no such blob
+     */
+    default boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        return !isReferenced.test(key) && delete(key);
+    }
+
+    /**
+     * Walks the store in key order, a page at a time.
+     *
+     * @param afterKey last key of the previous page, {@code null} for the first page
+     * @param limit    max number of keys
+     * @return stored keys greater than {@code afterKey}, in ascending order
+     */
+    List<String> list(String afterKey, int limit) throws IOException;
+
+    /**
+     * Moves the next page of blobs still kept in the previous layout of the store into the current one, when the
+     * layout was changed. Blobs stay readable while they are moved.
+     *
+     * @param afterKey last key of the previous page, {@code null} for the first page
+     * @param limit    max number of keys
+     * @return keys of the previous layout visited after {@code afterKey}, in ascending order; empty for the first
+     * page once no blob is left in the previous layout
+     */
+    default List<String> relayout(String afterKey, int limit) throws IOException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Reclaims the space that removed blobs still take, one step at a time, e.g. a segment of packed blobs. Blobs
+     * stay readable meanwhile.
+     *
+     * @return bytes reclaimed by the step, {@code 0} once there is nothing worth reclaiming
+     */
+    default long compact() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Ends a write started by {@code put} once the transaction that references the blob is over. The blob of a
+     * rolled back write is removed unless it is referenced or written again meanwhile.
+     *
+     * @param isReferenced whether a committed row references the blob
+     */
+    default void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+    }
+
+    /**
+     * Called once on start before any write: rolls back the writes that the previous run didn't settle and finishes
+     * the ones that were committed.
+     *
+     * @param isReferenced whether a committed row references the blob
+     */
+    default void recover(Predicate<String> isReferenced) throws IOException {
+    }
+
+    /**
+     * @return local file of the blob for zero-copy transfers, or {@code null} if the blob isn't a plain local file
+     */
+    default Path getLocalPath(String key) {
+        return null;
+    }
+}
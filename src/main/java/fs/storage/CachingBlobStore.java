@@ -0,0 +1,198 @@
+package fs.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Keeps hot blobs of up to {@code maxBlobSize} bytes in direct buffers in front of another store, so that reading
+ * them hits neither the disk nor the remote store. The cache holds at most {@code maxSize} bytes and evicts by
+ * W-TinyLFU, so a burst of one-off reads doesn't push the hot blobs out. Blobs never change under their key: only
+ * removed and moved ones are invalidated. An evicted buffer is freed by the GC once no open channel reads it.
+ * <p>
+ * Small blobs have no local path, so that they are read through {@link #open(String)} and get cached rather than
+ * sent from the file by the container.
+ */
+public class CachingBlobStore implements BlobStore {
+    private final BlobStore store;
+    private final long maxBlobSize;
+    private final Cache<String, Entry> cache;
+
+    private static class Entry {
+        private final BlobStat stat;
+        private final ByteBuffer content;
+
+        private Entry(BlobStat stat, ByteBuffer content) {
+            this.stat = stat;
+            this.content = content;
+        }
+    }
+
+    public CachingBlobStore(BlobStore store, long maxSize, long maxBlobSize) {
+        if (maxSize < 0 || maxBlobSize < 0 || maxBlobSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Wrong limits of the blob cache: " + maxSize + "/" + maxBlobSize);
+        }
+        this.store = store;
+        this.maxBlobSize = maxBlobSize;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize)
+                .<String, Entry>weigher((key, entry) -> entry.content.capacity())
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * For the metrics of the cache.
+     */
+    public Cache<String, ?> getCache() {
+        return cache;
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        return store.put(content);
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        return store.put(stagedFile);
+    }
+
+    @Override
+    public BlobStat put(InputStream content, StorageTier tier) throws IOException {
+        return store.put(content, tier);
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile, StorageTier tier) throws IOException {
+        return store.put(stagedFile, tier);
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        Entry entry = cache.getIfPresent(key);
+        return entry != null ? entry.stat : store.stat(key);
+    }
+
+    /**
+     * A blob that isn't cached yet is read whole if it's small enough, even if only a part of it is needed.
+     */
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            return new ByteBufferChannel(entry.content);
+        }
+        SeekableByteChannel channel = store.open(key);
+        if (channel.size() > maxBlobSize) {
+            return channel;
+        }
+        ByteBuffer content;
+        try {
+            content = ByteBuffer.allocateDirect((int) channel.size());
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    throw new EOFException("Blob " + key + " is shorter than expected");
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        BlobStat stat = store.stat(key);
+        if (stat != null) {
+            cache.put(key, new Entry(stat, content));
+        }
+        return new ByteBufferChannel(content);
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        try {
+            return store.delete(key);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * The cached content is dropped as well, the location of the blob changed.
+     */
+    @Override
+    public boolean delete(String key, StorageTier tier) throws IOException {
+        try {
+            return store.delete(key, tier);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        try {
+            return store.deleteUnreferenced(key, isReferenced);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        return store.list(afterKey, limit);
+    }
+
+    @Override
+    public List<String> relayout(String afterKey, int limit) throws IOException {
+        List<String> keys = store.relayout(afterKey, limit);
+        cache.invalidateAll(keys);
+        return keys;
+    }
+
+    @Override
+    public long compact() throws IOException {
+        return store.compact();
+    }
+
+    @Override
+    public SeekableByteChannel openStored(String key) throws IOException {
+        return store.openStored(key);
+    }
+
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        try {
+            store.settle(key, committed, isReferenced);
+        } finally {
+            if (!committed) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    @Override
+    public void recover(Predicate<String> isReferenced) throws IOException {
+        store.recover(isReferenced);
+    }
+
+    @Override
+    public Path getLocalPath(String key) {
+        if (cache.getIfPresent(key) != null) {
+            return null;
+        }
+        Path path = store.getLocalPath(key);
+        try {
+            return path == null || Files.size(path) > maxBlobSize ? path : null;
+        } catch (IOException e) {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.time.Duration;
+
+/**
+ * Calls the internal API of the other nodes of a cluster ({@link fs.mvc.ClusterController}), authenticated by the
+ * shared secret of the cluster. Content is streamed both ways, never held in memory.
+ */
+public class ClusterClient {
+    public static final String TOKEN_HEADER = "X-Cluster-Token";
+    public static final String BLOBS_PATH = "/internal/v1/blobs/";
+    public static final String PING_PATH = "/internal/v1/ping";
+    private static final int OK = 200;
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int NOT_FOUND = 404;
+
+    private final String secret;
+    private final int timeout;
+
+    public ClusterClient(String secret, Duration timeout) {
+        this.secret = secret;
+        this.timeout = Math.toIntExact(timeout.toMillis());
+    }
+
+    private HttpURLConnection connect(URI node, String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) node.resolve(path).toURL().openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty(TOKEN_HEADER, secret);
+        return connection;
+    }
+
+    private static IOException unexpected(HttpURLConnection connection, int status) {
+        connection.disconnect();
+        return new IOException("Node answered " + status + " to " + connection.getRequestMethod() + " "
+                + connection.getURL());
+    }
+
+    /**
+     * @return blob metadata or {@code null} if the node has no such blob
+     */
+    public BlobStat stat(URI node, String key) throws IOException {
+        HttpURLConnection connection = connect(node, BLOBS_PATH + key, "HEAD");
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status == NOT_FOUND) {
+            return null;
+        }
+        if (status != OK) {
+            throw unexpected(connection, status);
+        }
+        return new BlobStat(key, connection.getContentLengthLong(), connection.getLastModified(),
+                connection.getURL().toString());
+    }
+
+    /**
+     * @return channel over the blob of the node or {@code null} if the node has no such blob
+     */
+    public SeekableByteChannel open(URI node, String key) throws IOException {
+        HttpURLConnection connection = connect(node, BLOBS_PATH + key, "GET");
+        int status = connection.getResponseCode();
+        if (status == NOT_FOUND) {
+            connection.disconnect();
+            return null;
+        }
+        if (status != OK) {
+            throw unexpected(connection, status);
+        }
+        return new RemoteChannel(node, key, connection.getContentLengthLong(), connection);
+    }
+
+    /**
+     * Sends {@code size} bytes of the channel, from its current position, as the content of the blob.
+     */
+    public void push(URI node, String key, SeekableByteChannel content, long size) throws IOException {
+        HttpURLConnection connection = connect(node, BLOBS_PATH + key, "PUT");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(size);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream body = connection.getOutputStream()) {
+            BlobIO.copy(content, size, Channels.newChannel(body));
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status / 100 != 2) {
+            throw unexpected(connection, status);
+        }
+    }
+
+    /**
+     * @param force whether the blob is removed even though the DB still refers to it
+     * @return {@code true} if the node removed its copy
+     */
+    public boolean delete(URI node, String key, boolean force) throws IOException {
+        HttpURLConnection connection = connect(node, BLOBS_PATH + key + (force ? "?force=true" : ""), "DELETE");
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status == NOT_FOUND) {
+            return false;
+        }
+        if (status / 100 != 2) {
+            throw unexpected(connection, status);
+        }
+        return true;
+    }
+
+    public void ping(URI node) throws IOException {
+        HttpURLConnection connection = connect(node, PING_PATH, "GET");
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status != OK) {
+            throw unexpected(connection, status);
+        }
+    }
+
+    /**
+     * Read-only channel over a blob of another node: the response that opened it is read while reads stay
+     * sequential, other positions are read with a ranged GET, like the objects of {@link S3BlobStore}.
+     */
+    private class RemoteChannel implements SeekableByteChannel {
+        private final URI node;
+        private final String key;
+        private final long size;
+        private long position;
+        private HttpURLConnection connection;
+        private ReadableByteChannel stream;
+        private boolean open = true;
+
+        private RemoteChannel(URI node, String key, long size, HttpURLConnection connection) throws IOException {
+            this.node = node;
+            this.key = key;
+            this.size = size;
+            this.connection = connection;
+            this.stream = Channels.newChannel(connection.getInputStream());
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= size) {
+                return -1;
+            }
+            if (stream == null) {
+                connection = connect(node, BLOBS_PATH + key, "GET");
+                connection.setRequestProperty("Range", "bytes=" + position + "-");
+                int status = connection.getResponseCode();
+                if (status != PARTIAL_CONTENT) {
+                    throw unexpected(connection, status);
+                }
+                stream = Channels.newChannel(connection.getInputStream());
+            }
+            int read = stream.read(dst);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            if (newPosition != position) {
+                closeStream();
+                position = newPosition;
+            }
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            closeStream();
+        }
+
+        /**
+         * A response read to its end goes back to the pool of kept-alive connections, others are dropped.
+         */
+        private void closeStream() throws IOException {
+            if (connection != null) {
+                if (position < size || stream == null) {
+                    connection.disconnect();
+                } else {
+                    stream.close();
+                }
+                connection = null;
+                stream = null;
+            }
+        }
+    }
+}
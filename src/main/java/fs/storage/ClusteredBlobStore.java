@@ -0,0 +1,376 @@
+package fs.storage;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads the blobs over the nodes of a cluster that share the DB. Every node keeps its blobs in a {@code local}
+ * store; the {@code replicationFactor} owners of a blob are picked by consistent hashing of its key
+ * ({@link HashRing}). A write is stored locally and pushed to the other owners that are up, and fails unless
+ * {@code writeQuorum} nodes keep it; the local copy of a node that doesn't own the blob stays as a handoff until
+ * {@link #handOff(String)} finds every owner keeps the blob. Reads are served locally if possible, from the nearest
+ * owner that is up otherwise, then from the other nodes.
+ * <p>
+ * Listing, settling, recovery and maintenance only apply to the local store: every node collects and repairs its
+ * own blobs ({@link fs.service.impl.ClusterRepair}).
+ */
+@Log4j2
+public class ClusteredBlobStore implements BlobStore {
+    private final BlobStore local;
+    private final String nodeId;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final HashRing ring;
+    private final int replicationFactor;
+    private final int writeQuorum;
+    private final ClusterClient client;
+
+    /**
+     * Health of a node, as seen by this one.
+     */
+    private static final class Node {
+        private final String id;
+        private final URI url;
+        private volatile boolean up = true;
+        /**
+         * Moving average of the ping round trips, nanos.
+         */
+        private volatile long latency;
+
+        private Node(String id, URI url) {
+            this.id = id;
+            this.url = url;
+        }
+    }
+
+    /**
+     * @param nodes       base URLs of the nodes by id, this one included
+     * @param writeQuorum copies a write waits for, the local one included
+     */
+    public ClusteredBlobStore(BlobStore local, String nodeId, Map<String, URI> nodes, int replicationFactor,
+                              int writeQuorum, int virtualNodes, ClusterClient client) {
+        if (!nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " isn't one of the cluster nodes " + nodes.keySet());
+        }
+        if (replicationFactor < 1 || replicationFactor > nodes.size() || writeQuorum < 1
+                || writeQuorum > replicationFactor) {
+            throw new IllegalArgumentException("Wrong replication of the cluster: " + replicationFactor + "/"
+                    + writeQuorum + " of " + nodes.size() + " nodes");
+        }
+        this.local = local;
+        this.nodeId = nodeId;
+        nodes.forEach((id, url) -> this.nodes.put(id, new Node(id, url)));
+        this.ring = new HashRing(nodes.keySet(), virtualNodes);
+        this.replicationFactor = replicationFactor;
+        this.writeQuorum = writeQuorum;
+        this.client = client;
+    }
+
+    public BlobStore getLocal() {
+        return local;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public List<String> owners(String key) {
+        return ring.owners(key, replicationFactor);
+    }
+
+    private List<Node> remoteOwners(String key) {
+        return owners(key).stream()
+                .filter(id -> !id.equals(nodeId))
+                .map(nodes::get)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Other nodes in the order their copies are read: nodes that are up first, owners first among them, nearest
+     * first among those.
+     */
+    private List<Node> readOrder(String key) {
+        List<String> owners = owners(key);
+        List<Node> order = new ArrayList<>(nodes.values());
+        order.removeIf(node -> node.id.equals(nodeId));
+        order.sort(Comparator.<Node, Boolean>comparing(node -> !node.up)
+                .thenComparing(node -> !owners.contains(node.id))
+                .thenComparingLong(node -> node.latency));
+        return order;
+    }
+
+    private void markDown(Node node, IOException e) {
+        if (node.up) {
+            log.warn("Node {} at {} is down", node.id, node.url, e);
+        }
+        node.up = false;
+    }
+
+    /**
+     * Pings the other nodes, so that reads go to the nearest ones and writes skip those that are down.
+     */
+    public void heartbeat() {
+        for (Node node : nodes.values()) {
+            if (node.id.equals(nodeId)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                client.ping(node.url);
+                long latency = System.nanoTime() - start;
+                node.latency = node.latency == 0 ? latency : (node.latency * 3 + latency) / 4;
+                if (!node.up) {
+                    log.info("Node {} at {} is up", node.id, node.url);
+                }
+                node.up = true;
+            } catch (IOException e) {
+                markDown(node, e);
+            }
+        }
+    }
+
+    /**
+     * @return state of every other node: {@code up} with the average ping in millis, or {@code down}
+     */
+    public Map<String, String> getNodeStates() {
+        Map<String, String> states = new LinkedHashMap<>();
+        for (Node node : nodes.values()) {
+            if (!node.id.equals(nodeId)) {
+                states.put(node.id, node.up ? String.format("up %.1fms", node.latency / 1e6) : "down");
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Blobs are placed by their key, the location tells which nodes own it.
+     */
+    private BlobStat located(BlobStat stat) {
+        return new BlobStat(stat.getKey(), stat.getSize(), stat.getLastModified(),
+                "cluster://" + String.join(",", owners(stat.getKey())) + "/" + stat.getKey(), stat.getChecksum());
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        return replicate(local.put(content));
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        return replicate(local.put(stagedFile));
+    }
+
+    /**
+     * A write that misses the quorum is settled as rolled back here, as the caller doesn't know about it; the local
+     * copy is kept, it may be a copy of another write.
+     */
+    private BlobStat replicate(BlobStat stored) throws IOException {
+        int copies = 1;
+        for (Node owner : remoteOwners(stored.getKey())) {
+            if (owner.up && push(owner, stored.getKey())) {
+                copies++;
+            }
+        }
+        if (copies < writeQuorum) {
+            local.settle(stored.getKey(), false, key -> true);
+            throw new IOException("Blob " + stored.getKey() + " has " + copies + " copies, but " + writeQuorum
+                    + " are required");
+        }
+        return located(stored);
+    }
+
+    private boolean push(Node node, String key) throws IOException {
+        try (SeekableByteChannel content = local.open(key)) {
+            try {
+                client.push(node.url, key, content, content.size());
+                return true;
+            } catch (IOException e) {
+                markDown(node, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Takes a copy pushed by another node. The copy is settled at once: the pushing node settles its own one, and a
+     * copy of a rolled back write is an orphan for the collector.
+     *
+     * @throws IllegalStateException - if the content doesn't match the key
+     */
+    public void receive(String key, InputStream content, Predicate<String> isReferenced) throws IOException {
+        BlobStat stored = local.put(content);
+        local.settle(stored.getKey(), true, isReferenced);
+        if (!stored.getKey().equals(key)) {
+            local.deleteUnreferenced(stored.getKey(), isReferenced);
+            throw new IllegalStateException("Content of blob " + key + " has hash " + stored.getKey());
+        }
+    }
+
+    /**
+     * A node that doesn't answer is skipped; if none of the nodes that answered keeps the blob, it's reported as
+     * missing only if every node answered.
+     */
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        BlobStat stat = local.stat(key);
+        if (stat != null) {
+            return located(stat);
+        }
+        IOException failure = null;
+        for (Node node : readOrder(key)) {
+            try {
+                stat = client.stat(node.url, key);
+                if (stat != null) {
+                    return located(stat);
+                }
+            } catch (IOException e) {
+                markDown(node, e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new IOException("No node that answered keeps blob " + key, failure);
+        }
+        return null;
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        try {
+            return local.open(key);
+        } catch (NoSuchFileException e) {
+            for (Node node : readOrder(key)) {
+                try {
+                    SeekableByteChannel channel = client.open(node.url, key);
+                    if (channel != null) {
+                        return channel;
+                    }
+                } catch (IOException remote) {
+                    markDown(node, remote);
+                    e.addSuppressed(remote);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        boolean deleted = local.delete(key);
+        for (Node owner : remoteOwners(key)) {
+            deleted |= client.delete(owner.url, key, true);
+        }
+        return deleted;
+    }
+
+    /**
+     * The other owners check the references in the shared DB themselves. Copies of nodes that are down are left to
+     * their collectors, as orphans.
+     */
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        boolean deleted = local.deleteUnreferenced(key, isReferenced);
+        for (Node owner : remoteOwners(key)) {
+            if (owner.up) {
+                try {
+                    deleted |= client.delete(owner.url, key, false);
+                } catch (IOException e) {
+                    markDown(owner, e);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Pushes the local copy of the blob to the owners that are up and don't keep it, e.g. as they were down when
+     * the blob was written or own it since the cluster changed.
+     *
+     * @return copies pushed
+     */
+    public int replicate(String key) throws IOException {
+        int pushed = 0;
+        for (Node owner : remoteOwners(key)) {
+            if (owner.up && !keeps(owner, key) && push(owner, key)) {
+                pushed++;
+            }
+        }
+        return pushed;
+    }
+
+    /**
+     * Drops the local copy of a blob this node doesn't own, once every owner keeps it.
+     *
+     * @return {@code true} if the copy was dropped
+     */
+    public boolean handOff(String key) throws IOException {
+        if (owners(key).contains(nodeId)) {
+            return false;
+        }
+        for (Node owner : remoteOwners(key)) {
+            if (!owner.up || !keeps(owner, key)) {
+                return false;
+            }
+        }
+        return local.delete(key);
+    }
+
+    /**
+     * A node that doesn't answer is taken as not keeping the blob.
+     */
+    private boolean keeps(Node node, String key) {
+        try {
+            return client.stat(node.url, key) != null;
+        } catch (IOException e) {
+            markDown(node, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        local.settle(key, committed, isReferenced);
+    }
+
+    @Override
+    public void recover(Predicate<String> isReferenced) throws IOException {
+        local.recover(isReferenced);
+    }
+
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        return local.list(afterKey, limit);
+    }
+
+    @Override
+    public List<String> relayout(String afterKey, int limit) throws IOException {
+        return local.relayout(afterKey, limit);
+    }
+
+    @Override
+    public long compact() throws IOException {
+        return local.compact();
+    }
+
+    /**
+     * Only local copies are sent as files.
+     */
+    @Override
+    public Path getLocalPath(String key) {
+        Path path = local.getLocalPath(key);
+        return path != null && Files.exists(path) ? path : null;
+    }
+}
@@ -0,0 +1,48 @@
+package fs.storage;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Decides by file name which uploads are worth compressing. Media that is already compressed is skipped, everything
+ * else (including unknown types) is compressed and kept encoded only if that saves enough space.
+ */
+public final class CompressionPolicy {
+    /**
+     * Max encoded to decoded size ratio to keep the encoded data.
+     */
+    public static final double MAX_RATIO = 0.9;
+
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/java-archive", "application/pdf", "application/epub+zip", "application/zstd",
+            "font/woff", "font/woff2"));
+    private static final String OPEN_XML_PREFIX = "application/vnd.openxmlformats-officedocument.";
+    private static final String OPEN_DOCUMENT_PREFIX = "application/vnd.oasis.opendocument.";
+
+    private CompressionPolicy() {
+    }
+
+    public static boolean isCompressible(String fileName) {
+        Optional<MediaType> mediaType = fileName == null ? Optional.empty() : MediaTypeFactory.getMediaType(fileName);
+        if (!mediaType.isPresent()) {
+            return true;
+        }
+        String type = mediaType.get().getType(), value = type + "/" + mediaType.get().getSubtype();
+        if ("image".equals(type)) {
+            return "image/svg+xml".equals(value) || "image/bmp".equals(value);
+        }
+        return !"audio".equals(type) && !"video".equals(type) && !COMPRESSED_TYPES.contains(value)
+                && !value.startsWith(OPEN_XML_PREFIX) && !value.startsWith(OPEN_DOCUMENT_PREFIX);
+    }
+
+    public static boolean isWorthKeeping(long size, long encodedSize) {
+        return encodedSize <= size * MAX_RATIO;
+    }
+}
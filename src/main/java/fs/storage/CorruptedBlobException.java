@@ -0,0 +1,14 @@
+package fs.storage;
+
+import java.io.IOException;
+
+/**
+ * Stored data of a blob doesn't match the checksum recorded when it was written.
+ */
+public class CorruptedBlobException extends IOException {
+    private static final long serialVersionUID = -6148210359247716342L;
+
+    public CorruptedBlobException(String message) {
+        super(message);
+    }
+}
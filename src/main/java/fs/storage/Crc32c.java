@@ -0,0 +1,78 @@
+package fs.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli polynomial), the same value {@code java.util.zip.CRC32C} of Java 9 computes, by slicing by 8:
+ * eight lookup tables let it fold eight bytes per step instead of one.
+ */
+public final class Crc32c implements Checksum {
+    /**
+     * The polynomial with its bits reversed, as the CRC runs least significant bit first.
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+    /**
+     * {@code TABLES[k][b]} is the CRC of byte {@code b} followed by {@code k} zero bytes.
+     */
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][b] = crc;
+        }
+        for (int k = 1; k < TABLES.length; k++) {
+            for (int b = 0; b < 256; b++) {
+                int previous = TABLES[k - 1][b];
+                TABLES[k][b] = previous >>> 8 ^ TABLES[0][previous & 0xFF];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = crc >>> 8 ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Takes the remaining bytes of the buffer, leaving its position at its limit.
+     */
+    public void update(ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int c = crc;
+        while (data.remaining() >= 8) {
+            long word = data.getLong();
+            int low = c ^ (int) word, high = (int) (word >>> 32);
+            c = TABLES[7][low & 0xFF] ^ TABLES[6][low >>> 8 & 0xFF] ^ TABLES[5][low >>> 16 & 0xFF]
+                    ^ TABLES[4][low >>> 24] ^ TABLES[3][high & 0xFF] ^ TABLES[2][high >>> 8 & 0xFF]
+                    ^ TABLES[1][high >>> 16 & 0xFF] ^ TABLES[0][high >>> 24];
+        }
+        while (data.hasRemaining()) {
+            c = c >>> 8 ^ TABLES[0][(c ^ data.get()) & 0xFF];
+        }
+        crc = c;
+        buffer.position(buffer.limit());
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,113 @@
+package fs.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only decoded view of an encoded blob. Seeking forward decodes and skips the content in between, seeking
+ * backward starts decoding over again, so ranges should be read in ascending order.
+ */
+public class DecodingChannel implements SeekableByteChannel {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SeekableByteChannel source;
+    private final String encoding;
+    private final long size;
+    private InputStream decoded;
+    private long position;
+    private byte[] buffer;
+
+    /**
+     * @param source encoded blob, positioned at its beginning
+     * @param size   decoded size
+     */
+    public DecodingChannel(SeekableByteChannel source, String encoding, long size) throws IOException {
+        this.source = source;
+        this.encoding = encoding;
+        this.size = size;
+        this.decoded = BlobCodec.decodeShielded(encoding, Channels.newInputStream(source));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int read;
+        if (dst.hasArray()) {
+            read = decoded.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+        } else {
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            read = decoded.read(buffer, 0, Math.min(buffer.length, dst.remaining()));
+            if (read > 0) {
+                dst.put(buffer, 0, read);
+            }
+        }
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < position) {
+            decoded.close();
+            source.position(0);
+            decoded = BlobCodec.decodeShielded(encoding, Channels.newInputStream(source));
+            position = 0;
+        }
+        while (position < newPosition) {
+            long skipped = decoded.skip(newPosition - position);
+            if (skipped <= 0) {
+                if (decoded.read() < 0) {
+                    throw new EOFException("Blob is shorter than expected");
+                }
+                skipped = 1;
+            }
+            position += skipped;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            decoded.close();
+        } finally {
+            source.close();
+        }
+    }
+}
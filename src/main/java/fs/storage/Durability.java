@@ -0,0 +1,20 @@
+package fs.storage;
+
+/**
+ * When a {@link FileBlobStore} write reaches the disk, set by {@code file_store.durability.mode}.
+ */
+public enum Durability {
+    /**
+     * Left to the OS: a crash may lose recent blobs, which are then rolled back by the startup recovery.
+     */
+    NONE,
+    /**
+     * Every blob, its journal record and its folder are synced before {@code put} returns.
+     */
+    FSYNC,
+    /**
+     * Every blob is synced, while journal records of concurrent writes are synced together once per group commit
+     * window; blob folders are synced at journal checkpoints and moves lost in between are redone from the journal.
+     */
+    GROUP
+}
@@ -0,0 +1,461 @@
+package fs.storage;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Plain NIO implementation: blobs are files under {@code <root>/blobs/ab/cd/<hash>}, written to {@code <root>/tmp}
+ * first and moved into place once their hash is known. Moves are recorded in {@code <root>/journal} beforehand
+ * (see {@link BlobJournal}) and synced as set by the {@link Durability}.
+ * <p>
+ * The number of shard folder levels is configurable and kept in {@code <root>/layout}. When it changes, the blobs
+ * of the previous layout are found there until {@link #relayout(String, int)} has moved all of them.
+ */
+@Log4j2
+public class FileBlobStore implements BlobStore {
+    private static final String TEMP_FOLDER = "tmp";
+    private static final String BLOB_FOLDER = "blobs";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String LAYOUT_FILE = "layout";
+    private static final int DEFAULT_SHARD_LEVELS = 2;
+    private static final int MAX_SHARD_LEVELS = 3;
+    private static final int KEY_LENGTH = 64;
+
+    private final Path root;
+    private final Durability durability;
+    private final BlobJournal journal;
+    private final int shardLevels;
+    /**
+     * Shard levels of the layout blobs are moved from, {@code 0} unless the layout is being changed.
+     */
+    private volatile int previousLevels;
+
+    public FileBlobStore(Path root) {
+        this(root, Durability.NONE, Duration.ZERO);
+    }
+
+    public FileBlobStore(Path root, Durability durability, Duration groupCommitWindow) {
+        this(root, durability, groupCommitWindow, DEFAULT_SHARD_LEVELS);
+    }
+
+    /**
+     * @param shardLevels levels of shard folders, each named by the next two hex digits of the key
+     */
+    public FileBlobStore(Path root, Durability durability, Duration groupCommitWindow, int shardLevels) {
+        if (shardLevels < 1 || shardLevels > MAX_SHARD_LEVELS) {
+            throw new IllegalArgumentException("Shard levels should be from 1 to " + MAX_SHARD_LEVELS
+                    + ", but was: " + shardLevels);
+        }
+        this.root = root;
+        this.durability = durability;
+        this.journal = new BlobJournal(root.resolve(JOURNAL_FILE), durability, groupCommitWindow);
+        this.shardLevels = shardLevels;
+    }
+
+    /**
+     * @return location of the blob in the current layout
+     */
+    protected Path resolve(String key) {
+        return resolve(key, shardLevels);
+    }
+
+    private Path resolve(String key, int levels) {
+        return root.resolve(BLOB_FOLDER).resolve(BlobIO.shard(key, levels, File.separator));
+    }
+
+    /**
+     * @return location of the blob, which is in the previous layout if it wasn't moved yet
+     */
+    protected Path locate(String key) {
+        Path blob = resolve(key);
+        int previous = previousLevels;
+        if (previous == 0 || Files.exists(blob)) {
+            return blob;
+        }
+        Path unmoved = resolve(key, previous);
+        return Files.exists(unmoved) ? unmoved : blob;
+    }
+
+    /**
+     * Opens the blob for reading, looking for it in the current layout again if it was moved meanwhile.
+     */
+    protected FileChannel openFile(String key) throws IOException {
+        Path blob = locate(key);
+        try {
+            return FileChannel.open(blob, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            if (blob.equals(resolve(key))) {
+                throw e;
+            }
+            return FileChannel.open(resolve(key), StandardOpenOption.READ);
+        }
+    }
+
+    private Path createTempFile() throws IOException {
+        Path folder = root.resolve(TEMP_FOLDER);
+        Files.createDirectories(folder);
+        return folder.resolve(UUID.randomUUID().toString());
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        Path file = createTempFile();
+        BlobDigest digest = new BlobDigest();
+        try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            BlobIO.copy(content, target, 0, Long.MAX_VALUE, digest);
+            if (durability != Durability.NONE) {
+                target.force(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!file.toFile().delete() && Files.exists(file)) {
+                log.warn("Can't remove partially stored file \"{}\"", file.toAbsolutePath());
+            }
+            throw e;
+        }
+        return publish(file, digest);
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        if (durability != Durability.NONE) {
+            BlobIO.sync(stagedFile);
+        }
+        return publish(stagedFile, BlobIO.digest(stagedFile));
+    }
+
+    /**
+     * Moves fully written content into place, or drops it when the same content is already stored. The write stays
+     * pending in the journal until it is settled.
+     */
+    private BlobStat publish(Path file, BlobDigest digest) throws IOException {
+        String key = digest.getKey();
+        Path blob = resolve(key);
+        journal.publishing(key, file);
+        try {
+            if (Files.exists(locate(key))) {
+                Files.delete(file);
+            } else {
+                Path folder = blob.getParent();
+                boolean created = !Files.isDirectory(folder);
+                Files.createDirectories(folder);
+                Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+                journal.published(created ? shardFolders(folder) : Collections.singletonList(folder));
+            }
+            return stat(key).withChecksum(digest.getChecksum());
+        } catch (IOException | RuntimeException e) {
+            journal.settle(key, false);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the leaf shard folder and its parents up to the blob folder: a new shard folder is an entry of its
+     * parent folders as well
+     */
+    private List<Path> shardFolders(Path folder) {
+        List<Path> folders = new ArrayList<>();
+        Path blobs = root.resolve(BLOB_FOLDER);
+        for (Path parent = folder; !parent.equals(blobs); parent = parent.getParent()) {
+            folders.add(parent);
+        }
+        folders.add(blobs);
+        return folders;
+    }
+
+    /**
+     * The reference check runs outside of the journal lock, it may wait for a DB connection.
+     */
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        if (journal.settle(key, !committed) && discard(key, isReferenced)) {
+            log.info("Remove blob {} of a rolled back write", key);
+        }
+    }
+
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        return journal.tryDiscard(key) && discard(key, isReferenced);
+    }
+
+    private boolean discard(String key, Predicate<String> isReferenced) throws IOException {
+        try {
+            return !isReferenced.test(key) && delete(key);
+        } finally {
+            journal.discarded(key);
+        }
+    }
+
+    /**
+     * Replays the journal: blobs of unsettled writes that nothing references are removed, and referenced blobs
+     * whose move was lost are moved again from their sources.
+     */
+    @Override
+    public void recover(Predicate<String> isReferenced) throws IOException {
+        loadLayout();
+        Set<Path> changed = new HashSet<>();
+        for (Map.Entry<String, BlobJournal.Publication> entry : journal.replay().entrySet()) {
+            String key = entry.getKey();
+            Path blob = locate(key);
+            if (Files.exists(blob)) {
+                if (entry.getValue().isUnsettled() && !isReferenced.test(key)) {
+                    Files.delete(blob);
+                    changed.add(blob.getParent());
+                    log.info("Remove blob {} of an unfinished write", key);
+                }
+            } else if (isReferenced.test(key)) {
+                if (redo(key, blob, entry.getValue().sources)) {
+                    changed.addAll(shardFolders(blob.getParent()));
+                } else {
+                    log.error("Blob {} is referenced, but lost", key);
+                }
+            }
+        }
+        journal.reset(changed);
+    }
+
+    private boolean redo(String key, Path blob, List<Path> sources) throws IOException {
+        for (Path source : sources) {
+            if (Files.isRegularFile(source) && key.equals(BlobIO.hash(source))) {
+                Files.createDirectories(blob.getParent());
+                Files.move(source, blob, StandardCopyOption.ATOMIC_MOVE);
+                log.warn("Restore blob {} from \"{}\"", key, source);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the shard levels the blobs were written with. A store without the layout file was written with two
+     * levels, before they were configurable. A layout change that isn't finished can be reverted: the blobs moved
+     * so far are moved back.
+     *
+     * @throws IllegalStateException - if the levels are changed to a third value before a change is finished
+     */
+    private void loadLayout() throws IOException {
+        Path file = root.resolve(LAYOUT_FILE);
+        int written;
+        if (Files.exists(file)) {
+            String[] levels = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split(" ");
+            int from = Integer.parseInt(levels[0]);
+            int to = Integer.parseInt(levels[levels.length - 1]);
+            if (from != to && shardLevels != from && shardLevels != to) {
+                throw new IllegalStateException("Blob layout change from " + from + " to " + to
+                        + " shard levels isn't finished, can't change it to " + shardLevels);
+            }
+            written = shardLevels == to ? from : to;
+        } else {
+            written = Files.isDirectory(root.resolve(BLOB_FOLDER)) ? DEFAULT_SHARD_LEVELS : shardLevels;
+        }
+        if (written != shardLevels) {
+            writeLayout(written + " " + shardLevels);
+            previousLevels = written;
+            log.info("Move blobs from {} to {} shard levels", written, shardLevels);
+        } else if (!Files.exists(file)) {
+            writeLayout(String.valueOf(shardLevels));
+        }
+    }
+
+    private void writeLayout(String levels) throws IOException {
+        Files.createDirectories(root);
+        Path file = root.resolve(LAYOUT_FILE);
+        Path written = root.resolve(LAYOUT_FILE + ".new");
+        Files.write(written, levels.getBytes(StandardCharsets.UTF_8));
+        if (durability != Durability.NONE) {
+            BlobIO.sync(written);
+        }
+        Files.move(written, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (durability != Durability.NONE) {
+            BlobIO.syncFolder(root);
+        }
+    }
+
+    /**
+     * Moves blobs one at a time: new writes of a blob wait for its move and removals skip it. Blobs with writes in
+     * progress are left for the next pass. Once no blob is left, the previous layout is dropped.
+     */
+    @Override
+    public List<String> relayout(String afterKey, int limit) throws IOException {
+        int previous = previousLevels;
+        if (previous == 0) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(limit);
+        list(root.resolve(BLOB_FOLDER), 0, previous, afterKey, limit, keys);
+        if (keys.isEmpty() && afterKey == null) {
+            writeLayout(String.valueOf(shardLevels));
+            previousLevels = 0;
+            log.info("Blobs are moved to {} shard levels", shardLevels);
+            return keys;
+        }
+        Set<Path> changed = new HashSet<>();
+        for (String key : keys) {
+            if (journal.tryDiscard(key)) {
+                try {
+                    move(key, previous, changed);
+                } finally {
+                    journal.discarded(key);
+                }
+            }
+        }
+        // the old locations stay valid until the layout file changes, so the moves only have to be durable by then
+        if (durability != Durability.NONE) {
+            for (Path folder : changed) {
+                if (Files.isDirectory(folder)) {
+                    BlobIO.syncFolder(folder);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void move(String key, int previous, Set<Path> changed) throws IOException {
+        Path source = resolve(key, previous);
+        Path target = resolve(key);
+        if (!Files.exists(source)) {
+            return;
+        }
+        if (Files.exists(target)) {
+            Files.delete(source);
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            changed.addAll(shardFolders(target.getParent()));
+        }
+        changed.add(source.getParent());
+        try {
+            Files.delete(source.getParent());
+            changed.add(source.getParent().getParent());
+        } catch (DirectoryNotEmptyException e) {
+            // other blobs or shard folders of the current layout are left there
+        }
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        Path blob = locate(key);
+        BlobStat stat = stat(key, blob);
+        return stat != null || blob.equals(resolve(key)) ? stat : stat(key, resolve(key));
+    }
+
+    private static BlobStat stat(String key, Path blob) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(blob, BasicFileAttributes.class);
+            return new BlobStat(key, attributes.size(), attributes.lastModifiedTime().toMillis(), blob.toString());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        return openFile(key);
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        int previous = previousLevels;
+        boolean deleted = Files.deleteIfExists(resolve(key));
+        return previous != 0 && Files.deleteIfExists(resolve(key, previous)) || deleted;
+    }
+
+    /**
+     * Lists the shard folders in name order, which is the key order, skipping those before {@code afterKey}; only
+     * one leaf folder is listed at a time. While the layout changes, both layouts are listed.
+     */
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        List<String> keys = new ArrayList<>(limit);
+        Path blobs = root.resolve(BLOB_FOLDER);
+        list(blobs, 0, shardLevels, afterKey, limit, keys);
+        int previous = previousLevels;
+        if (previous == 0) {
+            return keys;
+        }
+        List<String> unmoved = new ArrayList<>(limit);
+        list(blobs, 0, previous, afterKey, limit, unmoved);
+        Set<String> merged = new TreeSet<>(keys);
+        merged.addAll(unmoved);
+        return merged.stream().limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Adds the keys after {@code afterKey} under a shard folder, in key order, until there are {@code limit} keys.
+     *
+     * @param level    shard level of the folder, blobs are at level {@code levels}
+     * @param afterKey {@code null} if the whole folder is after the cursor
+     */
+    private static void list(Path folder, int level, int levels, String afterKey, int limit, List<String> keys)
+            throws IOException {
+        if (level == levels) {
+            for (String key : names(folder, afterKey == null ? "" : afterKey, KEY_LENGTH)) {
+                if (!key.equals(afterKey)) {
+                    keys.add(key);
+                    if (keys.size() == limit) {
+                        return;
+                    }
+                }
+            }
+            return;
+        }
+        String from = afterKey == null ? "" : afterKey.substring(level * 2, level * 2 + 2);
+        for (String shard : names(folder, from, 2)) {
+            list(folder.resolve(shard), level + 1, levels, shard.equals(from) ? afterKey : null, limit, keys);
+            if (keys.size() == limit) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blob files and shard folders of different layouts may share a folder; they are told apart by name length.
+     *
+     * @return sorted names of the folder entries from {@code from} on
+     */
+    private static List<String> names(Path folder, String from, int length) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return names;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.length() == length && name.compareTo(from) >= 0) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public Path getLocalPath(String key) {
+        return locate(key);
+    }
+}
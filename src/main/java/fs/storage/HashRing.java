@@ -0,0 +1,61 @@
+package fs.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of blob keys onto nodes. Every node takes {@code virtualNodes} points of the ring, so the keys
+ * are spread evenly and adding or removing a node only moves the keys of its points. The owners of a key are the
+ * first distinct nodes clockwise from the key.
+ */
+public class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final int nodeCount;
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("Ring needs nodes and virtual nodes, but was: " + nodes + "/"
+                    + virtualNodes);
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                byte[] hash = BlobIO.newDigest().digest((node + "#" + i).getBytes(StandardCharsets.UTF_8));
+                points.put(ByteBuffer.wrap(hash).getLong(), node);
+            }
+        }
+        this.nodeCount = nodes.size();
+    }
+
+    /**
+     * @param key SHA-256 of the content in hex, already spread evenly
+     * @return up to {@code count} distinct nodes, the primary owner first
+     */
+    public List<String> owners(String key, int count) {
+        long point = Long.parseUnsignedLong(key.substring(0, 16), 16);
+        Set<String> owners = new LinkedHashSet<>();
+        int wanted = Math.min(count, nodeCount);
+        if (!collect(points.tailMap(point).values(), owners, wanted)) {
+            collect(points.headMap(point).values(), owners, wanted);
+        }
+        return new ArrayList<>(owners);
+    }
+
+    /**
+     * @return whether there are enough owners
+     */
+    private static boolean collect(Collection<String> nodes, Set<String> owners, int wanted) {
+        for (String node : nodes) {
+            if (owners.size() == wanted) {
+                return true;
+            }
+            owners.add(node);
+        }
+        return owners.size() == wanted;
+    }
+}
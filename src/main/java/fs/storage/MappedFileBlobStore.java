@@ -0,0 +1,43 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * {@link FileBlobStore} layout with reads served from read-only memory mappings instead of file reads. Blobs larger
+ * than a single mapping can hold are read as plain files.
+ */
+public class MappedFileBlobStore extends FileBlobStore {
+    public MappedFileBlobStore(Path root) {
+        super(root);
+    }
+
+    public MappedFileBlobStore(Path root, Durability durability, Duration groupCommitWindow) {
+        super(root, durability, groupCommitWindow);
+    }
+
+    public MappedFileBlobStore(Path root, Durability durability, Duration groupCommitWindow, int shardLevels) {
+        super(root, durability, groupCommitWindow, shardLevels);
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        try (FileChannel file = openFile(key)) {
+            if (file.size() > Integer.MAX_VALUE) {
+                return super.open(key);
+            }
+            return new ByteBufferChannel(file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()));
+        }
+    }
+
+    /**
+     * No local path, so downloads are served from the mapping rather than by sendfile.
+     */
+    @Override
+    public Path getLocalPath(String key) {
+        return null;
+    }
+}
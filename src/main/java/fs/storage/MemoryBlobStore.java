@@ -0,0 +1,99 @@
+package fs.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Heap implementation for tests and benchmarks. Content is lost on restart, and so are the {@link PendingWrites}.
+ */
+public class MemoryBlobStore implements BlobStore {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Map<String, Entry> blobs = new ConcurrentHashMap<>();
+    private final PendingWrites writes = new PendingWrites();
+
+    private static class Entry {
+        private final byte[] content;
+        private final long lastModified = System.currentTimeMillis();
+
+        private Entry(byte[] content) {
+            this.content = content;
+        }
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        BlobDigest digest = new BlobDigest();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream source = content) {
+            for (int read = source.read(buffer); read >= 0; read = source.read(buffer)) {
+                digest.update(buffer, 0, read);
+                bytes.write(buffer, 0, read);
+            }
+        }
+        String key = digest.getKey();
+        writes.begin(key);
+        blobs.putIfAbsent(key, new Entry(bytes.toByteArray()));
+        return stat(key).withChecksum(digest.getChecksum());
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        try (InputStream content = Files.newInputStream(stagedFile)) {
+            return put(content);
+        } finally {
+            Files.deleteIfExists(stagedFile);
+        }
+    }
+
+    @Override
+    public BlobStat stat(String key) {
+        Entry entry = blobs.get(key);
+        return entry == null ? null : new BlobStat(key, entry.content.length, entry.lastModified, "memory:" + key);
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        Entry entry = blobs.get(key);
+        if (entry == null) {
+            throw new NoSuchFileException(key);
+        }
+        return new ByteBufferChannel(ByteBuffer.wrap(entry.content));
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return blobs.remove(key) != null;
+    }
+
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        return writes.deleteUnreferenced(key, isReferenced, this::delete);
+    }
+
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        writes.settle(key, committed, isReferenced, this::delete);
+    }
+
+    @Override
+    public List<String> list(String afterKey, int limit) {
+        return blobs.keySet().stream()
+                .filter(key -> afterKey == null || key.compareTo(afterKey) > 0)
+                .sorted()
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,572 @@
+package fs.storage;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Packs blobs of up to {@code maxBlobSize} bytes into append-only segment files under {@code folder}, in front of
+ * another store that keeps the larger ones. Millions of small blobs then share a few large files instead of taking an
+ * inode, a block and an open/close each.
+ * <p>
+ * A segment is a sequence of records: a header of a magic number, the record type, the binary key and the length of
+ * the content, followed by the content. A removal appends a tombstone record, which has the id of the segment the
+ * content was in instead of the length, and leaves the content in place. The offset/length index is kept in memory
+ * and rebuilt by scanning the segments when the store is created; a record torn by a crash is cut off. Blobs are read
+ * with positional reads of the shared segment channels. {@link #compact()} copies the live records of the sealed
+ * segment with the most garbage to the active one and removes it.
+ * <p>
+ * Packed writes are settled like the ones of a {@link FileBlobStore}, but aren't journaled: the packed blob of a
+ * write interrupted by a crash stays until the collector finds it unreferenced.
+ */
+@Log4j2
+public class PackedBlobStore implements BlobStore {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAGIC = 0x46535047;
+    private static final byte BLOB = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int KEY_BYTES = 32;
+    private static final int HEADER_SIZE = 4 + 1 + KEY_BYTES + 8;
+
+    private final BlobStore store;
+    private final Path folder;
+    private final Durability durability;
+    private final int maxBlobSize;
+    private final long maxSegmentSize;
+    private final double compactionRatio;
+
+    private final ConcurrentNavigableMap<String, Entry> index = new ConcurrentSkipListMap<>();
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    /**
+     * Writes of packed keys that aren't settled yet, by key; guarded by {@code this} like the fields below.
+     */
+    private final Map<String, Integer> pending = new HashMap<>();
+    /**
+     * Keys checked for removal: new writes of them wait until the check is over.
+     */
+    private final Set<String> discarding = new HashSet<>();
+    private Segment active;
+
+    private static final class Entry {
+        private final long segment;
+        private final long offset;
+        private final int length;
+        private final long lastModified;
+
+        private Entry(long segment, long offset, int length, long lastModified) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private volatile FileChannel channel;
+        /**
+         * End of the last complete record.
+         */
+        private volatile long size;
+        private long syncedSize;
+        private volatile boolean removed;
+        private final AtomicLong garbage = new AtomicLong();
+
+        private Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * A channel is closed for everybody when a thread using it is interrupted, so it's opened again.
+         */
+        private FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            return current.isOpen() ? current : reopen();
+        }
+
+        private synchronized FileChannel reopen() throws IOException {
+            if (removed) {
+                throw new NoSuchFileException(path.toString());
+            }
+            if (!channel.isOpen()) {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        private synchronized void remove() throws IOException {
+            removed = true;
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * @param maxBlobSize     larger blobs are kept by {@code store}
+     * @param maxSegmentSize  size a segment is sealed at
+     * @param compactionRatio share of garbage a sealed segment is compacted at
+     */
+    public PackedBlobStore(BlobStore store, Path folder, Durability durability, int maxBlobSize,
+                           long maxSegmentSize, double compactionRatio) throws IOException {
+        if (maxBlobSize < 0 || maxSegmentSize < HEADER_SIZE + (long) maxBlobSize || compactionRatio <= 0
+                || compactionRatio > 1) {
+            throw new IllegalArgumentException("Wrong limits of the packed blob store: " + maxBlobSize + "/"
+                    + maxSegmentSize + "/" + compactionRatio);
+        }
+        this.store = store;
+        this.folder = folder;
+        this.durability = durability;
+        this.maxBlobSize = maxBlobSize;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionRatio = compactionRatio;
+        load();
+    }
+
+    private Path segmentPath(long id) {
+        return folder.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Rebuilds the index from the segments in id order, so that later records win.
+     */
+    private void load() throws IOException {
+        Files.createDirectories(folder);
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        ids.sort(null);
+        for (Long id : ids) {
+            Segment segment = new Segment(id, segmentPath(id));
+            segments.put(id, segment);
+            scan(segment);
+            active = segment;
+        }
+        log.info("Load {} packed blobs from {} segments", index.size(), segments.size());
+    }
+
+    private void scan(Segment segment) throws IOException {
+        long lastModified = Files.getLastModifiedTime(segment.path).toMillis();
+        long fileSize = segment.channel.size(), position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            byte type = header.get();
+            byte[] key = new byte[KEY_BYTES];
+            header.get(key);
+            long value = header.getLong();
+            long length = type == BLOB ? value : 0;
+            if (magic != MAGIC || (type != BLOB && type != TOMBSTONE) || length < 0 || length > Integer.MAX_VALUE
+                    || position + HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            String hex = BlobIO.toHex(key);
+            if (type == BLOB) {
+                Entry previous = index.put(hex, new Entry(segment.id, position, (int) length, lastModified));
+                if (previous != null) {
+                    addGarbage(previous);
+                }
+            } else {
+                Entry removed = index.get(hex);
+                if (removed != null && removed.segment == value) {
+                    index.remove(hex);
+                    addGarbage(removed);
+                }
+                segment.garbage.addAndGet(HEADER_SIZE);
+            }
+            position += HEADER_SIZE + length;
+        }
+        if (position < fileSize) {
+            log.warn("Cut off a torn record of segment \"{}\" at {}", segment.path, position);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+        segment.syncedSize = position;
+    }
+
+    private void addGarbage(Entry entry) {
+        Segment segment = segments.get(entry.segment);
+        if (segment != null) {
+            segment.garbage.addAndGet(HEADER_SIZE + entry.length);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new EOFException("Segment ends before the record does");
+            }
+        }
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while (head.size() <= maxBlobSize
+                && (read = content.read(buffer, 0, Math.min(buffer.length, maxBlobSize + 1 - head.size()))) >= 0) {
+            head.write(buffer, 0, read);
+        }
+        if (head.size() <= maxBlobSize) {
+            return pack(head.toByteArray());
+        }
+        InputStream rest = new FilterInputStream(content) {
+            @Override
+            public void close() {
+                // the caller closes the content
+            }
+        };
+        return store.put(new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), rest));
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        if (Files.size(stagedFile) > maxBlobSize) {
+            return store.put(stagedFile);
+        }
+        BlobStat stat = pack(Files.readAllBytes(stagedFile));
+        Files.delete(stagedFile);
+        return stat;
+    }
+
+    /**
+     * Appends the content unless it's packed already. Concurrent writers share a sync of the segment.
+     */
+    private BlobStat pack(byte[] content) throws IOException {
+        BlobDigest digest = new BlobDigest();
+        digest.update(content, 0, content.length);
+        String key = digest.getKey();
+        Entry entry;
+        synchronized (this) {
+            while (discarding.contains(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while blob " + key + " is removed");
+                }
+            }
+            entry = index.get(key);
+            if (entry == null) {
+                entry = append(BLOB, key, content.length, content);
+                index.put(key, entry);
+            }
+            pending.merge(key, 1, Integer::sum);
+        }
+        try {
+            sync(segments.get(entry.segment), entry.offset + HEADER_SIZE + entry.length);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                unpend(key);
+            }
+            throw e;
+        }
+        return stat(key, entry).withChecksum(digest.getChecksum());
+    }
+
+    /**
+     * Called under the lock of the store, so the records are appended one by one.
+     *
+     * @param value length of the content, or id of the segment the removed content is in
+     */
+    private Entry append(byte type, String key, long value, byte[] content) throws IOException {
+        int length = content == null ? 0 : content.length;
+        if (active == null || active.size > 0 && active.size + HEADER_SIZE + length > maxSegmentSize) {
+            long id = active == null ? 1 : active.id + 1;
+            active = new Segment(id, segmentPath(id));
+            segments.put(id, active);
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putInt(MAGIC).put(type).put(BlobIO.fromHex(key)).putLong(value);
+        if (content != null) {
+            record.put(content);
+        }
+        record.flip();
+        long offset = active.size;
+        FileChannel channel = active.channel();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        active.size = offset + record.limit();
+        return new Entry(active.id, offset, length, System.currentTimeMillis());
+    }
+
+    /**
+     * A sync covers every record appended before it, so writers that waited for it are done as well.
+     */
+    private void sync(Segment segment, long end) throws IOException {
+        if (durability == Durability.NONE || segment == null) {
+            return;
+        }
+        synchronized (segment) {
+            if (segment.syncedSize < end && !segment.removed) {
+                long size = segment.size;
+                segment.channel().force(false);
+                segment.syncedSize = size;
+            }
+        }
+    }
+
+    /**
+     * @return whether a write of the key was pending
+     */
+    private boolean unpend(String key) {
+        Integer count = pending.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            pending.remove(key);
+        } else {
+            pending.put(key, count - 1);
+        }
+        return true;
+    }
+
+    private BlobStat stat(String key, Entry entry) {
+        return new BlobStat(key, entry.length, entry.lastModified, segmentPath(entry.segment) + "@" + entry.offset);
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        Entry entry = index.get(key);
+        return entry != null ? stat(key, entry) : store.stat(key);
+    }
+
+    /**
+     * The content is read whole, it's small. A read that finds its segment compacted meanwhile looks the blob up
+     * again.
+     */
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return store.open(key);
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new ByteBufferChannel(read(entry));
+            } catch (ClosedChannelException | NoSuchFileException e) {
+                Entry current = index.get(key);
+                if (attempt > 0 || current == null || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                entry = current;
+            }
+        }
+    }
+
+    private ByteBuffer read(Entry entry) throws IOException {
+        Segment segment = segments.get(entry.segment);
+        if (segment == null) {
+            throw new NoSuchFileException(segmentPath(entry.segment).toString());
+        }
+        ByteBuffer content = ByteBuffer.allocate(entry.length);
+        readFully(segment.channel(), content, entry.offset + HEADER_SIZE);
+        content.flip();
+        return content;
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        return deletePacked(key) | store.delete(key);
+    }
+
+    private boolean deletePacked(String key) throws IOException {
+        Entry tombstone;
+        synchronized (this) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return false;
+            }
+            tombstone = append(TOMBSTONE, key, entry.segment, null);
+            index.remove(key);
+            addGarbage(entry);
+            segments.get(tombstone.segment).garbage.addAndGet(HEADER_SIZE);
+        }
+        sync(segments.get(tombstone.segment), tombstone.offset + HEADER_SIZE);
+        return true;
+    }
+
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        if (!index.containsKey(key)) {
+            return store.deleteUnreferenced(key, isReferenced);
+        }
+        synchronized (this) {
+            if (pending.containsKey(key) || !discarding.add(key)) {
+                return false;
+            }
+        }
+        return discard(key, isReferenced);
+    }
+
+    /**
+     * The reference check runs outside of the lock of the store, it may wait for a DB connection.
+     */
+    private boolean discard(String key, Predicate<String> isReferenced) throws IOException {
+        try {
+            return !isReferenced.test(key) && deletePacked(key);
+        } finally {
+            synchronized (this) {
+                discarding.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        synchronized (this) {
+            if (unpend(key)) {
+                if (committed || pending.containsKey(key) || !discarding.add(key)) {
+                    return;
+                }
+            } else {
+                key = null;
+            }
+        }
+        if (key == null) {
+            return;
+        }
+        if (discard(key, isReferenced)) {
+            log.info("Remove packed blob {} of a rolled back write", key);
+        }
+    }
+
+    /**
+     * The segments were loaded when the store was created.
+     */
+    @Override
+    public void recover(Predicate<String> isReferenced) throws IOException {
+        store.recover(isReferenced);
+    }
+
+    /**
+     * A key kept by both stores is listed once.
+     */
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        TreeSet<String> keys = new TreeSet<>(store.list(afterKey, limit));
+        for (String key : afterKey == null ? index.keySet() : index.tailMap(afterKey, false).keySet()) {
+            if (keys.size() >= limit && key.compareTo(keys.last()) > 0) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys.stream().limit(limit).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<String> relayout(String afterKey, int limit) throws IOException {
+        return store.relayout(afterKey, limit);
+    }
+
+    /**
+     * Compacts the sealed segment with the largest share of garbage, if it's at least {@code compactionRatio}. Each
+     * live record is copied under the lock of the store, so that a removal of the blob can't slip in between; the
+     * tombstones are kept as long as the segment of the content they removed exists.
+     */
+    @Override
+    public long compact() throws IOException {
+        Segment victim = null;
+        double ratio = compactionRatio;
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                double garbage = segment.size == 0 ? 1 : (double) segment.garbage.get() / segment.size;
+                if (segment != active && garbage >= ratio) {
+                    victim = segment;
+                    ratio = garbage;
+                }
+            }
+        }
+        if (victim == null) {
+            return 0;
+        }
+        long position = 0, copied = 0;
+        // end of the copies in every segment they went to, the active one may roll over during the copy
+        Map<Long, Long> copiedTo = new HashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position < victim.size) {
+            header.clear();
+            readFully(victim.channel(), header, position);
+            header.flip();
+            header.position(4);
+            byte type = header.get();
+            byte[] keyBytes = new byte[KEY_BYTES];
+            header.get(keyBytes);
+            long value = header.getLong();
+            String key = BlobIO.toHex(keyBytes);
+            synchronized (this) {
+                if (type == BLOB) {
+                    Entry entry = index.get(key);
+                    if (entry != null && entry.segment == victim.id && entry.offset == position) {
+                        byte[] content = read(entry).array();
+                        Entry moved = append(BLOB, key, content.length, content);
+                        index.put(key, new Entry(moved.segment, moved.offset, moved.length, entry.lastModified));
+                        copiedTo.put(moved.segment, moved.offset + HEADER_SIZE + moved.length);
+                        copied += HEADER_SIZE + content.length;
+                    }
+                } else if (value != victim.id && segments.containsKey(value)) {
+                    Entry tombstone = append(TOMBSTONE, key, value, null);
+                    segments.get(tombstone.segment).garbage.addAndGet(HEADER_SIZE);
+                    copiedTo.put(tombstone.segment, tombstone.offset + HEADER_SIZE);
+                    copied += HEADER_SIZE;
+                }
+            }
+            position += HEADER_SIZE + (type == BLOB ? value : 0);
+        }
+        for (Map.Entry<Long, Long> target : copiedTo.entrySet()) {
+            sync(segments.get(target.getKey()), target.getValue());
+        }
+        segments.remove(victim.id);
+        victim.remove();
+        log.info("Compact segment \"{}\": {} bytes copied, {} reclaimed", victim.path, copied, victim.size - copied);
+        return Math.max(victim.size - copied, 1);
+    }
+
+    @Override
+    public Path getLocalPath(String key) {
+        return index.containsKey(key) ? null : store.getLocalPath(key);
+    }
+}
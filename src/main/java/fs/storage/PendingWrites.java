@@ -0,0 +1,105 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Writes of a store without a {@link BlobJournal}, counted in memory from {@code put} until they are settled, so that
+ * a blob isn't removed as unreferenced while the row of a write of it may still be committed. The reference check can
+ * only see committed rows: a write that stores content again re-registers its row after the row was removed.
+ * <p>
+ * The counts are lost on restart, as are the uncommitted rows they stand for.
+ */
+final class PendingWrites {
+    private final Map<String, Integer> pending = new HashMap<>();
+    private final Set<String> discarding = new HashSet<>();
+
+    @FunctionalInterface
+    interface Removal {
+        boolean delete(String key) throws IOException;
+    }
+
+    /**
+     * Counts a write of the key, to be called before the store checks for the blob; waits for a removal of the key in
+     * progress, so that the write stores it again.
+     */
+    synchronized void begin(String key) throws InterruptedIOException {
+        while (discarding.contains(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while blob " + key + " is removed");
+            }
+        }
+        pending.merge(key, 1, Integer::sum);
+    }
+
+    /**
+     * Ends a write of the key that failed, nothing references its blob then.
+     */
+    synchronized void abort(String key) {
+        unpend(key);
+    }
+
+    /**
+     * @see BlobStore#deleteUnreferenced(String, Predicate)
+     */
+    boolean deleteUnreferenced(String key, Predicate<String> isReferenced, Removal removal) throws IOException {
+        synchronized (this) {
+            if (pending.containsKey(key) || !discarding.add(key)) {
+                return false;
+            }
+        }
+        return discard(key, isReferenced, removal);
+    }
+
+    /**
+     * @return whether the blob of a rolled back write was removed
+     * @see BlobStore#settle(String, boolean, Predicate)
+     */
+    boolean settle(String key, boolean committed, Predicate<String> isReferenced, Removal removal)
+            throws IOException {
+        synchronized (this) {
+            if (!unpend(key) || committed || pending.containsKey(key) || !discarding.add(key)) {
+                return false;
+            }
+        }
+        return discard(key, isReferenced, removal);
+    }
+
+    /**
+     * The reference check runs outside of the lock, it may wait for a DB connection.
+     */
+    private boolean discard(String key, Predicate<String> isReferenced, Removal removal) throws IOException {
+        try {
+            return !isReferenced.test(key) && removal.delete(key);
+        } finally {
+            synchronized (this) {
+                discarding.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return whether a write of the key was pending
+     */
+    private boolean unpend(String key) {
+        Integer count = pending.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            pending.remove(key);
+        } else {
+            pending.put(key, count - 1);
+        }
+        return true;
+    }
+}
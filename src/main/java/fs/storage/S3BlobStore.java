@@ -0,0 +1,241 @@
+package fs.storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * S3-compatible implementation (AWS S3, MinIO, ...). Uploads are spooled to a local staging folder while being
+ * hashed, because the object key is the content hash, and then sent with a known length. Reads are ranged GETs.
+ * <p>
+ * Storing content again doesn't touch its object, so writes are tracked as {@link PendingWrites} until they are
+ * settled, to keep the collector from removing an object whose new row isn't committed yet.
+ */
+public class S3BlobStore implements BlobStore {
+    private static final int NOT_FOUND = 404;
+    private static final String BLOB_PREFIX = "blobs/";
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final Path stagingFolder;
+    private final PendingWrites writes = new PendingWrites();
+
+    public S3BlobStore(AmazonS3 s3, String bucket, Path stagingFolder) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.stagingFolder = stagingFolder;
+    }
+
+    private static String objectKey(String key) {
+        return BLOB_PREFIX + BlobIO.shard(key, "/");
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        Files.createDirectories(stagingFolder);
+        Path file = stagingFolder.resolve(UUID.randomUUID().toString());
+        BlobDigest digest = new BlobDigest();
+        try {
+            try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                BlobIO.copy(content, target, 0, Long.MAX_VALUE, digest);
+            }
+            return upload(file, digest);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        try {
+            return upload(stagedFile, BlobIO.digest(stagedFile));
+        } finally {
+            Files.deleteIfExists(stagedFile);
+        }
+    }
+
+    private BlobStat upload(Path file, BlobDigest digest) throws IOException {
+        String key = digest.getKey();
+        writes.begin(key);
+        try {
+            BlobStat stat = stat(key);
+            if (stat == null) {
+                s3.putObject(bucket, objectKey(key), file.toFile());
+                stat = stat(key);
+            }
+            return stat.withChecksum(digest.getChecksum());
+        } catch (RuntimeException e) {
+            writes.abort(key);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        return writes.deleteUnreferenced(key, isReferenced, this::delete);
+    }
+
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        writes.settle(key, committed, isReferenced, this::delete);
+    }
+
+    @Override
+    public BlobStat stat(String key) {
+        try {
+            ObjectMetadata metadata = s3.getObjectMetadata(bucket, objectKey(key));
+            return new BlobStat(key, metadata.getContentLength(), metadata.getLastModified().getTime(),
+                    "s3://" + bucket + "/" + objectKey(key));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        BlobStat stat = stat(key);
+        if (stat == null) {
+            throw new NoSuchFileException(key);
+        }
+        return new ObjectChannel(objectKey(key), stat.getSize());
+    }
+
+    @Override
+    public boolean delete(String key) {
+        if (stat(key) == null) {
+            return false;
+        }
+        s3.deleteObject(bucket, objectKey(key));
+        return true;
+    }
+
+    /**
+     * Object keys are the shard paths of the blob keys, so the listing order of the bucket is the key order.
+     */
+    @Override
+    public List<String> list(String afterKey, int limit) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucket)
+                .withPrefix(BLOB_PREFIX)
+                .withMaxKeys(limit);
+        if (afterKey != null) {
+            request.setStartAfter(objectKey(afterKey));
+        }
+        return s3.listObjectsV2(request).getObjectSummaries().stream()
+                .map(summary -> summary.getKey().substring(summary.getKey().lastIndexOf('/') + 1))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Read-only channel over an object: a ranged GET is opened from the current position on first read and kept
+     * while reads stay sequential.
+     */
+    private class ObjectChannel implements SeekableByteChannel {
+        private final String objectKey;
+        private final long size;
+        private long position;
+        private S3Object object;
+        private ReadableByteChannel stream;
+        private boolean open = true;
+
+        private ObjectChannel(String objectKey, long size) {
+            this.objectKey = objectKey;
+            this.size = size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= size) {
+                return -1;
+            }
+            if (stream == null) {
+                object = s3.getObject(new GetObjectRequest(bucket, objectKey).withRange(position, size - 1));
+                stream = Channels.newChannel(object.getObjectContent());
+            }
+            int read = stream.read(dst);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            if (newPosition != position) {
+                closeStream();
+                position = newPosition;
+            }
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            closeStream();
+        }
+
+        private void closeStream() throws IOException {
+            if (object != null) {
+                if (position < size) {
+                    // abort instead of draining the rest of the range
+                    object.getObjectContent().abort();
+                }
+                object.close();
+                object = null;
+                stream = null;
+            }
+        }
+    }
+}
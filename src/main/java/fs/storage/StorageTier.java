@@ -0,0 +1,9 @@
+package fs.storage;
+
+/**
+ * Tiers of a {@link TieredBlobStore}: new blobs go to the fast {@code HOT} tier, blobs nobody reads are moved to the
+ * cheap {@code COLD} one.
+ */
+public enum StorageTier {
+    HOT, COLD
+}
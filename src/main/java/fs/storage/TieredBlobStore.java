@@ -0,0 +1,168 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the blobs in two stores: new blobs are written to the {@code hot} one on fast disks, and the caller moves
+ * those nobody reads to the {@code cold} one and back ({@link fs.service.impl.StoreTiering}). A blob keeps its key in
+ * both tiers, so it's read from the hot tier if it's there and from the cold one otherwise; while a blob moves, it's
+ * briefly kept by both.
+ */
+public class TieredBlobStore implements BlobStore {
+    private final BlobStore hot;
+    private final BlobStore cold;
+
+    public TieredBlobStore(BlobStore hot, BlobStore cold) {
+        this.hot = hot;
+        this.cold = cold;
+    }
+
+    private BlobStore tier(StorageTier tier) {
+        return tier == StorageTier.COLD ? cold : hot;
+    }
+
+    @Override
+    public BlobStat put(InputStream content) throws IOException {
+        return hot.put(content);
+    }
+
+    @Override
+    public BlobStat put(Path stagedFile) throws IOException {
+        return hot.put(stagedFile);
+    }
+
+    @Override
+    public BlobStat put(InputStream content, StorageTier tier) throws IOException {
+        return tier(tier).put(content);
+    }
+
+    /**
+     * Files are staged on the hot disk: the cold tier copies them, as they can't be moved across disks atomically.
+     */
+    @Override
+    public BlobStat put(Path stagedFile, StorageTier tier) throws IOException {
+        if (tier == StorageTier.HOT) {
+            return hot.put(stagedFile);
+        }
+        try (InputStream content = Files.newInputStream(stagedFile)) {
+            return cold.put(content);
+        } finally {
+            Files.deleteIfExists(stagedFile);
+        }
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        BlobStat stat = hot.stat(key);
+        return stat != null ? stat : cold.stat(key);
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        try {
+            return hot.open(key);
+        } catch (NoSuchFileException e) {
+            return cold.open(key);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        return hot.delete(key) | cold.delete(key);
+    }
+
+    @Override
+    public boolean delete(String key, StorageTier tier) throws IOException {
+        return tier(tier).delete(key);
+    }
+
+    @Override
+    public boolean deleteUnreferenced(String key, Predicate<String> isReferenced) throws IOException {
+        return hot.deleteUnreferenced(key, isReferenced) | cold.deleteUnreferenced(key, isReferenced);
+    }
+
+    /**
+     * A key kept by both tiers is listed once.
+     */
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        Set<String> keys = new TreeSet<>(hot.list(afterKey, limit));
+        keys.addAll(cold.list(afterKey, limit));
+        return keys.stream().limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * The hot tier is moved first. The cold one is moved once the hot one returns nothing; its pass may start after
+     * the cursor of the last hot page, the keys before it are moved by the next pass.
+     */
+    @Override
+    public List<String> relayout(String afterKey, int limit) throws IOException {
+        List<String> keys = hot.relayout(afterKey, limit);
+        return keys.isEmpty() ? cold.relayout(afterKey, limit) : keys;
+    }
+
+    @Override
+    public long compact() throws IOException {
+        long reclaimed = hot.compact();
+        return reclaimed > 0 ? reclaimed : cold.compact();
+    }
+
+    /**
+     * The write went to one of the tiers; the other one has nothing pending for the key and keeps its copy unless
+     * the write was rolled back and nothing references the key.
+     */
+    @Override
+    public void settle(String key, boolean committed, Predicate<String> isReferenced) throws IOException {
+        try {
+            hot.settle(key, committed, isReferenced);
+        } finally {
+            cold.settle(key, committed, isReferenced);
+        }
+    }
+
+    /**
+     * A tier doesn't need its copy of a blob that the other tier keeps: it's dropped if its write didn't settle, and
+     * isn't reported as lost if it moved.
+     */
+    @Override
+    public void recover(Predicate<String> isReferenced) throws IOException {
+        try {
+            hot.recover(key -> isReferenced.test(key) && !keeps(cold, key));
+            cold.recover(key -> isReferenced.test(key) && !keeps(hot, key));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean keeps(BlobStore tier, String key) {
+        try {
+            return tier.stat(key) != null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Either tier may keep the blob other than as a plain file.
+     */
+    @Override
+    public Path getLocalPath(String key) {
+        Path path = hot.getLocalPath(key);
+        if (path != null && Files.exists(path)) {
+            return path;
+        }
+        path = cold.getLocalPath(key);
+        return path != null && Files.exists(path) ? path : null;
+    }
+}
@@ -0,0 +1,96 @@
+package fs.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only view of a blob that checks its CRC32C as it's read from the beginning to the end. If the checksum doesn't
+ * match, the read that reaches the end takes its bytes back and throws {@link CorruptedBlobException}, so a corrupted
+ * blob is never sent complete. Positioning the channel anywhere but where the check is turns the check off, back to
+ * the beginning starts it over.
+ */
+public class VerifyingChannel implements SeekableByteChannel {
+    private final SeekableByteChannel source;
+    private final String key;
+    private final long checksum;
+    private final long size;
+    private final Crc32c crc = new Crc32c();
+    /**
+     * Bytes checked so far, {@code -1} once the check is off.
+     */
+    private long checked;
+
+    /**
+     * @param source   stored blob, positioned at its beginning
+     * @param checksum CRC32C of the stored data
+     */
+    public VerifyingChannel(SeekableByteChannel source, String key, long checksum) throws IOException {
+        this.source = source;
+        this.key = key;
+        this.checksum = checksum;
+        this.size = source.size();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int read = source.read(dst);
+        if (read <= 0 || checked < 0) {
+            return read;
+        }
+        ByteBuffer bytes = dst.duplicate();
+        bytes.limit(dst.position()).position(start);
+        crc.update(bytes);
+        checked += read;
+        if (checked == size && crc.getValue() != checksum) {
+            dst.position(start);
+            throw new CorruptedBlobException(String.format("Blob %s is corrupted: its CRC32C is %08x instead of %08x",
+                    key, crc.getValue(), checksum));
+        }
+        return read;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return source.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        source.position(newPosition);
+        if (newPosition == 0) {
+            crc.reset();
+            checked = 0;
+        } else if (newPosition != checked) {
+            checked = -1;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
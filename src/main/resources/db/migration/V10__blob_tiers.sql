@@ -0,0 +1,5 @@
+ALTER TABLE blobs ADD COLUMN tier VARCHAR(16) DEFAULT 'HOT' NOT NULL;
+-- Blobs stored before the access was tracked count as read now, so that they aren't all demoted at once
+ALTER TABLE blobs ADD COLUMN last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP;
+-- Blobs of a tier not read since a point in time, walked by hash
+CREATE INDEX blobs_tier_access_idx ON blobs (tier, last_access);
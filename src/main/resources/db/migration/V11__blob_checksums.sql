@@ -0,0 +1,2 @@
+-- CRC32C of the stored data; unknown for the blobs stored before, the scrubber fills it in
+ALTER TABLE blobs ADD COLUMN checksum BIGINT;
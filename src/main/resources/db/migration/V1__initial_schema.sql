@@ -0,0 +1,22 @@
+-- Schema as created by Hibernate ddl-auto before migrations were introduced; existing databases are baselined at
+-- this version (spring.flyway.baseline-on-migrate).
+CREATE SEQUENCE hibernate_sequence START WITH 1 INCREMENT BY 1;
+
+CREATE TABLE users
+(
+    id       BIGINT NOT NULL,
+    password VARCHAR(255),
+    username VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE file_item
+(
+    id      BIGINT       NOT NULL,
+    fs_path VARCHAR(255),
+    name    VARCHAR(255) NOT NULL,
+    version BIGINT,
+    user_id BIGINT       NOT NULL,
+    PRIMARY KEY (id),
+    CONSTRAINT file_item_owner_fk FOREIGN KEY (user_id) REFERENCES users
+);
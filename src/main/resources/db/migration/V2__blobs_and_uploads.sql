@@ -0,0 +1,31 @@
+-- Content-addressed blobs the files reference by hash
+CREATE TABLE blobs
+(
+    hash      VARCHAR(255) NOT NULL,
+    ref_count BIGINT,
+    size      BIGINT,
+    PRIMARY KEY (hash)
+);
+ALTER TABLE file_item ADD COLUMN hash VARCHAR(255);
+
+-- Resumable uploads and their received chunks
+CREATE TABLE upload_session
+(
+    id         VARCHAR(255) NOT NULL,
+    chunk_size INTEGER,
+    fs_path    VARCHAR(255),
+    name       VARCHAR(255) NOT NULL,
+    size       BIGINT,
+    user_id    BIGINT       NOT NULL,
+    PRIMARY KEY (id),
+    CONSTRAINT upload_session_owner_fk FOREIGN KEY (user_id) REFERENCES users
+);
+
+CREATE TABLE upload_chunk
+(
+    id          BIGINT       NOT NULL,
+    chunk_index INTEGER      NOT NULL,
+    upload_id   VARCHAR(255) NOT NULL,
+    PRIMARY KEY (id),
+    CONSTRAINT upload_chunk_index_uk UNIQUE (upload_id, chunk_index)
+);
@@ -0,0 +1,8 @@
+-- Login by username
+CREATE UNIQUE INDEX users_username_idx ON users (username);
+-- Files of a user, in keyset order
+CREATE INDEX file_item_owner_idx ON file_item (user_id, id);
+-- Blob reference lookups by content hash
+CREATE INDEX file_item_hash_idx ON file_item (hash);
+-- Uploads of a user (FK column)
+CREATE INDEX upload_session_owner_idx ON upload_session (user_id);
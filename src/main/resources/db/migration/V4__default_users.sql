@@ -0,0 +1,3 @@
+MERGE INTO users (id, username, password) KEY (id)
+VALUES (1, 'user1', '{noop}user_1'),
+       (2, 'user2', '{noop}user_2');
@@ -0,0 +1,12 @@
+CREATE TABLE file_share
+(
+    id      BIGINT NOT NULL,
+    file_id BIGINT NOT NULL,
+    user_id BIGINT NOT NULL,
+    PRIMARY KEY (id),
+    CONSTRAINT file_share_file_fk FOREIGN KEY (file_id) REFERENCES file_item,
+    CONSTRAINT file_share_user_fk FOREIGN KEY (user_id) REFERENCES users,
+    CONSTRAINT file_share_uk UNIQUE (file_id, user_id)
+);
+-- Files shared with a user, in keyset order
+CREATE INDEX file_share_user_idx ON file_share (user_id, file_id);
@@ -0,0 +1,2 @@
+ALTER TABLE blobs ADD COLUMN encoding VARCHAR(255);
+ALTER TABLE blobs ADD COLUMN encoded_key VARCHAR(255);
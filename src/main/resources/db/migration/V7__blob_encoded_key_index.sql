@@ -0,0 +1,2 @@
+-- Blob lookups by blob store key of encoded content
+CREATE INDEX blobs_encoded_key_idx ON blobs (encoded_key);
@@ -0,0 +1,4 @@
+-- Blobs no file references any more, walked by hash
+CREATE INDEX blobs_ref_count_idx ON blobs (ref_count, hash);
+-- Legacy files looked up by their local path
+CREATE INDEX file_item_fs_path_idx ON file_item (fs_path);
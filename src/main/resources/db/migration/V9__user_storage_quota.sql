@@ -0,0 +1,2 @@
+-- Per-user storage quota in bytes, the configured default applies when null
+ALTER TABLE users ADD COLUMN storage_quota BIGINT;
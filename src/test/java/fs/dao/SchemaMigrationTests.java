@@ -0,0 +1,84 @@
+package fs.dao;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Schema migrations")
+class SchemaMigrationTests {
+
+    private static String createDatabase() {
+        return "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+    }
+
+    private static void migrate(String url) {
+        Flyway.configure().dataSource(url, "admin", "").baselineOnMigrate(true).load().migrate();
+    }
+
+    private static Set<String> query(String url, String sql) throws SQLException {
+        Set<String> rows = new HashSet<>();
+        try (Connection connection = DriverManager.getConnection(url, "admin", "");
+             Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery(sql)) {
+            while (result.next()) {
+                rows.add(result.getString(1));
+            }
+        }
+        return rows;
+    }
+
+    private static Set<String> columns(String url) throws SQLException {
+        return query(url, "SELECT TABLE_NAME || '.' || COLUMN_NAME || ' ' || TYPE_NAME || ' ' || IS_NULLABLE"
+                + " FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC'"
+                + " AND TABLE_NAME <> 'flyway_schema_history'");
+    }
+
+    private static Set<String> indexes(String url) throws SQLException {
+        return query(url, "SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = 'PUBLIC'");
+    }
+
+    @Test
+    @DisplayName("Test a database created by ddl-auto is baselined and migrated to the schema of a new one")
+    void testMigrateDdlAutoDatabase() throws SQLException {
+        String created = createDatabase();
+        migrate(created);
+
+        String upgraded = createDatabase();
+        try (Connection connection = DriverManager.getConnection(upgraded, "admin", "");
+             Statement statement = connection.createStatement()) {
+            // as Hibernate ddl-auto created it before migrations were introduced
+            statement.execute("CREATE SEQUENCE hibernate_sequence START WITH 1 INCREMENT BY 1");
+            statement.execute("CREATE TABLE users (id BIGINT NOT NULL, password VARCHAR(255),"
+                    + " username VARCHAR(255), PRIMARY KEY (id))");
+            statement.execute("CREATE TABLE file_item (id BIGINT NOT NULL, fs_path VARCHAR(255),"
+                    + " name VARCHAR(255) NOT NULL, version BIGINT, user_id BIGINT NOT NULL, PRIMARY KEY (id))");
+            statement.execute("ALTER TABLE file_item ADD CONSTRAINT FKq2b7m6ojv3p6gxeudmqx0ybmd"
+                    + " FOREIGN KEY (user_id) REFERENCES users");
+            statement.execute("INSERT INTO users (id, username, password) VALUES (1, 'user1', '{noop}user_1')");
+            statement.execute("INSERT INTO file_item (id, fs_path, name, version, user_id)"
+                    + " VALUES (3, '/files/a', 'a', 0, 1)");
+        }
+        migrate(upgraded);
+
+        assertEquals(columns(created), columns(upgraded));
+        Set<String> indexes = indexes(upgraded);
+        for (String index : indexes(created)) {
+            if (index.endsWith("_IDX")) {
+                assertTrue(indexes.contains(index), index);
+            }
+        }
+        assertTrue(indexes.contains("FILE_ITEM_OWNER_IDX"));
+        assertEquals(1, query(upgraded, "SELECT fs_path FROM file_item WHERE user_id = 1").size());
+    }
+}
@@ -0,0 +1,198 @@
+package fs.mvc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The fake streams accept or return a single packet and then report that they aren't ready, so every step goes
+ * through the container callback as it does with a slow client.
+ */
+@DisplayName("Non-blocking file transfers")
+class AsyncFileTransferTests {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final byte[] content = new byte[3 * AsyncFileSender.BUFFER_SIZE + 100];
+    private Path folder;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        new Random(1).nextBytes(content);
+        folder = Files.createTempDirectory("transfer");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(folder);
+    }
+
+    @Test
+    @DisplayName("AsyncFileSender sends a part of the file as the client takes it")
+    void testSend() throws Exception {
+        Path file = Files.write(folder.resolve("blob"), content);
+        SlowOutputStream out = new SlowOutputStream();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAsyncSupported(true);
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return out;
+            }
+        };
+
+        AsyncFileSender.send(request, response, file, 10, content.length - 20);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (request.isAsyncStarted() && System.currentTimeMillis() < deadline) {
+            out.resume();
+            Thread.sleep(1);
+        }
+
+        assertFalse(request.isAsyncStarted());
+        assertArrayEquals(Arrays.copyOfRange(content, 10, content.length - 10), out.bytes.toByteArray());
+    }
+
+    @Test
+    @DisplayName("AsyncFileReceiver writes the body as the client sends it")
+    void testReceive() throws Exception {
+        SlowInputStream in = new SlowInputStream(content);
+        Path target = folder.resolve("upload");
+
+        CompletableFuture<Path> received = AsyncFileReceiver.receive(in, target);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!received.isDone() && System.currentTimeMillis() < deadline) {
+            in.resume();
+            Thread.sleep(1);
+        }
+
+        assertTrue(received.isDone());
+        assertArrayEquals(content, Files.readAllBytes(received.get(0, TimeUnit.MILLISECONDS)));
+    }
+
+    private static class SlowOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private volatile boolean ready = true;
+        private volatile boolean waiting;
+
+        @Override
+        public boolean isReady() {
+            waiting = !ready;
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            this.listener = listener;
+            waiting = true;
+            ready = false;
+        }
+
+        /**
+         * The container side: calls back once the stream said it isn't ready.
+         */
+        void resume() throws IOException {
+            if (waiting) {
+                waiting = false;
+                ready = true;
+                listener.onWritePossible();
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+            ready = false;
+        }
+    }
+
+    private static class SlowInputStream extends ServletInputStream {
+        private static final int PACKET_SIZE = 7000;
+
+        private final byte[] data;
+        private int position;
+        private ReadListener listener;
+        private volatile boolean ready;
+        private volatile boolean waiting;
+
+        SlowInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position == data.length;
+        }
+
+        @Override
+        public boolean isReady() {
+            waiting = !ready;
+            return ready;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            this.listener = listener;
+            waiting = true;
+        }
+
+        void resume() throws IOException {
+            if (waiting) {
+                waiting = false;
+                ready = true;
+                if (isFinished()) {
+                    listener.onAllDataRead();
+                } else {
+                    listener.onDataAvailable();
+                }
+            }
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (isFinished()) {
+                return -1;
+            }
+            int read = Math.min(Math.min(len, PACKET_SIZE), data.length - position);
+            System.arraycopy(data, position, b, off, read);
+            position += read;
+            ready = false;
+            return read;
+        }
+    }
+}
@@ -1,35 +1,80 @@
 package fs.mvc;
 
 import fs.FileStorageApplication;
+import fs.dao.UserRepository;
+import fs.domain.Blob;
 import fs.domain.FileItem;
+import fs.mvc.dto.FileItemDTO;
 import fs.service.StorageService;
+import fs.storage.BlobCodec;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import fs.storage.CorruptedBlobException;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.MockMvcPrint;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
-import static org.hamcrest.Matchers.equalTo;
-import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.verify;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
-@AutoConfigureMockMvc
+// async handlers write the response on their own threads, printing it from the test thread would race with them
+@AutoConfigureMockMvc(print = MockMvcPrint.NONE)
 @SpringBootTest
 @ExtendWith(SpringExtension.class)
 @ContextConfiguration(classes = {FileStorageApplication.class})
@@ -37,6 +82,13 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 class FileStorageControllerTests {
     private static final String GET_ALL_FILES_URL = "/api/v1/fileStorage/all";
     private static final String DOWNLOAD_FILE_URL = "/api/v1/fileStorage/downloadFile/%s";
+    private static final String FILES_URL = "/api/v1/fileStorage/files";
+    private static final String UPLOAD_FILE_URL = "/api/v1/fileStorage/uploadFile";
+    private static final String DOWNLOAD_FILES_URL = "/api/v1/fileStorage/downloadFiles";
+    private static final String UPLOAD_FILES_URL = "/api/v1/fileStorage/uploadFiles";
+    private static final String DECODED_HASH = "84d89877f0d4041efb6bf91a16f0248f2fd573e6af05c19f96bedb9f882f7882";
+
+    private static final long ASYNC_WAIT_MILLIS = 5000;
 
     @Autowired
     private MockMvc mvc;
@@ -44,11 +96,28 @@ class FileStorageControllerTests {
     @MockBean
     private StorageService storageService;
 
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+        // async requests have no timeout, so the wait must be explicit
+        result.getAsyncResult(ASYNC_WAIT_MILLIS);
+        // the result is set before the handler thread is done with the request, dispatching it is the last step
+        CountDownLatch dispatched = new CountDownLatch(1);
+        ((MockAsyncContext) result.getRequest().getAsyncContext()).addDispatchHandler(dispatched::countDown);
+        assertTrue(dispatched.await(ASYNC_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        return this.mvc.perform(asyncDispatch(result));
+    }
+
     @Test
     @WithMockUser
     @DisplayName("FileStorageController.loadAll with null data returned from the service")
     void testGetAllWithNullData() throws Exception {
-        given(this.storageService.loadAll()).willReturn(null);
+        given(this.storageService.loadPage(isNull(), anyInt())).willReturn(null);
         this.mvc
                 .perform(get(GET_ALL_FILES_URL))
                 .andExpect(status().isOk())
@@ -59,7 +128,7 @@ class FileStorageControllerTests {
     @WithMockUser
     @DisplayName("Test FileStorageController.loadAll with empty array data returned from the service")
     void testGetAllWithEmptyData() throws Exception {
-        given(this.storageService.loadAll()).willReturn(Collections.emptyList());
+        given(this.storageService.loadPage(isNull(), anyInt())).willReturn(Collections.emptyList());
         this.mvc.perform(get(GET_ALL_FILES_URL))
                 .andExpect(status().isOk())
                 .andExpect(content().string("[]"));
@@ -69,14 +138,7 @@ class FileStorageControllerTests {
     @WithMockUser
     @DisplayName("Test FileStorageController.loadAll with success response and list of values")
     void testGetAllWithData() throws Exception {
-        int countOfFiles = 3;
-        List<FileItem> results = new ArrayList<>(countOfFiles);
-        for (long i = 0; i < countOfFiles; i++) {
-            FileItem fileItem = new FileItem();
-            fileItem.setId(i);
-            results.add(fileItem);
-        }
-        given(this.storageService.loadAll()).willReturn(results);
+        given(this.storageService.loadPage(isNull(), anyInt())).willReturn(files(0, 3));
         this.mvc.perform(get(GET_ALL_FILES_URL))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$[0].id", is(equalTo(0))))
@@ -84,6 +146,70 @@ class FileStorageControllerTests {
                 .andExpect(jsonPath("$[2].id", is(equalTo(2))));
     }
 
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.loadAll streams every page of files")
+    void testGetAllWithSeveralPages() throws Exception {
+        given(this.storageService.loadPage(isNull(), anyInt()))
+                .willAnswer(invocation -> files(0, invocation.getArgument(1)));
+        given(this.storageService.loadPage(anyLong(), anyInt())).willReturn(files(1000, 5));
+        this.mvc.perform(get(GET_ALL_FILES_URL))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1005)))
+                .andExpect(jsonPath("$[1004].id", is(equalTo(1004))));
+        verify(this.storageService).loadPage(999L, 1000);
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.getPage returns the cursor of the next page")
+    void testGetPage() throws Exception {
+        given(this.storageService.loadPage(10L, 3)).willReturn(files(11, 3));
+        this.mvc.perform(get(FILES_URL).param("after", "10").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items", hasSize(2)))
+                .andExpect(jsonPath("$.items[1].id", is(equalTo(12))))
+                .andExpect(jsonPath("$.next", is(equalTo(12))));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.getPage on the last page")
+    void testGetLastPage() throws Exception {
+        given(this.storageService.loadPage(isNull(), eq(101))).willReturn(files(0, 3));
+        this.mvc.perform(get(FILES_URL))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items", hasSize(3)))
+                .andExpect(jsonPath("$.next", is(nullValue())));
+    }
+
+    private static List<FileItemDTO> files(long firstId, int count) {
+        List<FileItemDTO> results = new ArrayList<>(count);
+        for (long id = firstId; id < firstId + count; id++) {
+            results.add(new FileItemDTO(id, "file" + id));
+        }
+        return results;
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.deleteFile")
+    void testDeleteFile() throws Exception {
+        this.mvc.perform(delete(FILES_URL + "/1").with(csrf())).andExpect(status().isOk());
+        verify(storageService).delete(1L);
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.deleteFile errors")
+    void testDeleteFileErrors() throws Exception {
+        willThrow(AccessDeniedException.class).given(storageService).delete(1L);
+        willThrow(IllegalArgumentException.class).given(storageService).delete(2L);
+
+        this.mvc.perform(delete(FILES_URL + "/1").with(csrf())).andExpect(status().isForbidden());
+        this.mvc.perform(delete(FILES_URL + "/2").with(csrf())).andExpect(status().isNotFound());
+    }
+
     @Test
     @WithMockUser
     @DisplayName("Test FileStorageController.downloadFile without required privileges")
@@ -113,20 +239,332 @@ class FileStorageControllerTests {
         this.mvc.perform(get(String.format(DOWNLOAD_FILE_URL, 1))).andExpect(status().isNotFound());
     }
 
+    private FileItem storedFile(byte[] content) throws IOException {
+        BlobStat blob = blobStore.put(new ByteArrayInputStream(content));
+        FileItem fileItem = new FileItem();
+        fileItem.setFsPath(blob.getLocation());
+        fileItem.setHash(blob.getKey());
+        fileItem.setName("tmp.html");
+        given(this.storageService.load(anyLong())).willReturn(fileItem);
+        return fileItem;
+    }
+
     @Test
     @WithMockUser
     @DisplayName("Test FileStorageController.downloadFile - success case")
     void testDownloadFile() throws Exception {
-        FileItem fileItem = new FileItem();
-        fileItem.setFsPath("/");
-        fileItem.setName("tmp.html");
-        given(this.storageService.load(anyLong())).willReturn(fileItem);
+        FileItem fileItem = storedFile("<html/>".getBytes());
 
-        this.mvc.perform(get(String.format(DOWNLOAD_FILE_URL, 1)))
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)))
                 .andExpect(status().isOk())
                 .andExpect(header()
                         .string(HttpHeaders.CONTENT_DISPOSITION,
                                 "attachment; filename=\"" + fileItem.getName() + "\""))
-                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_HTML_VALUE));
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_HTML_VALUE))
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + fileItem.getHash() + "\""))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "private, max-age=31536000, immutable"))
+                .andExpect(content().bytes("<html/>".getBytes()));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile sends the digest and cuts a corrupted file off before its end")
+    void testDownloadCorruptedFile() throws Exception {
+        byte[] content = new byte[256 * 1024];
+        new Random(42).nextBytes(content);
+        FileItem fileItem = storedFile(content);
+        fileItem.setBlob(new Blob(fileItem.getHash(), content.length));
+        fileItem.getBlob().setChecksum(blobStore.put(new ByteArrayInputStream(content)).getChecksum());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Digest", startsWith("sha-256=")))
+                .andExpect(header().string("Digest", containsString(",crc32c=")))
+                .andExpect(content().bytes(content));
+
+        fileItem.getBlob().setChecksum(fileItem.getChecksum() ^ 1);
+        MvcResult result = this.mvc.perform(get(String.format(DOWNLOAD_FILE_URL, 1)))
+                .andExpect(request().asyncStarted()).andReturn();
+        assertTrue(result.getAsyncResult(ASYNC_WAIT_MILLIS) instanceof CorruptedBlobException);
+        assertTrue(result.getResponse().getContentAsByteArray().length < content.length);
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile answers conditional requests with 304 Not Modified")
+    void testDownloadFileNotModified() throws Exception {
+        FileItem fileItem = storedFile("<html/>".getBytes());
+        String etag = "\"" + fileItem.getHash() + "\"";
+
+        this.mvc.perform(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(request().asyncNotStarted())
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, etag))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "private, max-age=31536000, immutable"))
+                .andExpect(content().bytes(new byte[0]));
+        this.mvc.perform(get(String.format(DOWNLOAD_FILE_URL, 1))
+                .header(HttpHeaders.IF_MODIFIED_SINCE, "Fri, 01 Jan 2100 00:00:00 GMT"))
+                .andExpect(status().isNotModified());
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.IF_NONE_MATCH, "\"other\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("<html/>".getBytes()));
+    }
+
+    @Test
+    @WithMockUser("metered")
+    @DisplayName("Test downloads and repository calls are exposed in the Prometheus format")
+    void testMetrics() throws Exception {
+        storedFile("0123456789".getBytes());
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent());
+        userRepository.findByUsername("metered");
+
+        this.mvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("fs_transfer_bytes_total{direction=\"out\",}")))
+                .andExpect(content().string(
+                        containsString("fs_user_transfer_bytes_total{direction=\"out\",user=\"metered\",} 4.0")))
+                .andExpect(content().string(containsString("fs_db_query_seconds_count{exception=\"none\","
+                        + "method=\"findByUsername\",repository=\"UserRepository\",}")))
+                .andExpect(content().string(containsString("fs_io_executor_active{executor=\"download\",}")));
+    }
+
+    private byte[] storedGzipFile(String content) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(encoded)) {
+            out.write(content.getBytes());
+        }
+        BlobStat stored = blobStore.put(new ByteArrayInputStream(encoded.toByteArray()));
+        FileItem fileItem = new FileItem();
+        fileItem.setName("tmp.txt");
+        fileItem.setHash(DECODED_HASH);
+        fileItem.setBlob(new Blob(DECODED_HASH, content.length(), BlobCodec.GZIP, stored.getKey()));
+        given(this.storageService.load(anyLong())).willReturn(fileItem);
+        return encoded.toByteArray();
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile sends compressed file as is when client accepts gzip")
+    void testDownloadCompressedFile() throws Exception {
+        byte[] encoded = storedGzipFile("0123456789");
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.ACCEPT_ENCODING, "br, gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + DECODED_HASH + "-gzip\""))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, encoded.length))
+                .andExpect(content().bytes(encoded));
+        this.mvc.perform(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"" + DECODED_HASH + "-gzip\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING));
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1))
+                .header(HttpHeaders.IF_NONE_MATCH, "\"" + DECODED_HASH + "-gzip\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + DECODED_HASH + "\""));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile decodes compressed file for other clients")
+    void testDownloadCompressedFileDecoded() throws Exception {
+        storedGzipFile("0123456789");
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().string("Digest", "sha-256=hNiYd/DUBB77a/kaFvAkjy/Vc+avBcGflr7bn4gveII="))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 10))
+                .andExpect(content().bytes("0123456789".getBytes()));
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=7-,2-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().string(containsString("Content-Range: bytes 7-9/10\r\n\r\n789\r\n")))
+                .andExpect(content().string(containsString("Content-Range: bytes 2-3/10\r\n\r\n23\r\n")));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile with single range")
+    void testDownloadFileWithRange() throws Exception {
+        storedFile("0123456789".getBytes());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/10"))
+                .andExpect(content().bytes("2345".getBytes()));
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 7-9/10"))
+                .andExpect(content().bytes("789".getBytes()));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile with multiple ranges")
+    void testDownloadFileWithMultipleRanges() throws Exception {
+        storedFile("0123456789".getBytes());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=0-1,8-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, startsWith("multipart/byteranges; boundary=")))
+                .andExpect(content().string(containsString("Content-Range: bytes 0-1/10\r\n\r\n01\r\n")))
+                .andExpect(content().string(containsString("Content-Range: bytes 8-9/10\r\n\r\n89\r\n")));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile sends the satisfiable ranges and ignores the rest")
+    void testDownloadFileWithPartlySatisfiableRanges() throws Exception {
+        storedFile("0123456789".getBytes());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=2-3,20-30"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-3/10"))
+                .andExpect(content().bytes("23".getBytes()));
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=0-1,10-,8-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().string(containsString("Content-Range: bytes 0-1/10\r\n\r\n01\r\n")))
+                .andExpect(content().string(containsString("Content-Range: bytes 8-9/10\r\n\r\n89\r\n")))
+                .andExpect(content().string(not(containsString("bytes 10-"))));
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=10-,20-30"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */10"));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile with unsatisfiable range")
+    void testDownloadFileWithUnsatisfiableRange() throws Exception {
+        storedFile("0123456789".getBytes());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1)).header(HttpHeaders.RANGE, "bytes=10-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */10"));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile ignores range when If-Range doesn't match")
+    void testDownloadFileWithStaleIfRange() throws Exception {
+        storedFile("0123456789".getBytes());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1))
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "Wed, 21 Oct 2015 07:28:00 GMT"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("0123456789".getBytes()));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFile honours If-Range with the entity tag")
+    void testDownloadFileWithIfRangeEntityTag() throws Exception {
+        FileItem fileItem = storedFile("0123456789".getBytes());
+
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1))
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "\"" + fileItem.getHash() + "\""))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("2345".getBytes()));
+        performAsync(get(String.format(DOWNLOAD_FILE_URL, 1))
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "W/\"" + fileItem.getHash() + "\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("0123456789".getBytes()));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.uploadFileStream - success case")
+    void testUploadFileStream() throws Exception {
+        FileItem fileItem = new FileItem(7L);
+        fileItem.setName("tmp.txt");
+        given(this.storageService.store(eq("tmp.txt"), any(InputStream.class))).willReturn(fileItem);
+
+        performAsync(put(UPLOAD_FILE_URL).param("fileName", "tmp.txt")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(new byte[]{1, 2, 3})
+                .with(csrf()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id", is(equalTo(7))))
+                .andExpect(jsonPath("$.name", is(equalTo("tmp.txt"))));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.uploadFiles stores all files at once")
+    void testUploadFiles() throws Exception {
+        FileItem first = new FileItem(7L);
+        first.setName("a.txt");
+        FileItem second = new FileItem(8L);
+        second.setName("b.txt");
+        given(this.storageService.storeAll(any())).willReturn(Arrays.asList(first, second));
+
+        this.mvc.perform(multipart(UPLOAD_FILES_URL)
+                .file(new MockMultipartFile("uploadFiles", "a.txt", null, "a".getBytes()))
+                .file(new MockMultipartFile("uploadFiles", "b.txt", null, "b".getBytes()))
+                .with(csrf()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id", contains(7, 8)))
+                .andExpect(jsonPath("$[*].name", contains("a.txt", "b.txt")));
+        ArgumentCaptor<List<MultipartFile>> files = ArgumentCaptor.forClass(List.class);
+        verify(this.storageService).storeAll(files.capture());
+        assertEquals(2, files.getValue().size());
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFiles streams the files as a zip archive")
+    void testDownloadFiles() throws Exception {
+        FileItem plain = storedFile("first".getBytes());
+        plain.setName("a.txt");
+        storedGzipFile("0123456789");
+        FileItem encoded = this.storageService.load(2L);
+        encoded.setName("a.txt");
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        FileItem image = storedFile(random);
+        image.setName("photo.jpg");
+        given(this.storageService.load(1L)).willReturn(plain);
+        given(this.storageService.load(2L)).willReturn(encoded);
+        given(this.storageService.load(3L)).willReturn(image);
+
+        byte[] zip = performAsync(get(DOWNLOAD_FILES_URL).param("ids", "1", "2", "3"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/zip"))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\""))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        try (ZipInputStream entries = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            assertEquals("a.txt", entries.getNextEntry().getName());
+            assertArrayEquals("first".getBytes(), StreamUtils.copyToByteArray(entries));
+            assertEquals("a (1).txt", entries.getNextEntry().getName());
+            assertArrayEquals("0123456789".getBytes(), StreamUtils.copyToByteArray(entries));
+            ZipEntry entry = entries.getNextEntry();
+            assertEquals("photo.jpg", entry.getName());
+            assertArrayEquals(random, StreamUtils.copyToByteArray(entries));
+            // level 0: framed, not compressed
+            assertTrue(entry.getCompressedSize() > random.length, String.valueOf(entry.getCompressedSize()));
+            assertNull(entries.getNextEntry());
+        }
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test FileStorageController.downloadFiles checks every file before writing anything")
+    void testDownloadFilesErrors() throws Exception {
+        FileItem fileItem = storedFile("first".getBytes());
+        given(this.storageService.load(1L)).willReturn(fileItem);
+        given(this.storageService.load(2L)).willThrow(AccessDeniedException.class);
+        given(this.storageService.load(3L)).willThrow(IllegalArgumentException.class);
+
+        this.mvc.perform(get(DOWNLOAD_FILES_URL).param("ids", "1", "2")).andExpect(status().isForbidden());
+        this.mvc.perform(get(DOWNLOAD_FILES_URL).param("ids", "1,3")).andExpect(status().isNotFound());
+        String[] tooMany = LongStream.range(0, 1001).mapToObj(String::valueOf).toArray(String[]::new);
+        this.mvc.perform(post(DOWNLOAD_FILES_URL).param("ids", tooMany).with(csrf()))
+                .andExpect(status().isBadRequest());
     }
 }
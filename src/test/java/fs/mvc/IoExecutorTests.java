@@ -0,0 +1,43 @@
+package fs.mvc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayName("IoExecutor")
+class IoExecutorTests {
+    private final IoExecutor executor = new IoExecutor("test", 1, 1);
+
+    @AfterEach
+    void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    @DisplayName("IoExecutor rejects handlers over the limit until a running one completes")
+    void testLimit() throws Exception {
+        WebAsyncTask<String> first = executor.submit(() -> "first");
+        executor.submit(() -> "queued");
+        assertEquals(0, executor.available());
+        assertThrows(TaskRejectedException.class, () -> executor.submit(() -> "rejected"));
+
+        assertEquals("first", first.getCallable().call());
+        assertEquals(1, executor.available());
+        executor.submit(() -> "next");
+    }
+
+    @Test
+    @DisplayName("IoExecutor releases the slot when the handler fails")
+    void testFailedHandler() {
+        WebAsyncTask<String> task = executor.submit(() -> {
+            throw new IllegalStateException();
+        });
+        assertThrows(IllegalStateException.class, () -> task.getCallable().call());
+        assertEquals(2, executor.available());
+    }
+}
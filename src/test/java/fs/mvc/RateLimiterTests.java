@@ -0,0 +1,116 @@
+package fs.mvc;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.DispatcherType;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayName("RateLimiter")
+class RateLimiterTests {
+    private final AtomicLong clock = new AtomicLong();
+
+    private static MockHttpServletRequest request(String username) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteUser(username);
+        return request;
+    }
+
+    private static boolean admit(HandlerInterceptor interceptor, MockHttpServletRequest request,
+                                 MockHttpServletResponse response) throws Exception {
+        return interceptor.preHandle(request, response, new Object());
+    }
+
+    private void sleep(long seconds) {
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    @Test
+    @DisplayName("TokenBucket lets a burst through, then refills at its rate")
+    void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(2, TimeUnit.SECONDS.toNanos(2), clock::get);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, bucket.tryTake(1));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), bucket.tryTake(1));
+        sleep(1);
+        assertEquals(0, bucket.tryTake(2));
+        assertTrue(bucket.tryTake(1) > 0);
+
+        bucket.take(10);
+        assertEquals(TimeUnit.SECONDS.toNanos(5), bucket.debt());
+        sleep(6);
+        assertEquals(0, bucket.debt());
+    }
+
+    @Test
+    @DisplayName("RateLimiter rejects requests over the rate of the user with Retry-After")
+    void testRequests() throws Exception {
+        HandlerInterceptor requests = new RateLimiter(1, 0, 0, Duration.ofSeconds(2), clock::get).requests();
+        assertTrue(admit(requests, request("user1"), new MockHttpServletResponse()));
+        assertTrue(admit(requests, request("user1"), new MockHttpServletResponse()));
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        assertFalse(admit(requests, request("user1"), rejected));
+        assertEquals(429, rejected.getStatus());
+        assertEquals("1", rejected.getHeader(HttpHeaders.RETRY_AFTER));
+
+        assertTrue(admit(requests, request("user2"), new MockHttpServletResponse()));
+        assertTrue(admit(requests, request(null), new MockHttpServletResponse()));
+        MockHttpServletRequest dispatched = request("user1");
+        dispatched.setDispatcherType(DispatcherType.ASYNC);
+        assertTrue(admit(requests, dispatched, new MockHttpServletResponse()));
+        sleep(1);
+        assertTrue(admit(requests, request("user1"), new MockHttpServletResponse()));
+    }
+
+    @Test
+    @DisplayName("RateLimiter rejects transfers of a user while the bandwidth is in debt")
+    void testBandwidth() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 100, 100, Duration.ofSeconds(1), clock::get);
+        HandlerInterceptor uploads = limiter.uploads(), downloads = limiter.downloads();
+        MockHttpServletRequest upload = request("user1");
+        upload.setContent(new byte[1000]);
+        assertTrue(admit(uploads, upload, new MockHttpServletResponse()));
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        assertFalse(admit(uploads, request("user1"), rejected));
+        assertEquals("9", rejected.getHeader(HttpHeaders.RETRY_AFTER));
+        assertTrue(admit(downloads, request("user1"), new MockHttpServletResponse()));
+
+        limiter.sent("user1", 250);
+        assertFalse(admit(downloads, request("user1"), new MockHttpServletResponse()));
+        sleep(2);
+        assertTrue(admit(downloads, request("user1"), new MockHttpServletResponse()));
+        assertFalse(admit(uploads, request("user1"), new MockHttpServletResponse()));
+        sleep(7);
+        assertTrue(admit(uploads, request("user1"), new MockHttpServletResponse()));
+    }
+
+    @Test
+    @DisplayName("RateLimiter drops the buckets of a user once they are full, but not while they are in debt")
+    void testBucketsExpire() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 100, 100, Duration.ofSeconds(1), clock::get);
+        HandlerInterceptor uploads = limiter.uploads();
+        assertTrue(admit(limiter.requests(), request("user1"), new MockHttpServletResponse()));
+        MockHttpServletRequest upload = request("user2");
+        upload.setContent(new byte[1000]);
+        assertTrue(admit(uploads, upload, new MockHttpServletResponse()));
+        assertEquals(2, limiter.users());
+
+        sleep(2);
+        assertEquals(1, limiter.users());
+        assertFalse(admit(uploads, request("user2"), new MockHttpServletResponse()));
+        sleep(8);
+        assertEquals(0, limiter.users());
+        assertTrue(admit(uploads, request("user2"), new MockHttpServletResponse()));
+    }
+}
@@ -0,0 +1,99 @@
+package fs.mvc;
+
+import fs.FileStorageApplication;
+import fs.mvc.dto.FileItemDTO;
+import fs.service.StorageService;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.verify;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@AutoConfigureMockMvc
+@SpringBootTest
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(classes = {FileStorageApplication.class})
+@DisplayName("ShareController REST")
+class ShareControllerTests {
+    private static final String SHARES_URL = "/api/v1/fileStorage/files/%s/shares";
+    private static final String SHARE_URL = SHARES_URL + "/%s";
+    private static final String SHARED_URL = "/api/v1/fileStorage/shared";
+
+    @Autowired
+    private MockMvc mvc;
+
+    @MockBean
+    private StorageService storageService;
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test ShareController.share with a dotted user name")
+    void testShare() throws Exception {
+        this.mvc.perform(put(String.format(SHARE_URL, 1, "john.doe")).with(csrf()))
+                .andExpect(status().isOk());
+        verify(storageService).share(1L, "john.doe");
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test ShareController.share errors")
+    void testShareErrors() throws Exception {
+        willThrow(AccessDeniedException.class).given(storageService).share(1L, "user2");
+        willThrow(IllegalArgumentException.class).given(storageService).share(2L, "user2");
+        willThrow(IllegalStateException.class).given(storageService).share(3L, "user2");
+
+        this.mvc.perform(put(String.format(SHARE_URL, 1, "user2")).with(csrf())).andExpect(status().isForbidden());
+        this.mvc.perform(put(String.format(SHARE_URL, 2, "user2")).with(csrf())).andExpect(status().isNotFound());
+        this.mvc.perform(put(String.format(SHARE_URL, 3, "user2")).with(csrf())).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test ShareController.revokeShare")
+    void testRevokeShare() throws Exception {
+        this.mvc.perform(delete(String.format(SHARE_URL, 1, "user2")).with(csrf()))
+                .andExpect(status().isOk());
+        verify(storageService).revokeShare(1L, "user2");
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test ShareController.getShares")
+    void testGetShares() throws Exception {
+        given(storageService.loadShares(1L)).willReturn(Arrays.asList("user2", "user3"));
+        this.mvc.perform(get(String.format(SHARES_URL, 1)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", contains("user2", "user3")));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test ShareController.getShared returns files shared with the user")
+    void testGetShared() throws Exception {
+        given(storageService.loadSharedPage(null, 101))
+                .willReturn(Collections.singletonList(new FileItemDTO(5L, "shared.txt")));
+        this.mvc.perform(get(SHARED_URL))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items[0].name", is(equalTo("shared.txt"))))
+                .andExpect(jsonPath("$.next", is(nullValue())));
+    }
+}
@@ -0,0 +1,145 @@
+package fs.mvc;
+
+import fs.FileStorageApplication;
+import fs.domain.FileItem;
+import fs.domain.UploadSession;
+import fs.service.StorageService;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.MockMvcPrint;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.verify;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// async handlers write the response on their own threads, printing it from the test thread would race with them
+@AutoConfigureMockMvc(print = MockMvcPrint.NONE)
+@SpringBootTest
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(classes = {FileStorageApplication.class})
+@DisplayName("UploadController REST")
+class UploadControllerTests {
+    private static final String UPLOADS_URL = "/api/v1/fileStorage/uploads";
+    private static final String UPLOAD_URL = UPLOADS_URL + "/%s";
+
+    private static final long ASYNC_WAIT_MILLIS = 5000;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @MockBean
+    private StorageService storageService;
+
+    private static UploadSession upload() {
+        UploadSession upload = new UploadSession();
+        upload.setId("upload");
+        upload.setName("tmp.txt");
+        upload.setSize(10);
+        upload.setChunkSize(4);
+        return upload;
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test UploadController.create - success case")
+    void testCreate() throws Exception {
+        given(this.storageService.createUpload("tmp.txt", 10)).willReturn(upload());
+
+        this.mvc.perform(post(UPLOADS_URL).param("fileName", "tmp.txt").param("size", "10").with(csrf()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id", is(equalTo("upload"))))
+                .andExpect(jsonPath("$.chunkSize", is(equalTo(4))));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test UploadController.get returns received chunks")
+    void testGet() throws Exception {
+        UploadSession upload = upload();
+        given(this.storageService.loadUpload("upload")).willReturn(upload);
+        given(this.storageService.loadReceivedChunks(upload)).willReturn(Arrays.asList(0, 2));
+
+        this.mvc.perform(get(String.format(UPLOAD_URL, "upload")))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.receivedChunks[1]", is(equalTo(2))));
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+        // async requests have no timeout, so the wait must be explicit
+        result.getAsyncResult(ASYNC_WAIT_MILLIS);
+        return this.mvc.perform(asyncDispatch(result));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test UploadController.putChunk - success case")
+    void testPutChunk() throws Exception {
+        performAsync(put(String.format(UPLOAD_URL, "upload")).param("offset", "4")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(new byte[]{4, 5, 6, 7})
+                .with(csrf()))
+                .andExpect(status().isOk());
+        verify(this.storageService).storeChunk(eq("upload"), eq(4L), any(InputStream.class));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test UploadController.putChunk with wrong offset")
+    void testPutChunkWithWrongOffset() throws Exception {
+        willThrow(IllegalStateException.class).given(this.storageService)
+                .storeChunk(eq("upload"), eq(3L), any(InputStream.class));
+
+        performAsync(put(String.format(UPLOAD_URL, "upload")).param("offset", "3").with(csrf()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test UploadController.commit - success case")
+    void testCommit() throws Exception {
+        FileItem fileItem = new FileItem(7L);
+        fileItem.setName("tmp.txt");
+        given(this.storageService.commitUpload("upload")).willReturn(fileItem);
+
+        this.mvc.perform(post(String.format(UPLOAD_URL, "upload") + "/commit").with(csrf()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id", is(equalTo(7))));
+    }
+
+    @Test
+    @WithMockUser
+    @DisplayName("Test UploadController with another user's or unknown upload")
+    void testAccessDeniedAndNotFound() throws Exception {
+        given(this.storageService.loadUpload("foreign")).willThrow(AccessDeniedException.class);
+        given(this.storageService.loadUpload("unknown")).willThrow(IllegalArgumentException.class);
+
+        this.mvc.perform(get(String.format(UPLOAD_URL, "foreign"))).andExpect(status().isForbidden());
+        this.mvc.perform(get(String.format(UPLOAD_URL, "unknown"))).andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,38 @@
+package fs.security;
+
+import fs.dao.FileShareRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("FileAccessCache")
+class FileAccessCacheTests {
+    @Mock
+    private FileShareRepository shareRepository;
+
+    @Test
+    @DisplayName("Test shares of a file are loaded once until evicted")
+    void testIsSharedWith() {
+        FileAccessCache cache = new FileAccessCache(shareRepository, Duration.ofMinutes(1), 100);
+        when(shareRepository.findUserIdsByFileId(1L)).thenReturn(Arrays.asList(2L, 3L), Collections.emptyList());
+
+        assertTrue(cache.isSharedWith(1L, 2L));
+        assertTrue(cache.isSharedWith(1L, 3L));
+        assertFalse(cache.isSharedWith(1L, 4L));
+        verify(shareRepository, times(1)).findUserIdsByFileId(1L);
+
+        cache.evict(1L);
+        assertFalse(cache.isSharedWith(1L, 2L));
+        verify(shareRepository, times(2)).findUserIdsByFileId(1L);
+    }
+}
@@ -0,0 +1,96 @@
+package fs.security;
+
+import fs.FileStorageApplication;
+import fs.dao.UserRepository;
+import fs.domain.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(classes = {FileStorageApplication.class})
+@DisplayName("UserDetailsCache")
+class UserDetailsCacheTests {
+    @Autowired
+    private UserDetailsCache userCache;
+    @Autowired
+    private UserDetailsService userDetailsService;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private EntityManager entityManager;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Test
+    @DisplayName("Test cached users expire after the TTL")
+    void testExpiration() {
+        AtomicLong time = new AtomicLong();
+        UserDetailsCache cache = new UserDetailsCache(Duration.ofMinutes(1), 10, time::get);
+        UserDetails user = user(1L, "user");
+        cache.putUserInCache(user);
+
+        time.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertSame(user, cache.getUserFromCache("user"));
+        time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(cache.getUserFromCache("user"));
+    }
+
+    @Test
+    @DisplayName("Test cache size is bounded")
+    void testMaxSize() {
+        UserDetailsCache cache = new UserDetailsCache(Duration.ofMinutes(1), 10, System::nanoTime);
+        for (long id = 0; id < 100; id++) {
+            cache.putUserInCache(user(id, "user" + id));
+        }
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    @DisplayName("Test users are evicted by id")
+    void testRemoveById() {
+        UserDetailsCache cache = new UserDetailsCache(Duration.ofMinutes(1), 10, System::nanoTime);
+        cache.putUserInCache(user(1L, "user1"));
+        cache.putUserInCache(user(2L, "user2"));
+
+        cache.removeUserFromCache(1L);
+        assertNull(cache.getUserFromCache("user1"));
+        assertNotNull(cache.getUserFromCache("user2"));
+    }
+
+    @Test
+    @DisplayName("Test changed users are evicted from the application cache")
+    void testEvictionOnUserChange() {
+        userDetailsService.loadUserByUsername("user2");
+        assertNotNull(userCache.getUserFromCache("user2"));
+
+        transactionTemplate.execute(status -> {
+            User user = entityManager.find(User.class, userRepository.findByUsername("user2").getId());
+            user.setPassword("{noop}changed");
+            return user;
+        });
+        assertNull(userCache.getUserFromCache("user2"));
+        assertEquals("{noop}changed", userDetailsService.loadUserByUsername("user2").getPassword());
+    }
+
+    private static UserDetails user(Long id, String username) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername(username);
+        return new UserDetails(user);
+    }
+}
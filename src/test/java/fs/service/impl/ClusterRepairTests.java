@@ -0,0 +1,107 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.storage.BlobStore;
+import fs.storage.ClusteredBlobStore;
+import fs.storage.MemoryBlobStore;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("ClusterRepair")
+class ClusterRepairTests {
+    private static final int BATCH_SIZE = 2;
+
+    @Mock
+    private ClusteredBlobStore blobStore;
+    @Mock
+    private BlobRepository blobRepository;
+    private final BlobStore local = new MemoryBlobStore();
+
+    private ClusterRepair createRepair(Duration gracePeriod) {
+        return new ClusterRepair(blobStore, blobRepository, Duration.ofSeconds(1), BATCH_SIZE, Duration.ofSeconds(1),
+                gracePeriod);
+    }
+
+    private List<String> put(String... contents) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (String content : contents) {
+            keys.add(local.put(new ByteArrayInputStream(content.getBytes())).getKey());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Test
+    @DisplayName("Test a pass pushes the referenced blobs, hands them off and skips the unreferenced ones")
+    void testRepair() throws IOException {
+        List<String> keys = put("a", "b", "c");
+        when(blobStore.getLocal()).thenReturn(local);
+        when(blobRepository.findStoreKeysIn(keys.subList(0, 2))).thenReturn(keys.subList(0, 2));
+        doReturn(Collections.emptyList()).when(blobRepository).findStoreKeysIn(keys.subList(2, 3));
+        when(blobStore.replicate(keys.get(0))).thenReturn(1);
+        doThrow(new IOException("Node is down")).when(blobStore).replicate(keys.get(1));
+        when(blobStore.handOff(keys.get(0))).thenReturn(true);
+
+        ClusterRepair repair = createRepair(Duration.ZERO);
+        assertFalse(repair.runBatch());
+        assertEquals(keys.get(1), repair.getCursor());
+        assertTrue(repair.runBatch());
+        assertNull(repair.getCursor());
+        verify(blobStore, never()).replicate(keys.get(2));
+        assertEquals(3, repair.getScanned());
+        assertEquals(1, repair.getPushed());
+        assertEquals(1, repair.getHandedOff());
+        assertEquals(1, repair.getErrors());
+        assertEquals(1, repair.getPasses());
+    }
+
+    @Test
+    @DisplayName("Test blobs younger than the grace period aren't handed off")
+    void testRepairKeepsYoungBlobs() throws IOException {
+        List<String> keys = put("a");
+        when(blobStore.getLocal()).thenReturn(local);
+        when(blobRepository.findStoreKeysIn(keys)).thenReturn(keys);
+
+        assertTrue(createRepair(Duration.ofHours(1)).runBatch());
+        verify(blobStore).replicate(keys.get(0));
+        verify(blobStore, never()).handOff(any());
+    }
+
+    @Test
+    @DisplayName("Test a failed batch is retried from the same cursor")
+    void testRepairRetriesFailedBatch() throws IOException {
+        List<String> keys = put("a", "b");
+        when(blobStore.getLocal()).thenReturn(local);
+        when(blobRepository.findStoreKeysIn(keys))
+                .thenThrow(new IllegalStateException("DB is down"))
+                .thenReturn(Arrays.asList(keys.get(1)));
+
+        ClusterRepair repair = createRepair(Duration.ofHours(1));
+        assertFalse(repair.runBatch());
+        assertEquals(1, repair.getErrors());
+        assertNull(repair.getCursor());
+        assertFalse(repair.runBatch());
+        assertEquals(keys.get(1), repair.getCursor());
+        verify(blobStore).replicate(keys.get(1));
+    }
+}
@@ -0,0 +1,75 @@
+package fs.service.impl;
+
+import fs.dao.FileRepository;
+import fs.domain.User;
+import fs.service.QuotaExceededException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("StorageQuotas")
+class StorageQuotasTests {
+    @Mock
+    private FileRepository fileRepository;
+
+    private static User user(Long id, Long quota) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername("user" + id);
+        user.setStorageQuota(quota);
+        return user;
+    }
+
+    @Test
+    @DisplayName("StorageQuotas rejects what doesn't fit in the quota of the user or the default one")
+    void testReserve() {
+        StorageQuotas quotas = new StorageQuotas(fileRepository, DataSize.ofBytes(100), Duration.ofMinutes(5));
+        User limited = user(1L, 10L), unlimited = user(2L, 0L), byDefault = user(3L, null);
+
+        quotas.reserve(limited, 6);
+        quotas.check(limited, 4);
+        assertThrows(QuotaExceededException.class, () -> quotas.check(limited, 5));
+        assertThrows(QuotaExceededException.class, () -> quotas.reserve(limited, 5));
+        assertEquals(6, quotas.usage(1L));
+        quotas.release(1L, 6);
+        quotas.reserve(limited, 10);
+
+        quotas.reserve(unlimited, Long.MAX_VALUE / 2);
+        quotas.reserve(byDefault, 100);
+        assertThrows(QuotaExceededException.class, () -> quotas.reserve(byDefault, 1));
+    }
+
+    @Test
+    @DisplayName("StorageQuotas takes the usage from the DB, keeping what is reserved meanwhile")
+    void testReconcile() {
+        StorageQuotas quotas = new StorageQuotas(fileRepository, DataSize.ofBytes(0), Duration.ofMinutes(5));
+        quotas.reserve(user(1L, null), 5);
+        quotas.reserve(user(2L, null), 7);
+        when(fileRepository.sumSizeByOwner()).thenAnswer(invocation -> {
+            // stored while the query runs
+            quotas.reserve(user(1L, null), 3);
+            return Collections.singletonList(new Object[]{1L, 40L});
+        });
+
+        quotas.reconcile();
+        assertEquals(43, quotas.usage(1L));
+        assertEquals(0, quotas.usage(2L));
+
+        when(fileRepository.sumSizeByOwner()).thenReturn(Arrays.asList(new Object[]{1L, 43L}, new Object[]{2L, 1L}));
+        quotas.reconcile();
+        assertEquals(43, quotas.usage(1L));
+        assertEquals(1, quotas.usage(2L));
+    }
+}
@@ -1,34 +1,89 @@
 package fs.service.impl;
 
+import fs.dao.BlobRepository;
 import fs.dao.FileRepository;
+import fs.dao.FileShareRepository;
+import fs.dao.UploadChunkRepository;
+import fs.dao.UploadSessionRepository;
 import fs.dao.UserRepository;
+import fs.domain.Blob;
 import fs.domain.FileItem;
+import fs.domain.FileShare;
+import fs.domain.UploadChunk;
+import fs.domain.UploadSession;
 import fs.domain.User;
+import fs.mvc.dto.FileItemDTO;
+import fs.security.FileAccessCache;
 import fs.security.UserDetails;
+import fs.service.QuotaExceededException;
+import fs.service.StorageMetrics;
+import fs.storage.BlobCodec;
+import fs.storage.BlobStat;
+import fs.storage.BlobStore;
+import fs.storage.FileBlobStore;
+import fs.storage.MemoryBlobStore;
+import fs.storage.StorageTier;
+import fs.storage.TieredBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Rule;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -45,24 +100,50 @@ public class StorageServiceImplTests {
 
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
+    @TempDir
+    Path root;
     @Mock
     private FileRepository fileRepository;
     @Mock
+    private FileShareRepository fileShareRepository;
+    @Mock
     private UserRepository userRepository;
+    @Mock
+    private FileAccessCache fileAccessCache;
+    @Mock
+    private UploadSessionRepository uploadSessionRepository;
+    @Mock
+    private UploadChunkRepository uploadChunkRepository;
+    @Mock
+    private BlobRepository blobRepository;
+    private final MemoryBlobStore hotStore = new MemoryBlobStore();
+    private final MemoryBlobStore coldStore = new MemoryBlobStore();
+    @Spy
+    private BlobStore blobStore = new TieredBlobStore(hotStore, coldStore);
+    @Spy
+    private FileItemCache fileItemCache = new FileItemCache(Duration.ofMinutes(1), 100);
+    @Spy
+    private StorageMetrics metrics = new StorageMetrics(new SimpleMeterRegistry(), false);
+    @Spy
+    private Executor storeExecutor = new SimpleAsyncTaskExecutor();
+    @Spy
+    private StorageQuotas quotas = new StorageQuotas(null, DataSize.ofBytes(0), Duration.ofMinutes(5));
+    @Spy
+    private BlobAccessTracker accessTracker = new BlobAccessTracker(true);
     @InjectMocks
     private StorageServiceImpl storageService;
 
     @BeforeEach
     void setMock() {
+        ReflectionTestUtils.setField(storageService, "storePath", root.toString());
+        LOGGED_USER.setStorageQuota(null);
         UserDetails applicationUser = new UserDetails(LOGGED_USER);
         Authentication authentication = mock(Authentication.class);
         SecurityContext securityContext = mock(SecurityContext.class);
-        when(securityContext.getAuthentication()).thenReturn(authentication);
+        lenient().when(securityContext.getAuthentication()).thenReturn(authentication);
         SecurityContextHolder.setContext(securityContext);
-        when(SecurityContextHolder.getContext().getAuthentication().getPrincipal())
+        lenient().when(SecurityContextHolder.getContext().getAuthentication().getPrincipal())
                 .thenReturn(applicationUser);
-
-        when(userRepository.findById(USER_ID)).thenReturn(LOGGED_USER);
     }
 
     @Test
@@ -71,14 +152,6 @@ public class StorageServiceImplTests {
         assertEquals(Collections.emptyList(), storageService.loadAll());
     }
 
-    @Test
-    @DisplayName("Test loadAll method with empty result")
-    void testLoadAllWithoutLoggedUser() {
-        when(userRepository.findById(USER_ID)).thenReturn(null);
-
-        assertThrows(IllegalArgumentException.class, () -> storageService.loadAll());
-    }
-
     @Test
     @DisplayName("Test loadAll method with data")
     void testLoadAllWithData() {
@@ -91,6 +164,22 @@ public class StorageServiceImplTests {
         assertEquals(items, storageService.loadAll());
     }
 
+    @Test
+    @DisplayName("Test loadPage method seeks after the given id")
+    void testLoadPage() {
+        List<FileItemDTO> page = Collections.singletonList(new FileItemDTO(43L, TMP_FILE_NAME));
+        when(fileRepository.findPageByOwnerId(USER_ID, 42L, PageRequest.of(0, 10))).thenReturn(page);
+
+        assertEquals(page, storageService.loadPage(42L, 10));
+    }
+
+    @Test
+    @DisplayName("Test loadPage method for the first page")
+    void testLoadFirstPage() {
+        assertEquals(Collections.emptyList(), storageService.loadPage(null, 10));
+        verify(fileRepository).findPageByOwnerId(USER_ID, Long.MIN_VALUE, PageRequest.of(0, 10));
+    }
+
     @Test
     @DisplayName("Test load file without any data in DB")
     void testLoadWithoutFile() {
@@ -99,15 +188,311 @@ public class StorageServiceImplTests {
         assertThrows(IllegalArgumentException.class, () -> storageService.load(fileId));
     }
 
+    @Test
+    @DisplayName("Test load file queries it once and serves copies of it from the cache")
+    void testLoadCached() {
+        Long fileId = 321L;
+        FileItem fileItem = new FileItem(fileId);
+        fileItem.setOwner(LOGGED_USER);
+        fileItem.setHash("hash");
+        fileItem.setBlob(new Blob("hash", 7));
+        when(fileRepository.findById(fileId)).thenReturn(Optional.of(fileItem));
+        assertEquals(fileItem, storageService.load(fileId));
+
+        FileItem cached = storageService.load(fileId);
+        assertNotSame(fileItem, cached);
+        assertEquals(fileItem.getHash(), cached.getHash());
+        assertEquals(fileItem.getBlob(), cached.getBlob());
+        assertEquals(USER_ID, cached.getOwner().getId());
+        verify(fileRepository).findById(fileId);
+        verify(fileRepository, never()).existsById(any());
+    }
+
+    @Test
+    @DisplayName("Test load file tracks the read of its blob and of cold blobs for promotion")
+    void testLoadTracksRead() {
+        FileItem hotFile = new FileItem(321L);
+        hotFile.setOwner(LOGGED_USER);
+        hotFile.setHash("hot");
+        hotFile.setBlob(new Blob("hot", 7));
+        FileItem coldFile = new FileItem(322L);
+        coldFile.setOwner(LOGGED_USER);
+        coldFile.setHash("cold");
+        coldFile.setBlob(new Blob("cold", 7));
+        coldFile.getBlob().setTier(StorageTier.COLD);
+        when(fileRepository.findById(321L)).thenReturn(Optional.of(hotFile));
+        doReturn(Optional.of(coldFile)).when(fileRepository).findById(322L);
+
+        assertEquals(StorageTier.HOT, storageService.load(321L).getTier());
+        assertEquals(StorageTier.COLD, storageService.load(322L).getTier());
+        storageService.load(322L);
+        assertEquals(Arrays.asList("cold", "hot"), accessTracker.drainRead().stream().sorted()
+                .collect(Collectors.toList()));
+        assertEquals(Collections.singletonList("cold"), accessTracker.drainColdRead());
+        assertEquals(Collections.emptyList(), accessTracker.drainRead());
+    }
+
+    @Test
+    @DisplayName("Test demote blob gzips compressible content into the cold tier and removes the hot copy")
+    void testDemoteBlob() throws IOException {
+        byte[] content = String.join(",", Collections.nCopies(10_000, "id;name;value")).getBytes();
+        BlobStat stored = blobStore.put(new ByteArrayInputStream(content));
+        Blob blob = new Blob(stored.getKey(), content.length);
+        when(blobRepository.findById(stored.getKey())).thenReturn(Optional.of(blob));
+
+        assertTrue(storageService.demoteBlob(stored.getKey()));
+        assertEquals(StorageTier.COLD, blob.getTier());
+        assertEquals(BlobCodec.GZIP, blob.getEncoding());
+        assertNull(hotStore.stat(stored.getKey()));
+        assertNotNull(coldStore.stat(blob.getEncodedKey()));
+        verify(blobRepository).save(blob);
+        verify(fileRepository).updateFsPath(eq(blob.getEncodedKey()), any());
+        try (InputStream decoded = BlobCodec.decode(BlobCodec.GZIP,
+                new ByteArrayInputStream(readBlob(blob.getEncodedKey())))) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(decoded));
+        }
+        try (Stream<Path> staged = Files.list(root.resolve("tmp"))) {
+            assertEquals(0, staged.count());
+        }
+        assertFalse(storageService.demoteBlob(stored.getKey()));
+    }
+
+    @Test
+    @DisplayName("Test demote blob keeps incompressible content as is under its key")
+    void testDemoteIncompressibleBlob() throws IOException {
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        BlobStat stored = blobStore.put(new ByteArrayInputStream(random));
+        Blob blob = new Blob(stored.getKey(), random.length);
+        when(blobRepository.findById(stored.getKey())).thenReturn(Optional.of(blob));
+
+        assertTrue(storageService.demoteBlob(stored.getKey()));
+        assertEquals(StorageTier.COLD, blob.getTier());
+        assertNull(blob.getEncoding());
+        assertNull(hotStore.stat(stored.getKey()));
+        assertArrayEquals(random, readBlob(stored.getKey()));
+    }
+
+    @Test
+    @DisplayName("Test demote blob whose content doesn't match its hash keeps it hot")
+    void testDemoteCorruptedBlob() throws IOException {
+        BlobStat stored = blobStore.put(new ByteArrayInputStream("content".getBytes()));
+        Blob blob = new Blob(stored.getKey(), 7);
+        when(blobRepository.findById(stored.getKey())).thenReturn(Optional.of(blob));
+        Path corrupted = Files.write(root.resolve("corrupted"), "CONTENT".getBytes());
+        doAnswer(answer -> Files.newByteChannel(corrupted)).when(blobStore).open(stored.getKey());
+
+        assertThrows(IllegalStateException.class, () -> storageService.demoteBlob(stored.getKey()));
+        assertEquals(StorageTier.HOT, blob.getTier());
+        assertNotNull(hotStore.stat(stored.getKey()));
+        verify(blobRepository, never()).save(any(Blob.class));
+    }
+
+    @Test
+    @DisplayName("Test promote blob moves it back into the hot tier as stored")
+    void testPromoteBlob() throws IOException {
+        BlobStat stored = blobStore.put(new ByteArrayInputStream("content".getBytes()), StorageTier.COLD);
+        Blob blob = new Blob("hash", 7, BlobCodec.GZIP, stored.getKey());
+        blob.setTier(StorageTier.COLD);
+        when(blobRepository.findById("hash")).thenReturn(Optional.of(blob));
+
+        assertTrue(storageService.promoteBlob("hash"));
+        assertEquals(StorageTier.HOT, blob.getTier());
+        assertEquals(stored.getKey(), blob.getEncodedKey());
+        assertNull(coldStore.stat(stored.getKey()));
+        assertNotNull(hotStore.stat(stored.getKey()));
+        verify(fileRepository).updateFsPath(eq(stored.getKey()), any());
+        assertFalse(storageService.promoteBlob("hash"));
+        assertFalse(storageService.promoteBlob("missing"));
+    }
+
+    @Test
+    @DisplayName("Test delete file evicts it from the cache")
+    void testLoadDeleted() {
+        Long fileId = 321L;
+        FileItem fileItem = new FileItem(fileId);
+        fileItem.setOwner(LOGGED_USER);
+        fileItem.setHash("hash");
+        when(fileRepository.findById(fileId)).thenReturn(Optional.of(fileItem)).thenReturn(Optional.empty());
+        when(fileRepository.findByIdAndOwnerId(fileId, USER_ID)).thenReturn(Optional.of(fileItem));
+        storageService.load(fileId);
+
+        storageService.delete(fileId);
+        assertThrows(IllegalArgumentException.class, () -> storageService.load(fileId));
+    }
+
     @Test
     @DisplayName("Test load file with wrong file owner")
     void testLoadWithWrongFileOwner() {
         Long fileId = 321L;
-        User user = new User();
         FileItem fileItem = new FileItem(fileId);
-        fileItem.setOwner(user);
+        fileItem.setOwner(user(1L, "owner"));
+        fileItem.setHash("hash");
         when(fileRepository.findById(fileId)).thenReturn(Optional.of(fileItem));
         assertThrows(AccessDeniedException.class, () -> storageService.load(fileId));
+        assertThrows(AccessDeniedException.class, () -> storageService.load(fileId));
+    }
+
+    @Test
+    @DisplayName("Test load file shared with the logged user")
+    void testLoadSharedFile() {
+        Long fileId = 321L;
+        FileItem fileItem = new FileItem(fileId);
+        fileItem.setOwner(user(1L, "owner"));
+        fileItem.setHash("hash");
+        when(fileAccessCache.isSharedWith(fileId, USER_ID)).thenReturn(true);
+        when(fileRepository.findById(fileId)).thenReturn(Optional.of(fileItem));
+        assertEquals(fileItem, storageService.load(fileId));
+    }
+
+    @Test
+    @DisplayName("Test share file with another user")
+    void testShare() {
+        Long fileId = 321L;
+        when(fileRepository.existsByIdAndOwnerId(fileId, USER_ID)).thenReturn(true);
+        when(userRepository.findByUsername("user2")).thenReturn(user(2L, "user2"));
+
+        storageService.share(fileId, "user2");
+        InOrder inOrder = inOrder(fileShareRepository, fileAccessCache);
+        inOrder.verify(fileShareRepository).save(new FileShare(fileId, 2L));
+        inOrder.verify(fileAccessCache).evict(fileId);
+    }
+
+    @Test
+    @DisplayName("Test share file twice doesn't create another share")
+    void testShareTwice() {
+        Long fileId = 321L;
+        when(fileRepository.existsByIdAndOwnerId(fileId, USER_ID)).thenReturn(true);
+        when(userRepository.findByUsername("user2")).thenReturn(user(2L, "user2"));
+        when(fileShareRepository.existsByFileIdAndUserId(fileId, 2L)).thenReturn(true);
+
+        storageService.share(fileId, "user2");
+        verify(fileShareRepository, never()).save(any());
+    }
+
+    @Test
+    @DisplayName("Test share file of another user")
+    void testShareWithWrongFileOwner() {
+        Long fileId = 321L;
+        when(fileRepository.existsById(fileId)).thenReturn(true);
+        assertThrows(AccessDeniedException.class, () -> storageService.share(fileId, "user2"));
+        verifyZeroInteractions(fileShareRepository, fileAccessCache);
+    }
+
+    @Test
+    @DisplayName("Test share file with unknown user")
+    void testShareWithUnknownUser() {
+        Long fileId = 321L;
+        when(fileRepository.existsByIdAndOwnerId(fileId, USER_ID)).thenReturn(true);
+        assertThrows(IllegalArgumentException.class, () -> storageService.share(fileId, "unknown"));
+        verifyZeroInteractions(fileShareRepository);
+    }
+
+    @Test
+    @DisplayName("Test share file with its owner")
+    void testShareWithOwner() {
+        Long fileId = 321L;
+        when(fileRepository.existsByIdAndOwnerId(fileId, USER_ID)).thenReturn(true);
+        when(userRepository.findByUsername("owner")).thenReturn(LOGGED_USER);
+        assertThrows(IllegalStateException.class, () -> storageService.share(fileId, "owner"));
+        verifyZeroInteractions(fileShareRepository);
+    }
+
+    @Test
+    @DisplayName("Test revoke share evicts the access cache")
+    void testRevokeShare() {
+        Long fileId = 321L;
+        when(fileRepository.existsByIdAndOwnerId(fileId, USER_ID)).thenReturn(true);
+        when(userRepository.findByUsername("user2")).thenReturn(user(2L, "user2"));
+
+        storageService.revokeShare(fileId, "user2");
+        InOrder inOrder = inOrder(fileShareRepository, fileAccessCache);
+        inOrder.verify(fileShareRepository).deleteByFileIdAndUserId(fileId, 2L);
+        inOrder.verify(fileAccessCache).evict(fileId);
+    }
+
+    @Test
+    @DisplayName("Test delete file releases its blob and evicts the access cache")
+    void testDelete() {
+        Long fileId = 321L;
+        FileItem fileItem = new FileItem(fileId);
+        fileItem.setHash("hash");
+        fileItem.setBlob(new Blob("hash", 7));
+        when(fileRepository.findByIdAndOwnerId(fileId, USER_ID)).thenReturn(Optional.of(fileItem));
+
+        storageService.delete(fileId);
+        verify(quotas).release(USER_ID, 7);
+        InOrder inOrder = inOrder(fileShareRepository, fileRepository, blobRepository, fileAccessCache);
+        inOrder.verify(fileShareRepository).deleteByFileId(fileId);
+        inOrder.verify(fileRepository).delete(fileItem);
+        inOrder.verify(blobRepository).decrementRefCount("hash");
+        inOrder.verify(fileAccessCache).evict(fileId);
+    }
+
+    @Test
+    @DisplayName("Test delete file of another user")
+    void testDeleteWithWrongFileOwner() {
+        Long fileId = 321L;
+        when(fileRepository.existsById(fileId)).thenReturn(true);
+        assertThrows(AccessDeniedException.class, () -> storageService.delete(fileId));
+        verify(fileRepository, never()).delete(any());
+        verifyZeroInteractions(fileShareRepository, blobRepository, fileAccessCache);
+    }
+
+    @Test
+    @DisplayName("Test loadSharedPage method for the first page")
+    void testLoadSharedPage() {
+        List<FileItemDTO> page = Collections.singletonList(new FileItemDTO(43L, TMP_FILE_NAME));
+        when(fileShareRepository.findPageByUserId(USER_ID, Long.MIN_VALUE, PageRequest.of(0, 10))).thenReturn(page);
+        assertEquals(page, storageService.loadSharedPage(null, 10));
+    }
+
+    private static User user(Long id, String username) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername(username);
+        return user;
+    }
+
+    @Test
+    @DisplayName("Test load file stored before the blob store moves it into the blob store")
+    void testLoadWithLegacyFile() throws IOException {
+        Long fileId = 321L;
+        Path legacyFile = Files.write(root.resolve("legacy"), "content".getBytes());
+        FileItem fileItem = new FileItem(fileId);
+        fileItem.setOwner(LOGGED_USER);
+        fileItem.setFsPath(legacyFile.toString());
+        when(fileRepository.findById(fileId)).thenReturn(Optional.of(fileItem));
+
+        assertEquals(fileItem, storageService.load(fileId));
+        assertEquals("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73", fileItem.getHash());
+        assertArrayEquals("content".getBytes(), readBlob(fileItem.getHash()));
+        assertFalse(Files.exists(legacyFile));
+        verify(blobRepository).save(any(Blob.class));
+        verify(fileRepository).save(fileItem);
+    }
+
+    @Test
+    @DisplayName("Test adopt legacy file keeps the file until the transaction is committed")
+    void testAdoptLegacyFile() throws IOException {
+        Long fileId = 321L;
+        Path legacyFile = Files.write(root.resolve("legacy"), "content".getBytes());
+        FileItem fileItem = new FileItem(fileId);
+        fileItem.setFsPath(legacyFile.toString());
+        when(fileRepository.findById(fileId)).thenReturn(Optional.of(fileItem));
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertTrue(storageService.adoptLegacyFile(fileId));
+            assertArrayEquals("content".getBytes(), readBlob(fileItem.getHash()));
+            assertTrue(Files.exists(legacyFile));
+            verify(fileRepository).save(fileItem);
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+            assertFalse(Files.exists(legacyFile));
+            assertFalse(storageService.adoptLegacyFile(fileId));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
     }
 
     @Test
@@ -120,23 +505,25 @@ public class StorageServiceImplTests {
         assertEquals(fileItem, storageService.load(fileId));
     }
 
-    private MultipartFile mockMultipartFile() {
+    private MultipartFile mockMultipartFile() throws IOException {
         MultipartFile file = mock(MultipartFile.class);
         when(file.getOriginalFilename()).thenReturn(TMP_FILE_NAME);
+        when(file.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
         return file;
     }
 
     @Test
     @DisplayName("Test store file with some exception, occurred at storing process")
-    void testStoreWithStoringException() {
+    void testStoreWithStoringException() throws IOException {
+        MultipartFile multipartFile = mockMultipartFile();
         doThrow(IllegalStateException.class).when(fileRepository).save(any(FileItem.class));
 
-        assertThrows(RuntimeException.class, () -> storageService.store(mockMultipartFile()));
+        assertThrows(RuntimeException.class, () -> storageService.store(multipartFile));
     }
 
     @Test
     @DisplayName("Test store file. Positive case")
-    void testStore() {
+    void testStore() throws IOException {
         // return what was passed as an argument for checking some service method logic!
         when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
 
@@ -146,8 +533,435 @@ public class StorageServiceImplTests {
         assertEquals(LOGGED_USER, savedFile.getOwner());
 
         assertNotNull(savedFile.getFsPath());
-        assertTrue(
-                savedFile.getFsPath().startsWith("null" + File.separator + USER_ID + File.separator),
-                savedFile.getFsPath());
+        assertTrue(savedFile.getFsPath().endsWith(savedFile.getHash()), savedFile.getFsPath());
+        assertArrayEquals("content".getBytes(), readBlob(savedFile.getHash()));
+        verify(metrics).received(null, "content".length());
+    }
+
+    private byte[] readBlob(String key) throws IOException {
+        try (SeekableByteChannel channel = blobStore.open(key)) {
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read until the buffer is full
+            }
+            return content.array();
+        }
+    }
+
+    @Test
+    @DisplayName("Test store the same content twice keeps one shared blob")
+    void testStoreDeduplicates() throws IOException {
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        FileItem first = storageService.store("first.txt", new ByteArrayInputStream("content".getBytes()));
+        verify(blobRepository).save(any(Blob.class));
+
+        when(blobRepository.incrementRefCount(first.getHash())).thenReturn(1);
+        FileItem second = storageService.store("second.txt", new ByteArrayInputStream("content".getBytes()));
+
+        assertEquals(first.getFsPath(), second.getFsPath());
+        assertEquals("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73", second.getHash());
+        verify(blobRepository, times(1)).save(any(Blob.class));
+    }
+
+    @Test
+    @DisplayName("Test store file from stream. Positive case")
+    void testStoreStream() throws IOException {
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        byte[] content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+
+        FileItem savedFile = storageService.store(TMP_FILE_NAME, new ByteArrayInputStream(content));
+        assertEquals(TMP_FILE_NAME, savedFile.getName());
+        assertEquals(LOGGED_USER, savedFile.getOwner());
+        assertArrayEquals(content, readBlob(savedFile.getHash()));
+    }
+
+    @Test
+    @DisplayName("Test store staged file moves it into the blob store")
+    void testStoreStagedFile() throws IOException {
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        byte[] content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+        Path staged = Files.write(storageService.newStagedFile(), content);
+
+        FileItem savedFile = storageService.store(TMP_FILE_NAME, staged);
+        assertEquals(TMP_FILE_NAME, savedFile.getName());
+        assertEquals(LOGGED_USER, savedFile.getOwner());
+        assertArrayEquals(content, readBlob(savedFile.getHash()));
+        assertFalse(Files.exists(staged));
+    }
+
+    @Test
+    @DisplayName("Test store settles the blob write once the transaction is over")
+    void testStoreSettlesOnCompletion() throws IOException {
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            FileItem savedFile = storageService.store(TMP_FILE_NAME, new ByteArrayInputStream("content".getBytes()));
+            verify(blobStore, never()).settle(anyString(), anyBoolean(), any());
+
+            TransactionSynchronizationManager.getSynchronizations()
+                    .forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+            verify(blobStore).settle(eq(savedFile.getHash()), eq(false), any());
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Test store compressible file keeps it gzipped")
+    void testStoreCompressed() throws IOException {
+        ReflectionTestUtils.setField(storageService, "compression", true);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        byte[] content = String.join(",", Collections.nCopies(10_000, "id;name;value")).getBytes();
+
+        FileItem savedFile = storageService.store("data.csv", new ByteArrayInputStream(content));
+        ArgumentCaptor<Blob> blob = ArgumentCaptor.forClass(Blob.class);
+        verify(blobRepository).save(blob.capture());
+        assertEquals(BlobCodec.GZIP, blob.getValue().getEncoding());
+        assertEquals(savedFile.getHash(), blob.getValue().getHash());
+        assertEquals(content.length, blob.getValue().getSize());
+        assertNull(blobStore.stat(savedFile.getHash()));
+        verify(metrics).received(null, content.length);
+
+        byte[] encoded = readBlob(blob.getValue().getEncodedKey());
+        assertTrue(encoded.length < content.length / 10);
+        try (InputStream decoded = BlobCodec.decode(BlobCodec.GZIP, new ByteArrayInputStream(encoded))) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(decoded));
+        }
+        try (Stream<Path> staged = Files.list(root.resolve("tmp"))) {
+            assertEquals(0, staged.count());
+        }
+    }
+
+    @Test
+    @DisplayName("Test store incompressible or already compressed file keeps it as is")
+    void testStoreNotCompressed() throws IOException {
+        ReflectionTestUtils.setField(storageService, "compression", true);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        byte[] text = String.join(",", Collections.nCopies(10_000, "text")).getBytes();
+
+        FileItem randomFile = storageService.store("random.txt", new ByteArrayInputStream(random));
+        FileItem imageFile = storageService.store("image.jpg", new ByteArrayInputStream(text));
+        assertArrayEquals(random, readBlob(randomFile.getHash()));
+        assertArrayEquals(text, readBlob(imageFile.getHash()));
+        ArgumentCaptor<Blob> blobs = ArgumentCaptor.forClass(Blob.class);
+        verify(blobRepository, times(2)).save(blobs.capture());
+        assertTrue(blobs.getAllValues().stream().allMatch(blob -> blob.getEncoding() == null));
+    }
+
+    @Test
+    @DisplayName("Test store compressible file already stored as is keeps the stored blob")
+    void testStoreCompressedDeduplicates() throws IOException {
+        ReflectionTestUtils.setField(storageService, "compression", true);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        BlobStat stored = blobStore.put(new ByteArrayInputStream("content".getBytes()));
+        when(blobRepository.findById(stored.getKey())).thenReturn(Optional.of(new Blob(stored.getKey(), 7)));
+        when(blobRepository.incrementRefCount(stored.getKey())).thenReturn(1);
+
+        FileItem savedFile = storageService.store(TMP_FILE_NAME, new ByteArrayInputStream("content".getBytes()));
+        assertEquals(stored.getKey(), savedFile.getHash());
+        assertEquals(stored.getLocation(), savedFile.getFsPath());
+        verify(blobRepository, never()).save(any(Blob.class));
+    }
+
+    @Test
+    @DisplayName("Test storeAll writes the files concurrently and saves them in one batch")
+    void testStoreAll() throws IOException {
+        ReflectionTestUtils.setField(storageService, "compression", true);
+        when(fileRepository.saveAll(any())).thenAnswer(answer -> answer.getArguments()[0]);
+        byte[] text = String.join(",", Collections.nCopies(10_000, "id;name;value")).getBytes();
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        List<MultipartFile> files = Arrays.asList(
+                new MockMultipartFile("uploadFiles", "data.csv", null, text),
+                new MockMultipartFile("uploadFiles", "random.txt", null, random),
+                new MockMultipartFile("uploadFiles", "image.jpg", null, text));
+
+        List<FileItem> savedFiles = storageService.storeAll(files);
+        assertEquals(Arrays.asList("data.csv", "random.txt", "image.jpg"),
+                savedFiles.stream().map(FileItem::getName).collect(Collectors.toList()));
+        assertTrue(savedFiles.stream().allMatch(file -> LOGGED_USER.equals(file.getOwner())));
+        verify(storeExecutor, times(3)).execute(any());
+        verify(fileRepository).saveAll(any());
+        verify(fileRepository, never()).save(any(FileItem.class));
+
+        ArgumentCaptor<Blob> blobs = ArgumentCaptor.forClass(Blob.class);
+        verify(blobRepository, times(3)).save(blobs.capture());
+        assertEquals(BlobCodec.GZIP, blobs.getAllValues().get(0).getEncoding());
+        assertNull(blobs.getAllValues().get(1).getEncoding());
+        assertNull(blobs.getAllValues().get(2).getEncoding());
+        assertArrayEquals(random, readBlob(savedFiles.get(1).getHash()));
+        assertArrayEquals(text, readBlob(savedFiles.get(2).getHash()));
+        verify(metrics).received(null, random.length);
+        try (Stream<Path> staged = Files.list(root.resolve("tmp"))) {
+            assertEquals(0, staged.count());
+        }
+    }
+
+    @Test
+    @DisplayName("Test storeAll stores nothing if a file fails and rolls back the blobs of the others")
+    void testStoreAllWithBrokenFile() throws IOException {
+        MultipartFile broken = mock(MultipartFile.class);
+        when(broken.getInputStream()).thenThrow(IOException.class);
+        List<MultipartFile> files = Arrays.asList(
+                new MockMultipartFile("uploadFiles", TMP_FILE_NAME, null, "content".getBytes()), broken);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertThrows(RuntimeException.class, () -> storageService.storeAll(files));
+            verify(fileRepository, never()).saveAll(any());
+            verify(blobRepository, never()).save(any(Blob.class));
+
+            TransactionSynchronizationManager.getSynchronizations()
+                    .forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+            verify(blobStore).settle(eq("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73"),
+                    eq(false), any());
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Test store counts the file against the quota of the owner until the transaction rolls back")
+    void testStoreReservesQuota() throws IOException {
+        LOGGED_USER.setStorageQuota(10L);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            storageService.store(TMP_FILE_NAME, new ByteArrayInputStream("content".getBytes()));
+            assertEquals(7, quotas.usage(USER_ID));
+            assertThrows(QuotaExceededException.class,
+                    () -> storageService.store(TMP_FILE_NAME, new ByteArrayInputStream("content".getBytes())));
+            verify(fileRepository, times(1)).save(any(FileItem.class));
+
+            TransactionSynchronizationManager.getSynchronizations()
+                    .forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+            assertEquals(0, quotas.usage(USER_ID));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Test store rejects a file over the quota before writing its content")
+    void testStoreOverQuota() throws IOException {
+        LOGGED_USER.setStorageQuota(10L);
+        MultipartFile multipartFile = mock(MultipartFile.class);
+        when(multipartFile.getSize()).thenReturn(11L);
+
+        assertThrows(QuotaExceededException.class, () -> storageService.store(multipartFile));
+        assertThrows(QuotaExceededException.class, () -> storageService.storeAll(Arrays.asList(
+                new MockMultipartFile("uploadFiles", "a.txt", null, new byte[6]),
+                new MockMultipartFile("uploadFiles", "b.txt", null, new byte[6]))));
+        assertThrows(QuotaExceededException.class, () -> storageService.createUpload(TMP_FILE_NAME, 11));
+        verify(blobStore, never()).put(any(InputStream.class));
+        verify(multipartFile, never()).getInputStream();
+        verifyZeroInteractions(uploadSessionRepository);
+    }
+
+    @Test
+    @DisplayName("Test store file from broken stream")
+    void testStoreStreamWithBrokenStream() throws IOException {
+        InputStream broken = mock(InputStream.class);
+        when(broken.read(any(byte[].class), anyInt(), anyInt())).thenThrow(IOException.class);
+
+        assertThrows(RuntimeException.class, () -> storageService.store(TMP_FILE_NAME, broken));
+        verify(fileRepository, never()).save(any(FileItem.class));
+    }
+
+    @Test
+    @DisplayName("Test init recovers the blob store and removes partial files but resumable uploads")
+    void testInitRecovers() throws IOException {
+        ReflectionTestUtils.setField(storageService, "chunkSize", 4);
+        Path partial = Files.write(storageService.newStagedFile(), "partial".getBytes());
+        Path upload = Files.write(storageService.newStagedFile(), "upload".getBytes());
+        when(uploadSessionRepository.findAllFsPaths()).thenReturn(Collections.singletonList(upload.toString()));
+
+        storageService.init();
+        verify(blobStore).recover(any());
+        assertFalse(Files.exists(partial));
+        assertTrue(Files.exists(upload));
+    }
+
+    private UploadSession createUpload(long size) {
+        ReflectionTestUtils.setField(storageService, "chunkSize", 4);
+        when(uploadSessionRepository.save(any(UploadSession.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        UploadSession upload = storageService.createUpload(TMP_FILE_NAME, size);
+        lenient().when(uploadSessionRepository.findById(upload.getId())).thenReturn(Optional.of(upload));
+        return upload;
+    }
+
+    @Test
+    @DisplayName("Test create upload pre-sizes the target file")
+    void testCreateUpload() throws IOException {
+        UploadSession upload = createUpload(10);
+        assertEquals(LOGGED_USER, upload.getOwner());
+        assertEquals(3, upload.getChunkCount());
+        assertEquals(10, Files.size(Paths.get(upload.getFsPath())));
+    }
+
+    @Test
+    @DisplayName("Test store chunks out of order and commit upload")
+    void testStoreChunksAndCommit() throws IOException {
+        UploadSession upload = createUpload(10);
+        storageService.storeChunk(upload.getId(), 8, new ByteArrayInputStream(new byte[]{8, 9}));
+        storageService.storeChunk(upload.getId(), 0, new ByteArrayInputStream(new byte[]{0, 1, 2, 3}));
+        storageService.storeChunk(upload.getId(), 4, new ByteArrayInputStream(new byte[]{4, 5, 6, 7}));
+        verify(uploadChunkRepository, times(3)).save(any(UploadChunk.class));
+        byte[] content = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(upload.getFsPath())));
+
+        when(uploadChunkRepository.countByUploadId(upload.getId())).thenReturn(3L);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        FileItem fileItem = storageService.commitUpload(upload.getId());
+        assertEquals(TMP_FILE_NAME, fileItem.getName());
+        assertArrayEquals(content, readBlob(fileItem.getHash()));
+        assertFalse(Files.exists(Paths.get(upload.getFsPath())));
+        assertEquals(LOGGED_USER, fileItem.getOwner());
+        verify(uploadSessionRepository).delete(upload);
+    }
+
+    @Test
+    @DisplayName("Test a commit over the quota keeps the chunks, so that it can be retried once space is freed")
+    void testCommitUploadOverQuota() throws IOException {
+        LOGGED_USER.setStorageQuota(10L);
+        UploadSession upload = createUpload(10);
+        storageService.storeChunk(upload.getId(), 0, new ByteArrayInputStream(new byte[]{0, 1, 2, 3}));
+        storageService.storeChunk(upload.getId(), 4, new ByteArrayInputStream(new byte[]{4, 5, 6, 7}));
+        storageService.storeChunk(upload.getId(), 8, new ByteArrayInputStream(new byte[]{8, 9}));
+        when(uploadChunkRepository.countByUploadId(upload.getId())).thenReturn(3L);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        storageService.store(TMP_FILE_NAME, new ByteArrayInputStream("abc".getBytes()));
+
+        assertThrows(QuotaExceededException.class, () -> storageService.commitUpload(upload.getId()));
+        assertTrue(Files.exists(Paths.get(upload.getFsPath())));
+        verify(uploadSessionRepository, never()).delete(upload);
+
+        quotas.release(USER_ID, 3);
+        FileItem fileItem = storageService.commitUpload(upload.getId());
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, readBlob(fileItem.getHash()));
+        assertEquals(10, quotas.usage(USER_ID));
+        assertFalse(Files.exists(Paths.get(upload.getFsPath())));
+    }
+
+    @Test
+    @DisplayName("Test a commit that rolls back keeps the chunks")
+    void testCommitUploadRolledBack() throws IOException {
+        UploadSession upload = createUpload(10);
+        Files.write(Paths.get(upload.getFsPath()), "0123456789".getBytes());
+        when(uploadChunkRepository.countByUploadId(upload.getId())).thenReturn(3L);
+        when(fileRepository.save(any(FileItem.class))).thenThrow(new IllegalStateException("DB is down"));
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertThrows(IllegalStateException.class, () -> storageService.commitUpload(upload.getId()));
+            TransactionSynchronizationManager.getSynchronizations()
+                    .forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertArrayEquals("0123456789".getBytes(), Files.readAllBytes(Paths.get(upload.getFsPath())));
+    }
+
+    @Test
+    @DisplayName("Test a chunk sent late to a committed upload doesn't change the stored file")
+    void testStoreChunkAfterCommit() throws IOException {
+        FileBlobStore fileStore = new FileBlobStore(root.resolve("blobs"));
+        ReflectionTestUtils.setField(storageService, "blobStore", fileStore);
+        UploadSession upload = createUpload(10);
+        Files.write(Paths.get(upload.getFsPath()), "0123456789".getBytes());
+        when(uploadChunkRepository.countByUploadId(upload.getId())).thenReturn(3L);
+        when(fileRepository.save(any(FileItem.class))).thenAnswer(answer -> answer.getArguments()[0]);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            FileItem fileItem = storageService.commitUpload(upload.getId());
+            storageService.storeChunk(upload.getId(), 0, new ByteArrayInputStream("abcd".getBytes()));
+            assertArrayEquals("0123456789".getBytes(),
+                    Files.readAllBytes(fileStore.getLocalPath(fileItem.getHash())));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Test a chunk sent again while the first send is stored is stored once")
+    void testStoreChunkConcurrently() throws Exception {
+        UploadSession upload = createUpload(10);
+        CountDownLatch checked = new CountDownLatch(2);
+        when(uploadChunkRepository.existsByUploadIdAndChunkIndex(upload.getId(), 1)).thenAnswer(answer -> {
+            // both sends find the chunk missing
+            checked.countDown();
+            checked.await(5, TimeUnit.SECONDS);
+            return false;
+        });
+        when(uploadChunkRepository.save(any(UploadChunk.class)))
+                .thenAnswer(answer -> answer.getArguments()[0])
+                .thenThrow(new DataIntegrityViolationException("upload_chunk_index_uk"));
+
+        SecurityContext securityContext = SecurityContextHolder.getContext();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> sends = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                sends.add(executor.submit(() -> {
+                    SecurityContextHolder.setContext(securityContext);
+                    storageService.storeChunk(upload.getId(), 4, new ByteArrayInputStream(new byte[]{4, 5, 6, 7}));
+                }));
+            }
+            for (Future<?> send : sends) {
+                send.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(uploadChunkRepository, times(2)).save(any(UploadChunk.class));
+        assertArrayEquals(new byte[]{0, 0, 0, 0, 4, 5, 6, 7, 0, 0}, Files.readAllBytes(Paths.get(upload.getFsPath())));
+    }
+
+    @Test
+    @DisplayName("Test store chunk with wrong offset or length")
+    void testStoreChunkWithWrongOffsetOrLength() {
+        UploadSession upload = createUpload(10);
+        assertThrows(IllegalStateException.class,
+                () -> storageService.storeChunk(upload.getId(), 3, new ByteArrayInputStream(new byte[4])));
+        assertThrows(IllegalStateException.class,
+                () -> storageService.storeChunk(upload.getId(), 12, new ByteArrayInputStream(new byte[4])));
+        assertThrows(IllegalStateException.class,
+                () -> storageService.storeChunk(upload.getId(), 0, new ByteArrayInputStream(new byte[5])));
+        assertThrows(IllegalStateException.class,
+                () -> storageService.storeChunk(upload.getId(), 0, new ByteArrayInputStream(new byte[3])));
+        verify(uploadChunkRepository, never()).save(any(UploadChunk.class));
+    }
+
+    @Test
+    @DisplayName("Test commit incomplete upload")
+    void testCommitIncompleteUpload() {
+        UploadSession upload = createUpload(10);
+        when(uploadChunkRepository.countByUploadId(upload.getId())).thenReturn(2L);
+        assertThrows(IllegalStateException.class, () -> storageService.commitUpload(upload.getId()));
+        verify(fileRepository, never()).save(any(FileItem.class));
+    }
+
+    @Test
+    @DisplayName("Test load upload of another user")
+    void testLoadUploadWithWrongOwner() {
+        User user = new User();
+        user.setId(USER_ID + 1);
+        UploadSession upload = new UploadSession();
+        upload.setId("upload");
+        upload.setOwner(user);
+        when(uploadSessionRepository.findById("upload")).thenReturn(Optional.of(upload));
+        assertThrows(AccessDeniedException.class, () -> storageService.loadUpload("upload"));
+    }
+
+    @Test
+    @DisplayName("Test load received chunks")
+    void testLoadReceivedChunks() {
+        UploadSession upload = new UploadSession();
+        upload.setId("upload");
+        when(uploadChunkRepository.findAllByUploadIdOrderByChunkIndex("upload"))
+                .thenReturn(Arrays.asList(new UploadChunk("upload", 0), new UploadChunk("upload", 2)));
+        assertEquals(Arrays.asList(0, 2), storageService.loadReceivedChunks(upload));
     }
 }
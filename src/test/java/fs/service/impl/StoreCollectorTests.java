@@ -0,0 +1,189 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.dao.FileRepository;
+import fs.domain.Blob;
+import fs.storage.BlobStore;
+import fs.storage.Durability;
+import fs.storage.MemoryBlobStore;
+import fs.storage.PackedBlobStore;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("StoreCollector")
+class StoreCollectorTests {
+    private static final int BATCH_SIZE = 2;
+
+    @TempDir
+    Path root;
+    @Mock
+    private BlobRepository blobRepository;
+    @Mock
+    private FileRepository fileRepository;
+    private final BlobStore blobStore = new MemoryBlobStore();
+
+    private StoreCollector createCollector(Duration gracePeriod) {
+        return createCollector(blobStore, gracePeriod);
+    }
+
+    private StoreCollector createCollector(BlobStore store, Duration gracePeriod) {
+        return new StoreCollector(blobRepository, fileRepository, store, root.toString(), true, BATCH_SIZE,
+                Duration.ofSeconds(1), gracePeriod);
+    }
+
+    /**
+     * Stores the content with a committed row.
+     */
+    private String put(String content) throws IOException {
+        String key = blobStore.put(new ByteArrayInputStream(content.getBytes())).getKey();
+        blobStore.settle(key, true, k -> true);
+        return key;
+    }
+
+    private static void collectCycle(StoreCollector collector) {
+        for (int batch = 0; batch < 100; batch++) {
+            if (collector.runBatch()) {
+                return;
+            }
+        }
+        fail("Cycle isn't done");
+    }
+
+    @Test
+    @DisplayName("Test a cycle removes blobs of deleted files, orphan blobs and orphan legacy files")
+    void testCollectCycle() throws IOException {
+        String deleted = put("deleted");
+        String orphan = put("orphan");
+        String kept = put("kept");
+        Path userFolder = Files.createDirectories(root.resolve("1"));
+        Path legacyKept = Files.write(userFolder.resolve("kept"), "kept".getBytes());
+        Path legacyOrphan = Files.write(userFolder.resolve("orphan"), "orphan".getBytes());
+        String legacyKeptPath = root + File.separator + "1" + File.separator + "kept";
+
+        when(blobRepository.findUnreferenced(eq(""), any(PageRequest.class)))
+                .thenReturn(Collections.singletonList(new Blob(deleted, 7)));
+        when(blobRepository.deleteUnreferenced(deleted)).thenReturn(1);
+        when(blobRepository.isStoredUnder(anyString())).thenReturn(false);
+        when(blobRepository.findStoreKeysIn(any())).thenReturn(Collections.singletonList(kept));
+        when(fileRepository.findFsPathsIn(any())).thenReturn(Collections.singletonList(legacyKeptPath));
+
+        StoreCollector collector = createCollector(Duration.ZERO);
+        collectCycle(collector);
+        assertNull(blobStore.stat(deleted));
+        assertNull(blobStore.stat(orphan));
+        assertNotNull(blobStore.stat(kept));
+        assertTrue(Files.exists(legacyKept));
+        assertFalse(Files.exists(legacyOrphan));
+
+        assertEquals(1, collector.getCycles());
+        assertEquals(1, collector.getDeletedBlobs());
+        assertEquals(2, collector.getDeletedOrphans());
+        assertEquals("deleted".length() + "orphan".length() * 2, collector.getFreedBytes());
+        assertEquals("BLOBS", collector.getPass());
+        assertNull(collector.getCursor());
+    }
+
+    @Test
+    @DisplayName("Test a blob stored again while its row is removed is kept for the write until it's settled")
+    void testCollectKeepsBlobStoredAgain() throws IOException {
+        String committed = put("committed"), rolledBack = put("rolled back");
+        // stores of the same content register the rows again, which the reference check doesn't see before commit
+        blobStore.put(new ByteArrayInputStream("committed".getBytes()));
+        blobStore.put(new ByteArrayInputStream("rolled back".getBytes()));
+        when(blobRepository.findUnreferenced(eq(""), any(PageRequest.class)))
+                .thenReturn(Arrays.asList(new Blob(committed, 9), new Blob(rolledBack, 11)));
+        when(blobRepository.deleteUnreferenced(anyString())).thenReturn(1);
+
+        StoreCollector collector = createCollector(Duration.ZERO);
+        collector.runBatch();
+        assertNotNull(blobStore.stat(committed));
+        assertNotNull(blobStore.stat(rolledBack));
+        assertEquals(0, collector.getDeletedBlobs());
+
+        blobStore.settle(committed, true, key -> false);
+        blobStore.settle(rolledBack, false, key -> false);
+        assertNotNull(blobStore.stat(committed));
+        assertNull(blobStore.stat(rolledBack));
+    }
+
+    @Test
+    @DisplayName("Test files younger than the grace period are kept")
+    void testCollectKeepsYoungFiles() throws IOException {
+        String orphan = put("orphan");
+        Path legacyOrphan = Files.write(Files.createDirectories(root.resolve("1")).resolve("orphan"),
+                "orphan".getBytes());
+        when(blobRepository.findUnreferenced(eq(""), any(PageRequest.class))).thenReturn(Collections.emptyList());
+        when(blobRepository.findStoreKeysIn(any())).thenReturn(Collections.emptyList());
+        when(fileRepository.findFsPathsIn(any())).thenReturn(Collections.emptyList());
+
+        StoreCollector collector = createCollector(Duration.ofHours(1));
+        collectCycle(collector);
+        assertNotNull(blobStore.stat(orphan));
+        assertTrue(Files.exists(legacyOrphan));
+        assertEquals(0, collector.getDeletedOrphans());
+    }
+
+    @Test
+    @DisplayName("Test a cycle compacts the segments of packed blobs")
+    void testCollectCompactsSegments() throws IOException {
+        PackedBlobStore store = new PackedBlobStore(blobStore, root.resolve("segments"), Durability.NONE, 64, 200,
+                0.3);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            keys.add(store.put(new ByteArrayInputStream(("content " + i).getBytes())).getKey());
+        }
+        for (int i = 0; i < 8; i += 2) {
+            store.delete(keys.get(i));
+        }
+        when(blobRepository.findUnreferenced(eq(""), any(PageRequest.class))).thenReturn(Collections.emptyList());
+        when(blobRepository.findStoreKeysIn(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        StoreCollector collector = createCollector(store, Duration.ZERO);
+        collectCycle(collector);
+        assertTrue(collector.getCompactedSegments() > 0);
+        assertTrue(collector.getFreedBytes() > 0);
+        assertEquals(0, store.compact());
+        for (int i = 1; i < 8; i += 2) {
+            assertNotNull(store.stat(keys.get(i)));
+        }
+    }
+
+    @Test
+    @DisplayName("Test a failed batch is retried from the same cursor")
+    void testCollectRetriesFailedBatch() {
+        when(blobRepository.findUnreferenced(eq(""), any(PageRequest.class)))
+                .thenThrow(new IllegalStateException("DB is down"))
+                .thenReturn(Collections.emptyList());
+
+        StoreCollector collector = createCollector(Duration.ZERO);
+        assertFalse(collector.runBatch());
+        assertEquals(1, collector.getErrors());
+        assertEquals("BLOBS", collector.getPass());
+
+        assertFalse(collector.runBatch());
+        assertEquals("STORE", collector.getPass());
+    }
+}
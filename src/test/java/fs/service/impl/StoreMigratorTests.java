@@ -0,0 +1,106 @@
+package fs.service.impl;
+
+import fs.dao.FileRepository;
+import fs.service.StorageService;
+import fs.storage.Durability;
+import fs.storage.FileBlobStore;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("StoreMigrator")
+class StoreMigratorTests {
+    private static final int BATCH_SIZE = 2;
+
+    @TempDir
+    Path root;
+    @Mock
+    private StorageService storageService;
+    @Mock
+    private FileRepository fileRepository;
+
+    private StoreMigrator createMigrator(FileBlobStore blobStore) {
+        return new StoreMigrator(storageService, fileRepository, blobStore, true, BATCH_SIZE, Duration.ofSeconds(1));
+    }
+
+    private static void migrateAll(StoreMigrator migrator) {
+        for (int batch = 0; batch < 100; batch++) {
+            if (migrator.runBatch()) {
+                return;
+            }
+        }
+        fail("Migration isn't done");
+    }
+
+    @Test
+    @DisplayName("Test migration adopts legacy files, moves blobs to the new layout and stops when nothing is left")
+    void testMigrate() throws IOException {
+        FileBlobStore written = new FileBlobStore(root);
+        for (int i = 0; i < 3; i++) {
+            written.put(new ByteArrayInputStream(("content " + i).getBytes()));
+        }
+        FileBlobStore blobStore = new FileBlobStore(root, Durability.NONE, Duration.ZERO, 1);
+        blobStore.recover(key -> true);
+        when(fileRepository.findLegacyIds(anyLong(), any(PageRequest.class)))
+                .thenReturn(Arrays.asList(1L, 2L))
+                .thenReturn(Collections.emptyList());
+        when(storageService.adoptLegacyFile(anyLong()))
+                .thenReturn(true)
+                .thenThrow(new IllegalStateException("Content is broken"));
+        when(fileRepository.updateFsPath(anyString(), anyString())).thenReturn(1);
+
+        StoreMigrator migrator = createMigrator(blobStore);
+        migrateAll(migrator);
+        assertTrue(migrator.isDone());
+        assertEquals(1, migrator.getMovedFiles());
+        assertEquals(3, migrator.getMovedBlobs());
+        assertEquals(3, migrator.getRewrittenPaths());
+        assertEquals(1, migrator.getErrors());
+        for (String key : blobStore.list(null, 10)) {
+            verify(fileRepository).updateFsPath(key, blobStore.getLocalPath(key).toString());
+            assertEquals(root.resolve("blobs").resolve(key.substring(0, 2)).resolve(key),
+                    blobStore.getLocalPath(key));
+        }
+        verify(storageService).adoptLegacyFile(1L);
+        verify(storageService).adoptLegacyFile(2L);
+        verify(fileRepository).findLegacyIds(eq(2L), any(PageRequest.class));
+        assertTrue(migrator.runBatch());
+    }
+
+    @Test
+    @DisplayName("Test a failed batch is retried from the same cursor")
+    void testMigrateRetriesFailedBatch() {
+        when(fileRepository.findLegacyIds(anyLong(), any(PageRequest.class)))
+                .thenThrow(new IllegalStateException("DB is down"))
+                .thenReturn(Collections.emptyList());
+
+        StoreMigrator migrator = createMigrator(new FileBlobStore(root));
+        assertFalse(migrator.runBatch());
+        assertEquals(1, migrator.getErrors());
+        assertEquals("LEGACY", migrator.getPass());
+
+        assertFalse(migrator.runBatch());
+        assertEquals("LAYOUT", migrator.getPass());
+        assertTrue(migrator.runBatch());
+    }
+}
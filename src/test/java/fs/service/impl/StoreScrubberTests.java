@@ -0,0 +1,163 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.domain.Blob;
+import fs.service.StorageMetrics;
+import fs.storage.BlobStat;
+import fs.storage.FileBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("StoreScrubber")
+class StoreScrubberTests {
+    private static final int BATCH_SIZE = 2;
+
+    @TempDir
+    Path root;
+    @Mock
+    private BlobRepository blobRepository;
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private FileBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        blobStore = new FileBlobStore(root);
+    }
+
+    private StoreScrubber createScrubber(String algorithm) {
+        return new StoreScrubber(blobStore, blobRepository, new StorageMetrics(registry, false), true, algorithm,
+                DataSize.ofMegabytes(16), BATCH_SIZE, Duration.ofSeconds(1));
+    }
+
+    private Blob put(String content, boolean checksum) throws IOException {
+        BlobStat stored = blobStore.put(new ByteArrayInputStream(content.getBytes()));
+        Blob blob = new Blob(stored.getKey(), stored.getSize());
+        blob.setRefCount(1);
+        blob.setChecksum(checksum ? stored.getChecksum() : null);
+        return blob;
+    }
+
+    private void corrupt(Blob blob) throws IOException {
+        Path file = blobStore.getLocalPath(blob.getStoreKey());
+        byte[] content = Files.readAllBytes(file);
+        content[0] ^= 1;
+        Files.write(file, content);
+    }
+
+    private double failures() {
+        return registry.counter(StorageMetrics.INTEGRITY_FAILURES, "source", "scrub").count();
+    }
+
+    @Test
+    @DisplayName("Test a pass checks the blobs by batches and reports the corrupted one")
+    void testScrub() throws IOException {
+        Blob first = put("a", true), second = put("b", true), third = put("c", true);
+        Blob[] blobs = {first, second, third};
+        Arrays.sort(blobs, (a, b) -> a.getHash().compareTo(b.getHash()));
+        corrupt(blobs[2]);
+        when(blobRepository.findReferenced("", PageRequest.of(0, BATCH_SIZE)))
+                .thenReturn(Arrays.asList(blobs[0], blobs[1]));
+        doReturn(Collections.singletonList(blobs[2])).when(blobRepository)
+                .findReferenced(blobs[1].getHash(), PageRequest.of(0, BATCH_SIZE));
+
+        StoreScrubber scrubber = createScrubber(StoreScrubber.CRC32C);
+        assertFalse(scrubber.runBatch());
+        assertEquals(blobs[1].getHash(), scrubber.getCursor());
+        assertEquals(0, scrubber.getCorrupted());
+        assertTrue(scrubber.runBatch());
+        assertNull(scrubber.getCursor());
+        assertEquals(3, scrubber.getScanned());
+        assertEquals(3, scrubber.getScannedBytes());
+        assertEquals(1, scrubber.getCorrupted());
+        assertEquals(blobs[2].getHash(), scrubber.getLastCorrupted());
+        assertEquals(1, scrubber.getPasses());
+        assertEquals(1, failures());
+        verify(blobRepository, never()).updateMissingChecksum(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    @DisplayName("Test a blob without a checksum gets it recorded if its content matches its hash")
+    void testScrubRecordsMissingChecksum() throws IOException {
+        Blob intact = put("a", false), corrupted = put("b", false);
+        long checksum = put("a", true).getChecksum();
+        corrupt(corrupted);
+        when(blobRepository.findReferenced(any(), any())).thenReturn(Arrays.asList(intact, corrupted));
+        when(blobRepository.updateMissingChecksum(intact.getHash(), intact.getStoreKey(), checksum)).thenReturn(1);
+
+        StoreScrubber scrubber = createScrubber(StoreScrubber.CRC32C);
+        scrubber.runBatch();
+        assertEquals(1, scrubber.getRecorded());
+        assertEquals(1, scrubber.getCorrupted());
+        assertEquals(corrupted.getHash(), scrubber.getLastCorrupted());
+    }
+
+    @Test
+    @DisplayName("Test sha-256 finds corruption that the recorded checksum was taken of")
+    void testScrubHashing() throws IOException {
+        Blob blob = put("a", true);
+        corrupt(blob);
+        Path file = blobStore.getLocalPath(blob.getStoreKey());
+        blob.setChecksum(put(new String(Files.readAllBytes(file)), true).getChecksum());
+        when(blobRepository.findReferenced(any(), any())).thenReturn(Collections.singletonList(blob));
+
+        StoreScrubber crc = createScrubber(StoreScrubber.CRC32C);
+        crc.runBatch();
+        assertEquals(0, crc.getCorrupted());
+        StoreScrubber sha = createScrubber(StoreScrubber.SHA256);
+        sha.runBatch();
+        assertEquals(1, sha.getCorrupted());
+    }
+
+    @Test
+    @DisplayName("Test a missing blob is reported unless it was moved since the batch was found")
+    void testScrubMissingBlob() throws IOException {
+        Blob blob = put("a", true);
+        blobStore.delete(blob.getStoreKey());
+        Blob moved = new Blob(blob.getHash(), blob.getSize());
+        moved.setRefCount(1);
+        moved.setEncoding("gzip");
+        moved.setEncodedKey("moved");
+        when(blobRepository.findReferenced(any(), any())).thenReturn(Collections.singletonList(blob));
+        when(blobRepository.findById(blob.getHash())).thenReturn(Optional.of(moved), Optional.of(blob));
+
+        StoreScrubber scrubber = createScrubber(StoreScrubber.CRC32C);
+        scrubber.runBatch();
+        assertEquals(0, scrubber.getCorrupted());
+        scrubber.runBatch();
+        assertEquals(1, scrubber.getCorrupted());
+        assertEquals(0, scrubber.getErrors());
+    }
+
+    @Test
+    @DisplayName("Test unknown algorithms are rejected")
+    void testUnknownAlgorithm() {
+        assertThrows(IllegalArgumentException.class, () -> createScrubber("md5"));
+    }
+}
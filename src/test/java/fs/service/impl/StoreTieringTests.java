@@ -0,0 +1,109 @@
+package fs.service.impl;
+
+import fs.dao.BlobRepository;
+import fs.domain.Blob;
+import fs.service.StorageService;
+import fs.storage.StorageTier;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("StoreTiering")
+class StoreTieringTests {
+    private static final int BATCH_SIZE = 2;
+
+    @Mock
+    private StorageService storageService;
+    @Mock
+    private BlobRepository blobRepository;
+    private final BlobAccessTracker accessTracker = new BlobAccessTracker(true);
+
+    private StoreTiering createTiering() {
+        return new StoreTiering(storageService, blobRepository, accessTracker, true, Duration.ofDays(7), BATCH_SIZE,
+                Duration.ofSeconds(1));
+    }
+
+    private static Blob blob(String hash, StorageTier tier) {
+        Blob blob = new Blob(hash, 7);
+        blob.setTier(tier);
+        return blob;
+    }
+
+    @Test
+    @DisplayName("Test a batch flushes the reads, promotes the cold blobs read and demotes the idle ones")
+    @SuppressWarnings("unchecked")
+    void testMove() {
+        accessTracker.read(blob("a", StorageTier.HOT));
+        accessTracker.read(blob("b", StorageTier.COLD));
+        accessTracker.read(blob("c", StorageTier.HOT));
+        when(storageService.promoteBlob("b")).thenReturn(true);
+        when(blobRepository.findIdleHashes(eq(StorageTier.HOT), any(Instant.class), anyString(),
+                any(PageRequest.class)))
+                .thenReturn(Arrays.asList("d", "e"))
+                .thenReturn(Collections.singletonList("f"));
+        when(storageService.demoteBlob(anyString()))
+                .thenReturn(true)
+                .thenThrow(new IllegalStateException("Cold disk is full"))
+                .thenReturn(true);
+
+        StoreTiering tiering = createTiering();
+        Instant before = Instant.now();
+        assertFalse(tiering.runBatch());
+        assertEquals("e", tiering.getCursor());
+        ArgumentCaptor<Collection<String>> flushed = ArgumentCaptor.forClass(Collection.class);
+        ArgumentCaptor<Instant> idleBefore = ArgumentCaptor.forClass(Instant.class);
+        verify(blobRepository, times(2)).updateLastAccess(flushed.capture(), any(Instant.class));
+        assertEquals(3, flushed.getAllValues().stream().mapToInt(Collection::size).sum());
+        verify(blobRepository).findIdleHashes(eq(StorageTier.HOT), idleBefore.capture(), eq(""),
+                eq(PageRequest.of(0, BATCH_SIZE)));
+        assertFalse(idleBefore.getValue().isAfter(Instant.now().minus(Duration.ofDays(7))));
+        assertFalse(idleBefore.getValue().isBefore(before.minus(Duration.ofDays(7))));
+
+        assertTrue(tiering.runBatch());
+        verify(blobRepository).findIdleHashes(eq(StorageTier.HOT), any(Instant.class), eq("e"),
+                any(PageRequest.class));
+        assertNull(tiering.getCursor());
+        verify(storageService).promoteBlob("b");
+        verify(storageService, never()).promoteBlob("a");
+        assertEquals(3, tiering.getFlushedReads());
+        assertEquals(1, tiering.getPromoted());
+        assertEquals(2, tiering.getDemoted());
+        assertEquals(1, tiering.getErrors());
+    }
+
+    @Test
+    @DisplayName("Test a failed batch is retried from the same cursor")
+    void testMoveRetriesFailedBatch() {
+        when(blobRepository.findIdleHashes(eq(StorageTier.HOT), any(Instant.class), anyString(),
+                any(PageRequest.class)))
+                .thenThrow(new IllegalStateException("DB is down"))
+                .thenReturn(Collections.emptyList());
+
+        StoreTiering tiering = createTiering();
+        assertFalse(tiering.runBatch());
+        assertEquals(1, tiering.getErrors());
+        assertTrue(tiering.runBatch());
+        verify(blobRepository, never()).updateLastAccess(any(), any());
+        verify(storageService, never()).demoteBlob(anyString());
+    }
+}
@@ -2,16 +2,23 @@ package fs.service.impl;
 
 import fs.dao.UserRepository;
 import fs.domain.User;
+import fs.security.UserDetailsCache;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.security.core.userdetails.UserCache;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
+import java.time.Duration;
+
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -19,6 +26,8 @@ import static org.mockito.Mockito.when;
 class UserDetailsServiceImplTests {
     @Mock
     private UserRepository userRepository;
+    @Spy
+    private UserCache userCache = new UserDetailsCache(Duration.ofMinutes(5), 100);
     @InjectMocks
     private UserDetailsServiceImpl userDetailsService;
 
@@ -51,4 +60,22 @@ class UserDetailsServiceImplTests {
         assertTrue(userDetails.isEnabled());
     }
 
+    @Test
+    @DisplayName("Test loadUserByUsername serves repeated logins from the cache")
+    void testLoadUserByUsernameFromCache() {
+        String userName = "test";
+        User user = new User();
+        user.setId(1L);
+        user.setUsername(userName);
+
+        when(userRepository.findByUsername(userName)).thenReturn(user);
+        UserDetails userDetails = userDetailsService.loadUserByUsername(userName);
+        assertSame(userDetails, userDetailsService.loadUserByUsername(userName));
+        verify(userRepository, times(1)).findByUsername(userName);
+
+        userCache.removeUserFromCache(userName);
+        assertNotSame(userDetails, userDetailsService.loadUserByUsername(userName));
+        verify(userRepository, times(2)).findByUsername(userName);
+    }
+
 }
@@ -0,0 +1,85 @@
+package fs.storage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BlobCodec")
+class BlobCodecTests {
+    private static final byte[] CONTENT = new byte[200_000];
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) ('a' + i % 7 + i / 1000 % 3);
+        }
+    }
+
+    @TempDir
+    Path root;
+
+    private Path encoded() throws IOException {
+        Path target = root.resolve("encoded");
+        BlobCodec.Encoded encoded = BlobCodec.gzip(new ByteArrayInputStream(CONTENT), target);
+        assertEquals(CONTENT.length, encoded.getSize());
+        assertEquals(Files.size(target), encoded.getEncodedSize());
+        assertTrue(encoded.getEncodedSize() < CONTENT.length / 10);
+        return target;
+    }
+
+    @Test
+    @DisplayName("Test gzip hashes the decoded content and decode restores it")
+    void testGzip() throws IOException {
+        Path target = root.resolve("encoded");
+        BlobCodec.Encoded encoded = BlobCodec.gzip(new ByteArrayInputStream(CONTENT), target);
+        assertEquals(BlobIO.hash(Files.write(root.resolve("decoded"), CONTENT)), encoded.getHash());
+
+        try (InputStream decoded = BlobCodec.decode(BlobCodec.GZIP, Files.newInputStream(target))) {
+            byte[] buffer = new byte[CONTENT.length + 1];
+            int read = 0, n;
+            while ((n = decoded.read(buffer, read, buffer.length - read)) > 0) {
+                read += n;
+            }
+            assertArrayEquals(CONTENT, Arrays.copyOf(buffer, read));
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> BlobCodec.decode("br", new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    @DisplayName("Test decoding channel seeks forward and backward")
+    void testDecodingChannel() throws IOException {
+        try (DecodingChannel channel = new DecodingChannel(
+                FileChannel.open(encoded(), StandardOpenOption.READ), BlobCodec.GZIP, CONTENT.length)) {
+            assertEquals(CONTENT.length, channel.size());
+            assertArrayEquals(Arrays.copyOfRange(CONTENT, 150_000, 150_100), read(channel.position(150_000), 100));
+            assertEquals(150_100, channel.position());
+            assertArrayEquals(Arrays.copyOfRange(CONTENT, 10, 20), read(channel.position(10), 10));
+            assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+        }
+    }
+
+    private static byte[] read(SeekableByteChannel channel, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(count);
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read > 0 && buffer.hasRemaining());
+        byte[] result = new byte[buffer.flip().remaining()];
+        buffer.get(result);
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+package fs.storage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BlobJournal")
+class BlobJournalTests {
+    private static final String CONTENT_HASH = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+
+    @TempDir
+    Path root;
+
+    private FileBlobStore createStore(Durability durability) {
+        return new FileBlobStore(root, durability, Duration.ofMillis(1));
+    }
+
+    private static ByteArrayInputStream content() {
+        return new ByteArrayInputStream("content".getBytes());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Durability.class)
+    @DisplayName("Test settle of a rolled back write removes the blob unless it's referenced or written again")
+    void testSettleRolledBack(Durability durability) throws Exception {
+        FileBlobStore store = createStore(durability);
+        store.put(content());
+        store.settle(CONTENT_HASH, false, key -> true);
+        assertNotNull(store.stat(CONTENT_HASH));
+
+        store.put(content());
+        store.put(content());
+        store.settle(CONTENT_HASH, false, key -> false);
+        assertNotNull(store.stat(CONTENT_HASH));
+        store.settle(CONTENT_HASH, false, key -> false);
+        assertNull(store.stat(CONTENT_HASH));
+
+        store.put(content());
+        store.settle(CONTENT_HASH, true, key -> false);
+        assertNotNull(store.stat(CONTENT_HASH));
+    }
+
+    @Test
+    @DisplayName("Test deleteUnreferenced keeps the blob while a write of it is pending")
+    void testDeleteUnreferencedPending() throws Exception {
+        FileBlobStore store = createStore(Durability.NONE);
+        store.put(content());
+        assertFalse(store.deleteUnreferenced(CONTENT_HASH, key -> false));
+        assertNotNull(store.stat(CONTENT_HASH));
+
+        store.settle(CONTENT_HASH, true, key -> true);
+        assertFalse(store.deleteUnreferenced(CONTENT_HASH, key -> true));
+        assertNotNull(store.stat(CONTENT_HASH));
+        assertTrue(store.deleteUnreferenced(CONTENT_HASH, key -> false));
+        assertNull(store.stat(CONTENT_HASH));
+    }
+
+    @Test
+    @DisplayName("Test recover removes unreferenced blobs of unsettled writes and drops the journal")
+    void testRecoverRollsBack() throws Exception {
+        FileBlobStore crashed = createStore(Durability.FSYNC);
+        String unreferenced = crashed.put(content()).getKey();
+        String referenced = crashed.put(new ByteArrayInputStream("committed".getBytes())).getKey();
+        String settled = crashed.put(new ByteArrayInputStream("settled".getBytes())).getKey();
+        crashed.settle(settled, true, key -> true);
+        assertTrue(Files.exists(root.resolve("journal")));
+
+        FileBlobStore restarted = createStore(Durability.FSYNC);
+        restarted.recover(referenced::equals);
+        assertNull(restarted.stat(unreferenced));
+        assertNotNull(restarted.stat(referenced));
+        assertNotNull(restarted.stat(settled));
+        assertFalse(Files.exists(root.resolve("journal")));
+    }
+
+    @Test
+    @DisplayName("Test recover moves a referenced blob again if its move was lost")
+    void testRecoverRedoesMove() throws Exception {
+        FileBlobStore crashed = createStore(Durability.GROUP);
+        Path staged = Files.write(Files.createDirectories(root.resolve("tmp")).resolve("staged"),
+                "content".getBytes());
+        BlobStat blob = crashed.put(staged);
+        crashed.settle(CONTENT_HASH, true, key -> true);
+        // the folder entries weren't synced yet: the crash brings the file back to its source
+        Files.move(crashed.getLocalPath(CONTENT_HASH), staged);
+
+        FileBlobStore restarted = createStore(Durability.GROUP);
+        restarted.recover(key -> true);
+        assertEquals(blob, restarted.stat(CONTENT_HASH));
+        assertFalse(Files.exists(staged));
+    }
+
+    @Test
+    @DisplayName("Test recover ignores a record torn by the crash")
+    void testRecoverTornRecord() throws Exception {
+        FileBlobStore crashed = createStore(Durability.NONE);
+        crashed.put(content());
+        Files.write(root.resolve("journal"), ("S " + CONTENT_HASH).getBytes(), StandardOpenOption.APPEND);
+
+        createStore(Durability.NONE).recover(key -> false);
+        assertNull(crashed.stat(CONTENT_HASH));
+    }
+
+    @Test
+    @DisplayName("Test group commit stores concurrent writes")
+    void testGroupCommit() throws Exception {
+        FileBlobStore store = createStore(Durability.GROUP);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<BlobStat>> writes = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                byte[] bytes = ("content " + i).getBytes();
+                writes.add(executor.submit(() -> store.put(new ByteArrayInputStream(bytes))));
+            }
+            for (Future<BlobStat> write : writes) {
+                String key = write.get().getKey();
+                store.settle(key, true, k -> true);
+                assertNotNull(store.stat(key));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        createStore(Durability.GROUP).recover(key -> false);
+        assertEquals(100, Files.walk(root.resolve("blobs")).filter(Files::isRegularFile).count());
+    }
+}
@@ -0,0 +1,456 @@
+package fs.storage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayName("BlobStore")
+class BlobStoreTests {
+    private static final String CONTENT_HASH = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+    private static final Long CONTENT_CHECKSUM = checksum("content".getBytes());
+
+    @TempDir
+    Path root;
+
+    private BlobStore createStore(String type) throws IOException {
+        switch (type) {
+            case "file":
+                return new FileBlobStore(root);
+            case "mmap":
+                return new MappedFileBlobStore(root);
+            case "memory":
+                return new MemoryBlobStore();
+            case "cached":
+                return new CachingBlobStore(new FileBlobStore(root), 1024 * 1024, 64 * 1024);
+            case "tiered":
+                return new TieredBlobStore(new FileBlobStore(root), new FileBlobStore(root.resolve("cold")));
+            case "packed":
+                return createPackedStore(1024);
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    private PackedBlobStore createPackedStore(long segmentSize) throws IOException {
+        return new PackedBlobStore(new FileBlobStore(root), root.resolve("segments"), Durability.FSYNC, 64,
+                segmentSize, 0.3);
+    }
+
+    /**
+     * @return CRC32C computed a byte at a time
+     */
+    private static long checksum(byte[] content) {
+        Crc32c crc = new Crc32c();
+        for (byte b : content) {
+            crc.update(b);
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] read(BlobStore store, String key, long position, int length) throws IOException {
+        try (SeekableByteChannel channel = store.open(key)) {
+            channel.position(position);
+            ByteBuffer content = ByteBuffer.allocate(length);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read until the buffer is full
+            }
+            return content.array();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap", "memory", "cached", "tiered", "packed"})
+    @DisplayName("Test put, stat, open and delete")
+    void testPutAndGet(String type) throws IOException {
+        BlobStore store = createStore(type);
+        BlobStat blob = store.put(new ByteArrayInputStream("content".getBytes()));
+        assertEquals(CONTENT_HASH, blob.getKey());
+        assertEquals(7, blob.getSize());
+        assertEquals(CONTENT_CHECKSUM, blob.getChecksum());
+        assertEquals(blob, store.stat(CONTENT_HASH));
+        assertArrayEquals("content".getBytes(), read(store, CONTENT_HASH, 0, 7));
+        assertArrayEquals("tent".getBytes(), read(store, CONTENT_HASH, 3, 4));
+
+        assertTrue(store.delete(CONTENT_HASH));
+        assertFalse(store.delete(CONTENT_HASH));
+        assertNull(store.stat(CONTENT_HASH));
+        assertThrows(NoSuchFileException.class, () -> store.open(CONTENT_HASH));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap", "memory", "cached", "tiered", "packed"})
+    @DisplayName("Test put the same content twice keeps one blob")
+    void testPutDeduplicates(String type) throws IOException {
+        BlobStore store = createStore(type);
+        byte[] content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+
+        BlobStat first = store.put(new ByteArrayInputStream(content));
+        BlobStat second = store.put(new ByteArrayInputStream(content));
+        assertEquals(first.getKey(), second.getKey());
+        assertEquals(first.getLocation(), second.getLocation());
+        assertArrayEquals(content, read(store, first.getKey(), 0, content.length));
+        if (Files.exists(root.resolve("tmp"))) {
+            assertEquals(0, Files.list(root.resolve("tmp")).count());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap", "memory", "cached", "tiered", "packed"})
+    @DisplayName("Test put staged file takes it over")
+    void testPutStagedFile(String type) throws IOException {
+        BlobStore store = createStore(type);
+        Path staged = Files.write(root.resolve("staged"), "content".getBytes());
+
+        BlobStat blob = store.put(staged);
+        assertEquals(CONTENT_HASH, blob.getKey());
+        assertEquals(CONTENT_CHECKSUM, blob.getChecksum());
+        assertFalse(Files.exists(staged));
+        assertArrayEquals("content".getBytes(), read(store, CONTENT_HASH, 0, 7));
+    }
+
+    @Test
+    @DisplayName("Test CRC32C matches the check value and a byte at a time")
+    void testCrc32c() {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes(), 0, 9);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        byte[] content = new byte[1000];
+        new Random(42).nextBytes(content);
+        for (int length : new int[]{0, 1, 7, 8, 9, 63, 1000}) {
+            crc.reset();
+            crc.update(content, 0, length / 2);
+            crc.update(content, length / 2, length - length / 2);
+            assertEquals(checksum(Arrays.copyOf(content, length)), crc.getValue(), "Length " + length);
+        }
+    }
+
+    @Test
+    @DisplayName("Test verifying channel passes intact blobs and takes back the end of corrupted ones")
+    void testVerifyingChannel() throws IOException {
+        MemoryBlobStore store = new MemoryBlobStore();
+        byte[] content = new byte[100 * 1024];
+        new Random(42).nextBytes(content);
+        BlobStat blob = store.put(new ByteArrayInputStream(content));
+        ByteBuffer buffer = ByteBuffer.allocate(content.length);
+
+        try (SeekableByteChannel channel = new VerifyingChannel(store.open(blob.getKey()), blob.getKey(),
+                blob.getChecksum())) {
+            while (channel.read(buffer) >= 0) {
+                // read to the end
+            }
+            assertArrayEquals(content, buffer.array());
+        }
+        buffer.clear();
+        try (SeekableByteChannel channel = new VerifyingChannel(store.open(blob.getKey()), blob.getKey(),
+                blob.getChecksum() ^ 1)) {
+            buffer.limit(1000);
+            channel.read(buffer);
+            buffer.limit(content.length);
+            assertThrows(CorruptedBlobException.class, () -> channel.read(buffer));
+            assertEquals(1000, buffer.position());
+
+            channel.position(10);
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                // an unchecked read goes on to the end
+            }
+            assertEquals(content.length - 10, buffer.position());
+        }
+    }
+
+    @Test
+    @DisplayName("Test cached blobs are read from memory until they are deleted")
+    void testCachedRead() throws IOException {
+        FileBlobStore files = new FileBlobStore(root);
+        CachingBlobStore store = new CachingBlobStore(files, 1024 * 1024, 64 * 1024);
+        BlobStat blob = store.put(new ByteArrayInputStream("content".getBytes()));
+        byte[] large = new byte[65 * 1024];
+        new Random(42).nextBytes(large);
+        String largeKey = store.put(new ByteArrayInputStream(large)).getKey();
+        assertNull(store.getLocalPath(CONTENT_HASH));
+        assertEquals(files.getLocalPath(largeKey), store.getLocalPath(largeKey));
+
+        assertArrayEquals("tent".getBytes(), read(store, CONTENT_HASH, 3, 4));
+        assertArrayEquals(large, read(store, largeKey, 0, large.length));
+        Files.delete(files.getLocalPath(CONTENT_HASH));
+        assertEquals(blob, store.stat(CONTENT_HASH));
+        assertArrayEquals("content".getBytes(), read(store, CONTENT_HASH, 0, 7));
+
+        assertFalse(store.delete(CONTENT_HASH));
+        assertNull(store.stat(CONTENT_HASH));
+        assertThrows(NoSuchFileException.class, () -> store.open(CONTENT_HASH));
+    }
+
+    @Test
+    @DisplayName("Test tiered blobs keep their key in both tiers and are read from the hot one first")
+    void testTieredStore() throws IOException {
+        FileBlobStore hot = new FileBlobStore(root);
+        FileBlobStore cold = new FileBlobStore(root.resolve("cold"));
+        TieredBlobStore store = new TieredBlobStore(hot, cold);
+        BlobStat blob = store.put(new ByteArrayInputStream("content".getBytes()));
+        assertEquals(blob, hot.stat(CONTENT_HASH));
+        assertNull(cold.stat(CONTENT_HASH));
+
+        Path staged = Files.write(root.resolve("staged"), "content".getBytes());
+        BlobStat demoted = store.put(staged, StorageTier.COLD);
+        assertEquals(CONTENT_HASH, demoted.getKey());
+        assertFalse(Files.exists(staged));
+        assertEquals(hot.getLocalPath(CONTENT_HASH), store.getLocalPath(CONTENT_HASH));
+        assertEquals(Collections.singletonList(CONTENT_HASH), store.list(null, 10));
+
+        assertTrue(store.delete(CONTENT_HASH, StorageTier.HOT));
+        assertEquals(demoted, store.stat(CONTENT_HASH));
+        assertEquals(cold.getLocalPath(CONTENT_HASH), store.getLocalPath(CONTENT_HASH));
+        assertArrayEquals("tent".getBytes(), read(store, CONTENT_HASH, 3, 4));
+
+        store.put(new ByteArrayInputStream("content".getBytes()), StorageTier.HOT);
+        assertTrue(store.delete(CONTENT_HASH, StorageTier.COLD));
+        assertEquals(blob.getLocation(), store.stat(CONTENT_HASH).getLocation());
+        assertTrue(store.delete(CONTENT_HASH));
+        assertThrows(NoSuchFileException.class, () -> store.open(CONTENT_HASH));
+    }
+
+    @Test
+    @DisplayName("Test tiered recovery drops an unsettled copy that the other tier keeps")
+    void testTieredRecover() throws IOException {
+        FileBlobStore hot = new FileBlobStore(root);
+        FileBlobStore cold = new FileBlobStore(root.resolve("cold"));
+        hot.recover(key -> true);
+        cold.recover(key -> true);
+        cold.put(new ByteArrayInputStream("content".getBytes()));
+        cold.settle(CONTENT_HASH, true, key -> true);
+        hot.put(new ByteArrayInputStream("content".getBytes()));
+        String moved = cold.put(new ByteArrayInputStream("moved".getBytes())).getKey();
+        cold.settle(moved, true, key -> true);
+
+        TieredBlobStore store = new TieredBlobStore(new FileBlobStore(root), new FileBlobStore(root.resolve("cold")));
+        store.recover(key -> true);
+        assertNull(hot.stat(CONTENT_HASH));
+        assertNotNull(cold.stat(CONTENT_HASH));
+        assertNotNull(store.stat(moved));
+    }
+
+    @Test
+    @DisplayName("Test stores without tiers reject tier operations")
+    void testUntieredStore() throws IOException {
+        BlobStore store = createStore("memory");
+        assertThrows(UnsupportedOperationException.class,
+                () -> store.put(new ByteArrayInputStream("content".getBytes()), StorageTier.COLD));
+        assertThrows(UnsupportedOperationException.class, () -> store.delete(CONTENT_HASH, StorageTier.HOT));
+    }
+
+    @Test
+    @DisplayName("Test small blobs are packed into segments that are read back on restart")
+    void testPackedStore() throws IOException {
+        PackedBlobStore store = createPackedStore(1024);
+        BlobStat small = store.put(new ByteArrayInputStream("content".getBytes()));
+        byte[] large = new byte[65];
+        new Random(42).nextBytes(large);
+        String largeKey = store.put(new ByteArrayInputStream(large)).getKey();
+        String deleted = store.put(Files.write(root.resolve("staged"), "deleted".getBytes())).getKey();
+        assertNull(store.getLocalPath(CONTENT_HASH));
+        assertTrue(Files.isRegularFile(store.getLocalPath(largeKey)));
+        assertFalse(Files.exists(root.resolve("blobs").resolve(BlobIO.shard(CONTENT_HASH, File.separator))));
+        assertTrue(small.getLocation().startsWith(root.resolve("segments").resolve("00000000000000000001.seg")
+                .toString()));
+        assertTrue(store.delete(deleted));
+
+        PackedBlobStore reloaded = createPackedStore(1024);
+        // the time a packed blob was written is the time of its segment after a restart
+        assertEquals(small.getLocation(), reloaded.stat(CONTENT_HASH).getLocation());
+        assertEquals(7, reloaded.stat(CONTENT_HASH).getSize());
+        assertArrayEquals("tent".getBytes(), read(reloaded, CONTENT_HASH, 3, 4));
+        assertArrayEquals(large, read(reloaded, largeKey, 0, large.length));
+        assertNull(reloaded.stat(deleted));
+        assertEquals(Arrays.stream(new String[]{CONTENT_HASH, largeKey}).sorted().collect(Collectors.toList()),
+                reloaded.list(null, 10));
+    }
+
+    @Test
+    @DisplayName("Test a record torn by a crash is cut off")
+    void testPackedTornRecord() throws IOException {
+        createPackedStore(1024).put(new ByteArrayInputStream("content".getBytes()));
+        Path segment = root.resolve("segments").resolve("00000000000000000001.seg");
+        long size = Files.size(segment);
+        Files.write(segment, new byte[]{0x46, 0x53, 0x50}, StandardOpenOption.APPEND);
+
+        PackedBlobStore store = createPackedStore(1024);
+        assertEquals(size, Files.size(segment));
+        String added = store.put(new ByteArrayInputStream("content 2".getBytes())).getKey();
+        PackedBlobStore reloaded = createPackedStore(1024);
+        assertArrayEquals("content".getBytes(), read(reloaded, CONTENT_HASH, 0, 7));
+        assertArrayEquals("content 2".getBytes(), read(reloaded, added, 0, 9));
+    }
+
+    @Test
+    @DisplayName("Test compaction copies the live blobs of the segment with the most garbage and removes it")
+    void testPackedCompaction() throws IOException {
+        PackedBlobStore store = createPackedStore(200);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            keys.add(store.put(new ByteArrayInputStream(("content " + i).getBytes())).getKey());
+        }
+        assertEquals(0, store.compact());
+        for (int i = 0; i < 8; i += 2) {
+            assertTrue(store.delete(keys.get(i)));
+        }
+
+        long reclaimed = 0;
+        for (long step; (step = store.compact()) > 0; ) {
+            reclaimed += step;
+        }
+        assertTrue(reclaimed > 0);
+        assertFalse(Files.exists(root.resolve("segments").resolve("00000000000000000001.seg")));
+        for (PackedBlobStore reloaded : Arrays.asList(store, createPackedStore(200))) {
+            for (int i = 0; i < 8; i++) {
+                if (i % 2 == 0) {
+                    assertNull(reloaded.stat(keys.get(i)));
+                } else {
+                    assertArrayEquals(("content " + i).getBytes(), read(reloaded, keys.get(i), 0, 9));
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test a packed blob of a rolled back write is removed unless it's referenced")
+    void testPackedSettle() throws IOException {
+        PackedBlobStore store = createPackedStore(1024);
+        store.put(new ByteArrayInputStream("content".getBytes()));
+        store.put(new ByteArrayInputStream("content".getBytes()));
+        store.settle(CONTENT_HASH, false, key -> false);
+        assertNotNull(store.stat(CONTENT_HASH));
+        assertFalse(store.deleteUnreferenced(CONTENT_HASH, key -> false));
+        store.settle(CONTENT_HASH, false, key -> true);
+        assertNotNull(store.stat(CONTENT_HASH));
+
+        store.put(new ByteArrayInputStream("content".getBytes()));
+        store.settle(CONTENT_HASH, false, key -> false);
+        assertNull(store.stat(CONTENT_HASH));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap"})
+    @DisplayName("Test put from broken stream removes partial file")
+    void testPutWithBrokenStream(String type) throws IOException {
+        BlobStore store = createStore(type);
+        InputStream broken = mock(InputStream.class);
+        when(broken.read(any(byte[].class), anyInt(), anyInt())).thenThrow(IOException.class);
+
+        assertThrows(IOException.class, () -> store.put(broken));
+        assertEquals(0, Files.list(root.resolve("tmp")).count());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap"})
+    @DisplayName("Test blobs are sharded by hash prefix")
+    void testFileLayout(String type) throws IOException {
+        BlobStore store = createStore(type);
+        store.put(new ByteArrayInputStream("content".getBytes()));
+        assertTrue(Files.isRegularFile(root.resolve("blobs").resolve("ed").resolve("70").resolve(CONTENT_HASH)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap", "memory", "cached", "tiered", "packed"})
+    @DisplayName("Test list pages through the keys in order")
+    void testList(String type) throws IOException {
+        BlobStore store = createStore(type);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(store.put(new ByteArrayInputStream(("content " + i).getBytes())).getKey());
+        }
+        Collections.sort(keys);
+
+        assertEquals(keys.subList(0, 2), store.list(null, 2));
+        assertEquals(keys.subList(2, 4), store.list(keys.get(1), 2));
+        assertEquals(keys.subList(4, 5), store.list(keys.get(3), 2));
+        assertEquals(Collections.emptyList(), store.list(keys.get(4), 2));
+        assertEquals(Arrays.asList(keys.get(0)), store.list(null, 1));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "mmap"})
+    @DisplayName("Test relayout moves blobs to the new shard levels while they stay readable")
+    void testRelayout(String type) throws IOException {
+        FileBlobStore store = "file".equals(type) ? new FileBlobStore(root) : new MappedFileBlobStore(root);
+        store.recover(key -> true);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(store.put(new ByteArrayInputStream(("content " + i).getBytes())).getKey());
+        }
+        Collections.sort(keys);
+        String moved = keys.get(0);
+
+        FileBlobStore relaid = "file".equals(type)
+                ? new FileBlobStore(root, Durability.FSYNC, Duration.ZERO, 3)
+                : new MappedFileBlobStore(root, Durability.FSYNC, Duration.ZERO, 3);
+        relaid.recover(key -> true);
+        assertEquals(keys.subList(0, 2), relaid.relayout(null, 2));
+        assertTrue(Files.isRegularFile(root.resolve("blobs").resolve(BlobIO.shard(moved, 3, File.separator))));
+        assertEquals(keys, relaid.list(null, 10));
+        for (String key : keys) {
+            assertNotNull(relaid.stat(key));
+            assertArrayEquals("content".getBytes(), read(relaid, key, 0, 7));
+        }
+        assertEquals(keys.subList(2, 4), relaid.relayout(keys.get(1), 2));
+        assertEquals(keys.subList(4, 5), relaid.relayout(keys.get(3), 2));
+        assertEquals(Collections.emptyList(), relaid.relayout(null, 2));
+        assertEquals("3", new String(Files.readAllBytes(root.resolve("layout"))));
+        assertEquals(keys, relaid.list(null, 10));
+        assertEquals(5, Files.walk(root.resolve("blobs")).filter(Files::isRegularFile)
+                .filter(file -> file.getNameCount() - root.getNameCount() == 5).count());
+    }
+
+    @Test
+    @DisplayName("Test an unfinished relayout can be reverted, but not changed to other shard levels")
+    void testUnfinishedRelayout() throws IOException {
+        FileBlobStore store = new FileBlobStore(root);
+        String moved = store.put(new ByteArrayInputStream("content".getBytes())).getKey();
+        String kept = store.put(new ByteArrayInputStream("content 2".getBytes())).getKey();
+        FileBlobStore relaid = new FileBlobStore(root, Durability.NONE, Duration.ZERO, 3);
+        relaid.recover(key -> true);
+        relaid.relayout(moved.compareTo(kept) < 0 ? null : kept, 1);
+        assertTrue(Files.exists(root.resolve("blobs").resolve(BlobIO.shard(moved, 3, File.separator))));
+
+        assertThrows(IllegalStateException.class,
+                () -> new FileBlobStore(root, Durability.NONE, Duration.ZERO, 1).recover(key -> true));
+
+        FileBlobStore reverted = new FileBlobStore(root);
+        reverted.recover(key -> true);
+        assertNotNull(reverted.stat(moved));
+        assertNotNull(reverted.stat(kept));
+        assertEquals(Collections.singletonList(moved), reverted.relayout(null, 10));
+        assertEquals(Collections.emptyList(), reverted.relayout(null, 10));
+        assertEquals("2", new String(Files.readAllBytes(root.resolve("layout"))));
+        assertTrue(Files.exists(reverted.getLocalPath(moved)));
+        assertEquals(root.resolve("blobs").resolve(BlobIO.shard(moved, File.separator)), reverted.getLocalPath(moved));
+    }
+}
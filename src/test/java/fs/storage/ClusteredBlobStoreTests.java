@@ -0,0 +1,234 @@
+package fs.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("ClusteredBlobStore")
+class ClusteredBlobStoreTests {
+    private static final List<String> NODES = Arrays.asList("a", "b", "c");
+
+    private final Map<URI, ClusteredBlobStore> cluster = new LinkedHashMap<>();
+    private final Set<URI> down = new HashSet<>();
+
+    /**
+     * Routes the calls to the other stores of the test cluster, as their {@code ClusterController} would.
+     */
+    private class LoopbackClient extends ClusterClient {
+        private LoopbackClient() {
+            super("secret", Duration.ofSeconds(1));
+        }
+
+        private ClusteredBlobStore node(URI url) throws IOException {
+            if (down.contains(url)) {
+                throw new ConnectException("Connection refused: " + url);
+            }
+            return cluster.get(url);
+        }
+
+        @Override
+        public BlobStat stat(URI url, String key) throws IOException {
+            return node(url).getLocal().stat(key);
+        }
+
+        @Override
+        public SeekableByteChannel open(URI url, String key) throws IOException {
+            try {
+                return node(url).getLocal().open(key);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void push(URI url, String key, SeekableByteChannel content, long size) throws IOException {
+            node(url).receive(key, Channels.newInputStream(content), k -> true);
+        }
+
+        @Override
+        public boolean delete(URI url, String key, boolean force) throws IOException {
+            BlobStore local = node(url).getLocal();
+            return force ? local.delete(key) : local.deleteUnreferenced(key, k -> false);
+        }
+
+        @Override
+        public void ping(URI url) throws IOException {
+            node(url);
+        }
+    }
+
+    private static URI url(String node) {
+        return URI.create("http://" + node + ":8080");
+    }
+
+    private ClusteredBlobStore node(String id) {
+        return cluster.get(url(id));
+    }
+
+    @BeforeEach
+    void setUp() {
+        createCluster(2);
+    }
+
+    private void createCluster(int writeQuorum) {
+        cluster.clear();
+        Map<String, URI> urls = new LinkedHashMap<>();
+        NODES.forEach(id -> urls.put(id, url(id)));
+        for (String id : NODES) {
+            cluster.put(url(id), new ClusteredBlobStore(new MemoryBlobStore(), id, urls, 2, writeQuorum, 16,
+                    new LoopbackClient()));
+        }
+    }
+
+    /**
+     * @return content whose blob is owned by {@code node} or not, as asked
+     */
+    private byte[] content(String node, boolean owned) {
+        for (int i = 0; ; i++) {
+            byte[] content = ("content " + i).getBytes();
+            String key = BlobIO.toHex(BlobIO.newDigest().digest(content));
+            if (node("a").owners(key).contains(node) == owned) {
+                return content;
+            }
+        }
+    }
+
+    private static byte[] read(BlobStore store, String key) throws IOException {
+        try (SeekableByteChannel channel = store.open(key)) {
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read until the buffer is full
+            }
+            return content.array();
+        }
+    }
+
+    @Test
+    @DisplayName("Test the ring places keys on distinct owners and moves only the keys of a new node")
+    void testHashRing() {
+        HashRing ring = new HashRing(NODES, 64);
+        HashRing grown = new HashRing(Arrays.asList("a", "b", "c", "d"), 64);
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = BlobIO.toHex(BlobIO.newDigest().digest(("content " + i).getBytes()));
+            List<String> owners = ring.owners(key, 2);
+            assertEquals(2, owners.size());
+            assertNotEquals(owners.get(0), owners.get(1));
+            assertEquals(3, ring.owners(key, 5).size());
+            String owner = grown.owners(key, 1).get(0);
+            if (!owner.equals(owners.get(0))) {
+                assertEquals("d", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 100 && moved < 400, "Keys moved to the new node: " + moved);
+    }
+
+    @Test
+    @DisplayName("Test a write is kept by the writer and pushed to the other owners")
+    void testPutReplicates() throws IOException {
+        byte[] content = content("a", false);
+        BlobStat stored = node("a").put(new ByteArrayInputStream(content));
+        List<String> owners = node("a").owners(stored.getKey());
+        assertEquals("cluster://" + String.join(",", owners) + "/" + stored.getKey(), stored.getLocation());
+        for (String id : NODES) {
+            assertEquals(id.equals("a") || owners.contains(id), node(id).getLocal().stat(stored.getKey()) != null);
+        }
+        // every copy has a time of its own
+        assertEquals(stored.getLocation(), node("b").stat(stored.getKey()).getLocation());
+        assertEquals(stored.getSize(), node("b").stat(stored.getKey()).getSize());
+        assertNull(node("a").getLocalPath(stored.getKey()));
+    }
+
+    @Test
+    @DisplayName("Test a node without a copy reads it from the nearest owner that is up")
+    void testReadFromOtherNode() throws IOException {
+        byte[] content = content("a", true);
+        String key = node("a").put(new ByteArrayInputStream(content)).getKey();
+        String other = node("a").owners(key).stream().filter(id -> !id.equals("a")).findFirst().get();
+        String reader = NODES.stream().filter(id -> !node("a").owners(key).contains(id)).findFirst().get();
+        assertNull(node(reader).getLocal().stat(key));
+
+        assertArrayEquals(content, read(node(reader), key));
+        down.add(url(other));
+        assertArrayEquals(content, read(node(reader), key));
+        down.add(url("a"));
+        assertThrows(IOException.class, () -> node(reader).stat(key));
+        assertThrows(NoSuchFileException.class, () -> node(reader).open(key));
+        down.clear();
+        assertNull(node(reader).stat(BlobIO.toHex(BlobIO.newDigest().digest("missing".getBytes()))));
+    }
+
+    @Test
+    @DisplayName("Test a write fails without the quorum of copies")
+    void testPutWithoutQuorum() throws IOException {
+        byte[] content = content("a", true);
+        String key = BlobIO.toHex(BlobIO.newDigest().digest(content));
+        String other = node("a").owners(key).stream().filter(id -> !id.equals("a")).findFirst().get();
+        down.add(url(other));
+        node("a").heartbeat();
+        assertEquals("down", node("a").getNodeStates().get(other));
+        assertThrows(IOException.class, () -> node("a").put(new ByteArrayInputStream(content)));
+
+        createCluster(1);
+        assertEquals(key, node("a").put(new ByteArrayInputStream(content)).getKey());
+        assertNull(node(other).getLocal().stat(key));
+    }
+
+    @Test
+    @DisplayName("Test repair pushes the copies owners missed and hands the copies of other owners off")
+    void testRepair() throws IOException {
+        byte[] content = content("a", false);
+        String key = BlobIO.toHex(BlobIO.newDigest().digest(content));
+        List<String> owners = node("a").owners(key);
+        down.add(url(owners.get(1)));
+        node("a").put(new ByteArrayInputStream(content));
+        assertFalse(node("a").handOff(key));
+        assertNull(node(owners.get(1)).getLocal().stat(key));
+
+        down.clear();
+        node("a").heartbeat();
+        assertTrue(node("a").getNodeStates().get(owners.get(1)).startsWith("up"));
+        assertEquals(1, node("a").replicate(key));
+        assertEquals(0, node("a").replicate(key));
+        assertTrue(node("a").handOff(key));
+        assertNull(node("a").getLocal().stat(key));
+        assertArrayEquals(content, read(node("a"), key));
+        assertFalse(node(owners.get(0)).handOff(key));
+    }
+
+    @Test
+    @DisplayName("Test removing an unreferenced blob removes the copies of the owners")
+    void testDeleteUnreferenced() throws IOException {
+        String key = node("a").put(new ByteArrayInputStream(content("a", false))).getKey();
+        Predicate<String> unreferenced = k -> false;
+        assertFalse(node("a").getLocal().deleteUnreferenced(key, unreferenced));
+        node("a").settle(key, true, unreferenced);
+        assertTrue(node("a").deleteUnreferenced(key, unreferenced));
+        for (String id : NODES) {
+            assertNull(node(id).getLocal().stat(key));
+        }
+        assertFalse(node("b").deleteUnreferenced(key, unreferenced));
+        assertEquals(new ArrayList<>(), node("a").list(null, 10));
+    }
+}
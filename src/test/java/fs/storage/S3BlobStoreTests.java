@@ -0,0 +1,150 @@
+package fs.storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("S3BlobStore")
+class S3BlobStoreTests {
+    private static final String BUCKET = "files";
+    private static final String CONTENT_HASH = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+    private static final String OBJECT_KEY = "blobs/ed/70/" + CONTENT_HASH;
+
+    @TempDir
+    Path staging;
+    @Mock
+    private AmazonS3 s3;
+    private S3BlobStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new S3BlobStore(s3, BUCKET, staging);
+    }
+
+    private static AmazonS3Exception notFound() {
+        AmazonS3Exception err = new AmazonS3Exception("Not Found");
+        err.setStatusCode(404);
+        return err;
+    }
+
+    private static ObjectMetadata metadata(long size) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(size);
+        metadata.setLastModified(new Date(1000));
+        return metadata;
+    }
+
+    @Test
+    @DisplayName("Test put uploads new content under its hash")
+    void testPut() throws IOException {
+        when(s3.getObjectMetadata(BUCKET, OBJECT_KEY)).thenThrow(notFound()).thenReturn(metadata(7));
+
+        BlobStat blob = store.put(new ByteArrayInputStream("content".getBytes()));
+        assertEquals(CONTENT_HASH, blob.getKey());
+        assertEquals("s3://files/" + OBJECT_KEY, blob.getLocation());
+        verify(s3).putObject(eq(BUCKET), eq(OBJECT_KEY), any(File.class));
+        assertEquals(0, Files.list(staging).count());
+    }
+
+    @Test
+    @DisplayName("Test put skips upload of already stored content")
+    void testPutDeduplicates() throws IOException {
+        when(s3.getObjectMetadata(BUCKET, OBJECT_KEY)).thenReturn(metadata(7));
+
+        assertEquals(CONTENT_HASH, store.put(new ByteArrayInputStream("content".getBytes())).getKey());
+        verify(s3, never()).putObject(any(String.class), any(String.class), any(File.class));
+        assertEquals(0, Files.list(staging).count());
+    }
+
+    @Test
+    @DisplayName("Test deleteUnreferenced keeps an object stored again until its write is settled")
+    void testDeleteUnreferencedKeepsPendingWrite() throws IOException {
+        when(s3.getObjectMetadata(BUCKET, OBJECT_KEY)).thenReturn(metadata(7));
+
+        store.put(new ByteArrayInputStream("content".getBytes()));
+        assertFalse(store.deleteUnreferenced(CONTENT_HASH, key -> false));
+        store.settle(CONTENT_HASH, true, key -> true);
+        verify(s3, never()).deleteObject(any(String.class), any(String.class));
+        assertTrue(store.deleteUnreferenced(CONTENT_HASH, key -> false));
+        verify(s3).deleteObject(BUCKET, OBJECT_KEY);
+    }
+
+    @Test
+    @DisplayName("Test stat and delete of missing blob")
+    void testMissingBlob() {
+        when(s3.getObjectMetadata(BUCKET, OBJECT_KEY)).thenThrow(notFound());
+
+        assertNull(store.stat(CONTENT_HASH));
+        assertFalse(store.delete(CONTENT_HASH));
+        verify(s3, never()).deleteObject(any(String.class), any(String.class));
+    }
+
+    @Test
+    @DisplayName("Test open reads with ranged GET from the channel position")
+    void testOpen() throws IOException {
+        when(s3.getObjectMetadata(BUCKET, OBJECT_KEY)).thenReturn(metadata(7));
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream("tent".getBytes()));
+        when(s3.getObject(any(GetObjectRequest.class))).thenReturn(object);
+
+        try (SeekableByteChannel channel = store.open(CONTENT_HASH)) {
+            assertEquals(7, channel.size());
+            channel.position(3);
+            ByteBuffer content = ByteBuffer.allocate(4);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read until the buffer is full
+            }
+            assertArrayEquals("tent".getBytes(), content.array());
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+        ArgumentCaptor<GetObjectRequest> request = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3).getObject(request.capture());
+        assertArrayEquals(new long[]{3, 6}, request.getValue().getRange());
+    }
+
+    @Test
+    @DisplayName("Test list maps the object listing after the key to blob keys")
+    void testList() {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(OBJECT_KEY);
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.getObjectSummaries().add(summary);
+        when(s3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(result);
+
+        assertEquals(Collections.singletonList(CONTENT_HASH), store.list(CONTENT_HASH, 10));
+        ArgumentCaptor<ListObjectsV2Request> request = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        verify(s3).listObjectsV2(request.capture());
+        assertEquals("blobs/", request.getValue().getPrefix());
+        assertEquals(10, request.getValue().getMaxKeys());
+        assertEquals(OBJECT_KEY, request.getValue().getStartAfter());
+    }
+}